@@ -29,9 +29,12 @@ import com.gitee.drinkjava2.reactmrp.entity.security.User;
 import com.gitee.drinkjava2.reactmrp.entity.security.UserRole;
 import com.github.drinkjava2.jbeanbox.ClassScanner;
 import com.github.drinkjava2.jbeanbox.JBEANBOX;
+import com.github.drinkjava2.jdbpro.SqlMetrics;
 import com.github.drinkjava2.jdialects.Dialect;
 import com.github.drinkjava2.jsqlbox.DB;
 import com.github.drinkjava2.jsqlbox.DbContext;
+import com.github.drinkjava2.jsqlbox.SchemaSync;
+import com.github.drinkjava2.jsqlbox.SecondLevelCache;
 import com.github.drinkjava2.jtransactions.tinytx.TinyTxConnectionManager;
 import com.github.drinkjava2.myserverless.MyServerlessEnv;
 
@@ -62,8 +65,9 @@ public class InitConfig extends HttpServlet {
     @Override
     public void init() throws ServletException {
         initMyServerlessTemplates(); //登记自定义的MyServerless模板
-        initDataBase(); //删除并重建数据库
-        initSeedData(); //插入初始用户、角色、权限
+        initDataBase(); //同步或重建数据库
+        if (DB.qryLongValue("select count(*) from users") == 0) //同步模式下已有数据时不再重复插入
+            initSeedData(); //插入初始用户、角色、权限
     }
 
     public static void initMyServerlessTemplates() { //登记自定义的MyServerless模板
@@ -82,31 +86,49 @@ public class InitConfig extends HttpServlet {
         MyServerlessEnv.registerMethodTemplate("executeSql", ExecuteSqlTemplate.class);
     }
 
-    @SuppressWarnings("all")
+    /**
+     * 建表模式，可用启动参数-Dschema_mode=drop指定: <br/>
+     * sync: 缺省值，对比实体和数据库，只新建缺少的表、列和外键，库结构已是最新时不执行任何DDL，不会丢失数据 <br/>
+     * drop: 删除所有表后重建，会丢失数据，用于开发期重置数据库
+     */
+    public static final String SCHEMA_MODE = System.getProperty("schema_mode", "sync");
+
     public static void initDataBase() {
+        initDataBase(SCHEMA_MODE);
+    }
+
+    @SuppressWarnings("all")
+    public static void initDataBase(String schemaMode) {
         //初始化数据库， 本示例使用H2或MySql数据库，如使用其它数据库只要更改下面的DataSourceBox设置即可
         DataSource ds = JBEANBOX.getBean(DataSourceBox.class);
 
         //本项目使用jSqlBox作为DAO工具，以下是jSqlBox的配置
-        DbContext.setGlobalNextAllowShowSql(true); //允许输出SQL日志到控制台
+        DbContext.setGlobalNextAllowShowSql(!MyServerlessEnv.is_product_stage); //开发阶段输出每条SQL到控制台，生产阶段不输出
+        SqlMetrics.setSlowMillis(500); //执行超过500毫秒的SQL记为慢SQL，记录参数样本并输出警告日志，可用AdminMetrics$GetSlowSqls查看
         Dialect.setGlobalAllowReservedWords(true); //允许用保留字做列名
         Dialect.setGlobalNamingConversion(new ProjectNamingRule()); //全局表和字段名映射，表名列名为一对一关系，不作变换
         DbContext ctx = new DbContext(ds); //ctx是全局单例
         ctx.setConnectionManager(TinyTxConnectionManager.instance());// 事务配置
+        //ctx.setIdentityMap(true); //可选: 事务内按ID重复加载实体时直接返回缓存实例，事务内的其它SQL写操作会按表清除缓存
+        //ctx.setSqlHandlers(new SqlHandler[] { new SingleFlightHandler() }); //可选: 事务外相同的并发只读查询只执行一次，其余线程得到结果的深拷贝，避免挤占只有3个连接的连接池
         DbContext.setGlobalDbContext(ctx);// 设定全局缺省上下文
 
         //创建数据库表
-        List<Class> classes = ClassScanner.scanPackages("com.gitee.drinkjava2.reactmrp.entity"); //扫描所有实体以创建数据库表
-
-        for (int i = 0; i < 10; i++) //我够狠，先静默删库10遍，保证所有表格包括有关联约束关系的表格都全部删除
-            classes.stream().distinct().forEach(e -> {
-                for (String ddl : ctx.toDropDDL(e))
-                    DB.gctx().quiteExecute(ddl); //静默执行
+        List<Class<?>> classes = ClassScanner.scanPackages("com.gitee.drinkjava2.reactmrp.entity"); //扫描所有实体以创建数据库表
+
+        if ("drop".equalsIgnoreCase(schemaMode)) {
+            for (int i = 0; i < 10; i++) //我够狠，先静默删库10遍，保证所有表格包括有关联约束关系的表格都全部删除
+                classes.stream().distinct().forEach(e -> {
+                    for (String ddl : ctx.toDropDDL(e))
+                        DB.gctx().quiteExecute(ddl); //静默执行
+                });
+            classes.stream().distinct().forEach(e -> { //然后新建所有表格
+                for (String ddl : ctx.toCreateDDL(e))
+                    DB.gctx().quiteExecute(ddl);
             });
-        classes.stream().distinct().forEach(e -> { //然后新建所有表格
-            for (String ddl : ctx.toCreateDDL(e))
-                DB.gctx().quiteExecute(ddl);
-        });
+        } else
+            SchemaSync.sync(ctx, 3, classes.stream().distinct().toArray(Class[]::new)); //只执行缺少的建表、加列和外键DDL，连接池只有3个连接
+        SecondLevelCache.preload(ctx, classes.stream().distinct().toArray(Class[]::new)); //预加载带@EntityCache注解的参考表到二级缓存
 
     }
 
@@ -176,7 +198,7 @@ public class InitConfig extends HttpServlet {
     @Test
     public void testInitDataBase() { //临时测试，这个方法也可用来在不重启后端的情况下重置数据库以供前端调试
         Dialect.setGlobalAllowReservedWords(false);
-        initDataBase();
+        initDataBase("drop");
         //DbContext.gctx().setAllowShowSQL(true);
         initSeedData();
         List<String> powers = DB.qryList("select p.* from users u ", //
@@ -0,0 +1,90 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.gitee.drinkjava2.reactmrp.config;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.gitee.drinkjava2.reactmrp.entity.Job;
+import com.github.drinkjava2.jsqlbox.DB;
+import com.github.drinkjava2.myserverless.JobStore;
+import com.github.drinkjava2.myserverless.MyServerlessJob;
+
+/**
+ * MyServerless的JobStore实现，把后台任务状态存在jobs表(实体Job)中，在myserverless.properties的job_store里配置
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class ProjectJobStore implements JobStore {
+
+    @Override
+    public void save(MyServerlessJob job) {
+        Job j = toEntity(job);
+        if (j.existById(j.getId()))
+            j.update();
+        else
+            j.insert();
+    }
+
+    @Override
+    public MyServerlessJob load(String id) {
+        Job j = new Job().loadByIdTry(id);
+        return j == null ? null : toJob(j);
+    }
+
+    @Override
+    public List<MyServerlessJob> listByOwner(String owner, int max) {
+        List<Job> list = DB.entityFindBySql(Job.class, "select * from jobs where owner=", DB.que(owner), " order by createTime desc");
+        return toJobs(list.size() > max ? list.subList(0, max) : list);
+    }
+
+    @Override
+    public List<MyServerlessJob> listUnfinished() {
+        return toJobs(DB.entityFindBySql(Job.class, "select * from jobs where status in (", DB.que(MyServerlessJob.QUEUED), ",",
+                DB.que(MyServerlessJob.RUNNING), ")"));
+    }
+
+    @Override
+    public List<MyServerlessJob> listCreatedBefore(Date time) {
+        return toJobs(DB.entityFindBySql(Job.class, "select * from jobs where createTime<", DB.que(time)));
+    }
+
+    @Override
+    public void delete(String id) {
+        new Job().deleteByIdTry(id);
+    }
+
+    private static List<MyServerlessJob> toJobs(List<Job> list) {
+        List<MyServerlessJob> result = new ArrayList<>();
+        for (Job j : list)
+            result.add(toJob(j));
+        return result;
+    }
+
+    private static Job toEntity(MyServerlessJob job) {
+        String msg = job.getMessage();
+        if (msg != null && msg.length() > 500) //列长500
+            msg = msg.substring(0, 497) + "...";
+        return new Job().setId(job.getId()).setOwner(job.getOwner()).setPiece(job.getPiece()).setStatus(job.getStatus())
+                .setProgress(job.getProgress()).setMessage(msg).setResultCode(job.getResultCode()).setResultJson(job.getResult())
+                .setResultFile(job.getResultFile()).setResultSize(job.getResultSize()).setCreateTime(job.getCreateTime())
+                .setStartTime(job.getStartTime()).setEndTime(job.getEndTime());
+    }
+
+    private static MyServerlessJob toJob(Job j) {
+        return new MyServerlessJob().setId(j.getId()).setOwner(j.getOwner()).setPiece(j.getPiece()).setStatus(j.getStatus())
+                .setProgress(j.getProgress()).setMessage(j.getMessage()).setResultCode(j.getResultCode()).setResult(j.getResultJson())
+                .setResultFile(j.getResultFile()).setResultSize(j.getResultSize()).setCreateTime(j.getCreateTime())
+                .setStartTime(j.getStartTime()).setEndTime(j.getEndTime());
+    }
+}
@@ -50,6 +50,11 @@ public class ProjectTokenSecurity implements TokenSecurity {
         return ifAllow(myToken, methodId, hotCompile); //转为调用静态方法，静态方法的优点是可以在任意点发起调用，方便测试
     }
 
+    @Override
+    public String getOwner(String myToken) { //后台任务属于用户而不是某次登录的myToken，重新登录后仍能查到自己的任务
+        return findUserId(myToken);
+    }
+
     public static boolean isValidToken(String myToken) {
         myToken = MyStrUtils.trimAllWhitespace(myToken);
         if (MyStrUtils.isEmpty(myToken) || myToken.length() < 10)
@@ -65,6 +70,26 @@ public class ProjectTokenSecurity implements TokenSecurity {
     //为了提高性能也可以采用缓存，但问题是每当有人员、权限变动后，都要清空缓存
     //private static SimpleCacheHandler userPowerCache = new SimpleCacheHandler(300, 100 * 24 * 60 * 60);//缺省最多同时保存300个用户的权限表, 100天过期
 
+    @Override
+    public String[] checkBatch(String myToken, String[] methodIds, boolean[] hotCompile) { //批量请求只查一次myToken和权限表
+        String[] result = new String[methodIds.length];
+        List<String> powers = null;
+        String tokenError = null;
+        for (int i = 0; i < methodIds.length; i++) {
+            if (!hotCompile[i] && MyStrUtils.containsIgnoreCase(methodIds[i], "public"))
+                continue;
+            if (powers == null && tokenError == null) {
+                String userId = findUserId(myToken);
+                if (userId == null)
+                    tokenError = MyStrUtils.isEmpty(myToken) ? "Error: myToken not found" : "Error: myToken is invalid or expired";
+                else
+                    powers = findPowers(userId);
+            }
+            result[i] = tokenError != null ? tokenError : checkPowers(powers, methodIds[i], hotCompile[i]);
+        }
+        return result;
+    }
+
     public static String ifAllow(String myToken, String methodId, boolean hotCompile) { // 如果没登录只有一种情况可以执行，就是类在后端deploy目录下已存在，且方法名含有public
         boolean isPublic = MyStrUtils.containsIgnoreCase(methodId, "public");
         if (!hotCompile && isPublic)
@@ -73,18 +98,30 @@ public class ProjectTokenSecurity implements TokenSecurity {
         //其余的只要未登录都拒绝执行
         if (MyStrUtils.isEmpty(myToken))
             return "Error: myToken not found";
-        String userId = DB.qryString("select userId from users where myToken=", DB.que(myToken));
-        if (MyStrUtils.isEmpty(userId))
+        String userId = findUserId(myToken);
+        if (userId == null)
             return "Error: myToken is invalid or expired";
+        return checkPowers(findPowers(userId), methodId, hotCompile);
+    }
 
-        //获取当前登录用户权限列表，这是一个典型的用户-角色多对多，角色-权限多对多关系
-        List<String> powers = DB.qryList("select p.* from users u ", /* userPowerCache可选，见上, */
+    private static String findUserId(String myToken) {
+        if (MyStrUtils.isEmpty(myToken))
+            return null;
+        String userId = DB.qryString("select userId from users where myToken=", DB.que(myToken));
+        return MyStrUtils.isEmpty(userId) ? null : userId;
+    }
+
+    //获取当前登录用户权限列表，这是一个典型的用户-角色多对多，角色-权限多对多关系
+    private static List<String> findPowers(String userId) {
+        return DB.qryList("select p.* from users u ", /* userPowerCache可选，见上, */
                 " left join userrole ur on u.userId=ur.userId ", //
                 " left join roles r on ur.roleName=r.roleName ", //
                 " left join rolepower rp on rp.roleName=r.roleName ", //
                 " left join powers p on p.powerName=rp.powerName ", //
                 " where u.userId=", DB.que(userId));
+    }
 
+    private static String checkPowers(List<String> powers, String methodId, boolean hotCompile) {
         if (hotCompile && !powers.contains("developer")) //如果要求hotCompile,但用户不具有developer权限，拒绝执行 
             return "Error: no privilege to compile and run frontend SQL/Java, need 'developer' privilege.";
 
@@ -0,0 +1,61 @@
+package com.gitee.drinkjava2.reactmrp.deploy;
+
+import com.gitee.drinkjava2.reactmrp.service.RowReader;
+import com.gitee.drinkjava2.reactmrp.service.TableImporter;
+import com.gitee.drinkjava2.reactmrp.service.TableMerger;
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+import com.github.drinkjava2.jsqlbox.DB;
+import com.github.drinkjava2.myserverless.AdmissionLimit;
+import com.github.drinkjava2.myserverless.JsonResult;
+
+public class AdminImport { //类名以Admin开头，在ProjectTokenSecurity里只有拥有admin权限的用户才能调用
+    private static final Log logger = LogFactory.getLog(AdminImport.class);
+
+    /**
+     * 上传CSV或XLSX文件并流式导入到Excel开头的临时表中，前端用myserverless.js的$upload方法调用，文件内容作为请求体上传
+     * $1: 临时表实体类名，如ExcelInventory、ExcelProduct、ExcelBatterytester、ExcelUsb
+     * $2: 文件格式csv或xlsx，为空时根据文件头自动识别
+     * $3: 为true时导入前先清空临时表(表头校验通过后才清空)
+     * 返回读取行数、写入行数、拒绝行数、清空时删除的行数、每秒行数和出错行明细
+     */
+    @AdmissionLimit(report = true) //导入占用多个连接，和其它报表片段共用admission_report_concurrency个并发数
+    public static class ImportExcel extends template.JavaTemplate {
+        public Object executeBody() {
+            String entityName = $1 == null ? "" : $1.toString();
+            if (!entityName.matches("Excel[A-Za-z]+")) //只允许导入到Excel开头的临时表
+                return JsonResult.json206("Error: only Excel staging tables can be imported.");
+            Class<?> entityClass;
+            try {
+                entityClass = Class.forName("com.gitee.drinkjava2.reactmrp.entity." + entityName);
+            } catch (ClassNotFoundException e) {
+                return JsonResult.json206("Error: staging table '" + entityName + "' not found.");
+            }
+            try {
+                RowReader reader = RowReader.open(request.getInputStream(), $2 == null ? null : $2.toString());
+                return new TableImporter(DB.gctx(), entityClass).setTruncate(Boolean.parseBoolean(String.valueOf($3)))
+                        .importFrom(reader);
+            } catch (Exception e) {
+                logger.error("Import into " + entityName + " failed", e);
+                Throwable cause = e;
+                while (cause.getCause() != null)
+                    cause = cause.getCause();
+                return JsonResult.json206("Error: import failed, " + e.getMessage()
+                        + (cause == e ? "" : ", caused by " + cause.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * 把ExcelInventory临时表按SN合并到Productinventory，返回变更报告
+     * $1: 为true时只计算变更报告，不写库
+     * $2: 为true时删除Productinventory中有而ExcelInventory中没有的行
+     */
+    @AdmissionLimit(report = true)
+    public static class MergeInventory extends template.JavaTemplate {
+        public Object executeBody() {
+            return TableMerger.forInventory(DB.gctx()).setDryRun(Boolean.parseBoolean(String.valueOf($1)))
+                    .setDeleteMissing(Boolean.parseBoolean(String.valueOf($2))).merge();
+        }
+    }
+}
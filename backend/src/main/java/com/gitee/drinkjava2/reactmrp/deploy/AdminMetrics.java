@@ -0,0 +1,34 @@
+package com.gitee.drinkjava2.reactmrp.deploy;
+
+import com.github.drinkjava2.jdbpro.SqlMetrics;
+import com.github.drinkjava2.myserverless.PieceMetrics;
+
+public class AdminMetrics { //类名以Admin开头，在ProjectTokenSecurity里只有拥有admin权限的用户才能调用
+
+    /** 返回各片段的调用次数、出错数、auth/lookup/execute/serialize各阶段耗时分布(微秒)，以及总耗时最多的SQL、gzip压缩、响应缓存和准入控制(429拒绝次数)统计 */
+    public static class GetMetrics extends template.JavaTemplate {
+        public Object executeBody() {
+            return PieceMetrics.getStatistics();
+        }
+    }
+
+    /**
+     * 按SQL指纹(去掉字面值)汇总的执行次数、耗时分布(微秒)、行数、慢SQL次数和最近几次慢SQL的参数样本
+     * $1: 返回前几条，为空时20条
+     * $2: 排序字段total/count/mean/max/p99/rows/slow/errors，为空时按总耗时total
+     */
+    public static class GetSlowSqls extends template.JavaTemplate {
+        public Object executeBody() {
+            int topN = $1 == null || $1.toString().trim().isEmpty() ? 20 : Integer.parseInt($1.toString().trim());
+            return SqlMetrics.getStatistics(topN, $2 == null ? "total" : $2.toString().trim());
+        }
+    }
+
+    /** 清空所有统计，重新开始计数 */
+    public static class ResetMetrics extends template.JavaTemplate {
+        public Object executeBody() {
+            PieceMetrics.reset();
+            return "Metrics reset";
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.gitee.drinkjava2.reactmrp.deploy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.gitee.drinkjava2.reactmrp.service.BomGraph;
+import com.gitee.drinkjava2.reactmrp.service.KittingService;
+import com.gitee.drinkjava2.reactmrp.service.MrpEngine;
+import com.gitee.drinkjava2.reactmrp.service.PeggingService;
+import com.github.drinkjava2.jsqlbox.DB;
+import com.github.drinkjava2.myserverless.AdmissionLimit;
+import com.github.drinkjava2.myserverless.JobManager;
+import com.github.drinkjava2.myserverless.JsonResult;
+
+public class AdminMrp { //类名以Admin开头，在ProjectTokenSecurity里只有拥有admin权限的用户才能调用
+
+    /**
+     * 工单齐套检查，一次返回每个工单的缺料明细和按零件汇总的缺料数
+     * $1: 逗号分隔的工单号，为空时检查所有未完成的工单
+     */
+    @AdmissionLimit(report = true) //重运算，和其它报表片段共用admission_report_concurrency个并发数
+    public static class CheckKitting extends template.JavaTemplate {
+        public Object executeBody() {
+            String wos = $1 == null ? "" : $1.toString().trim();
+            if (wos.isEmpty())
+                return new KittingService(DB.gctx()).checkOpen();
+            return new KittingService(DB.gctx()).check(wos.split("\\s*,\\s*"));
+        }
+    }
+
+    /**
+     * 零件需求追溯(peg up): 零件的每个工单/项目需求及满足它的库存、预留、采购单行，从缓存的快照中查询
+     * $1: 零件号
+     */
+    public static class PegUp extends template.JavaTemplate {
+        public Object executeBody() {
+            return PeggingService.snapshot(DB.gctx()).pegUp($1 == null ? "" : $1.toString().trim());
+        }
+    }
+
+    /**
+     * 零件供应去向(peg down): 零件的每个库存、预留、采购单行供应满足了哪些工单/项目需求
+     * $1: 零件号
+     */
+    public static class PegDown extends template.JavaTemplate {
+        public Object executeBody() {
+            return PeggingService.snapshot(DB.gctx()).pegDown($1 == null ? "" : $1.toString().trim());
+        }
+    }
+
+    /**
+     * 某个工单或项目所有零件的需求满足情况
+     * $1: WO或PROJECT
+     * $2: 工单号或项目号
+     */
+    public static class PegDemand extends template.JavaTemplate {
+        public Object executeBody() {
+            return PeggingService.snapshot(DB.gctx()).pegDemand(String.valueOf($1).toUpperCase(), String.valueOf($2).trim());
+        }
+    }
+
+    /** 重建Pegging快照，返回快照的零件数和耗时 */
+    @AdmissionLimit(report = true)
+    public static class RefreshPegging extends template.JavaTemplate {
+        public Object executeBody() {
+            PeggingService s = PeggingService.refresh(DB.gctx());
+            return "Pegging snapshot built for " + s.getPartCount() + " parts in " + s.getBuildMillis() + "ms";
+        }
+    }
+
+    /**
+     * 运行分时段MRP运算，返回下单建议，运算后重建Pegging快照，运算时间长时可用$job('AdminMrp$RunMrp')作为后台任务提交
+     * $1: 计划周数，为空时52周
+     */
+    @AdmissionLimit(report = true)
+    public static class RunMrp extends template.JavaTemplate {
+        public Object executeBody() {
+            MrpEngine engine = new MrpEngine(DB.gctx());
+            if ($1 != null && !$1.toString().trim().isEmpty())
+                engine.setBuckets(Integer.parseInt($1.toString().trim()));
+            JobManager.progress(0, "Running MRP"); //作为后台任务提交时报告进度，同步调用时什么也不做
+            MrpEngine.MrpResult result = engine.run();
+            if (JobManager.isCancelled())
+                return JsonResult.json206("Error: cancelled, pegging snapshot not refreshed.");
+            JobManager.progress(80, "Refreshing pegging snapshot");
+            PeggingService.refresh(DB.gctx());
+            return result;
+        }
+    }
+
+    /**
+     * 查询最后一次MRP运算中某个零件的各周毛需求、预计入库、预计库存、计划入库和计划下单量
+     * $1: 零件号
+     */
+    public static class MrpPlan extends template.JavaTemplate {
+        public Object executeBody() {
+            MrpEngine.MrpResult result = MrpEngine.lastResult();
+            if (result == null)
+                return JsonResult.json206("Error: MRP has not been run yet.");
+            return result.getPlan($1 == null ? "" : $1.toString().trim());
+        }
+    }
+
+    /**
+     * 计算整个BOM的低层码并检查循环，返回循环路径(零件路径和Bom行ID)
+     * $1: 为true时把低层码保存到bomlevel表
+     */
+    @AdmissionLimit(report = true)
+    public static class CheckBom extends template.JavaTemplate {
+        public Object executeBody() {
+            BomGraph g = BomGraph.load(DB.gctx());
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("items", g.getItemCount());
+            result.put("edges", g.getEdgeCount());
+            result.put("maxLowLevelCode", g.getMaxLowLevelCode());
+            result.put("cycles", g.getCycles());
+            if (Boolean.parseBoolean(String.valueOf($1)))
+                result.put("saved", g.save(DB.gctx()));
+            result.put("millis", g.getMillis());
+            return result;
+        }
+    }
+}
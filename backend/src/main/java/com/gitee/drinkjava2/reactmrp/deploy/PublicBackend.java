@@ -8,6 +8,7 @@ import java.util.Map;
 import com.gitee.drinkjava2.reactmrp.config.ProjectTokenSecurity;
 import com.github.drinkjava2.jsqlbox.DB;
 import com.github.drinkjava2.myserverless.MyServerlessEnv;
+import com.github.drinkjava2.myserverless.ResponseCacheable;
 
 public class PublicBackend { //本项目在ProjectSecurity里设定为 deploy目录下只要类名以public开头就允许执行，所以只这个类里只存放不需要登录就能公开访问的方法
 
@@ -51,6 +52,7 @@ public class PublicBackend { //本项目在ProjectSecurity里设定为 deploy目
     /**
      * 如果用户已登录，这个方法返回true，否则返回false
      */
+    @ResponseCacheable //按myToken缓存，退出登录时users表被写入，缓存立即失效
     public static class CheckLogin extends template.JavaTemplate {
         public Object executeBody() {
             return ProjectTokenSecurity.isValidToken(myToken);
@@ -61,6 +63,7 @@ public class PublicBackend { //本项目在ProjectSecurity里设定为 deploy目
     /**
      * 返回当前登录用户信息，因为原前端仅用户来控制菜单显示且一个用户仅限1个角色（role），所以这个方法中如果用户有多个角色，也只取一个除developer之外最高等级的角色以兼容原前端代码 
      */
+    @ResponseCacheable
     public static class GetCurrentLoginUser extends template.JavaTemplate {
         public Object executeBody() {
             Map<String, Object> user = DB.qryMap("select userId as id, name, description, myToken as token, avatar, '' as role from users where myToken=", que(myToken));
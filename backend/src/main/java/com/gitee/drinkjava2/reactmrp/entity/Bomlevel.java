@@ -0,0 +1,72 @@
+package com.gitee.drinkjava2.reactmrp.entity;
+
+import static com.github.drinkjava2.jsqlbox.JAVA8.*;
+import static com.github.drinkjava2.jsqlbox.SQL.*;
+import static com.github.drinkjava2.jsqlbox.DB.*;
+import com.github.drinkjava2.jdbpro.SqlItem;
+import com.github.drinkjava2.jdialects.annotation.jdia.*;
+import com.github.drinkjava2.jdialects.annotation.jpa.*;
+import com.github.drinkjava2.jsqlbox.*;
+import java.util.*;
+
+import java.util.*;
+@SuppressWarnings("all")
+public class Bomlevel implements ActiveEntity<Bomlevel> {
+	public static final String ITEMID = "ItemID";
+
+	public static final String LOWLEVELCODE = "lowLevelCode";
+
+	public static final String INCYCLE = "InCycle";
+
+	public static final String UPDATETIME = "updateTime";
+
+
+	@Id
+	@Column(name="ItemID", length=100)
+	private String itemID;
+
+	private Integer lowLevelCode;
+
+	@Column(name="InCycle", length=1)
+	private String inCycle;
+
+	private Date updateTime;
+
+
+	public String getItemID(){
+		return itemID;
+	}
+
+	public Bomlevel setItemID(String itemID){
+		this.itemID=itemID;
+		return this;
+	}
+
+	public Integer getLowLevelCode(){
+		return lowLevelCode;
+	}
+
+	public Bomlevel setLowLevelCode(Integer lowLevelCode){
+		this.lowLevelCode=lowLevelCode;
+		return this;
+	}
+
+	public String getInCycle(){
+		return inCycle;
+	}
+
+	public Bomlevel setInCycle(String inCycle){
+		this.inCycle=inCycle;
+		return this;
+	}
+
+	public Date getUpdateTime(){
+		return updateTime;
+	}
+
+	public Bomlevel setUpdateTime(Date updateTime){
+		this.updateTime=updateTime;
+		return this;
+	}
+
+}
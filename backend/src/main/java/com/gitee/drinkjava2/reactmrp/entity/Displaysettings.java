@@ -10,6 +10,7 @@ import com.github.drinkjava2.jsqlbox.*;
 import java.util.*;
 
 import java.util.*;
+@EntityCache
 @SuppressWarnings("all")
 public class Displaysettings implements ActiveEntity<Displaysettings> {
 	public static final String ID = "ID";
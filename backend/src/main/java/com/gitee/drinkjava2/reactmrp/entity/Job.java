@@ -0,0 +1,172 @@
+package com.gitee.drinkjava2.reactmrp.entity;
+
+import java.util.Date;
+
+import com.github.drinkjava2.jdialects.annotation.jdia.COLUMN;
+import com.github.drinkjava2.jdialects.annotation.jpa.Id;
+import com.github.drinkjava2.jdialects.annotation.jpa.Table;
+import com.github.drinkjava2.jdialects.annotation.jpa.Temporal;
+import com.github.drinkjava2.jdialects.annotation.jpa.TemporalType;
+import com.github.drinkjava2.jsqlbox.ActiveEntity;
+
+/**
+ * 后台任务表，由ProjectJobStore保存MyServerless JobManager的任务状态，重启后仍能查询已完成任务的结果
+ */
+@Table(name = "jobs")
+public class Job implements ActiveEntity<Job> {
+
+    @Id
+    @COLUMN(length = 32)
+    private String id;
+
+    @COLUMN(length = 32)
+    private String owner; //TokenSecurity.getOwner返回的userId
+
+    @COLUMN(length = 100)
+    private String piece; //片段名，如AdminMrp$RunMrp
+
+    @COLUMN(length = 10)
+    private String status; //QUEUED/RUNNING/DONE/FAILED/CANCELLED
+
+    private Integer progress;
+
+    @COLUMN(length = 500)
+    private String message;
+
+    private Integer resultCode;
+
+    @COLUMN(length = 4000)
+    private String resultJson; //不大于job_inline_size字节的结果json直接存在这里
+
+    @COLUMN(length = 300)
+    private String resultFile; //大结果json存为gzip文件
+
+    private Long resultSize;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date createTime;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date startTime;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date endTime;
+
+    public String getId() {
+        return id;
+    }
+
+    public Job setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Job setOwner(String owner) {
+        this.owner = owner;
+        return this;
+    }
+
+    public String getPiece() {
+        return piece;
+    }
+
+    public Job setPiece(String piece) {
+        this.piece = piece;
+        return this;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Job setStatus(String status) {
+        this.status = status;
+        return this;
+    }
+
+    public Integer getProgress() {
+        return progress;
+    }
+
+    public Job setProgress(Integer progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public Job setMessage(String message) {
+        this.message = message;
+        return this;
+    }
+
+    public Integer getResultCode() {
+        return resultCode;
+    }
+
+    public Job setResultCode(Integer resultCode) {
+        this.resultCode = resultCode;
+        return this;
+    }
+
+    public String getResultJson() {
+        return resultJson;
+    }
+
+    public Job setResultJson(String resultJson) {
+        this.resultJson = resultJson;
+        return this;
+    }
+
+    public String getResultFile() {
+        return resultFile;
+    }
+
+    public Job setResultFile(String resultFile) {
+        this.resultFile = resultFile;
+        return this;
+    }
+
+    public Long getResultSize() {
+        return resultSize;
+    }
+
+    public Job setResultSize(Long resultSize) {
+        this.resultSize = resultSize;
+        return this;
+    }
+
+    public Date getCreateTime() {
+        return createTime;
+    }
+
+    public Job setCreateTime(Date createTime) {
+        this.createTime = createTime;
+        return this;
+    }
+
+    public Date getStartTime() {
+        return startTime;
+    }
+
+    public Job setStartTime(Date startTime) {
+        this.startTime = startTime;
+        return this;
+    }
+
+    public Date getEndTime() {
+        return endTime;
+    }
+
+    public Job setEndTime(Date endTime) {
+        this.endTime = endTime;
+        return this;
+    }
+
+}
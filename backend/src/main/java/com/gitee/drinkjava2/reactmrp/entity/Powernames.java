@@ -10,6 +10,7 @@ import com.github.drinkjava2.jsqlbox.*;
 import java.util.*;
 
 import java.util.*;
+@EntityCache
 @SuppressWarnings("all")
 public class Powernames implements ActiveEntity<Powernames> {
 	public static final String POWERNAME = "powername";
@@ -10,6 +10,7 @@ import com.github.drinkjava2.jsqlbox.*;
 import java.util.*;
 
 import java.util.*;
+@EntityCache
 @SuppressWarnings("all")
 public class Systemvar implements ActiveEntity<Systemvar> {
 	public static final String VERSION = "Version";
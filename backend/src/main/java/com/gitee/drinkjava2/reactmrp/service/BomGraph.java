@@ -0,0 +1,323 @@
+package com.gitee.drinkjava2.reactmrp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+import com.github.drinkjava2.jsqlbox.DbContext;
+
+/**
+ * BomGraph把整个Bom表读成父件到子件的有向图，计算每个零件/产品的低层码(Low-Level Code)并找出BOM中的循环，用法:
+ *
+ * <pre>
+ * BomGraph g = BomGraph.load(ctx);
+ * g.getCycles(); //每个循环的零件路径和Bom行ID
+ * g.save(ctx); //低层码写入bomlevel表，供计划查询按lowLevelCode排序或连接
+ * </pre>
+ *
+ * 边就是loadChildren返回的父件到子件行，KittingService、PeggingService和MrpEngine按BOM展开时用的也是这个定义，替代料
+ * Version1..3只在缺料时才用，不是BOM结构的一部分，不参与低层码计算。低层码是零件在所有BOM中出现的最深层级，顶层产品为0，
+ * 保证按低层码从小到大处理时每个零件在所有父件之后只净算一次。PeggingService和MrpEngine用lowLevelCodes读取保存的低层码
+ *
+ * 计算用迭代的Kahn拓扑排序，零件用int下标，边用CSR数组保存，时间和内存都与边数成线性关系，不用递归所以不会栈溢出。
+ * 排序结束后还有入度的零件在循环中或在循环的下游，沿父件方向回溯必然回到走过的零件，由此得到循环路径。每个循环去掉闭合的
+ * 那条边后再排序一次，循环中和循环下游的零件也能得到低层码，循环中的零件标记InCycle
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class BomGraph {
+    private static final Log logger = LogFactory.getLog(BomGraph.class);
+
+    private final List<String> ids = new ArrayList<>();
+    private final Map<String, Integer> index = new HashMap<>();
+    private int edgeCount;
+    private int[] edgeFrom = new int[1024];
+    private int[] edgeTo = new int[1024];
+    private int[] edgeBomId = new int[1024];
+    private boolean[] edgeRemoved;
+    private int[] lowLevelCode;
+    private boolean[] inCycle;
+    private final List<Cycle> cycles = new ArrayList<>();
+    private long millis;
+
+    /** 读入整个Bom表并计算低层码 */
+    public static BomGraph load(DbContext ctx) {
+        long start = System.currentTimeMillis();
+        BomGraph g = new BomGraph();
+        for (Map.Entry<String, List<Object[]>> e : loadChildren(ctx, "ID, PartID").entrySet())
+            for (Object[] row : e.getValue())
+                if (!str(row[1]).isEmpty())
+                    g.addEdge(e.getKey(), str(row[1]), row[0] instanceof Number ? ((Number) row[0]).intValue() : 0);
+        g.compute();
+        g.millis = System.currentTimeMillis() - start;
+        logger.info("BOM graph of " + g.ids.size() + " items and " + g.edgeCount + " edges computed, max low-level code "
+                + g.getMaxLowLevelCode() + ", " + g.cycles.size() + " cycles, " + g.millis + "ms");
+        return g;
+    }
+
+    /**
+     * 按统一的父件定义读入BOM，返回父件 -> 子件行，KittingService等按BOM展开时都用这个方法。父件是FatherPartID(不为空时)或
+     * ProductID，同一父件在多个产品的BOM中都有子件行时只用ID最小的行所在产品的定义，避免重复计算用量。columns是要读的列，
+     * 每行数组就是这些列的值，如"PartID, BOMQty"
+     */
+    public static Map<String, List<Object[]>> loadChildren(DbContext ctx, String columns) {
+        List<Object[]> rows = ctx.qry(new ArrayListHandler(), "select ProductID, FatherPartID, " + columns + " from bom order by ID");
+        Map<String, String> definedBy = new HashMap<>(); //父件 -> 使用哪个产品的定义
+        Map<String, List<Object[]>> result = new HashMap<>();
+        for (Object[] row : rows) {
+            String product = str(row[0]);
+            String parent = parentOf(product, row[1]);
+            if (parent.isEmpty() || !product.equals(definedBy.computeIfAbsent(parent, k -> product)))
+                continue;
+            result.computeIfAbsent(parent, k -> new ArrayList<>()).add(Arrays.copyOfRange(row, 2, row.length));
+        }
+        return result;
+    }
+
+    /** BOM行的父件，FatherPartID不为空时是FatherPartID，否则是ProductID */
+    public static String parentOf(Object productID, Object fatherPartID) {
+        String father = str(fatherPartID);
+        return father.isEmpty() ? str(productID) : father;
+    }
+
+    /** 读取上次save保存的低层码 */
+    public static Map<String, Integer> loadSaved(DbContext ctx) {
+        Map<String, Integer> result = new HashMap<>();
+        List<Object[]> rows = ctx.qry(new ArrayListHandler(), "select ItemID, lowLevelCode from bomlevel");
+        for (Object[] row : rows)
+            result.put(str(row[0]), row[1] instanceof Number ? ((Number) row[1]).intValue() : 0);
+        return result;
+    }
+
+    /**
+     * 计划用的低层码，优先用bomlevel表中保存的，bomlevel为空时现算一次(不保存)。BOM改动后应调用AdminMrp$CheckBom重新保存，
+     * 否则新加的零件低层码为0，子件低层码不大于父件的BOM行会被调用者跳过
+     */
+    public static Map<String, Integer> lowLevelCodes(DbContext ctx) {
+        Map<String, Integer> saved = loadSaved(ctx);
+        if (!saved.isEmpty())
+            return saved;
+        logger.warn("Table bomlevel is empty, low-level codes are computed in memory, run AdminMrp$CheckBom to save them");
+        return load(ctx).getLowLevelCodes();
+    }
+
+    /** 在一个事务中清空bomlevel表并批量写入所有低层码，返回写入行数 */
+    public int save(DbContext ctx) {
+        Date now = new Date();
+        List<Object[]> params = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++)
+            params.add(new Object[] { ids.get(i), lowLevelCode[i], inCycle[i] ? "Y" : null, now });
+        ctx.tx(() -> {
+            ctx.exe("delete from bomlevel");
+            for (int from = 0; from < params.size(); from += 1000)
+                ctx.nBatch("insert into bomlevel (ItemID, lowLevelCode, InCycle, updateTime) values (?,?,?,?)",
+                        params.subList(from, Math.min(params.size(), from + 1000)));
+        });
+        return params.size();
+    }
+
+    private void addEdge(String parent, String child, int bomId) {
+        if (edgeCount == edgeFrom.length) {
+            edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+            edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+            edgeBomId = Arrays.copyOf(edgeBomId, edgeCount * 2);
+        }
+        edgeFrom[edgeCount] = item(parent);
+        edgeTo[edgeCount] = item(child);
+        edgeBomId[edgeCount] = bomId;
+        edgeCount++;
+    }
+
+    private int item(String id) {
+        Integer i = index.get(id);
+        if (i == null) {
+            i = ids.size();
+            ids.add(id);
+            index.put(id, i);
+        }
+        return i;
+    }
+
+    private void compute() {
+        int n = ids.size();
+        edgeRemoved = new boolean[edgeCount];
+        inCycle = new boolean[n];
+        int[] childStart = start(edgeFrom, n);
+        int[] childEdges = edgesBy(edgeFrom, childStart);
+        int[] parentStart = start(edgeTo, n);
+        int[] parentEdges = edgesBy(edgeTo, parentStart);
+        while (true) {
+            lowLevelCode = new int[n];
+            boolean[] sorted = topologicalSort(childStart, childEdges);
+            int found = 0;
+            int[] visitedBy = new int[n]; //回溯时每个零件第一次被哪次回溯访问，0为未访问
+            int walk = 0;
+            for (int i = 0; i < n; i++) {
+                if (sorted[i] || visitedBy[i] != 0)
+                    continue;
+                walk++;
+                List<Integer> pathEdges = new ArrayList<>(); //回溯经过的边，方向是子件到父件
+                int node = i;
+                while (visitedBy[node] == 0) {
+                    visitedBy[node] = walk;
+                    int e = unsortedParentEdge(node, sorted, parentStart, parentEdges);
+                    pathEdges.add(e);
+                    node = edgeFrom[e];
+                }
+                if (visitedBy[node] != walk)
+                    continue; //回到了以前回溯过的零件，那个循环已经报告过
+                int begin = 0;
+                while (edgeTo[pathEdges.get(begin)] != node)
+                    begin++;
+                List<Integer> cycleEdges = new ArrayList<>(pathEdges.subList(begin, pathEdges.size()));
+                Collections.reverse(cycleEdges); //改为父件到子件的方向
+                cycles.add(new Cycle(cycleEdges));
+                edgeRemoved[cycleEdges.get(cycleEdges.size() - 1)] = true; //去掉闭合的边
+                found++;
+            }
+            if (found == 0)
+                break;
+        }
+    }
+
+    /** Kahn拓扑排序，同时计算低层码，返回每个零件是否已排序 */
+    private boolean[] topologicalSort(int[] childStart, int[] childEdges) {
+        int n = ids.size();
+        int[] indegree = new int[n];
+        for (int e = 0; e < edgeCount; e++)
+            if (!edgeRemoved[e])
+                indegree[edgeTo[e]]++;
+        int[] queue = new int[n];
+        int head = 0, tail = 0;
+        for (int i = 0; i < n; i++)
+            if (indegree[i] == 0)
+                queue[tail++] = i;
+        while (head < tail) {
+            int p = queue[head++];
+            for (int k = childStart[p]; k < childStart[p + 1]; k++) {
+                int e = childEdges[k];
+                if (edgeRemoved[e])
+                    continue;
+                int c = edgeTo[e];
+                lowLevelCode[c] = Math.max(lowLevelCode[c], lowLevelCode[p] + 1);
+                if (--indegree[c] == 0)
+                    queue[tail++] = c;
+            }
+        }
+        boolean[] sorted = new boolean[n];
+        for (int i = 0; i < tail; i++)
+            sorted[queue[i]] = true;
+        return sorted;
+    }
+
+    /** 未排序的零件至少有一个未排序的父件 */
+    private int unsortedParentEdge(int node, boolean[] sorted, int[] parentStart, int[] parentEdges) {
+        for (int k = parentStart[node]; k < parentStart[node + 1]; k++) {
+            int e = parentEdges[k];
+            if (!edgeRemoved[e] && !sorted[edgeFrom[e]])
+                return e;
+        }
+        throw new IllegalStateException("BOM item '" + ids.get(node) + "' is not sorted but has no unsorted parent");
+    }
+
+    /** 按key数组分组的CSR起始位置 */
+    private int[] start(int[] key, int n) {
+        int[] start = new int[n + 1];
+        for (int e = 0; e < edgeCount; e++)
+            start[key[e] + 1]++;
+        for (int i = 0; i < n; i++)
+            start[i + 1] += start[i];
+        return start;
+    }
+
+    private int[] edgesBy(int[] key, int[] start) {
+        int[] pos = Arrays.copyOf(start, start.length - 1);
+        int[] result = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++)
+            result[pos[key[e]]++] = e;
+        return result;
+    }
+
+    private static String str(Object o) {
+        return o == null ? "" : o.toString().trim();
+    }
+
+    /** 零件的低层码，零件不在BOM中时返回-1 */
+    public int getLowLevelCode(String itemID) {
+        Integer i = index.get(itemID);
+        return i == null ? -1 : lowLevelCode[i];
+    }
+
+    /** 所有零件的低层码，按低层码排序 */
+    public Map<String, Integer> getLowLevelCodes() {
+        Integer[] order = new Integer[ids.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> lowLevelCode[a] - lowLevelCode[b]);
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (int i : order)
+            result.put(ids.get(i), lowLevelCode[i]);
+        return result;
+    }
+
+    public int getMaxLowLevelCode() {
+        int max = 0;
+        for (int code : lowLevelCode)
+            max = Math.max(max, code);
+        return max;
+    }
+
+    public int getItemCount() {
+        return ids.size();
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    public List<Cycle> getCycles() {
+        return cycles;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    /** BOM中的一个循环，path首尾是同一个零件，bomIds是路径上每一步所在的Bom行ID */
+    public class Cycle {
+        private final List<String> path = new ArrayList<>();
+        private final List<Integer> bomIds = new ArrayList<>();
+
+        Cycle(List<Integer> cycleEdges) {
+            path.add(ids.get(edgeFrom[cycleEdges.get(0)]));
+            for (int e : cycleEdges) {
+                inCycle[edgeTo[e]] = true;
+                path.add(ids.get(edgeTo[e]));
+                bomIds.add(edgeBomId[e]);
+            }
+        }
+
+        public List<String> getPath() {
+            return path;
+        }
+
+        public List<Integer> getBomIds() {
+            return bomIds;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(" -> ", path) + " (BOM ID " + bomIds + ")";
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.gitee.drinkjava2.reactmrp.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 流式CSV读取器，支持双引号包裹、双引号转义、单元格内换行，自动跳过UTF-8 BOM
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class CsvRowReader implements RowReader {
+    private final Reader reader;
+    private final char delimiter;
+    private final char[] buf = new char[65536];
+    private int pos = 0;
+    private int len = 0;
+    private long lineNo = 0; //当前行起始行号
+    private long physicalLine = 1; //读到的物理行号
+    private boolean eof = false;
+
+    public CsvRowReader(InputStream in) {
+        this(in, ',');
+    }
+
+    public CsvRowReader(InputStream in, char delimiter) {
+        this.reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        this.delimiter = delimiter;
+    }
+
+    private int read() throws IOException {
+        if (pos >= len) {
+            if (eof)
+                return -1;
+            len = reader.read(buf, 0, buf.length);
+            pos = 0;
+            if (len <= 0) {
+                eof = true;
+                return -1;
+            }
+        }
+        return buf[pos++];
+    }
+
+    private int peek() throws IOException {
+        int c = read();
+        if (c != -1)
+            pos--;
+        return c;
+    }
+
+    @Override
+    public String[] next() throws IOException {
+        int c = read();
+        if (c == -1)
+            return null;
+        if (c == '\uFEFF' && physicalLine == 1 && lineNo == 0) //跳过BOM
+            c = read();
+        lineNo = physicalLine;
+        List<String> cells = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (c == -1) {
+                cells.add(sb.toString());
+                break;
+            }
+            if (quoted) {
+                if (c == '"') {
+                    if (peek() == '"') {
+                        read();
+                        sb.append('"');
+                    } else
+                        quoted = false;
+                } else {
+                    if (c == '\n')
+                        physicalLine++;
+                    sb.append((char) c);
+                }
+            } else if (c == '"' && sb.length() == 0) {
+                quoted = true;
+            } else if (c == delimiter) {
+                cells.add(sb.toString());
+                sb.setLength(0);
+            } else if (c == '\r' || c == '\n') {
+                if (c == '\r' && peek() == '\n')
+                    read();
+                physicalLine++;
+                cells.add(sb.toString());
+                break;
+            } else
+                sb.append((char) c);
+            c = read();
+        }
+        return cells.toArray(new String[cells.size()]);
+    }
+
+    @Override
+    public long getLineNo() {
+        return lineNo;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
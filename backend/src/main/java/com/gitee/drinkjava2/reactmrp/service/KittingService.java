@@ -0,0 +1,358 @@
+package com.gitee.drinkjava2.reactmrp.service;
+
+import static com.github.drinkjava2.jsqlbox.DB.par;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+import com.github.drinkjava2.jsqlbox.DbContext;
+
+/**
+ * KittingService检查一个或多个工单(Wo)的齐套情况，用法:
+ *
+ * <pre>
+ * KitReport r = new KittingService(ctx).checkOpen(); //所有未完成工单
+ * KitReport r = new KittingService(ctx).check("WO001", "WO002");
+ * </pre>
+ *
+ * 工单、BOM、库存、预留各用一条(或按IN参数分批的几条)SQL一次读入内存，再按工单优先级在内存中一遍分配完毕，不再逐个零件查询。
+ * 优先级: 预计完成日期早的优先，其次是开单日期早的，再按工单号。分配时工单先用自己预留(Partonhold)的数量，不够再从公共
+ * 可用量StockAvailable中扣，还不够时如果该零件有下层BOM(父件定义与BomGraph相同)，按缺的数量继续向下展开；没有下层BOM的
+ * 依次用BOM中的替代料(Version1..3)，仍不够的记为缺料。Optional为Y的可选料不参与齐套检查。
+ *
+ * 库存口径: Part.StockAvailable是不含预留的自由库存(TotalCurrentStock - StockonHold)，Partonhold.CurrentOnHold是预留给
+ * 工单的在手库存，两者不重叠，与PeggingService、MrpEngine相同
+ *
+ * 分配是顺序模拟，只返回报告，不写库
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class KittingService {
+    private static final Log logger = LogFactory.getLog(KittingService.class);
+
+    private final DbContext ctx;
+    private int maxInParams = 500; //IN子句的参数个数上限，超过时分批查询
+
+    public KittingService(DbContext ctx) {
+        this.ctx = ctx;
+    }
+
+    public KittingService setMaxInParams(int maxInParams) {
+        this.maxInParams = maxInParams;
+        return this;
+    }
+
+    /** 检查所有未完成(FinishDate为空)工单 */
+    public KitReport checkOpen() {
+        long start = System.currentTimeMillis();
+        List<Object[]> rows = ctx.qry(new ArrayListHandler(),
+                "select WO, ProductID, WOQty, ExpectedFinishDate, WODate from wo where FinishDate is null");
+        return kit(rows, start);
+    }
+
+    /** 检查指定的工单，不存在的工单号记在报告的problems里 */
+    public KitReport check(String... woIds) {
+        long start = System.currentTimeMillis();
+        List<Object[]> rows = queryIn("select WO, ProductID, WOQty, ExpectedFinishDate, WODate from wo where WO in ",
+                new LinkedHashSet<>(Arrays.asList(woIds)));
+        KitReport report = kit(rows, start);
+        Set<String> found = new LinkedHashSet<>();
+        for (Object[] row : rows)
+            found.add(str(row[0]));
+        for (String wo : woIds)
+            if (!found.contains(str(wo)))
+                report.problems.add("WO '" + wo + "' not found");
+        return report;
+    }
+
+    private KitReport kit(List<Object[]> woRows, long start) {
+        List<WoKit> wos = new ArrayList<>();
+        Set<String> products = new LinkedHashSet<>();
+        for (Object[] row : woRows) {
+            WoKit w = new WoKit(str(row[0]), str(row[1]), num(row[2]));
+            w.expectedFinishDate = (Date) row[3];
+            w.woDate = (Date) row[4];
+            wos.add(w);
+            products.add(w.productID);
+        }
+        wos.sort(Comparator.comparing((WoKit w) -> w.expectedFinishDate, Comparator.nullsLast(Comparator.naturalOrder()))
+                .thenComparing(w -> w.woDate, Comparator.nullsLast(Comparator.naturalOrder()))
+                .thenComparing(w -> w.wo));
+
+        //BOM: 父件 -> 子件 -> 单位用量，父件定义与BomGraph相同，同一子件多行时累加，替代料按Version1..3顺序记录
+        Map<String, Map<String, BomLine>> boms = new HashMap<>();
+        for (Map.Entry<String, List<Object[]>> e : BomGraph
+                .loadChildren(ctx, "PartID, BOMQty, Optional, Version1, Version2, Version3").entrySet())
+            for (Object[] row : e.getValue()) {
+                String partID = str(row[0]);
+                if (partID.isEmpty() || "Y".equalsIgnoreCase(str(row[2])))
+                    continue;
+                BomLine line = boms.computeIfAbsent(e.getKey(), k -> new LinkedHashMap<>()).computeIfAbsent(partID,
+                        BomLine::new);
+                line.qty += num(row[1]);
+                for (int i = 3; i <= 5; i++) {
+                    String sub = str(row[i]);
+                    if (!sub.isEmpty() && !sub.equals(partID) && !line.substitutes.contains(sub))
+                        line.substitutes.add(sub);
+                }
+            }
+        Set<String> parts = new LinkedHashSet<>(); //工单产品展开到的所有零件和替代料
+        List<String> todo = new ArrayList<>(products);
+        Set<String> expanded = new HashSet<>(products);
+        while (!todo.isEmpty())
+            for (BomLine line : boms.getOrDefault(todo.remove(todo.size() - 1), Collections.emptyMap()).values()) {
+                parts.add(line.partID);
+                parts.addAll(line.substitutes);
+                if (expanded.add(line.partID))
+                    todo.add(line.partID);
+            }
+
+        //公共可用量 = StockAvailable，已不含预留，工单自己的预留单独记录
+        Map<String, long[]> pool = new HashMap<>();
+        for (Object[] row : queryIn("select PartID, StockAvailable from part where PartID in ", parts))
+            pool.put(str(row[0]), new long[] { num(row[1]) });
+        Map<String, Map<String, long[]>> holds = new HashMap<>(); //WO -> PartID -> 剩余预留
+        for (Object[] row : queryIn("select WO, PartID, CurrentOnHold from partonhold where CurrentOnHold > 0 and PartID in ",
+                parts)) {
+            long onHold = num(row[2]);
+            holds.computeIfAbsent(str(row[0]), k -> new HashMap<>()).computeIfAbsent(str(row[1]), k -> new long[1])[0] += onHold;
+        }
+
+        KitReport report = new KitReport();
+        for (WoKit w : wos) {
+            Map<String, BomLine> bom = boms.get(w.productID);
+            if (bom == null) {
+                report.problems.add("WO '" + w.wo + "' product '" + w.productID + "' has no BOM");
+                w.complete = false;
+                report.wos.add(w);
+                continue;
+            }
+            Map<String, long[]> woHolds = holds.getOrDefault(w.wo, new HashMap<>());
+            Map<String, Shortage> shortages = new LinkedHashMap<>();
+            Set<String> path = new HashSet<>();
+            path.add(w.productID);
+            allocate(boms, bom, w.woQty, woHolds, pool, path, shortages, report);
+            for (Shortage s : shortages.values()) {
+                w.shortages.add(s);
+                report.shortageByPart.merge(s.partID, s.shortage, Long::sum);
+            }
+            w.complete = w.shortages.isEmpty();
+            if (w.complete)
+                report.completeCount++;
+            report.wos.add(w);
+        }
+        report.woCount = report.wos.size();
+        report.millis = System.currentTimeMillis() - start;
+        logger.info("Kitting checked " + report.woCount + " WOs, " + report.completeCount + " complete, "
+                + report.shortageByPart.size() + " parts short, " + report.millis + "ms");
+        return report;
+    }
+
+    /**
+     * 为qty个父件分配子件: 先用工单自己的预留，再用公共可用量，还不够时有下层BOM的子件按缺的数量继续向下展开，没有下层BOM的
+     * 依次用替代料，仍不够的记为缺料。path是当前展开路径，子件在路径中说明BOM有循环，不再展开
+     */
+    private static void allocate(Map<String, Map<String, BomLine>> boms, Map<String, BomLine> bom, long qty,
+            Map<String, long[]> woHolds, Map<String, long[]> pool, Set<String> path, Map<String, Shortage> shortages,
+            KitReport report) {
+        for (BomLine line : bom.values()) {
+            long required = line.qty * qty;
+            long fromHold = take(woHolds.get(line.partID), required);
+            long fromStock = take(pool.get(line.partID), required - fromHold);
+            long left = required - fromHold - fromStock;
+            if (left <= 0)
+                continue;
+            Map<String, BomLine> children = boms.get(line.partID);
+            if (children != null && path.add(line.partID)) {
+                allocate(boms, children, left, woHolds, pool, path, shortages, report);
+                path.remove(line.partID);
+                continue;
+            }
+            if (children != null && !report.problems.contains("BOM cycle at '" + line.partID + "'"))
+                report.problems.add("BOM cycle at '" + line.partID + "'");
+            Map<String, Long> subs = new LinkedHashMap<>();
+            for (String sub : line.substitutes) {
+                if (left <= 0)
+                    break;
+                long got = take(woHolds.get(sub), left);
+                got += take(pool.get(sub), left - got);
+                if (got > 0)
+                    subs.put(sub, got);
+                left -= got;
+            }
+            Shortage s = shortages.computeIfAbsent(line.partID, Shortage::new);
+            s.required += required;
+            s.allocated += required - left;
+            s.shortage += left;
+            subs.forEach((k, v) -> s.substitutes.merge(k, v, Long::sum));
+            s.unknownPart = !pool.containsKey(line.partID);
+        }
+    }
+
+    /** 从可用量中扣减最多want个，返回实际扣减数 */
+    private static long take(long[] available, long want) {
+        if (available == null || want <= 0 || available[0] <= 0)
+            return 0;
+        long got = Math.min(available[0], want);
+        available[0] -= got;
+        return got;
+    }
+
+    /** 按maxInParams分批执行IN查询，sqlPrefix以"in "结尾 */
+    private List<Object[]> queryIn(String sqlPrefix, Collection<String> values) {
+        List<Object[]> result = new ArrayList<>();
+        List<String> list = new ArrayList<>(values);
+        for (int from = 0; from < list.size(); from += maxInParams) {
+            List<String> chunk = list.subList(from, Math.min(list.size(), from + maxInParams));
+            StringBuilder sb = new StringBuilder(sqlPrefix).append('(');
+            for (int i = 0; i < chunk.size(); i++)
+                sb.append(i == 0 ? "?" : ",?");
+            result.addAll(ctx.qry(new ArrayListHandler(), sb.append(')').toString(), par(chunk.toArray())));
+        }
+        return result;
+    }
+
+    private static String str(Object o) {
+        return o == null ? "" : o.toString().trim();
+    }
+
+    private static long num(Object o) {
+        return o instanceof Number ? ((Number) o).longValue() : 0;
+    }
+
+    private static class BomLine {
+        final String partID;
+        long qty;
+        final List<String> substitutes = new ArrayList<>();
+
+        BomLine(String partID) {
+            this.partID = partID;
+        }
+    }
+
+    public static class Shortage {
+        private String partID;
+        private long required;
+        private long allocated; //含自己的预留和替代料
+        private long shortage;
+        private boolean unknownPart; //Part表中不存在
+        private final Map<String, Long> substitutes = new LinkedHashMap<>(); //用到的替代料及数量
+
+        Shortage(String partID) {
+            this.partID = partID;
+        }
+
+        public String getPartID() {
+            return partID;
+        }
+
+        public long getRequired() {
+            return required;
+        }
+
+        public long getAllocated() {
+            return allocated;
+        }
+
+        public long getShortage() {
+            return shortage;
+        }
+
+        public boolean isUnknownPart() {
+            return unknownPart;
+        }
+
+        public Map<String, Long> getSubstitutes() {
+            return substitutes;
+        }
+    }
+
+    public static class WoKit {
+        private final String wo;
+        private final String productID;
+        private final long woQty;
+        private Date expectedFinishDate;
+        private Date woDate;
+        private boolean complete;
+        private final List<Shortage> shortages = new ArrayList<>();
+
+        WoKit(String wo, String productID, long woQty) {
+            this.wo = wo;
+            this.productID = productID;
+            this.woQty = woQty;
+        }
+
+        public String getWo() {
+            return wo;
+        }
+
+        public String getProductID() {
+            return productID;
+        }
+
+        public long getWoQty() {
+            return woQty;
+        }
+
+        public Date getExpectedFinishDate() {
+            return expectedFinishDate;
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public List<Shortage> getShortages() {
+            return shortages;
+        }
+    }
+
+    public static class KitReport {
+        private int woCount;
+        private int completeCount;
+        private long millis;
+        private final List<WoKit> wos = new ArrayList<>(); //按分配优先级排序
+        private final Map<String, Long> shortageByPart = new LinkedHashMap<>();
+        private final List<String> problems = new ArrayList<>();
+
+        public int getWoCount() {
+            return woCount;
+        }
+
+        public int getCompleteCount() {
+            return completeCount;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public List<WoKit> getWos() {
+            return wos;
+        }
+
+        public Map<String, Long> getShortageByPart() {
+            return shortageByPart;
+        }
+
+        public List<String> getProblems() {
+            return problems;
+        }
+    }
+}
@@ -0,0 +1,496 @@
+package com.gitee.drinkjava2.reactmrp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+import com.github.drinkjava2.jsqlbox.DbContext;
+
+/**
+ * MrpEngine按周分桶做分时段MRP运算，用法:
+ *
+ * <pre>
+ * MrpResult r = new MrpEngine(ctx).setBuckets(52).run();
+ * MrpResult.PartPlan plan = MrpEngine.lastResult().getPlan("PART001");
+ * </pre>
+ *
+ * 运算步骤:
+ * 1. 用几条SQL一次读入零件(库存、安全库存、最小采购量、采购周数)、BOM、未完成工单、预留、未完成的采购单行
+ * 2. 层级用BomGraph.lowLevelCodes(bomlevel表中保存的低层码)，BOM行用BomGraph.loadChildren，与KittingService、PeggingService
+ * 的父件定义相同。子件低层码不大于父件的BOM行(BOM循环或bomlevel过期)不展开，记在警告里
+ * 3. 未完成工单按BOM展开为零件毛需求(扣除该工单的预留)，放在预计完成日期所在的周；未完成采购单行的剩余数量作为预计入库，
+ * 放在预计到货日期(没有时用Deadline)所在的周。早于第一周的放在第一周，晚于最后一周的忽略
+ * 4. 按层级从上到下，同一层的零件并行计算: 预计库存 = 上周库存 + 预计入库 - 毛需求，低于安全库存时在该周安排计划入库，
+ * 数量不小于最小采购量，按采购周数提前得到计划下单周，下单周早于第一周的标记为已延误
+ * 5. 子件的毛需求在计算子件时从所有父件的计划下单量拉取，父件层级小已经算完，不需要加锁
+ *
+ * 库存口径: Part.StockAvailable是不含预留的自由库存(TotalCurrentStock - StockonHold)，Partonhold.CurrentOnHold是预留给
+ * 工单的在手库存，两者不重叠，与KittingService、PeggingService相同。所以期初库存只用StockAvailable，预留只抵减预留它的工单的需求
+ *
+ * 每个零件的各周数量用int数组保存，没有任何需求和入库的零件不分配数组。最后一次运算结果缓存在内存里供查询
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class MrpEngine {
+    private static final Log logger = LogFactory.getLog(MrpEngine.class);
+    private static final long WEEK_MILLIS = 7L * 24 * 3600 * 1000;
+
+    private static volatile MrpResult last;
+
+    private final DbContext ctx;
+    private int buckets = 52;
+    private Date startDate = mondayOf(new Date());
+    private boolean includeProjects = false;
+
+    public MrpEngine(DbContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /** 计划周数，缺省52周 */
+    public MrpEngine setBuckets(int buckets) {
+        this.buckets = Math.max(1, buckets);
+        return this;
+    }
+
+    /** 第一周的开始日期，会调整到所在周的星期一，缺省为本周一 */
+    public MrpEngine setStartDate(Date startDate) {
+        this.startDate = mondayOf(startDate);
+        return this;
+    }
+
+    /** 是否把项目明细(Projectdetail)作为第一周的产品独立需求，缺省不包含，因为项目通常已经开了工单 */
+    public MrpEngine setIncludeProjects(boolean includeProjects) {
+        this.includeProjects = includeProjects;
+        return this;
+    }
+
+    /** 返回最后一次运算结果，没有运算过时返回null */
+    public static MrpResult lastResult() {
+        return last;
+    }
+
+    public MrpResult run() {
+        long start = System.currentTimeMillis();
+        Model m = new Model();
+        for (Object[] row : rows("select PartID, StockAvailable, SafetyStockLevel, MinimalPOQty, ExpectedLeadWeeks from part")) {
+            int i = m.item(str(row[0]));
+            m.onHand[i] = num(row[1]);
+            m.safety[i] = Math.max(0, num(row[2]));
+            m.minQty[i] = Math.max(0, num(row[3]));
+            m.lead[i] = Math.max(0, num(row[4]));
+        }
+        List<int[]> edges = new ArrayList<>(); //父件, 子件, 用量
+        for (Map.Entry<String, List<Object[]>> e : BomGraph.loadChildren(ctx, "PartID, BOMQty, Optional").entrySet())
+            for (Object[] row : e.getValue()) {
+                if (str(row[0]).isEmpty() || "Y".equalsIgnoreCase(str(row[2])) || num(row[1]) <= 0)
+                    continue;
+                edges.add(new int[] { m.item(e.getKey()), m.item(str(row[0])), num(row[1]) });
+            }
+        MrpResult result = new MrpResult(startDate, buckets);
+        m.buildGraph(edges, BomGraph.lowLevelCodes(ctx), result.warnings);
+
+        Map<String, long[]> onHold = new HashMap<>(); //"WO|PartID" -> 剩余预留数，同一零件多行BOM时只抵减一次
+        for (Object[] row : rows("select WO, PartID, CurrentOnHold from partonhold where CurrentOnHold > 0"))
+            onHold.computeIfAbsent(str(row[0]) + "|" + str(row[1]), k -> new long[1])[0] += num(row[2]);
+        for (Object[] row : rows("select WO, ProductID, WOQty, ExpectedFinishDate, WODate from wo where FinishDate is null")) {
+            Integer product = m.index.get(str(row[1]));
+            int b = bucketOf(row[3] != null ? (Date) row[3] : (Date) row[4]);
+            if (product == null || b >= buckets)
+                continue;
+            for (int e = m.childStart[product]; e < m.childStart[product + 1]; e++) {
+                int child = m.childItem[e];
+                long qty = (long) m.childQty[e] * num(row[2]);
+                long[] hold = onHold.get(str(row[0]) + "|" + m.ids.get(child));
+                if (hold != null) {
+                    long used = Math.min(hold[0], qty);
+                    hold[0] -= used;
+                    qty -= used;
+                }
+                if (qty > 0)
+                    m.gross(child)[b] += (int) qty;
+            }
+        }
+        if (includeProjects)
+            for (Object[] row : rows("select ProductID, Qty from projectdetail")) {
+                Integer product = m.index.get(str(row[0]));
+                if (product != null && num(row[1]) > 0)
+                    m.gross(product)[0] += num(row[1]);
+            }
+        for (Object[] row : rows("select PartID, POQty, Received, Expecteddeliverydate, Deadline from podetail"
+                + " where FinishDate is null and POQty > coalesce(Received, 0)")) {
+            int b = bucketOf(row[3] != null ? (Date) row[3] : (Date) row[4]);
+            Integer part = m.index.get(str(row[0]));
+            if (part != null && b < buckets)
+                m.receipts(part)[b] += num(row[1]) - num(row[2]);
+        }
+
+        for (int[] levelItems : m.levels) //同一层并行，层与层之间顺序执行
+            IntStream.of(levelItems).parallel().forEach(m::plan);
+
+        for (int i = 0; i < m.size(); i++)
+            if (m.projected[i] != null) {
+                MrpResult.PartPlan p = new MrpResult.PartPlan(m.ids.get(i), m.level[i], m.lead[i], m.onHand[i], m.safety[i],
+                        m.gross[i], m.receipts[i], m.projected[i], m.plannedReceipts[i], m.plannedReleases[i]);
+                result.plans.put(p.getPartID(), p);
+                boolean make = m.childStart[i] < m.childStart[i + 1];
+                for (int b = 0; b < buckets; b++)
+                    if (m.plannedReceipts[i][b] > 0)
+                        result.suggestions.add(new MrpResult.Suggestion(p.getPartID(), make ? "MAKE" : "BUY",
+                                result.dateOf(b - m.lead[i]), result.dateOf(b), m.plannedReceipts[i][b], b - m.lead[i] < 0));
+            }
+        result.suggestions.sort((a, b) -> a.getReleaseDate().compareTo(b.getReleaseDate()));
+        result.millis = System.currentTimeMillis() - start;
+        last = result;
+        logger.info("MRP planned " + result.plans.size() + " of " + m.size() + " items in " + buckets + " buckets, "
+                + result.suggestions.size() + " suggestions, " + result.millis + "ms");
+        return result;
+    }
+
+    private int bucketOf(Date date) {
+        if (date == null)
+            return 0;
+        long b = Math.floorDiv(date.getTime() - startDate.getTime(), WEEK_MILLIS);
+        return (int) Math.max(0, Math.min(b, buckets));
+    }
+
+    private static Date mondayOf(Date date) {
+        Calendar c = Calendar.getInstance();
+        c.setTime(date);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        c.add(Calendar.DAY_OF_MONTH, -((c.get(Calendar.DAY_OF_WEEK) + 5) % 7));
+        return c.getTime();
+    }
+
+    private List<Object[]> rows(String sql) {
+        return ctx.qry(new ArrayListHandler(), sql);
+    }
+
+    private static String str(Object o) {
+        return o == null ? "" : o.toString().trim();
+    }
+
+    private static int num(Object o) {
+        return o instanceof Number ? ((Number) o).intValue() : 0;
+    }
+
+    /** 运算用的内存模型，零件用int下标表示，BOM按父件和子件各存一份CSR格式的邻接表 */
+    private class Model {
+        final List<String> ids = new ArrayList<>();
+        final Map<String, Integer> index = new HashMap<>();
+        int[] onHand = new int[1024];
+        int[] safety = new int[1024];
+        int[] minQty = new int[1024];
+        int[] lead = new int[1024];
+        int[] level;
+        int[][] levels;
+        int[] childStart, childItem, childQty; //父件 -> 子件
+        int[] parentStart, parentItem, parentQty; //子件 -> 父件
+        int[][] gross, receipts, projected, plannedReceipts, plannedReleases;
+
+        int size() {
+            return ids.size();
+        }
+
+        int item(String id) {
+            Integer i = index.get(id);
+            if (i != null)
+                return i;
+            i = ids.size();
+            ids.add(id);
+            index.put(id, i);
+            if (i == onHand.length) {
+                int len = i * 2;
+                onHand = Arrays.copyOf(onHand, len);
+                safety = Arrays.copyOf(safety, len);
+                minQty = Arrays.copyOf(minQty, len);
+                lead = Arrays.copyOf(lead, len);
+            }
+            return i;
+        }
+
+        int[] gross(int i) {
+            if (gross[i] == null)
+                gross[i] = new int[buckets];
+            return gross[i];
+        }
+
+        int[] receipts(int i) {
+            if (receipts[i] == null)
+                receipts[i] = new int[buckets];
+            return receipts[i];
+        }
+
+        /** 按低层码分层并建邻接表，子件低层码不大于父件的边不参与展开，不在codes中的零件低层码为0 */
+        void buildGraph(List<int[]> edges, Map<String, Integer> codes, List<String> warnings) {
+            int n = size();
+            gross = new int[n][];
+            receipts = new int[n][];
+            projected = new int[n][];
+            plannedReceipts = new int[n][];
+            plannedReleases = new int[n][];
+            level = new int[n];
+            for (int i = 0; i < n; i++)
+                level[i] = Math.max(0, codes.getOrDefault(ids.get(i), 0));
+            List<int[]> kept = new ArrayList<>();
+            int[] first = null;
+            for (int[] e : edges)
+                if (level[e[1]] > level[e[0]])
+                    kept.add(e);
+                else if (first == null)
+                    first = e;
+            if (first != null)
+                warnings.add((edges.size() - kept.size()) + " BOM lines are not exploded because the low-level code of the child"
+                        + " is not greater than the parent, first line: " + ids.get(first[0]) + " -> " + ids.get(first[1])
+                        + ", the BOM has a cycle or table bomlevel is out of date, run AdminMrp$CheckBom to see the cycle path"
+                        + " and save the low-level codes");
+            int[][] adj = csr(kept, n, 0, 1);
+            childStart = adj[0];
+            childItem = adj[1];
+            childQty = adj[2];
+            adj = csr(kept, n, 1, 0);
+            parentStart = adj[0];
+            parentItem = adj[1];
+            parentQty = adj[2];
+            int maxLevel = 0;
+            for (int i = 0; i < n; i++)
+                maxLevel = Math.max(maxLevel, level[i]);
+            int[] count = new int[maxLevel + 1];
+            for (int i = 0; i < n; i++)
+                count[level[i]]++;
+            levels = new int[maxLevel + 1][];
+            for (int l = 0; l <= maxLevel; l++)
+                levels[l] = new int[count[l]];
+            int[] pos = new int[maxLevel + 1];
+            for (int i = 0; i < n; i++)
+                levels[level[i]][pos[level[i]]++] = i;
+        }
+
+        /** 按from列分组建CSR邻接表，返回{start, to, qty} */
+        private int[][] csr(List<int[]> edges, int n, int from, int to) {
+            int[] start = new int[n + 1];
+            for (int[] e : edges)
+                start[e[from] + 1]++;
+            for (int i = 0; i < n; i++)
+                start[i + 1] += start[i];
+            int[] pos = Arrays.copyOf(start, n);
+            int[] item = new int[edges.size()];
+            int[] qty = new int[edges.size()];
+            for (int[] e : edges) {
+                int p = pos[e[from]]++;
+                item[p] = e[to];
+                qty[p] = e[2];
+            }
+            return new int[][] { start, item, qty };
+        }
+
+        /** 计算一个零件的各周数据，父件都已算完 */
+        void plan(int i) {
+            for (int e = parentStart[i]; e < parentStart[i + 1]; e++) {
+                int[] release = plannedReleases[parentItem[e]];
+                if (release == null)
+                    continue;
+                int[] g = gross(i);
+                for (int b = 0; b < buckets; b++)
+                    g[b] += release[b] * parentQty[e];
+            }
+            if (gross[i] == null && receipts[i] == null && onHand[i] >= safety[i])
+                return; //没有任何需求和入库，不需要计划
+            int[] g = gross[i] == null ? new int[buckets] : gross[i];
+            int[] r = receipts[i] == null ? new int[buckets] : receipts[i];
+            int[] proj = new int[buckets];
+            int[] planned = new int[buckets];
+            int[] release = new int[buckets];
+            long balance = onHand[i];
+            for (int b = 0; b < buckets; b++) {
+                balance += r[b] - g[b];
+                if (balance < safety[i]) {
+                    int qty = (int) Math.max(safety[i] - balance, minQty[i]);
+                    planned[b] = qty;
+                    release[Math.max(0, b - lead[i])] += qty;
+                    balance += qty;
+                }
+                proj[b] = (int) balance;
+            }
+            gross[i] = g;
+            receipts[i] = r;
+            projected[i] = proj;
+            plannedReceipts[i] = planned;
+            plannedReleases[i] = release;
+        }
+    }
+
+    /** MRP运算结果 */
+    public static class MrpResult {
+        private final Date startDate;
+        private final int buckets;
+        private long millis;
+        private final Map<String, PartPlan> plans = new HashMap<>();
+        private final List<Suggestion> suggestions = new ArrayList<>();
+        private final List<String> warnings = new ArrayList<>();
+
+        MrpResult(Date startDate, int buckets) {
+            this.startDate = startDate;
+            this.buckets = buckets;
+        }
+
+        /** 第b周的开始日期 */
+        public Date dateOf(int b) {
+            return new Date(startDate.getTime() + b * WEEK_MILLIS);
+        }
+
+        /** 零件的各周计划，零件没有任何需求和入库时返回null */
+        public PartPlan getPlan(String partID) {
+            return plans.get(partID);
+        }
+
+        public Date getStartDate() {
+            return startDate;
+        }
+
+        public int getBuckets() {
+            return buckets;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public int getPlannedParts() {
+            return plans.size();
+        }
+
+        /** 采购(BUY)或生产(MAKE)建议，按下单日期排序 */
+        public List<Suggestion> getSuggestions() {
+            return Collections.unmodifiableList(suggestions);
+        }
+
+        public List<String> getWarnings() {
+            return warnings;
+        }
+
+        /** 一个零件的各周数据，数组下标为周序号 */
+        public static class PartPlan {
+            private final String partID;
+            private final int level;
+            private final int leadWeeks;
+            private final int onHand;
+            private final int safetyStock;
+            private final int[] grossRequirements;
+            private final int[] scheduledReceipts;
+            private final int[] projectedOnHand;
+            private final int[] plannedReceipts;
+            private final int[] plannedReleases;
+
+            PartPlan(String partID, int level, int leadWeeks, int onHand, int safetyStock, int[] grossRequirements,
+                    int[] scheduledReceipts, int[] projectedOnHand, int[] plannedReceipts, int[] plannedReleases) {
+                this.partID = partID;
+                this.level = level;
+                this.leadWeeks = leadWeeks;
+                this.onHand = onHand;
+                this.safetyStock = safetyStock;
+                this.grossRequirements = grossRequirements;
+                this.scheduledReceipts = scheduledReceipts;
+                this.projectedOnHand = projectedOnHand;
+                this.plannedReceipts = plannedReceipts;
+                this.plannedReleases = plannedReleases;
+            }
+
+            public String getPartID() {
+                return partID;
+            }
+
+            public int getLevel() {
+                return level;
+            }
+
+            public int getLeadWeeks() {
+                return leadWeeks;
+            }
+
+            public int getOnHand() {
+                return onHand;
+            }
+
+            public int getSafetyStock() {
+                return safetyStock;
+            }
+
+            public int[] getGrossRequirements() {
+                return grossRequirements;
+            }
+
+            public int[] getScheduledReceipts() {
+                return scheduledReceipts;
+            }
+
+            public int[] getProjectedOnHand() {
+                return projectedOnHand;
+            }
+
+            public int[] getPlannedReceipts() {
+                return plannedReceipts;
+            }
+
+            public int[] getPlannedReleases() {
+                return plannedReleases;
+            }
+        }
+
+        /** 一条下单建议，late为true表示按采购周数下单日期已过 */
+        public static class Suggestion {
+            private final String partID;
+            private final String type;
+            private final Date releaseDate;
+            private final Date dueDate;
+            private final int qty;
+            private final boolean late;
+
+            Suggestion(String partID, String type, Date releaseDate, Date dueDate, int qty, boolean late) {
+                this.partID = partID;
+                this.type = type;
+                this.releaseDate = releaseDate;
+                this.dueDate = dueDate;
+                this.qty = qty;
+                this.late = late;
+            }
+
+            public String getPartID() {
+                return partID;
+            }
+
+            public String getType() {
+                return type;
+            }
+
+            public Date getReleaseDate() {
+                return releaseDate;
+            }
+
+            public Date getDueDate() {
+                return dueDate;
+            }
+
+            public int getQty() {
+                return qty;
+            }
+
+            public boolean isLate() {
+                return late;
+            }
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.gitee.drinkjava2.reactmrp.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+import com.github.drinkjava2.jsqlbox.DbContext;
+
+/**
+ * PeggingService建立零件供需关系(Pegging)的内存快照，回答某个零件的需求来自哪些工单/项目(peg up)，以及由哪些库存、
+ * 预留、采购单行满足(peg down)，用法:
+ *
+ * <pre>
+ * PeggingService.refresh(ctx); //每次MRP运算后重建一次
+ * List&lt;DemandPegs&gt; up = PeggingService.snapshot(ctx).pegUp("PART001");
+ * List&lt;SupplyPegs&gt; down = PeggingService.snapshot(ctx).pegDown("PART001");
+ * </pre>
+ *
+ * 快照用几条SQL一次读入未完成工单(Wo)、项目明细(Projectdetail)、BOM、零件可用库存、预留(Partonhold)和未完成的采购单行
+ * (Podetail)，工单和项目需求先按BOM展开到下一层零件，再按低层码(BomGraph.lowLevelCodes)从上到下逐层在内存中匹配，同一层的
+ * 零件相互独立，并行计算。一个零件匹配完后，需求中没有被满足的数量如果该零件有下层BOM，继续展开为下一层零件的需求，父件定义
+ * 与KittingService、MrpEngine相同(BomGraph.loadChildren)。在一个零件内:
+ * 1. 预留先分给预留它的工单
+ * 2. 采购单(Po.project不为空)先分给同一项目的需求
+ * 3. 其余需求按到期日(工单的预计完成日期，项目需求排最后)排序，依次用可用库存、再按预计到货日期用采购单行满足
+ *
+ * 库存口径: Part.StockAvailable是不含预留的自由库存(TotalCurrentStock - StockonHold)，Partonhold.CurrentOnHold是预留给
+ * 工单的在手库存，两者不重叠，所以可用库存(ONHAND)和预留(ONHOLD)是互不重叠的两种供应，与KittingService、MrpEngine相同
+ *
+ * 查询结果在建快照时已算好，查询只是一次HashMap查找。快照是不可变的，重建时整体替换，不影响正在进行的查询
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class PeggingService {
+    private static final Log logger = LogFactory.getLog(PeggingService.class);
+
+    public static final String WO = "WO";
+    public static final String PROJECT = "PROJECT";
+    public static final String ONHAND = "ONHAND";
+    public static final String ONHOLD = "ONHOLD";
+    public static final String PO = "PO";
+
+    private static volatile PeggingService current;
+
+    private final Map<String, List<DemandPegs>> up = new HashMap<>(); //零件 -> 需求及满足它的供应
+    private final Map<String, List<SupplyPegs>> down = new HashMap<>(); //零件 -> 供应及它满足的需求
+    private final Map<String, List<DemandPegs>> byDemand = new HashMap<>(); //"WO:xxx"或"PROJECT:xxx" -> 该需求所有零件
+    private Date builtTime;
+    private long buildMillis;
+
+    private PeggingService() {
+    }
+
+    /** 返回当前快照，还没有时建一个 */
+    public static PeggingService snapshot(DbContext ctx) {
+        PeggingService s = current;
+        if (s == null)
+            synchronized (PeggingService.class) {
+                if (current == null)
+                    current = build(ctx);
+                s = current;
+            }
+        return s;
+    }
+
+    /** 重新读库建快照并替换当前快照，MRP运算后或数据有大的变动后调用 */
+    public static PeggingService refresh(DbContext ctx) {
+        PeggingService s = build(ctx);
+        current = s;
+        return s;
+    }
+
+    /** 丢弃当前快照，下次查询时重建 */
+    public static void clear() {
+        current = null;
+    }
+
+    /** 零件的每个需求及满足它的供应，需求按分配顺序排列，没有时返回空列表 */
+    public List<DemandPegs> pegUp(String partID) {
+        return up.getOrDefault(partID, Collections.emptyList());
+    }
+
+    /** 零件的每个供应及它满足的需求，没有时返回空列表 */
+    public List<SupplyPegs> pegDown(String partID) {
+        return down.getOrDefault(partID, Collections.emptyList());
+    }
+
+    /** 某个工单或项目对所有零件的需求及满足情况，type为WO或PROJECT */
+    public List<DemandPegs> pegDemand(String type, String id) {
+        return byDemand.getOrDefault(type + ":" + id, Collections.emptyList());
+    }
+
+    public Date getBuiltTime() {
+        return builtTime;
+    }
+
+    public long getBuildMillis() {
+        return buildMillis;
+    }
+
+    public int getPartCount() {
+        return Math.max(up.size(), down.size());
+    }
+
+    private static PeggingService build(DbContext ctx) {
+        long start = System.currentTimeMillis();
+        Map<String, Map<String, Long>> boms = new HashMap<>(); //父件 -> 零件 -> 单位用量
+        for (Map.Entry<String, List<Object[]>> e : BomGraph.loadChildren(ctx, "PartID, BOMQty, Optional").entrySet())
+            for (Object[] row : e.getValue()) {
+                if (str(row[0]).isEmpty() || "Y".equalsIgnoreCase(str(row[2])))
+                    continue;
+                boms.computeIfAbsent(e.getKey(), k -> new LinkedHashMap<>()).merge(str(row[0]), num(row[1]), Long::sum);
+            }
+        Map<String, Integer> codes = BomGraph.lowLevelCodes(ctx);
+        int[] skipped = new int[1]; //子件低层码不大于父件，没有展开的BOM行数
+
+        Map<String, PartNode> nodes = new HashMap<>();
+        for (Object[] row : rows(ctx,
+                "select WO, ProductID, WOQty, ExpectedFinishDate from wo where FinishDate is null"))
+            explode(nodes, boms, codes, skipped, new Demand(WO, str(row[0]), str(row[1]), str(row[1]), num(row[2]), (Date) row[3]));
+        for (Object[] row : rows(ctx, "select Project, ProductID, Qty from projectdetail"))
+            explode(nodes, boms, codes, skipped, new Demand(PROJECT, str(row[0]), str(row[1]), str(row[1]), num(row[2]), null));
+
+        for (Object[] row : rows(ctx, "select PartID, StockAvailable from part where StockAvailable > 0"))
+            node(nodes, str(row[0])).supplies.add(new Supply(ONHAND, str(row[0]), str(row[0]), null, num(row[1]), null));
+        for (Object[] row : rows(ctx,
+                "select ID, WO, PartID, CurrentOnHold from partonhold where CurrentOnHold > 0"))
+            node(nodes, str(row[2])).supplies
+                    .add(new Supply(ONHOLD, str(row[0]), str(row[2]), str(row[1]), num(row[3]), null));
+        for (Object[] row : rows(ctx,
+                "select d.ID, d.PO, d.Item, d.PartID, d.POQty, d.Received, d.Expecteddeliverydate, d.Deadline, p.Project"
+                        + " from podetail d left join po p on d.PO=p.PO"
+                        + " where d.FinishDate is null and d.POQty > coalesce(d.Received, 0)")) {
+            Supply s = new Supply(PO, str(row[0]), str(row[3]), str(row[8]), num(row[4]) - num(row[5]),
+                    row[6] != null ? (Date) row[6] : (Date) row[7]);
+            s.po = str(row[1]);
+            s.item = num(row[2]);
+            node(nodes, s.partID).supplies.add(s);
+        }
+
+        int maxLevel = 0;
+        for (int code : codes.values())
+            maxLevel = Math.max(maxLevel, code);
+        for (int level = 0; level <= maxLevel; level++) { //层与层之间顺序执行，下层需求在上层匹配完后才产生
+            List<PartNode> batch = new ArrayList<>();
+            for (PartNode n : nodes.values())
+                if (codes.getOrDefault(n.partID, 0) == level)
+                    batch.add(n);
+            batch.parallelStream().forEach(PeggingService::allocate);
+            for (PartNode n : batch)
+                for (DemandPegs d : n.demandPegs)
+                    if (d.shortage > 0)
+                        explode(nodes, boms, codes, skipped, new Demand(d.demand.type, d.demand.id, d.demand.productID, n.partID,
+                                d.shortage, d.demand.due));
+        }
+        if (skipped[0] > 0)
+            logger.warn(skipped[0] + " BOM lines are not exploded because the low-level code of the child is not greater than"
+                    + " the parent, the BOM has a cycle or table bomlevel is out of date, run AdminMrp$CheckBom to check it");
+
+        PeggingService result = new PeggingService();
+        for (PartNode n : nodes.values()) {
+            result.up.put(n.partID, Collections.unmodifiableList(n.demandPegs));
+            result.down.put(n.partID, Collections.unmodifiableList(n.supplyPegs));
+            for (DemandPegs d : n.demandPegs)
+                result.byDemand.computeIfAbsent(d.demand.type + ":" + d.demand.id, k -> new ArrayList<>()).add(d);
+        }
+        result.builtTime = new Date();
+        result.buildMillis = System.currentTimeMillis() - start;
+        logger.info("Pegging snapshot built for " + nodes.size() + " parts in " + result.buildMillis + "ms");
+        return result;
+    }
+
+    /**
+     * 把父件的需求(工单或项目明细的产品，或上层零件没有满足的数量)按BOM展开为下一层零件的需求，同一父件同一零件只记一行。
+     * 子件低层码不大于父件时不展开，只计数，避免BOM循环时无限展开
+     */
+    private static void explode(Map<String, PartNode> nodes, Map<String, Map<String, Long>> boms, Map<String, Integer> codes,
+            int[] skipped, Demand parent) {
+        Map<String, Long> bom = boms.get(parent.partID);
+        if (bom == null || parent.qty <= 0)
+            return;
+        int parentCode = codes.getOrDefault(parent.partID, 0);
+        for (Map.Entry<String, Long> line : bom.entrySet()) {
+            long required = line.getValue() * parent.qty;
+            if (required <= 0)
+                continue;
+            if (codes.getOrDefault(line.getKey(), 0) <= parentCode)
+                skipped[0]++;
+            else
+                node(nodes, line.getKey()).demands
+                        .add(new Demand(parent.type, parent.id, parent.productID, line.getKey(), required, parent.due));
+        }
+    }
+
+    private static PartNode node(Map<String, PartNode> nodes, String partID) {
+        return nodes.computeIfAbsent(partID, PartNode::new);
+    }
+
+    /** 在一个零件内匹配供需，见类注释中的三个步骤 */
+    private static void allocate(PartNode n) {
+        n.demands.sort(Comparator.comparing((Demand d) -> d.due, Comparator.nullsLast(Comparator.naturalOrder()))
+                .thenComparing(d -> d.type).thenComparing(d -> d.id));
+        n.supplies.sort(Comparator.comparing((Supply s) -> !ONHAND.equals(s.type))
+                .thenComparing(s -> s.date, Comparator.nullsLast(Comparator.naturalOrder())).thenComparing(s -> s.id));
+        List<DemandPegs> dp = new ArrayList<>();
+        Map<String, List<DemandPegs>> dedicated = new HashMap<>(); //"WO:xxx"或"PROJECT:xxx" -> 需求
+        for (Demand d : n.demands) {
+            DemandPegs p = new DemandPegs(d);
+            dp.add(p);
+            dedicated.computeIfAbsent(d.type + ":" + d.id, k -> new ArrayList<>()).add(p);
+        }
+        List<SupplyPegs> sp = new ArrayList<>();
+        List<SupplyPegs> free = new ArrayList<>();
+        for (Supply s : n.supplies) {
+            SupplyPegs p = new SupplyPegs(s);
+            sp.add(p);
+            String owner = ONHOLD.equals(s.type) ? WO + ":" + s.dedicatedTo //1.预留给工单
+                    : PO.equals(s.type) && !s.dedicatedTo.isEmpty() ? PROJECT + ":" + s.dedicatedTo : null; //2.项目采购单给同一项目
+            for (DemandPegs d : owner == null ? Collections.<DemandPegs> emptyList()
+                    : dedicated.getOrDefault(owner, Collections.emptyList()))
+                peg(d, p);
+            if (!ONHOLD.equals(s.type))
+                free.add(p);
+        }
+        int i = 0; //3.按到期日依次用库存和采购单，已用完的供应不再扫描
+        for (DemandPegs d : dp)
+            while (d.shortage > 0 && i < free.size()) {
+                peg(d, free.get(i));
+                if (free.get(i).excess == 0)
+                    i++;
+            }
+
+        n.demandPegs.addAll(dp);
+        n.supplyPegs.addAll(sp);
+    }
+
+    private static void peg(DemandPegs d, SupplyPegs s) {
+        long qty = Math.min(d.shortage, s.excess);
+        if (qty <= 0)
+            return;
+        d.shortage -= qty;
+        s.excess -= qty;
+        d.pegs.add(new Peg(s.supply, qty));
+        s.pegs.add(new Peg(d.demand, qty));
+    }
+
+    private static List<Object[]> rows(DbContext ctx, String sql) {
+        return ctx.qry(new ArrayListHandler(), sql);
+    }
+
+    private static String str(Object o) {
+        return o == null ? "" : o.toString().trim();
+    }
+
+    private static long num(Object o) {
+        return o instanceof Number ? ((Number) o).longValue() : 0;
+    }
+
+    private static class PartNode {
+        final String partID;
+        final List<Demand> demands = new ArrayList<>();
+        final List<Supply> supplies = new ArrayList<>();
+        final List<DemandPegs> demandPegs = new ArrayList<>();
+        final List<SupplyPegs> supplyPegs = new ArrayList<>();
+
+        PartNode(String partID) {
+            this.partID = partID;
+        }
+    }
+
+    /** 零件需求，type为WO或PROJECT，id为工单号或项目号 */
+    public static class Demand {
+        private final String type;
+        private final String id;
+        private final String productID;
+        private final String partID;
+        private final long qty;
+        private final Date due;
+
+        Demand(String type, String id, String productID, String partID, long qty, Date due) {
+            this.type = type;
+            this.id = id;
+            this.productID = productID;
+            this.partID = partID;
+            this.qty = qty;
+            this.due = due;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getProductID() {
+            return productID;
+        }
+
+        public String getPartID() {
+            return partID;
+        }
+
+        public long getQty() {
+            return qty;
+        }
+
+        public Date getDue() {
+            return due;
+        }
+    }
+
+    /**
+     * 零件供应，type为ONHAND(id为零件号)、ONHOLD(id为Partonhold.ID)或PO(id为Podetail.ID)，dedicatedTo是预留的工单号或采购单的项目号
+     */
+    public static class Supply {
+        private final String type;
+        private final String id;
+        private final String partID;
+        private final String dedicatedTo;
+        private final long qty;
+        private final Date date;
+        private String po;
+        private long item;
+
+        Supply(String type, String id, String partID, String dedicatedTo, long qty, Date date) {
+            this.type = type;
+            this.id = id;
+            this.partID = partID;
+            this.dedicatedTo = dedicatedTo == null ? "" : dedicatedTo;
+            this.qty = qty;
+            this.date = date;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getPartID() {
+            return partID;
+        }
+
+        public String getDedicatedTo() {
+            return dedicatedTo;
+        }
+
+        public long getQty() {
+            return qty;
+        }
+
+        /** 采购单行的预计到货日期，没有时为Deadline */
+        public Date getDate() {
+            return date;
+        }
+
+        public String getPo() {
+            return po;
+        }
+
+        public long getItem() {
+            return item;
+        }
+    }
+
+    /** 一条匹配关系，to是对方的需求或供应 */
+    public static class Peg {
+        private final Object to;
+        private final long qty;
+
+        Peg(Object to, long qty) {
+            this.to = to;
+            this.qty = qty;
+        }
+
+        public Object getTo() {
+            return to;
+        }
+
+        public long getQty() {
+            return qty;
+        }
+    }
+
+    public static class DemandPegs {
+        private final Demand demand;
+        private final List<Peg> pegs = new ArrayList<>();
+        private long shortage;
+
+        DemandPegs(Demand demand) {
+            this.demand = demand;
+            this.shortage = demand.qty;
+        }
+
+        public Demand getDemand() {
+            return demand;
+        }
+
+        public List<Peg> getPegs() {
+            return pegs;
+        }
+
+        public long getShortage() {
+            return shortage;
+        }
+    }
+
+    public static class SupplyPegs {
+        private final Supply supply;
+        private final List<Peg> pegs = new ArrayList<>();
+        private long excess;
+
+        SupplyPegs(Supply supply) {
+            this.supply = supply;
+            this.excess = supply.qty;
+        }
+
+        public Supply getSupply() {
+            return supply;
+        }
+
+        public List<Peg> getPegs() {
+            return pegs;
+        }
+
+        public long getExcess() {
+            return excess;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.gitee.drinkjava2.reactmrp.service;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * RowReader逐行读取表格数据，每次只返回一行，用于流式导入，内存占用与文件大小无关
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public interface RowReader extends Closeable {
+
+    /** 返回下一行的各单元格文本，读完返回null */
+    String[] next() throws IOException;
+
+    /** 当前行在原文件中的行号，从1开始，用于报告出错行 */
+    long getLineNo();
+
+    /** 根据格式名或文件头自动选择CSV或XLSX读取器，format可以是"csv"、"xlsx"或null(自动识别) */
+    static RowReader open(InputStream in, String format) throws IOException {
+        BufferedInputStream bin = new BufferedInputStream(in, 65536);
+        if (format == null || format.trim().isEmpty()) {
+            bin.mark(4);
+            int b1 = bin.read();
+            int b2 = bin.read();
+            bin.reset();
+            format = (b1 == 'P' && b2 == 'K') ? "xlsx" : "csv"; //xlsx是zip格式，文件头为PK
+        }
+        if ("xlsx".equalsIgnoreCase(format.trim()))
+            return new XlsxRowReader(bin);
+        return new CsvRowReader(bin);
+    }
+}
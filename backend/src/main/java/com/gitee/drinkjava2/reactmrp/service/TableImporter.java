@@ -0,0 +1,521 @@
+package com.gitee.drinkjava2.reactmrp.service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.drinkjava2.jdialects.Type;
+import com.github.drinkjava2.jdialects.model.ColumnModel;
+import com.github.drinkjava2.jdialects.model.TableModel;
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+import com.github.drinkjava2.jsqlbox.DbContext;
+import com.github.drinkjava2.jsqlbox.DbContextUtils;
+import com.github.drinkjava2.jsqlbox.DbException;
+
+/**
+ * TableImporter把CSV/XLSX数据流式导入到实体对应的表中(通常是ExcelInventory等Excel开头的临时表)，用法:
+ *
+ * <pre>
+ * ImportResult r = new TableImporter(ctx, ExcelInventory.class).importFrom(RowReader.open(in, "xlsx"));
+ * </pre>
+ *
+ * 流程: 主线程逐行读取并打包成块，放入有界队列(内存占用固定，工作线程失败时主线程不会一直阻塞)；多个工作线程从队列取块，按列类型校验和转换，
+ * 然后在一个事务中用多行insert语句写入，出错的块会逐行重试以找出坏行。 首行必须是表头，表头按列名或实体字段名匹配
+ * (忽略大小写、空格和下划线)，表头中不认识的列被忽略。如果单主键是整数且表头中没有，自动从max(id)+1开始编号。
+ * setTruncate(true)时在表头校验通过后、写入第一块之前清空表，删除的行数记在导入结果的rowsDeleted里
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class TableImporter {
+    private static final Log logger = LogFactory.getLog(TableImporter.class);
+    private static final int MAX_PARAMS_PER_SQL = 2000; //多行insert每条语句最多的参数个数
+    private static final Chunk END = new Chunk(); //结束标记
+
+    private final DbContext ctx;
+    private final TableModel model;
+    private static final long OFFER_TIMEOUT_SECONDS = 1; //队列满时每隔这么久检查一次工作线程是否已失败
+    private int threads = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors())); //缺省连接池只有3个连接，至少留一个给其它请求
+    private int chunkRows = 2000;
+    private int maxRejectDetails = 1000;
+    private boolean truncate = false;
+
+    public TableImporter(DbContext ctx, Class<?> entityClass) {
+        this.ctx = ctx;
+        this.model = DbContextUtils.findEntityOrClassTableModel(entityClass);
+    }
+
+    public ImportResult importFrom(RowReader reader) throws IOException {
+        long start = System.currentTimeMillis();
+        ImportResult result = new ImportResult(model.getTableName());
+        try {
+            String[] header = reader.next();
+            if (header == null)
+                return result.finish(start);
+            Plan plan = buildPlan(header);
+            if (truncate) { //表头不匹配时buildPlan已抛出异常，不会清空表
+                result.rowsDeleted = ctx.upd("delete from " + model.getTableName());
+                if (plan.idSequence != null)
+                    plan.idSequence.set(0);
+                logger.info("Deleted " + result.rowsDeleted + " rows from " + model.getTableName() + " before import");
+            }
+            BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(threads * 2);
+            List<Thread> workers = new ArrayList<>();
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+            for (int i = 0; i < threads; i++) {
+                Thread t = new Thread(() -> {
+                    try {
+                        Chunk chunk;
+                        while ((chunk = queue.take()) != END)
+                            processChunk(plan, chunk, result);
+                    } catch (Throwable e) { //NOSONAR
+                        errors.add(e);
+                    }
+                }, "importer-" + model.getTableName() + "-" + i);
+                t.start();
+                workers.add(t);
+            }
+            try {
+                Chunk chunk = new Chunk();
+                String[] row;
+                while ((row = reader.next()) != null && errors.isEmpty()) {
+                    if (isBlankRow(row))
+                        continue;
+                    result.rowsRead.incrementAndGet();
+                    chunk.add(row, reader.getLineNo());
+                    if (chunk.rows.size() >= chunkRows) {
+                        if (!offer(queue, chunk, workers, errors))
+                            break;
+                        chunk = new Chunk();
+                    }
+                }
+                if (!chunk.rows.isEmpty() && errors.isEmpty())
+                    offer(queue, chunk, workers, errors);
+            } finally {
+                for (int i = 0; i < threads; i++)
+                    if (!offer(queue, END, workers, null))
+                        break;
+                for (Thread t : workers)
+                    t.join();
+            }
+            if (!errors.isEmpty())
+                throw new DbException("Import into " + model.getTableName() + " failed after " + result.getRowsInserted()
+                        + " rows inserted" + (truncate ? " and " + result.rowsDeleted + " old rows deleted" : ""), errors.get(0));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException(e);
+        } finally {
+            reader.close();
+        }
+        result.finish(start);
+        logger.info("Imported " + result.getRowsInserted() + " rows into " + model.getTableName() + ", rejected "
+                + result.getRowsRejected() + ", " + result.getRowsPerSecond() + " rows/sec");
+        return result;
+    }
+
+    /**
+     * 把块放入队列，队列满时等待，如果工作线程已出错(errors不为空)或全部退出则返回false，不会永远阻塞
+     */
+    private static boolean offer(BlockingQueue<Chunk> queue, Chunk chunk, List<Thread> workers, List<Throwable> errors)
+            throws InterruptedException {
+        while (!queue.offer(chunk, OFFER_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            if (errors != null && !errors.isEmpty())
+                return false;
+            boolean alive = false;
+            for (Thread t : workers)
+                alive |= t.isAlive();
+            if (!alive)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isBlankRow(String[] row) {
+        for (String s : row)
+            if (s != null && !s.trim().isEmpty())
+                return false;
+        return true;
+    }
+
+    /** 表头只解析一次，得到每个表格列对应的ColumnModel和insert语句 */
+    private Plan buildPlan(String[] header) {
+        Map<String, ColumnModel> byName = new HashMap<>();
+        for (ColumnModel col : model.getColumns()) {
+            if (col.getTransientable())
+                continue;
+            byName.put(normalize(col.getColumnName()), col);
+            if (col.getEntityField() != null)
+                byName.put(normalize(col.getEntityField()), col);
+        }
+        Plan plan = new Plan();
+        List<String> colNames = new ArrayList<>();
+        for (int i = 0; i < header.length; i++) {
+            ColumnModel col = byName.remove(normalize(header[i]));
+            if (col == null)
+                continue;
+            byName.values().remove(col); //列名和字段名都指向同一列，防止重复匹配
+            plan.sourceIndex.add(i);
+            plan.columns.add(col);
+            colNames.add(col.getColumnName());
+        }
+        if (plan.columns.isEmpty())
+            throw new DbException("No column in header matches table " + model.getTableName());
+
+        List<ColumnModel> pkeys = model.getPKeyColumns();
+        if (pkeys.size() == 1 && !plan.columns.contains(pkeys.get(0)) && isIntegerType(pkeys.get(0).getColumnType())) {
+            ColumnModel pk = pkeys.get(0);
+            plan.idSequence = new AtomicLong(
+                    ctx.qryLongValue("select coalesce(max(" + pk.getColumnName() + "),0) from " + model.getTableName()));
+            plan.columns.add(pk);
+            plan.sourceIndex.add(-1);
+            colNames.add(pk.getColumnName());
+        }
+
+        StringBuilder sb = new StringBuilder("insert into ").append(model.getTableName()).append(" (");
+        StringBuilder questions = new StringBuilder("(");
+        for (int i = 0; i < colNames.size(); i++) {
+            sb.append(i == 0 ? "" : ", ").append(colNames.get(i));
+            questions.append(i == 0 ? "?" : ", ?");
+        }
+        plan.insertHead = sb.append(") values ").toString();
+        plan.rowQuestions = questions.append(")").toString();
+        plan.rowsPerSql = Math.max(1, MAX_PARAMS_PER_SQL / colNames.size());
+        return plan;
+    }
+
+    private static String normalize(String name) {
+        return name == null ? "" : name.replaceAll("[\\s_`\"]", "").toLowerCase();
+    }
+
+    /** 工作线程: 校验转换一块数据并写库 */
+    private void processChunk(Plan plan, Chunk chunk, ImportResult result) {
+        List<Object[]> valid = new ArrayList<>(chunk.rows.size());
+        List<Long> validLines = new ArrayList<>(chunk.rows.size());
+        for (int r = 0; r < chunk.rows.size(); r++) {
+            String[] row = chunk.rows.get(r);
+            Object[] values = new Object[plan.columns.size()];
+            String error = null;
+            for (int i = 0; i < values.length && error == null; i++) {
+                ColumnModel col = plan.columns.get(i);
+                int src = plan.sourceIndex.get(i);
+                if (src < 0) {
+                    values[i] = plan.idSequence.incrementAndGet();
+                    continue;
+                }
+                String text = src < row.length ? row[src] : null;
+                try {
+                    values[i] = convert(col, text);
+                } catch (Exception e) {
+                    error = "Column '" + col.getColumnName() + "' value '" + text + "': " + e.getMessage();
+                }
+            }
+            if (error != null)
+                result.reject(chunk.lineNos.get(r), error, maxRejectDetails);
+            else {
+                valid.add(values);
+                validLines.add(chunk.lineNos.get(r));
+            }
+        }
+        if (valid.isEmpty())
+            return;
+        try {
+            ctx.tx(() -> writeRows(plan, valid));
+            result.rowsInserted.addAndGet(valid.size());
+        } catch (Exception e) { //整块失败时逐行重试，找出具体出错的行
+            for (int i = 0; i < valid.size(); i++) {
+                int index = i;
+                try {
+                    ctx.tx(() -> writeRows(plan, valid.subList(index, index + 1)));
+                    result.rowsInserted.incrementAndGet();
+                } catch (Exception e2) {
+                    Throwable cause = e2;
+                    while (cause.getCause() != null)
+                        cause = cause.getCause();
+                    result.reject(validLines.get(i), "Insert failed: " + cause.getMessage(), maxRejectDetails);
+                }
+            }
+        }
+    }
+
+    /** 用多行insert写入，相同行数的语句只prepare一次 */
+    private void writeRows(Plan plan, List<Object[]> rows) {
+        Connection con = null;
+        try {
+            con = ctx.prepareConnection(); //在事务中，取得的是当前线程的事务连接
+            int colCount = plan.columns.size();
+            PreparedStatement fullPs = null;
+            try {
+                for (int from = 0; from < rows.size(); from += plan.rowsPerSql) {
+                    int n = Math.min(plan.rowsPerSql, rows.size() - from);
+                    PreparedStatement ps;
+                    if (n == plan.rowsPerSql) {
+                        if (fullPs == null)
+                            fullPs = con.prepareStatement(plan.insertSql(n));
+                        ps = fullPs;
+                    } else
+                        ps = con.prepareStatement(plan.insertSql(n));
+                    try {
+                        int p = 1;
+                        for (int r = from; r < from + n; r++)
+                            for (int c = 0; c < colCount; c++)
+                                ps.setObject(p++, rows.get(r)[c]);
+                        ps.executeUpdate();
+                    } finally {
+                        if (ps != fullPs)
+                            ps.close();
+                    }
+                }
+            } finally {
+                if (fullPs != null)
+                    fullPs.close();
+            }
+            ctx.trackWrite(plan.insertHead); //直接用JDBC写入，要通知TableChangeTracker使依赖这个表的缓存失效
+        } catch (SQLException e) {
+            throw new DbException(e);
+        } finally {
+            if (con != null)
+                ctx.releaseConnectionQuiet(con);
+        }
+    }
+
+    private static boolean isIntegerType(Type t) {
+        return t == Type.INTEGER || t == Type.INT || t == Type.BIGINT || t == Type.SMALLINT || t == Type.TINYINT
+                || t == Type.MEDIUMINT;
+    }
+
+    /** 按列类型把文本转为JDBC参数值，不合法时抛出异常 */
+    static Object convert(ColumnModel col, String text) throws ParseException {
+        if (text != null)
+            text = text.trim();
+        if (text == null || text.isEmpty()) {
+            if (Boolean.FALSE.equals(col.getNullable()) || Boolean.TRUE.equals(col.getPkey()))
+                throw new IllegalArgumentException("can not be empty");
+            return null;
+        }
+        Type type = col.getColumnType();
+        if (type == null)
+            return text;
+        switch (type) {
+        case INTEGER:
+        case INT:
+        case SMALLINT:
+        case TINYINT:
+        case MEDIUMINT:
+            return new BigDecimal(text).intValueExact();
+        case BIGINT:
+            return new BigDecimal(text).longValueExact();
+        case DECIMAL:
+        case NUMERIC:
+            return new BigDecimal(text);
+        case DOUBLE:
+        case FLOAT:
+        case REAL:
+            return Double.valueOf(text);
+        case BOOLEAN:
+        case BIT:
+            if ("1".equals(text) || "true".equalsIgnoreCase(text) || "yes".equalsIgnoreCase(text) || "y".equalsIgnoreCase(text))
+                return true;
+            if ("0".equals(text) || "false".equalsIgnoreCase(text) || "no".equalsIgnoreCase(text) || "n".equalsIgnoreCase(text))
+                return false;
+            throw new IllegalArgumentException("not a boolean");
+        case DATE:
+            return new java.sql.Date(parseDate(text).getTime());
+        case TIME:
+            return new java.sql.Time(parseDate(text).getTime());
+        case TIMESTAMP:
+        case DATETIME:
+            return new java.sql.Timestamp(parseDate(text).getTime());
+        case CHAR:
+        case NCHAR:
+        case VARCHAR:
+        case NVARCHAR:
+            if (col.getLength() != null && text.length() > col.getLength())
+                throw new IllegalArgumentException("length " + text.length() + " > " + col.getLength());
+            return text;
+        default:
+            return text;
+        }
+    }
+
+    private static final String[] DATE_PATTERNS = { "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd", "yyyy/MM/dd HH:mm:ss",
+            "yyyy/MM/dd", "MM/dd/yyyy", "HH:mm:ss" };
+
+    private static java.util.Date parseDate(String text) throws ParseException {
+        if (text.matches("\\d{8}|\\d{14}")) //20240101或20240101083000
+            return parseStrict(text.length() == 8 ? "yyyyMMdd" : "yyyyMMddHHmmss", text);
+        if (text.matches("\\d{1,7}(\\.\\d+)?")) { //Excel日期序列数，1900-01-01为1，25569对应1970-01-01，9999-12-31是2958465
+            double serial = Double.parseDouble(text);
+            long millis = Math.round((serial - 25569) * 86400000d);
+            return new java.util.Date(millis - TimeZone.getDefault().getOffset(millis));
+        }
+        for (String pattern : DATE_PATTERNS) {
+            try {
+                return parseStrict(pattern, text);
+            } catch (ParseException e) {
+                //try next
+            }
+        }
+        throw new ParseException("not a date", 0);
+    }
+
+    private static java.util.Date parseStrict(String pattern, String text) throws ParseException {
+        SimpleDateFormat f = new SimpleDateFormat(pattern);
+        f.setLenient(false);
+        ParsePosition pos = new ParsePosition(0);
+        java.util.Date date = f.parse(text, pos);
+        if (date == null || pos.getIndex() != text.length())
+            throw new ParseException("not a date", pos.getErrorIndex());
+        return date;
+    }
+
+    private static class Chunk {
+        final List<String[]> rows = new ArrayList<>();
+        final List<Long> lineNos = new ArrayList<>();
+
+        void add(String[] row, long lineNo) {
+            rows.add(row);
+            lineNos.add(lineNo);
+        }
+    }
+
+    private static class Plan {
+        final List<Integer> sourceIndex = new ArrayList<>(); //-1表示自动编号主键
+        final List<ColumnModel> columns = new ArrayList<>();
+        AtomicLong idSequence;
+        String insertHead;
+        String rowQuestions;
+        int rowsPerSql;
+        final Map<Integer, String> sqlCache = new ConcurrentHashMap<>();
+
+        String insertSql(int rows) {
+            return sqlCache.computeIfAbsent(rows, n -> {
+                StringBuilder sb = new StringBuilder(insertHead);
+                for (int i = 0; i < n; i++)
+                    sb.append(i == 0 ? "" : ", ").append(rowQuestions);
+                return sb.toString();
+            });
+        }
+    }
+
+    /** 导入结果，包括读取行数、写入行数、拒绝行数、速度和前若干个出错行的原因 */
+    public static class ImportResult {
+        private final String table;
+        private final AtomicLong rowsRead = new AtomicLong();
+        private final AtomicLong rowsInserted = new AtomicLong();
+        private final AtomicLong rowsRejected = new AtomicLong();
+        private long rowsDeleted;
+        private final List<Map<String, Object>> rejects = Collections.synchronizedList(new ArrayList<>());
+        private long millis;
+
+        ImportResult(String table) {
+            this.table = table;
+        }
+
+        void reject(long lineNo, String reason, int maxDetails) {
+            rowsRejected.incrementAndGet();
+            if (rejects.size() < maxDetails) {
+                Map<String, Object> m = new LinkedHashMap<>();
+                m.put("line", lineNo);
+                m.put("reason", reason);
+                rejects.add(m);
+            }
+        }
+
+        ImportResult finish(long start) {
+            millis = System.currentTimeMillis() - start;
+            return this;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public long getRowsRead() {
+            return rowsRead.get();
+        }
+
+        public long getRowsInserted() {
+            return rowsInserted.get();
+        }
+
+        public long getRowsRejected() {
+            return rowsRejected.get();
+        }
+
+        /** 导入前清空表时删除的行数 */
+        public long getRowsDeleted() {
+            return rowsDeleted;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public long getRowsPerSecond() {
+            return millis == 0 ? rowsInserted.get() : rowsInserted.get() * 1000 / millis;
+        }
+
+        public List<Map<String, Object>> getRejects() {
+            synchronized (rejects) {
+                List<Map<String, Object>> sorted = new ArrayList<>(rejects);
+                sorted.sort((a, b) -> Long.compare((Long) a.get("line"), (Long) b.get("line")));
+                return sorted;
+            }
+        }
+    }
+
+    // getter & setters ==========
+    public int getThreads() {
+        return threads;
+    }
+
+    public TableImporter setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    public int getChunkRows() {
+        return chunkRows;
+    }
+
+    public TableImporter setChunkRows(int chunkRows) {
+        this.chunkRows = Math.max(1, chunkRows);
+        return this;
+    }
+
+    public int getMaxRejectDetails() {
+        return maxRejectDetails;
+    }
+
+    public TableImporter setMaxRejectDetails(int maxRejectDetails) {
+        this.maxRejectDetails = maxRejectDetails;
+        return this;
+    }
+
+    public boolean isTruncate() {
+        return truncate;
+    }
+
+    public TableImporter setTruncate(boolean truncate) {
+        this.truncate = truncate;
+        return this;
+    }
+}
@@ -0,0 +1,693 @@
+package com.gitee.drinkjava2.reactmrp.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.gitee.drinkjava2.reactmrp.entity.ExcelInventory;
+import com.gitee.drinkjava2.reactmrp.entity.Productinventory;
+import com.github.drinkjava2.jdialects.model.ColumnModel;
+import com.github.drinkjava2.jdialects.model.TableModel;
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+import com.github.drinkjava2.jsqlbox.DbContext;
+import com.github.drinkjava2.jsqlbox.DbContextUtils;
+import com.github.drinkjava2.jsqlbox.DbException;
+import com.github.drinkjava2.jsqlbox.SecondLevelCache;
+
+/**
+ * TableMerger把临时表(如ExcelInventory)按业务键整体合并到正式表(如Productinventory)，用法:
+ *
+ * <pre>
+ * MergeReport r = TableMerger.forInventory(ctx).setDeleteMissing(false).setDryRun(true).merge();
+ * </pre>
+ *
+ * 与逐行按SN查询、比较、更新不同，这里两边各全表扫描一次，在内存中按业务键做哈希连接。有多个业务键时按顺序每个键连接一轮，
+ * 如先按SN再按oldSN: 第一轮用临时表行的SN找正式表SN相同的行，没找到的临时表行和没被找到的正式表行进入下一轮，用oldSN
+ * 找oldSN相同的行，某个键为空的行直接进入下一轮。每个正式表行最多匹配一次。所有轮都没找到的临时表行插入，两边都有的逐列
+ * 比较(语义同DbContextUtils.entityCompare，null和空串不相等)，有差异的整行更新，没被找到的正式表行可选删除。
+ * 数据量超过memoryRows时每一轮两边按该轮键的哈希值分区写入临时文件，再逐个分区连接，内存占用只与分区大小有关。
+ * 所有写操作用JDBC批处理在一个事务中执行，失败时整体回滚。两边的列按列名匹配(忽略大小写和下划线)，名称不同的列用别名指定，
+ * 只有两边都有的列参与比较和更新
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class TableMerger {
+    private static final Log logger = LogFactory.getLog(TableMerger.class);
+
+    private final DbContext ctx;
+    private final TableModel source;
+    private final TableModel target;
+    private final Class<?> targetClass;
+    private final String[] keyFields; //业务键，按顺序每个键连接一轮
+    private final Map<String, String> aliases = new HashMap<>(); //正式表列名 -> 临时表列名，均为normalize后的
+    private boolean deleteMissing = false;
+    private boolean dryRun = false;
+    private int memoryRows = 200000; //超过这个行数时分区溢出到磁盘
+    private int batchSize = 1000;
+    private int maxDetails = 1000;
+
+    public TableMerger(DbContext ctx, Class<?> sourceClass, Class<?> targetClass, String... keyFields) {
+        if (keyFields.length == 0)
+            throw new DbException("At least one key field is required");
+        this.ctx = ctx;
+        this.source = DbContextUtils.findEntityOrClassTableModel(sourceClass);
+        this.target = DbContextUtils.findEntityOrClassTableModel(targetClass);
+        this.targetClass = targetClass;
+        this.keyFields = keyFields;
+    }
+
+    /** 把ExcelInventory按SN(SN找不到时按oldSN)合并到Productinventory，两表中名称不一致的列已配好别名 */
+    public static TableMerger forInventory(DbContext ctx) {
+        return new TableMerger(ctx, ExcelInventory.class, Productinventory.class, "sn", "oldSN")
+                .alias(Productinventory.SMARTWATCHER_SN, ExcelInventory.SMARTWATCHERSN)
+                .alias(Productinventory.REC, ExcelInventory.RECIN).alias(Productinventory.SENT, ExcelInventory.SENTOUT)
+                .alias(Productinventory.KEYPADBOARD_VERSION, ExcelInventory.KEYPADVER)
+                .alias(Productinventory.MAINBOARD_ANDFIRMVER, ExcelInventory.MAINBOARDVER);
+    }
+
+    /** 指定正式表列对应的临时表列 */
+    public TableMerger alias(String targetColumn, String sourceColumn) {
+        aliases.put(normalize(targetColumn), normalize(sourceColumn));
+        return this;
+    }
+
+    private static String normalize(String name) {
+        return name == null ? "" : name.replaceAll("[\\s_`\"]", "").toLowerCase();
+    }
+
+    public MergeReport merge() {
+        long start = System.currentTimeMillis();
+        Plan plan = buildPlan();
+        long sourceRows = ctx.qryLongValue("select count(*) from " + source.getTableName());
+        long targetRows = ctx.qryLongValue("select count(*) from " + target.getTableName());
+        int partitions = (int) Math.max(1, (sourceRows + targetRows + memoryRows - 1) / memoryRows);
+        MergeReport report = new MergeReport(source.getTableName(), target.getTableName(), dryRun, partitions);
+        ctx.tx(() -> doMerge(plan, partitions, report));
+        if (!dryRun)
+            SecondLevelCache.clear(targetClass);
+        report.millis = System.currentTimeMillis() - start;
+        logger.info("Merged " + source.getTableName() + " into " + target.getTableName() + (dryRun ? " (dry run)" : "")
+                + ": inserted " + report.inserted + ", updated " + report.updated + ", deleted " + report.deleted
+                + ", unchanged " + report.unchanged + ", " + partitions + " partition(s), " + report.millis + "ms");
+        return report;
+    }
+
+    /** 确定两边参与比较的列和业务键所在位置，每行数据的第0个值是主键，后面依次是比较列 */
+    private Plan buildPlan() {
+        if (target.getPKeyColumns().size() != 1 || source.getPKeyColumns().size() != 1)
+            throw new DbException("Merge requires single primary key on both tables");
+        Map<String, ColumnModel> sourceCols = new HashMap<>();
+        for (ColumnModel col : source.getColumns())
+            if (!col.getTransientable() && !Boolean.TRUE.equals(col.getPkey()))
+                sourceCols.put(normalize(col.getColumnName()), col);
+        Plan plan = new Plan();
+        plan.targetPk = target.getPKeyColumns().get(0).getColumnName();
+        plan.sourcePk = source.getPKeyColumns().get(0).getColumnName();
+        for (ColumnModel col : target.getColumns()) {
+            if (col.getTransientable() || Boolean.TRUE.equals(col.getPkey()))
+                continue;
+            String name = normalize(col.getColumnName());
+            ColumnModel src = sourceCols.get(aliases.containsKey(name) ? aliases.get(name) : name);
+            if (src == null)
+                continue;
+            plan.targetColumns.add(col.getColumnName());
+            plan.sourceColumns.add(src.getColumnName());
+        }
+        for (String key : keyFields) {
+            int index = -1;
+            for (int i = 0; i < plan.targetColumns.size(); i++)
+                if (normalize(plan.targetColumns.get(i)).equals(normalize(key)))
+                    index = i + 1;
+            if (index < 0)
+                throw new DbException("Key column '" + key + "' not found in both tables");
+            plan.keyIndex.add(index);
+        }
+        plan.pkSequence = ctx.qryLongValue("select coalesce(max(" + plan.targetPk + "),0) from " + target.getTableName());
+        return plan;
+    }
+
+    private void doMerge(Plan plan, int partitions, MergeReport report) {
+        int passes = plan.keyIndex.size();
+        Spool[][] sourceSpools = new Spool[passes + 1][]; //每轮一组分区，最后一组只有一个分区，放所有轮都没匹配的行
+        Spool[][] targetSpools = new Spool[passes + 1][];
+        Connection con = null;
+        try {
+            for (int p = 0; p <= passes; p++) {
+                int n = p < passes ? partitions : 1;
+                sourceSpools[p] = new Spool[n];
+                targetSpools[p] = new Spool[n];
+                for (int i = 0; i < n; i++) {
+                    sourceSpools[p][i] = new Spool(partitions > 1);
+                    targetSpools[p][i] = new Spool(partitions > 1);
+                }
+            }
+            con = ctx.prepareConnection(); //在事务中，取得的是当前线程的事务连接
+            scan(con, source.getTableName(), plan.sourcePk, plan.sourceColumns, plan, sourceSpools, report);
+            scan(con, target.getTableName(), plan.targetPk, plan.targetColumns, plan, targetSpools, report);
+            Batches batches = new Batches(con, plan);
+            try {
+                for (int p = 0; p < passes; p++)
+                    for (int i = 0; i < partitions; i++) {
+                        joinPartition(plan, p, sourceSpools, targetSpools, i, batches, report);
+                        sourceSpools[p][i].delete();
+                        targetSpools[p][i].delete();
+                    }
+                finish(plan, sourceSpools[passes][0], targetSpools[passes][0], batches, report);
+                batches.flush();
+            } finally {
+                batches.close();
+            }
+        } catch (SQLException | IOException e) {
+            throw new DbException(e);
+        } finally {
+            for (Spool[] spools : sourceSpools)
+                delete(spools);
+            for (Spool[] spools : targetSpools)
+                delete(spools);
+            if (con != null)
+                ctx.releaseConnectionQuiet(con);
+        }
+    }
+
+    private static void delete(Spool[] spools) {
+        if (spools != null)
+            for (Spool spool : spools)
+                if (spool != null)
+                    spool.delete();
+    }
+
+    /** 全表扫描一次，每行放入第一个不为空的业务键那一轮的分区，业务键都为空的行直接计入报告 */
+    private void scan(Connection con, String table, String pk, List<String> columns, Plan plan, Spool[][] spools,
+            MergeReport report) throws SQLException, IOException {
+        StringBuilder sql = new StringBuilder("select ").append(pk);
+        for (String col : columns)
+            sql.append(", ").append(col);
+        sql.append(" from ").append(table).append(" order by ").append(pk); //按主键顺序，重复键时后出现的行生效
+        try (PreparedStatement ps = con.prepareStatement(sql.toString())) {
+            ps.setFetchSize(1000);
+            try (ResultSet rs = ps.executeQuery()) {
+                int n = columns.size() + 1;
+                while (rs.next()) {
+                    String[] row = new String[n];
+                    for (int i = 0; i < n; i++)
+                        row[i] = rs.getString(i + 1);
+                    if (plan.key(row) == null)
+                        report.noKey(table, row[0], maxDetails);
+                    else
+                        plan.route(row, 0, spools);
+                }
+            }
+        }
+    }
+
+    /** 第pass轮一个分区内的哈希连接: 临时表一侧建哈希表，正式表一侧流式探测，两边没匹配的行进入下一轮 */
+    private void joinPartition(Plan plan, int pass, Spool[][] sourceSpools, Spool[][] targetSpools, int partition,
+            Batches batches, MergeReport report) throws SQLException, IOException {
+        Map<String, String[]> sourceMap = new LinkedHashMap<>();
+        for (Iterator<String[]> it = sourceSpools[pass][partition].iterator(); it.hasNext();) {
+            String[] row = it.next();
+            String key = plan.key(row, pass);
+            if (sourceMap.put(key, row) != null) //临时表中重复的键，按主键顺序后出现的行覆盖先出现的行
+                report.overwritten(source.getTableName(), key, maxDetails);
+        }
+        Set<String> seen = new HashSet<>();
+        for (Iterator<String[]> it = targetSpools[pass][partition].iterator(); it.hasNext();) {
+            String[] row = it.next();
+            String key = plan.key(row, pass);
+            if (!seen.add(key)) { //正式表中重复的键无法确定对应哪一行，跳过并报告
+                report.duplicate(target.getTableName(), key, maxDetails);
+                continue;
+            }
+            String[] src = sourceMap.remove(key);
+            if (src == null)
+                plan.route(row, pass + 1, targetSpools);
+            else
+                compare(plan, key, row, src, batches, report);
+        }
+        for (String[] src : sourceMap.values())
+            plan.route(src, pass + 1, sourceSpools);
+    }
+
+    /** 逐列比较匹配上的两行，有差异时更新正式表行 */
+    private void compare(Plan plan, String key, String[] row, String[] src, Batches batches, MergeReport report)
+            throws SQLException {
+        Map<String, Object> changes = null;
+        for (int i = 1; i < row.length; i++) {
+            if (row[i] == null ? src[i] == null : row[i].equals(src[i]))
+                continue;
+            if (changes == null)
+                changes = new LinkedHashMap<>();
+            String col = plan.targetColumns.get(i - 1);
+            report.columnChanged(col);
+            if (report.details.size() < maxDetails) {
+                Map<String, Object> change = new LinkedHashMap<>();
+                change.put("old", row[i]);
+                change.put("new", src[i]);
+                changes.put(col, change);
+            }
+        }
+        if (changes == null) {
+            report.unchanged++;
+            return;
+        }
+        report.updated++;
+        report.detail(key, "update", changes, maxDetails);
+        batches.update(row[0], src);
+    }
+
+    /** 所有轮都没匹配的行: 临时表行插入，正式表行可选删除 */
+    private void finish(Plan plan, Spool sourceSpool, Spool targetSpool, Batches batches, MergeReport report)
+            throws SQLException, IOException {
+        for (Iterator<String[]> it = targetSpool.iterator(); it.hasNext();) {
+            String[] row = it.next();
+            if (deleteMissing) {
+                report.deleted++;
+                report.detail(plan.key(row), "delete", null, maxDetails);
+                batches.delete(row[0]);
+            } else
+                report.missing++;
+        }
+        for (Iterator<String[]> it = sourceSpool.iterator(); it.hasNext();) {
+            String[] src = it.next();
+            report.inserted++;
+            report.detail(plan.key(src), "insert", null, maxDetails);
+            batches.insert(++plan.pkSequence, src);
+        }
+    }
+
+    private static class Plan {
+        String targetPk;
+        String sourcePk;
+        final List<String> targetColumns = new ArrayList<>();
+        final List<String> sourceColumns = new ArrayList<>();
+        final List<Integer> keyIndex = new ArrayList<>();
+        long pkSequence;
+
+        /** 第pass个业务键的值，为空时返回null */
+        String key(String[] row, int pass) {
+            String v = row[keyIndex.get(pass)];
+            return v == null || v.trim().isEmpty() ? null : v.trim();
+        }
+
+        /** 第一个不为空的业务键，用于报告，都为空时返回null */
+        String key(String[] row) {
+            for (int i = 0; i < keyIndex.size(); i++)
+                if (key(row, i) != null)
+                    return key(row, i);
+            return null;
+        }
+
+        /** 把行放入从pass开始第一个不为空的业务键那一轮的分区，都为空时放入最后一组 */
+        void route(String[] row, int pass, Spool[][] spools) throws IOException {
+            for (int p = pass; p < keyIndex.size(); p++) {
+                String key = key(row, p);
+                if (key != null) {
+                    spools[p][(key.hashCode() & 0x7fffffff) % spools[p].length].write(row);
+                    return;
+                }
+            }
+            spools[keyIndex.size()][0].write(row);
+        }
+    }
+
+    /** 三种写操作各用一个PreparedStatement批处理，攒够batchSize条执行一次 */
+    private class Batches {
+        final PreparedStatement insertPs;
+        final PreparedStatement updatePs;
+        final PreparedStatement deletePs;
+        final String updateSql;
+        int inserts;
+        int updates;
+        int deletes;
+
+        Batches(Connection con, Plan plan) throws SQLException {
+            if (dryRun) {
+                insertPs = updatePs = deletePs = null;
+                updateSql = null;
+                return;
+            }
+            StringBuilder ins = new StringBuilder("insert into ").append(target.getTableName()).append(" (")
+                    .append(plan.targetPk);
+            StringBuilder questions = new StringBuilder("?");
+            StringBuilder upd = new StringBuilder("update ").append(target.getTableName()).append(" set ");
+            for (int i = 0; i < plan.targetColumns.size(); i++) {
+                ins.append(", ").append(plan.targetColumns.get(i));
+                questions.append(", ?");
+                upd.append(i == 0 ? "" : ", ").append(plan.targetColumns.get(i)).append("=?");
+            }
+            insertPs = con.prepareStatement(ins.append(") values (").append(questions).append(")").toString());
+            updateSql = upd.append(" where ").append(plan.targetPk).append("=?").toString();
+            updatePs = con.prepareStatement(updateSql);
+            deletePs = con.prepareStatement(
+                    "delete from " + target.getTableName() + " where " + plan.targetPk + "=?");
+        }
+
+        void insert(long id, String[] src) throws SQLException {
+            if (dryRun)
+                return;
+            insertPs.setObject(1, id);
+            for (int i = 1; i < src.length; i++)
+                insertPs.setString(i + 1, src[i]);
+            insertPs.addBatch();
+            if (++inserts % batchSize == 0)
+                insertPs.executeBatch();
+        }
+
+        void update(String id, String[] src) throws SQLException {
+            if (dryRun)
+                return;
+            for (int i = 1; i < src.length; i++)
+                updatePs.setString(i, src[i]);
+            updatePs.setObject(src.length, Long.valueOf(id));
+            updatePs.addBatch();
+            if (++updates % batchSize == 0)
+                updatePs.executeBatch();
+        }
+
+        void delete(String id) throws SQLException {
+            if (dryRun)
+                return;
+            deletePs.setObject(1, Long.valueOf(id));
+            deletePs.addBatch();
+            if (++deletes % batchSize == 0)
+                deletePs.executeBatch();
+        }
+
+        void flush() throws SQLException {
+            if (dryRun)
+                return;
+            if (deletes % batchSize != 0) //先删除，防止插入的行与被删除的行冲突
+                deletePs.executeBatch();
+            if (updates % batchSize != 0)
+                updatePs.executeBatch();
+            if (inserts % batchSize != 0)
+                insertPs.executeBatch();
+            if (inserts + updates + deletes > 0) //直接用JDBC写入，需通知TableChangeTracker正式表已改变，按表版本缓存的查询结果才会失效
+                ctx.trackWrite(updateSql);
+        }
+
+        void close() {
+            for (PreparedStatement ps : new PreparedStatement[] { insertPs, updatePs, deletePs })
+                try {
+                    if (ps != null)
+                        ps.close();
+                } catch (SQLException e) {
+                    //ignore
+                }
+        }
+    }
+
+    /** 一个分区的行，只有一个分区时放在内存中，否则写入临时文件 */
+    private static class Spool {
+        private List<String[]> rows;
+        private File file;
+        private DataOutputStream out;
+
+        Spool(boolean toDisk) throws IOException {
+            if (toDisk) {
+                file = File.createTempFile("merge", ".spool");
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            } else
+                rows = new ArrayList<>();
+        }
+
+        void write(String[] row) throws IOException {
+            if (rows != null) {
+                rows.add(row);
+                return;
+            }
+            out.writeInt(row.length);
+            for (String s : row) {
+                if (s == null)
+                    out.writeInt(-1);
+                else {
+                    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(b.length);
+                    out.write(b);
+                }
+            }
+        }
+
+        Iterator<String[]> iterator() throws IOException {
+            if (rows != null)
+                return rows.iterator();
+            out.close();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            return new Iterator<String[]>() {
+                String[] next = read();
+
+                private String[] read() {
+                    try {
+                        int n = in.readInt();
+                        String[] row = new String[n];
+                        for (int i = 0; i < n; i++) {
+                            int len = in.readInt();
+                            if (len >= 0) {
+                                byte[] b = new byte[len];
+                                in.readFully(b);
+                                row[i] = new String(b, StandardCharsets.UTF_8);
+                            }
+                        }
+                        return row;
+                    } catch (EOFException e) {
+                        closeQuiet();
+                        return null;
+                    } catch (IOException e) {
+                        closeQuiet();
+                        throw new DbException(e);
+                    }
+                }
+
+                private void closeQuiet() {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        //ignore
+                    }
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public String[] next() {
+                    String[] result = next;
+                    next = read();
+                    return result;
+                }
+            };
+        }
+
+        void delete() {
+            rows = null;
+            if (file != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+                file.delete(); //NOSONAR
+                file = null;
+            }
+        }
+    }
+
+    /** 合并报告: 各类变更的行数、每列被修改的次数，以及前maxDetails条变更明细 */
+    public static class MergeReport {
+        private final String source;
+        private final String target;
+        private final boolean dryRun;
+        private final int partitions;
+        private long inserted;
+        private long updated;
+        private long deleted;
+        private long unchanged;
+        private long missing;
+        private long skipped;
+        private long overwritten;
+        private long millis;
+        private final Map<String, Long> columnChanges = new TreeMap<>();
+        private final List<Map<String, Object>> details = new ArrayList<>();
+        private final List<Map<String, Object>> problems = new ArrayList<>();
+
+        MergeReport(String source, String target, boolean dryRun, int partitions) {
+            this.source = source;
+            this.target = target;
+            this.dryRun = dryRun;
+            this.partitions = partitions;
+        }
+
+        void detail(String key, String action, Map<String, Object> changes, int maxDetails) {
+            if (details.size() >= maxDetails)
+                return;
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("key", key);
+            m.put("action", action);
+            if (changes != null)
+                m.put("changes", changes);
+            details.add(m);
+        }
+
+        void columnChanged(String column) {
+            columnChanges.merge(column, 1L, Long::sum);
+        }
+
+        void noKey(String table, String id, int maxDetails) {
+            skipped++;
+            problem(table, "id " + id, "empty key", maxDetails);
+        }
+
+        void duplicate(String table, String key, int maxDetails) {
+            skipped++;
+            problem(table, key, "duplicate key", maxDetails);
+        }
+
+        void overwritten(String table, String key, int maxDetails) {
+            overwritten++;
+            problem(table, key, "duplicate key, overwritten by later row", maxDetails);
+        }
+
+        private void problem(String table, String what, String reason, int maxDetails) {
+            if (problems.size() >= maxDetails)
+                return;
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("table", table);
+            m.put("row", what);
+            m.put("reason", reason);
+            problems.add(m);
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public boolean isDryRun() {
+            return dryRun;
+        }
+
+        public int getPartitions() {
+            return partitions;
+        }
+
+        public long getInserted() {
+            return inserted;
+        }
+
+        public long getUpdated() {
+            return updated;
+        }
+
+        public long getDeleted() {
+            return deleted;
+        }
+
+        public long getUnchanged() {
+            return unchanged;
+        }
+
+        /** 正式表有而临时表没有，且没有设置deleteMissing时保留的行数 */
+        public long getMissing() {
+            return missing;
+        }
+
+        /** 因业务键为空或正式表中业务键重复被跳过的行数 */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /** 临时表中业务键重复，被后出现的行覆盖的行数 */
+        public long getOverwritten() {
+            return overwritten;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public Map<String, Long> getColumnChanges() {
+            return columnChanges;
+        }
+
+        public List<Map<String, Object>> getDetails() {
+            return details;
+        }
+
+        public List<Map<String, Object>> getProblems() {
+            return problems;
+        }
+    }
+
+    // getter & setters ==========
+    public boolean isDeleteMissing() {
+        return deleteMissing;
+    }
+
+    public TableMerger setDeleteMissing(boolean deleteMissing) {
+        this.deleteMissing = deleteMissing;
+        return this;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public TableMerger setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+        return this;
+    }
+
+    public int getMemoryRows() {
+        return memoryRows;
+    }
+
+    public TableMerger setMemoryRows(int memoryRows) {
+        this.memoryRows = Math.max(1, memoryRows);
+        return this;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public TableMerger setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    public int getMaxDetails() {
+        return maxDetails;
+    }
+
+    public TableMerger setMaxDetails(int maxDetails) {
+        this.maxDetails = maxDetails;
+        return this;
+    }
+}
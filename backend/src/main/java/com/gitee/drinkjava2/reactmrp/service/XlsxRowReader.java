@@ -0,0 +1,199 @@
+package com.gitee.drinkjava2.reactmrp.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * 流式XLSX读取器，只读取第一个工作表，用JDK自带的StAX逐个解析单元格，不需要引入POI
+ *
+ * 因为zip流不能随机访问，上传流先存为临时文件再用ZipFile打开；共享字符串表(sharedStrings.xml)需全部载入内存，
+ * 其余数据按行读取，内存占用与行数无关。日期单元格以Excel序列数返回，由导入器根据目标列类型转换
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class XlsxRowReader implements RowReader {
+    private static final XMLInputFactory xmlFactory = XMLInputFactory.newInstance();
+    static {
+        xmlFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false); //禁用DTD和外部实体，防止XXE攻击
+        xmlFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final File tempFile;
+    private final ZipFile zip;
+    private final InputStream sheetStream;
+    private final XMLStreamReader xml;
+    private final List<String> sharedStrings = new ArrayList<>();
+    private long lineNo = 0;
+
+    public XlsxRowReader(InputStream in) throws IOException {
+        tempFile = File.createTempFile("import", ".xlsx");
+        try {
+            Files.copy(in, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            zip = new ZipFile(tempFile);
+            ZipEntry shared = zip.getEntry("xl/sharedStrings.xml");
+            if (shared != null)
+                loadSharedStrings(zip.getInputStream(shared));
+            ZipEntry sheet = findFirstSheet(zip);
+            if (sheet == null)
+                throw new IOException("No worksheet found in xlsx file");
+            sheetStream = zip.getInputStream(sheet);
+            xml = xmlFactory.createXMLStreamReader(sheetStream, "UTF-8");
+        } catch (XMLStreamException e) {
+            close();
+            throw new IOException(e);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static ZipEntry findFirstSheet(ZipFile zip) {
+        ZipEntry first = zip.getEntry("xl/worksheets/sheet1.xml");
+        if (first != null)
+            return first;
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry e = entries.nextElement();
+            if (e.getName().startsWith("xl/worksheets/sheet") && e.getName().endsWith(".xml")
+                    && (first == null || e.getName().compareTo(first.getName()) < 0))
+                first = e;
+        }
+        return first;
+    }
+
+    private void loadSharedStrings(InputStream in) throws XMLStreamException, IOException {
+        try {
+            XMLStreamReader r = xmlFactory.createXMLStreamReader(in, "UTF-8");
+            StringBuilder sb = null;
+            boolean inPhonetic = false; //<rPh>是拼音注音，不属于文本
+            while (r.hasNext()) {
+                int ev = r.next();
+                if (ev == XMLStreamConstants.START_ELEMENT) {
+                    String name = r.getLocalName();
+                    if ("si".equals(name))
+                        sb = new StringBuilder();
+                    else if ("rPh".equals(name))
+                        inPhonetic = true;
+                    else if ("t".equals(name) && sb != null && !inPhonetic)
+                        sb.append(r.getElementText());
+                } else if (ev == XMLStreamConstants.END_ELEMENT) {
+                    String name = r.getLocalName();
+                    if ("si".equals(name)) {
+                        sharedStrings.add(sb.toString());
+                        sb = null;
+                    } else if ("rPh".equals(name))
+                        inPhonetic = false;
+                }
+            }
+            r.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String[] next() throws IOException {
+        try {
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT && "row".equals(xml.getLocalName()))
+                    return readRow();
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            throw new IOException("Xlsx parse error near row " + lineNo, e);
+        }
+    }
+
+    private String[] readRow() throws XMLStreamException {
+        String r = xml.getAttributeValue(null, "r");
+        lineNo = r == null ? lineNo + 1 : Long.parseLong(r);
+        List<String> cells = new ArrayList<>();
+        while (xml.hasNext()) {
+            int ev = xml.next();
+            if (ev == XMLStreamConstants.END_ELEMENT && "row".equals(xml.getLocalName()))
+                break;
+            if (ev == XMLStreamConstants.START_ELEMENT && "c".equals(xml.getLocalName())) {
+                int col = columnIndex(xml.getAttributeValue(null, "r"), cells.size());
+                String type = xml.getAttributeValue(null, "t");
+                String value = readCellValue(type);
+                while (cells.size() < col) //空单元格在xml中不存在，需要补齐
+                    cells.add("");
+                cells.add(value);
+            }
+        }
+        return cells.toArray(new String[cells.size()]);
+    }
+
+    private String readCellValue(String type) throws XMLStreamException {
+        String value = null;
+        while (xml.hasNext()) {
+            int ev = xml.next();
+            if (ev == XMLStreamConstants.END_ELEMENT && "c".equals(xml.getLocalName()))
+                break;
+            if (ev == XMLStreamConstants.START_ELEMENT) {
+                String name = xml.getLocalName();
+                if ("v".equals(name))
+                    value = xml.getElementText();
+                else if ("t".equals(name)) //inlineStr的<is><t>
+                    value = (value == null ? "" : value) + xml.getElementText();
+            }
+        }
+        if (value == null)
+            return "";
+        if ("s".equals(type)) {
+            int idx = Integer.parseInt(value.trim());
+            return idx < sharedStrings.size() ? sharedStrings.get(idx) : "";
+        }
+        if ("b".equals(type))
+            return "1".equals(value) ? "true" : "false";
+        return value;
+    }
+
+    /** 把"AB12"这样的单元格地址转为从0开始的列号，没有地址时用当前位置 */
+    private static int columnIndex(String ref, int defaultIndex) {
+        if (ref == null)
+            return defaultIndex;
+        int col = 0;
+        for (int i = 0; i < ref.length(); i++) {
+            char c = ref.charAt(i);
+            if (c < 'A' || c > 'Z')
+                break;
+            col = col * 26 + (c - 'A' + 1);
+        }
+        return col - 1;
+    }
+
+    @Override
+    public long getLineNo() {
+        return lineNo;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (xml != null)
+                xml.close();
+        } catch (XMLStreamException e) {
+            //ignore
+        }
+        if (sheetStream != null)
+            sheetStream.close();
+        if (zip != null)
+            zip.close();
+        Files.deleteIfExists(tempFile.toPath());
+    }
+}
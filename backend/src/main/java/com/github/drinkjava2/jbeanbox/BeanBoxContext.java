@@ -10,10 +10,12 @@
 package com.github.drinkjava2.jbeanbox;
 
 import java.lang.annotation.Annotation;
+import java.lang.annotation.Inherited;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -169,12 +171,13 @@ public class BeanBoxContext {
 
 	/**
 	 * Scan classes with &#064;COMPONENT or &#064;Component annotation, for
-	 * autowiring purpose
+	 * autowiring purpose. Annotations are read from ClassScanIndex first, only
+	 * candidate classes are loaded
 	 */
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public void scanComponents(String... packages) {
-		List<Class> classes = ClassScanner.scanPackages(packages);
-		for (Class claz : classes)
+		List<Class<?>> classes = ClassScanner.loadClasses(findComponentCandidates(ClassScanner.scanIndex(packages)));
+		for (Class<?> claz : classes)
 			for (Annotation anno : claz.getAnnotations()) {
 				Class<? extends Annotation> aType = anno.annotationType();
 				if (BeanBoxUtils.ifSameOrChildAnno(aType, COMPONENT.class)
@@ -197,6 +200,43 @@ public class BeanBoxContext {
 			}
 	}
 
+	/**
+	 * Return names of classes may be components, i.e. has an annotation which is
+	 * or annotated by COMPONENT or Component, or may inherit such an annotation
+	 */
+	@SuppressWarnings("unchecked")
+	private List<String> findComponentCandidates(List<ClassScanIndex.Entry> entries) {
+		Map<String, Boolean> componentAnnos = new HashMap<String, Boolean>();
+		boolean inherited = false;
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		for (ClassScanIndex.Entry e : entries)
+			for (String annoName : e.getAnnotations())
+				if (!componentAnnos.containsKey(annoName)) {
+					boolean isComponent = false;
+					try {
+						Class<?> annoType = loader.loadClass(annoName);
+						if (annoType.isAnnotation()) {
+							Class<? extends Annotation> aType = (Class<? extends Annotation>) annoType;
+							isComponent = BeanBoxUtils.ifSameOrChildAnno(aType, COMPONENT.class)
+									|| (allowSpringJsrAnnotation && BeanBoxUtils.ifSameOrChildAnno(aType, Component.class));
+							inherited = inherited || (isComponent && aType.isAnnotationPresent(Inherited.class));
+						}
+					} catch (ClassNotFoundException ex) {// NOSONAR annotation not in classpath is ignored by JVM too
+					} catch (LinkageError ex) {// NOSONAR
+					}
+					componentAnnos.put(annoName, isComponent);
+				}
+		List<String> result = new ArrayList<String>();
+		for (ClassScanIndex.Entry e : entries) {
+			boolean candidate = inherited && e.getSuperName() != null;
+			for (String annoName : e.getAnnotations())
+				candidate = candidate || componentAnnos.get(annoName);
+			if (candidate)
+				result.add(e.getClassName());
+		}
+		return result;
+	}
+
 	/** Bind a targe on a bean id, if id already exist, override it */
 	public BeanBoxContext bind(Object id, Object target) {
 		BeanBoxException.assureNotNull(id, "bind id can not be empty");
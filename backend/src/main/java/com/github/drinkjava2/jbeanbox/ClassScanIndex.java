@@ -0,0 +1,399 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jbeanbox;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.github.drinkjava2.asm.AnnotationVisitor;
+import com.github.drinkjava2.asm.ClassReader;
+import com.github.drinkjava2.asm.ClassVisitor;
+import com.github.drinkjava2.asm.Opcodes;
+
+/**
+ * ClassScanIndex read class names, super class and class level annotations by
+ * ASM ClassReader without load classes, and cache them in an index file, so
+ * ClassScanner only need load the classes really used.
+ *
+ * For a folder in classpath, index saved in the temp folder (nothing is
+ * written into classpath), a class file is re-read only when its last modified
+ * time changed. For a jar, index is read from resource
+ * "META-INF/jbeanbox-scan.idx" inside of jar if it is packaged, otherwise
+ * created in the temp folder and rebuilt when jar size or last modified time
+ * changed.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public class ClassScanIndex {// NOSONAR
+	public static final String INDEX_RESOURCE = "META-INF/jbeanbox-scan.idx";
+	private static final String HEADER = "#jBeanBox class scan index v1, className|lastModified|superName|annotations";
+
+	/** Cached index of each classpath folder or jar */
+	private static final ConcurrentHashMap<String, ClassScanIndex> rootIndexes = new ConcurrentHashMap<String, ClassScanIndex>();
+
+	/** Scanned information of one class */
+	public static class Entry {
+		String className;
+		long lastModified;
+		String superName;
+		Set<String> annotations = new LinkedHashSet<String>();
+
+		public String getClassName() {
+			return className;
+		}
+
+		/** Super class name, null for interface, Object or unknown */
+		public String getSuperName() {
+			return superName;
+		}
+
+		/** Class names of runtime visible annotations directly on this class */
+		public Set<String> getAnnotations() {
+			return annotations;
+		}
+	}
+
+	private final File indexFile;
+	private final String stamp;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final Set<String> packages = new LinkedHashSet<String>(); // packages already scanned
+	private boolean dirty;
+
+	private ClassScanIndex(File indexFile, String stamp) {
+		this.indexFile = indexFile;
+		this.stamp = stamp;
+	}
+
+	/** Return index entries of all classes in one package and its child packages */
+	public static List<Entry> scan(String pkg) {
+		List<Entry> result = new ArrayList<Entry>();
+		try {
+			String pathName = pkg.replace('.', '/');
+			Enumeration<URL> urls = Thread.currentThread().getContextClassLoader().getResources(pathName);
+			while (urls.hasMoreElements()) {
+				URL url = urls.nextElement();
+				String protocol = url.getProtocol();
+				if ("file".equals(protocol)) {
+					String path = URLDecoder.decode(url.getFile(), "UTF-8");
+					result.addAll(scanFolder(pkg, pathName, new File(path)));
+				} else if ("jar".equals(protocol)) {
+					String file = url.getFile();
+					String jarPath = URLDecoder.decode(file.substring(0, file.lastIndexOf('!')).replaceFirst("file:", ""),
+							"UTF-8");
+					result.addAll(scanJar(pkg, pathName, new File(jarPath)));
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Warning: Can not scan package：" + pkg);
+		}
+		return result;
+	}
+
+	/** Clear the in-memory cache, index files are kept */
+	public static void clearCache() {
+		rootIndexes.clear();
+	}
+
+	private static List<Entry> scanFolder(String pkg, String pathName, File pkgDir) {
+		if (!pkgDir.exists() || !pkgDir.isDirectory())
+			return Collections.emptyList();
+		String dirPath = pkgDir.getAbsolutePath().replace('\\', '/');
+		String rootPath = dirPath.endsWith(pathName) ? dirPath.substring(0, dirPath.length() - pathName.length())
+				: dirPath + "/";
+		ClassScanIndex index = rootIndexes.get(rootPath);
+		if (index == null) {
+			File indexFile = tempIndexFile(new File(rootPath).getName(), rootPath);
+			index = new ClassScanIndex(indexFile, "folder");
+			index.load(indexFile.exists() ? openQuietly(indexFile) : null);
+			ClassScanIndex existed = rootIndexes.putIfAbsent(rootPath, index);
+			if (existed != null)
+				index = existed;
+		}
+		synchronized (index) {
+			List<Entry> result = new ArrayList<Entry>();
+			Set<String> found = new LinkedHashSet<String>();
+			index.walkFolder(pkg, pkgDir, result, found);
+			String prefix = pkg + ".";
+			for (String className : new ArrayList<String>(index.entries.keySet()))
+				if (className.startsWith(prefix) && !found.contains(className)) {
+					index.entries.remove(className);// class file deleted
+					index.dirty = true;
+				}
+			if (index.packages.add(pkg))
+				index.dirty = true;
+			index.saveIfDirty();
+			return result;
+		}
+	}
+
+	/** Index file of a classpath folder or jar in temp folder */
+	private static File tempIndexFile(String name, String rootPath) {
+		return new File(System.getProperty("java.io.tmpdir"),
+				"jbeanbox-scan/" + name + "-" + Integer.toHexString(rootPath.hashCode()) + ".idx");
+	}
+
+	/** Same order as old ClassScanner, class files of folder first, then child folders */
+	private void walkFolder(String pkg, File dir, List<Entry> result, Set<String> found) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files);
+		for (File f : files) {
+			String name = f.getName();
+			if (!name.endsWith(".class") || !f.isFile())
+				continue;
+			String className = pkg + "." + name.substring(0, name.length() - 6);
+			long lastModified = f.lastModified();
+			Entry e = entries.get(className);
+			if (e == null || e.lastModified != lastModified) {
+				e = readClass(className, readBytes(f), lastModified);
+				entries.put(className, e);
+				dirty = true;
+			}
+			found.add(className);
+			result.add(e);
+		}
+		for (File f : files)
+			if (f.isDirectory())
+				walkFolder(pkg + "." + f.getName(), f, result, found);
+	}
+
+	private static List<Entry> scanJar(String pkg, String pathName, File jar) throws IOException {
+		String rootPath = jar.getAbsolutePath();
+		String stamp = jar.length() + ":" + jar.lastModified();
+		ClassScanIndex index = rootIndexes.get(rootPath);
+		if (index == null || !stamp.equals(index.stamp)) {
+			index = null;
+			JarFile jarFile = new JarFile(jar);
+			try {
+				JarEntry packaged = jarFile.getJarEntry(INDEX_RESOURCE);
+				if (packaged != null) {// a pre-built index inside of jar, never changed
+					index = new ClassScanIndex(null, stamp);
+					index.load(jarFile.getInputStream(packaged));
+				}
+			} finally {
+				jarFile.close();
+			}
+			if (index == null) {
+				File indexFile = tempIndexFile(jar.getName(), rootPath);
+				index = new ClassScanIndex(indexFile, stamp);
+				String oldStamp = indexFile.exists() ? index.load(openQuietly(indexFile)) : null;
+				if (!stamp.equals(oldStamp))// jar changed, rebuild
+					index = new ClassScanIndex(indexFile, stamp);
+			}
+			rootIndexes.put(rootPath, index);
+		}
+		synchronized (index) {
+			if (!index.packages.contains(pkg)) {
+				index.readJar(pathName, jar);
+				index.packages.add(pkg);
+				index.dirty = true;
+				index.saveIfDirty();
+			}
+			List<Entry> result = new ArrayList<Entry>();
+			for (Entry e : index.entries.values())
+				if (e.className.replace('.', '/').contains(pathName))
+					result.add(e);
+			return result;
+		}
+	}
+
+	/** Read classes of one package in jar, anonymous inner classes are skipped as old ClassScanner did */
+	private void readJar(String pathName, File jar) throws IOException {
+		JarFile jarFile = new JarFile(jar);
+		try {
+			Enumeration<JarEntry> jarEntries = jarFile.entries();
+			while (jarEntries.hasMoreElements()) {
+				JarEntry jarEntry = jarEntries.nextElement();
+				String name = jarEntry.getName();
+				if (!name.contains(pathName) || !name.endsWith(".class") || name.matches("^[\\s\\S]*\\${1}\\d+\\.class$"))
+					continue;
+				String className = name.substring(0, name.length() - 6).replace('/', '.');
+				if (entries.containsKey(className))
+					continue;
+				InputStream in = jarFile.getInputStream(jarEntry);
+				try {
+					entries.put(className, readClass(className, readBytes(in), jarEntry.getTime()));
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			jarFile.close();
+		}
+	}
+
+	/** Read super class and annotations by ASM, class is not loaded */
+	private static Entry readClass(String className, byte[] bytes, long lastModified) {
+		final Entry e = new Entry();
+		e.className = className;
+		e.lastModified = lastModified;
+		if (bytes == null || bytes.length == 0)
+			return e;
+		try {
+			new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM7) {
+				@Override
+				public void visit(int version, int access, String name, String signature, String superName,
+						String[] interfaces) {
+					if (superName != null && (access & Opcodes.ACC_INTERFACE) == 0
+							&& !"java/lang/Object".equals(superName))
+						e.superName = superName.replace('/', '.');
+				}
+
+				@Override
+				public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+					if (visible && descriptor.startsWith("L") && descriptor.endsWith(";"))
+						e.annotations.add(descriptor.substring(1, descriptor.length() - 1).replace('/', '.'));
+					return null;
+				}
+			}, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		} catch (RuntimeException ex) {// NOSONAR not a valid class file, let class loader report it
+			System.err.println("Warning: Can not read class file:" + className);
+		}
+		return e;
+	}
+
+	/** Load index lines, return the stamp stored in index */
+	private String load(InputStream in) {
+		if (in == null)
+			return null;
+		String oldStamp = null;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("stamp="))
+						oldStamp = line.substring(6);
+					else if (line.startsWith("packages=")) {
+						for (String p : line.substring(9).split(","))
+							if (p.length() > 0)
+								packages.add(p);
+					} else if (line.length() > 0 && !line.startsWith("#")) {
+						String[] items = line.split("\\|", -1);
+						if (items.length < 4)
+							continue;
+						Entry e = new Entry();
+						e.className = items[0];
+						e.lastModified = Long.parseLong(items[1]);
+						e.superName = items[2].length() == 0 ? null : items[2];
+						for (String anno : items[3].split(","))
+							if (anno.length() > 0)
+								e.annotations.add(anno);
+						entries.put(e.className, e);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {// NOSONAR broken index, rebuild it
+			entries.clear();
+			packages.clear();
+			return null;
+		}
+		return oldStamp;
+	}
+
+	/** Save index file, failure is ignored because index is only a cache */
+	private void saveIfDirty() {
+		if (!dirty || indexFile == null)
+			return;
+		dirty = false;
+		try {
+			File parent = indexFile.getParentFile();
+			if (!parent.exists() && !parent.mkdirs())
+				return;
+			File tmp = new File(parent, indexFile.getName() + ".tmp");
+			Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+			try {
+				w.write(HEADER);
+				w.write("\nstamp=" + stamp + "\npackages=");
+				StringBuilder sb = new StringBuilder();
+				for (String p : packages)
+					sb.append(sb.length() == 0 ? "" : ",").append(p);
+				w.write(sb.toString());
+				w.write("\n");
+				for (Entry e : new TreeMap<String, Entry>(entries).values()) {
+					StringBuilder annos = new StringBuilder();
+					for (String anno : e.annotations)
+						annos.append(annos.length() == 0 ? "" : ",").append(anno);
+					w.write(e.className + "|" + e.lastModified + "|" + (e.superName == null ? "" : e.superName) + "|"
+							+ annos + "\n");
+				}
+			} finally {
+				w.close();
+			}
+			if (indexFile.exists() && !indexFile.delete())
+				return;
+			if (!tmp.renameTo(indexFile))
+				System.err.println("Warning: Can not write class scan index:" + indexFile);
+		} catch (IOException e) {
+			System.err.println("Warning: Can not write class scan index:" + indexFile);
+		}
+	}
+
+	private static InputStream openQuietly(File f) {
+		try {
+			return new FileInputStream(f);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static byte[] readBytes(File f) {
+		InputStream in = openQuietly(f);
+		if (in == null)
+			return null;
+		try {
+			return readBytes(in);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {// NOSONAR
+			}
+		}
+	}
+
+	private static byte[] readBytes(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int len;
+		while ((len = in.read(buf)) != -1)
+			out.write(buf, 0, len);
+		return out.toByteArray();
+	}
+
+}
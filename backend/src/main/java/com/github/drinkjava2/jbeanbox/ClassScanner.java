@@ -9,25 +9,19 @@
  */
 package com.github.drinkjava2.jbeanbox;
 
-import java.io.File;
-import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.IOException;
 import java.lang.annotation.Annotation;
-import java.net.URL;
-import java.net.URLDecoder;
+import java.lang.annotation.Inherited;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
-import java.util.regex.Pattern;
 
 /**
  * A util class used to scan all classes in some packages, include all child
  * folders and jars insdie of packages' path.
  * 
+ * Class names and annotations are read from ClassScanIndex without loading
+ * classes, only the returned classes are loaded.
+ * 
  * @author: cent
  * @email: 292462859@qq.com
  * @date: 2019/1/8.
@@ -35,7 +29,6 @@ import java.util.regex.Pattern;
  * @author: Yong(shrink & downgrade to Java7)
  * @since 2.5.0
  */
-@SuppressWarnings("all")
 public enum ClassScanner {
 	;
 	public static enum ProtocolTypes {
@@ -48,238 +41,98 @@ public enum ClassScanner {
 	 * @param scanBasePackages
 	 * @return
 	 */
-	public static List<Class> scanPackages(String... scanBasePackages) {
-		List<Class> classList = new LinkedList<Class>();
-		if (scanBasePackages.length == 0) {
-			return classList;
-		}
-		for (String pkg : scanBasePackages) {
-			if (pkg != null && pkg.length() != 0)
-				classList.addAll(ClassScanner.scanOnePackage(pkg));
-		}
-		return classList;
+	public static List<Class<?>> scanPackages(String... scanBasePackages) {
+		return loadClasses(scanClassNames(scanBasePackages));
 	}
 
 	/**
-	 * Find all classes with given annotation in packages 扫描某个包下带有注解的Class
+	 * Find all class names in packages from ClassScanIndex, classes are not
+	 * loaded 从扫描索引中读取包下所有类名，不加载类
 	 *
-	 * @param anno
 	 * @param scanBasePackages
 	 * @return
 	 */
-	public static List<Class> scanByAnno(Class<? extends Annotation> anno, String... scanBasePackages) {
-		List<Class> classList = scanPackages(scanBasePackages);
-		List<Class> result = new ArrayList<Class>();
-		for (Class clz : classList) {
-			Annotation clzAnno = clz.getAnnotation(anno);
-			if (clzAnno != null)
-				result.add(clz);
-		}
+	public static List<String> scanClassNames(String... scanBasePackages) {
+		List<String> result = new ArrayList<String>();
+		for (ClassScanIndex.Entry e : scanIndex(scanBasePackages))
+			result.add(e.getClassName());
 		return result;
 	}
 
 	/**
-	 * Find all classes with given name patten 扫描某个包下所有类名匹配通配符的Class
+	 * Find index entries (class name, super class name, annotation names) of all
+	 * classes in packages 扫描包下所有类的索引项，不加载类
 	 *
-	 * @param nameSimpleReg
-	 *            name patten, only 1 * allow, 类名简化版通配符，只允许一个星号出现
 	 * @param scanBasePackages
 	 * @return
 	 */
-	public static List<Class> scanByName(String nameSimpleReg, String... scanBasePackages) {
-		List<Class> classList = scanPackages(scanBasePackages);
-		List<Class> result = new ArrayList<Class>();
-		for (Class clz : classList)
-			if (NameMatchUtil.nameMatch(nameSimpleReg, clz.getName()))
-				result.add(clz);
-		return result;
-	}
-
-	/**
-	 * find all classes in one package 扫描某个包下所有Class类
-	 *
-	 * @param pkg
-	 * @return Class
-	 */
-	private static List<Class> scanOnePackage(String pkg) {
-		List<Class> classList = new LinkedList<Class>();
-		try {
-			// 包名转化为路径名
-			String pathName = package2Path(pkg);
-			// 获取路径下URL
-			Enumeration<URL> urls = Thread.currentThread().getContextClassLoader().getResources(pathName);
-			// 循环扫描路径
-			classList = scanUrls(pkg, urls);
-		} catch (IOException e) {
-			System.err.println("Warning: Can not scan package：" + pkg);
+	public static List<ClassScanIndex.Entry> scanIndex(String... scanBasePackages) {
+		List<ClassScanIndex.Entry> result = new ArrayList<ClassScanIndex.Entry>();
+		for (String pkg : scanBasePackages) {
+			if (pkg != null && pkg.length() != 0)
+				result.addAll(ClassScanIndex.scan(pkg));
 		}
-
-		return classList;
+		return result;
 	}
 
 	/**
-	 * find all classes in urls 扫描多个Url路径，找出符合包名的Class类
+	 * Find all classes with given annotation in packages 扫描某个包下带有注解的Class,
+	 * 只加载索引中直接带有该注解的类
 	 *
-	 * @param pkg
-	 * @param urls
-	 * @return Class
-	 * @throws IOException
+	 * @param anno
+	 * @param scanBasePackages
+	 * @return
 	 */
-	private static List<Class> scanUrls(String pkg, Enumeration<URL> urls) throws IOException {
-		List<Class> classList = new LinkedList<Class>();
-		while (urls.hasMoreElements()) {
-			URL url = urls.nextElement();
-			// 获取协议
-			String protocol = url.getProtocol();
-
-			if (ProtocolTypes.file.name().equals(protocol)) {
-				// 文件
-				String path = URLDecoder.decode(url.getFile(), "UTF-8");
-				classList.addAll(recursiveScan4Path(pkg, path));
-
-			} else if (ProtocolTypes.jar.name().equals(protocol)) {
-				// jar包
-				String jarPath = getJarPathFormUrl(url);
-				classList.addAll(recursiveScan4Jar(pkg, jarPath));
-			}
+	public static List<Class<?>> scanByAnno(Class<? extends Annotation> anno, String... scanBasePackages) {
+		List<ClassScanIndex.Entry> entries = scanIndex(scanBasePackages);
+		boolean inherited = anno.isAnnotationPresent(Inherited.class);
+		List<String> candidates = new ArrayList<String>();
+		for (ClassScanIndex.Entry e : entries) // Inherited annotation may come from super class
+			if (e.getAnnotations().contains(anno.getName()) || (inherited && e.getSuperName() != null))
+				candidates.add(e.getClassName());
+		List<Class<?>> result = new ArrayList<Class<?>>();
+		for (Class<?> clz : loadClasses(candidates)) {
+			Annotation clzAnno = clz.getAnnotation(anno);
+			if (clzAnno != null)
+				result.add(clz);
 		}
-		return classList;
+		return result;
 	}
 
 	/**
-	 * get real path from url 从url中获取jar真实路径
-	 * <p>
-	 * jar文件url示例如下：
-	 * <p>
-	 * jar:file:/Users/cent/.gradle/caches/modules-2/files-2.1/org.projectlombok/lombok/1.18.4/7103ab519b1cdbb0642ad4eaf1db209d905d0f96/lombok-1.18.4.jar!/org
+	 * Find all classes with given name patten 扫描某个包下所有类名匹配通配符的Class
 	 *
-	 * @param url
+	 * @param nameSimpleReg
+	 *            name patten, only 1 * allow, 类名简化版通配符，只允许一个星号出现
+	 * @param scanBasePackages
 	 * @return
 	 */
-	private static String getJarPathFormUrl(URL url) {
-		String file = url.getFile();
-		String jarRealPath = file.substring(0, file.lastIndexOf("!")).replaceFirst("file:", "");
-		return jarRealPath;
+	public static List<Class<?>> scanByName(String nameSimpleReg, String... scanBasePackages) {
+		List<String> names = new ArrayList<String>();
+		for (String className : scanClassNames(scanBasePackages))
+			if (NameMatchUtil.nameMatch(nameSimpleReg, className))
+				names.add(className);
+		return loadClasses(names);
 	}
 
 	/**
-	 * recursive scan for path 递归扫描指定文件路径下的Class文件
+	 * Load classes by names, class can not be loaded is skipped 按类名加载类
 	 *
-	 * @param pkg
-	 * @param filePath
+	 * @param classNames
 	 * @return Class列表
 	 */
-	private static List<Class> recursiveScan4Path(String pkg, String filePath) {
-		List<Class> classList = new LinkedList<Class>();
-
-		File file = new File(filePath);
-		if (!file.exists() || !file.isDirectory()) {
-			return classList;
-		}
-
-		// 处理类文件
-		File[] classes = file.listFiles(new FileFilter() {
-			public boolean accept(File child) {
-				return isClass(child.getName());
-			}
-		});
-		for (File child : classes) {
-			String className = classFile2SimpleClass(
-					new StringBuilder().append(pkg).append(".").append(child.getName()).toString());
-
+	public static List<Class<?>> loadClasses(List<String> classNames) {
+		List<Class<?>> classList = new LinkedList<Class<?>>();
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		for (String className : classNames)
 			try {
-				Class clz = Thread.currentThread().getContextClassLoader().loadClass(className);
-				classList.add(clz);
+				classList.add(loader.loadClass(className));
 			} catch (ClassNotFoundException e) {
 				System.err.println("Warning: Can not load class:" + className);
 			} catch (LinkageError e) {
 				System.err.println("Warning: Can not load class:" + className);
 			}
-
-		}
-
-		// 处理目录
-
-		File[] dirs = file.listFiles(new FileFilter() {
-			public boolean accept(File f) {
-				return f.isDirectory();
-			}
-		});
-
-		for (File child : dirs) {
-			String childPackageName = new StringBuilder().append(pkg).append(".").append(child.getName()).toString();
-			String childPath = new StringBuilder().append(filePath).append("/").append(child.getName()).toString();
-			classList.addAll(recursiveScan4Path(childPackageName, childPath));
-		}
-
-		return classList;
-	}
-
-	/**
-	 * Recursive scan 4 jar 递归扫描Jar文件内的Class类
-	 *
-	 * @param pkg
-	 * @param jarPath
-	 * @return Class列表
-	 * @throws IOException
-	 */
-	private static List<Class> recursiveScan4Jar(String pkg, String jarPath) throws IOException {
-		List<Class> classList = new LinkedList<Class>();
-
-		JarInputStream jin = new JarInputStream(new FileInputStream(jarPath));
-		JarEntry entry = jin.getNextJarEntry();
-		while (entry != null) {
-			String name = entry.getName();
-			entry = jin.getNextJarEntry();
-
-			if (!name.contains(package2Path(pkg))) {
-				continue;
-			}
-			if (isClass(name)) {
-				if (isAnonymousInnerClass(name)) {
-					// 是匿名内部类，跳过不作处理
-					continue;
-				}
-
-				String className = classFile2SimpleClass(path2Package(name));
-				try {
-					Class clz = Thread.currentThread().getContextClassLoader().loadClass(className);
-					classList.add(clz);
-				} catch (ClassNotFoundException e) {
-					System.err.println("Warning: Can not load class:" + className);
-				} catch (LinkageError e) {
-					System.err.println("Warning: Can not load class:" + className);
-				}
-			}
-		}
-
 		return classList;
 	}
 
-	// ===== Inside used static tool methods =====
-	private static final Pattern ANONYMOUS_INNER_CLASS_PATTERN = Pattern.compile("^[\\s\\S]*\\${1}\\d+\\.class$");
-
-	private static String package2Path(String packageName) {
-		return packageName.replace(".", "/");
-	}
-
-	private static String path2Package(String pathName) {
-		return pathName.replaceAll("/", ".");
-	}
-
-	private static boolean isClass(String fileName) {
-		if (fileName == null || fileName.length() == 0) {
-			return false;
-		}
-		return fileName.endsWith(".class");
-	}
-
-	private static String classFile2SimpleClass(String classFileName) {
-		return classFileName.replace(".class", "");
-	}
-
-	private static boolean isAnonymousInnerClass(String className) {
-		return ANONYMOUS_INNER_CLASS_PATTERN.matcher(className).matches();
-	}
-
 }
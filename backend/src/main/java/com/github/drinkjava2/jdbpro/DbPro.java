@@ -26,7 +26,6 @@ import org.apache.commons.dbutils.ResultSetHandler;
 import org.apache.commons.dbutils.StatementConfiguration;
 import org.apache.commons.dbutils.handlers.ColumnListHandler;
 import org.apache.commons.dbutils.handlers.MapListHandler;
-import org.apache.commons.dbutils.handlers.ScalarHandler;
 
 import com.github.drinkjava2.jdbpro.template.SqlTemplateEngine;
 import com.github.drinkjava2.jdialects.Dialect;
@@ -297,7 +296,7 @@ public class DbPro extends ImprovedQueryRunner {// NOSONAR
 		PreparedSQL ps = prepare(inlineSQL);
 		ps.ifNullSetType(SqlOption.QUERY);
 		if (ps.getResultSetHandler() == null)
-			ps.setResultSetHandler(new ScalarHandler<T>(1));
+			ps.setResultSetHandler(SingleTonHandlers.scalarHandler); // same as new ScalarHandler(1)
 		return (T) runPreparedSQL(ps);
 	}
 
@@ -361,7 +360,7 @@ public class DbPro extends ImprovedQueryRunner {// NOSONAR
 	 * result, if no record found, return empty HashMap<String, Object> instance;
 	 */
 	public <T> List<T> qryList(Object... items) {
-		return this.qry(new ColumnListHandler<T>(1), items); 
+		return this.qry((ColumnListHandler<T>) SingleTonHandlers.columnListHandler, items); // same as new ColumnListHandler(1)
 	}
 	
 	
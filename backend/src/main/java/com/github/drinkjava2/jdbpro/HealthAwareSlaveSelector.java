@@ -0,0 +1,314 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jdbpro;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+
+/**
+ * Default SlaveSelector, choose slave by strategy (random, least outstanding
+ * requests, or latency EWMA), and do passive health checking: a slave failed
+ * continuously failureThreshold times, or its replication lag is bigger than
+ * maxLagMillis, will be ejected for ejectMillis. Only connection errors
+ * (SQLState class 08) and timeouts are counted as failures, an error caused by
+ * the SQL itself like a syntax error or constraint violation is not a replica
+ * problem. Usage example:
+ *
+ * <pre>
+ * HealthAwareSlaveSelector selector = new HealthAwareSlaveSelector(Strategy.EWMA_LATENCY);
+ * selector.setLagChecker(slave -&gt; slave.qryLongValue("select ...lag sql..."));
+ * selector.setMaxLagMillis(5000);
+ * ctx.setSlaveSelector(selector);
+ * </pre>
+ *
+ * Statistics of each slave can be got by getStats() method.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public class HealthAwareSlaveSelector implements SlaveSelector {
+	private static final Log logger = LogFactory.getLog(HealthAwareSlaveSelector.class);
+
+	public static enum Strategy {
+		RANDOM, LEAST_OUTSTANDING, EWMA_LATENCY
+	}
+
+	/** Return replication lag of a slave in milliseconds */
+	public static interface LagChecker {
+		public long lagMillis(DbPro slave);
+	}
+
+	private static final double EWMA_ALPHA = 0.3;
+
+	private final Map<DbPro, SlaveStats> stats = new ConcurrentHashMap<DbPro, SlaveStats>();
+	private Strategy strategy = Strategy.LEAST_OUTSTANDING;
+	private int failureThreshold = 3;
+	private long ejectMillis = 30000;
+	private LagChecker lagChecker = null;
+	private long maxLagMillis = 0; // 0 means no lag check
+	private long lagCheckIntervalMillis = 5000;
+
+	public HealthAwareSlaveSelector() {
+		// default strategy is LEAST_OUTSTANDING
+	}
+
+	public HealthAwareSlaveSelector(Strategy strategy) {
+		this.strategy = strategy;
+	}
+
+	@Override
+	public DbPro choose(DbPro[] slaves) {
+		if (slaves == null || slaves.length == 0)
+			return null;
+		long now = System.currentTimeMillis();
+		int start = slaves.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(slaves.length);
+		DbPro best = null;
+		SlaveStats bestStats = null;
+		double bestScore = Double.MAX_VALUE;
+		for (int i = 0; i < slaves.length; i++) {
+			DbPro slave = slaves[(start + i) % slaves.length];
+			SlaveStats st = getOrCreateStats(slave);
+			checkLag(slave, st, now);
+			if (st.ejectedUntil > now)
+				continue;
+			if (strategy == Strategy.RANDOM) {
+				best = slave;
+				bestStats = st;
+				break;
+			}
+			double score = strategy == Strategy.EWMA_LATENCY ? st.getEwmaNanos() * (st.outstanding.get() + 1)
+					: st.outstanding.get();
+			if (score < bestScore) {
+				bestScore = score;
+				best = slave;
+				bestStats = st;
+			}
+		}
+		if (bestStats != null)
+			bestStats.outstanding.incrementAndGet();
+		return best;
+	}
+
+	@Override
+	public void onComplete(DbPro slave, long nanos, Throwable error) {
+		SlaveStats st = getOrCreateStats(slave);
+		st.outstanding.decrementAndGet();
+		st.queries.incrementAndGet();
+		if (error == null) {
+			st.consecutiveFailures.set(0);
+			st.updateEwma(nanos);
+		} else if (isReplicaFailure(error)) {
+			st.failures.incrementAndGet();
+			if (st.consecutiveFailures.incrementAndGet() >= failureThreshold)
+				eject(slave, st, "failed " + st.consecutiveFailures.get() + " times continuously, last error: " + error);
+		}
+	}
+
+	/**
+	 * Return true if the error means the slave can not be used: a connection
+	 * error (SQLState class 08) or a timeout, causes are also checked
+	 */
+	public static boolean isReplicaFailure(Throwable error) {
+		for (int i = 0; error != null && i < 10; i++) {
+			if (error instanceof SQLTransientConnectionException || error instanceof SQLNonTransientConnectionException
+					|| error instanceof SQLTimeoutException)
+				return true;
+			if (error instanceof SQLException) {
+				String state = ((SQLException) error).getSQLState();
+				if (state != null && state.startsWith("08"))
+					return true;
+			}
+			error = error.getCause();
+		}
+		return false;
+	}
+
+	/** Only one thread do lag checking for a slave in each interval */
+	private void checkLag(DbPro slave, SlaveStats st, long now) {
+		if (lagChecker == null || maxLagMillis <= 0)
+			return;
+		long next = st.nextLagCheck.get();
+		if (now < next || !st.nextLagCheck.compareAndSet(next, now + lagCheckIntervalMillis))
+			return;
+		try {
+			long lag = lagChecker.lagMillis(slave);
+			st.lastLagMillis = lag;
+			if (lag > maxLagMillis)
+				eject(slave, st, "replication lag " + lag + "ms > max " + maxLagMillis + "ms");
+		} catch (Exception e) {
+			st.failures.incrementAndGet();
+			eject(slave, st, "lag check failed: " + e);
+		}
+	}
+
+	private void eject(DbPro slave, SlaveStats st, String reason) {
+		st.ejectedUntil = System.currentTimeMillis() + ejectMillis;
+		st.ejections.incrementAndGet();
+		logger.warn("Slave '" + slaveName(slave) + "' ejected for " + ejectMillis + "ms, " + reason);
+	}
+
+	private SlaveStats getOrCreateStats(DbPro slave) {
+		SlaveStats st = stats.get(slave);
+		if (st == null) {
+			stats.putIfAbsent(slave, new SlaveStats());
+			st = stats.get(slave);
+		}
+		return st;
+	}
+
+	private static String slaveName(DbPro slave) {
+		return slave.getName() != null ? slave.getName() : "dbCode" + slave.getDbCode();
+	}
+
+	/** Return a readable summary of all slaves' statistics */
+	public String getStatsSummary() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<DbPro, SlaveStats> e : stats.entrySet())
+			sb.append(slaveName(e.getKey())).append(": ").append(e.getValue()).append("\n");
+		return sb.toString();
+	}
+
+	/** Statistics of one slave */
+	public static class SlaveStats {
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final AtomicLong queries = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicInteger consecutiveFailures = new AtomicInteger();
+		private final AtomicLong ejections = new AtomicLong();
+		private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToLongBits(0));
+		private final AtomicLong nextLagCheck = new AtomicLong();
+		private volatile long ejectedUntil = 0;
+		private volatile long lastLagMillis = -1;
+
+		void updateEwma(long nanos) {
+			while (true) {
+				long oldBits = ewmaBits.get();
+				double old = Double.longBitsToDouble(oldBits);
+				double value = old == 0 ? nanos : old + EWMA_ALPHA * (nanos - old);
+				if (ewmaBits.compareAndSet(oldBits, Double.doubleToLongBits(value)))
+					return;
+			}
+		}
+
+		public double getEwmaNanos() {
+			return Double.longBitsToDouble(ewmaBits.get());
+		}
+
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+
+		public long getQueries() {
+			return queries.get();
+		}
+
+		public long getFailures() {
+			return failures.get();
+		}
+
+		public long getEjections() {
+			return ejections.get();
+		}
+
+		public long getLastLagMillis() {
+			return lastLagMillis;
+		}
+
+		public boolean isEjected() {
+			return ejectedUntil > System.currentTimeMillis();
+		}
+
+		@Override
+		public String toString() {
+			return "queries=" + queries.get() + ", failures=" + failures.get() + ", outstanding=" + outstanding.get()
+					+ ", ewmaMs=" + String.format("%.3f", getEwmaNanos() / 1000000) + ", lagMs=" + lastLagMillis
+					+ ", ejections=" + ejections.get() + ", ejected=" + isEjected();
+		}
+	}
+
+	protected void getterSetters______________________() {// NOSONAR
+	}
+
+	/** Return statistics of each slave, key is slave DbPro */
+	public Map<DbPro, SlaveStats> getStats() {
+		return stats;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	public HealthAwareSlaveSelector setStrategy(Strategy strategy) {
+		this.strategy = strategy;
+		return this;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	public HealthAwareSlaveSelector setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+		return this;
+	}
+
+	public long getEjectMillis() {
+		return ejectMillis;
+	}
+
+	public HealthAwareSlaveSelector setEjectMillis(long ejectMillis) {
+		this.ejectMillis = ejectMillis;
+		return this;
+	}
+
+	public LagChecker getLagChecker() {
+		return lagChecker;
+	}
+
+	public HealthAwareSlaveSelector setLagChecker(LagChecker lagChecker) {
+		this.lagChecker = lagChecker;
+		return this;
+	}
+
+	public long getMaxLagMillis() {
+		return maxLagMillis;
+	}
+
+	public HealthAwareSlaveSelector setMaxLagMillis(long maxLagMillis) {
+		this.maxLagMillis = maxLagMillis;
+		return this;
+	}
+
+	public long getLagCheckIntervalMillis() {
+		return lagCheckIntervalMillis;
+	}
+
+	public HealthAwareSlaveSelector setLagCheckIntervalMillis(long lagCheckIntervalMillis) {
+		this.lagCheckIntervalMillis = lagCheckIntervalMillis;
+		return this;
+	}
+
+}
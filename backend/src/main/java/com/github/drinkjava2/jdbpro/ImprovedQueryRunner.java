@@ -39,6 +39,8 @@ import com.github.drinkjava2.jlogs.Log;
 import com.github.drinkjava2.jlogs.LogFactory;
 import com.github.drinkjava2.jtransactions.ConnectionManager;
 import com.github.drinkjava2.jtransactions.DataSourceHolder;
+import com.github.drinkjava2.jtransactions.ThreadConnectionManager;
+import com.github.drinkjava2.jtransactions.TxInfo;
 import com.github.drinkjava2.jtransactions.TxResult;
 import com.github.drinkjava2.jtransactions.tinytx.TinyTxConnectionManager;
 
@@ -69,6 +71,7 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 	protected static JdbcToJavaConverter globalNextJdbcToJavaConverter = BasicJdbcToJavaConverter.instance;
 	protected static TenantGetter globalNextTenantGetter = null;
 	protected static SqlItemHandler globalNextSqlItemHandler = null;
+	protected static SlaveSelector globalNextSlaveSelector = new HealthAwareSlaveSelector();
 	
 
 	protected static Integer globalNextBatchSize = 300;
@@ -84,6 +87,7 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 	protected JdbcToJavaConverter jdbcToJavaConverter = globalNextJdbcToJavaConverter;
 	protected TenantGetter tenantGetter = globalNextTenantGetter;
 	protected SqlItemHandler sqlItemHandler = globalNextSqlItemHandler;
+	protected SlaveSelector slaveSelector = globalNextSlaveSelector;
 
 	protected DbPro[] slaves;
 	protected DbPro[] masters;
@@ -300,35 +304,39 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 		}
 
 		if (batchEnabled.get()) {
-			switch (first.getOperationType()) {
-			case UPDATE:
-			case EXECUTE: {
-				try {
-					if (first.getConnection() != null)
-						result = ((int[]) batch(first.getConnection(), first.getSql(), allParams)).length;
-					else
-						result = ((int[]) batch(first.getSql(), allParams)).length;
-				} catch (SQLException e) {
-					throw new DbProException(e);
+			try {
+				switch (first.getOperationType()) {
+				case UPDATE:
+				case EXECUTE: {
+					try {
+						if (first.getConnection() != null)
+							result = ((int[]) batch(first.getConnection(), first.getSql(), allParams)).length;
+						else
+							result = ((int[]) batch(first.getSql(), allParams)).length;
+					} catch (SQLException e) {
+						throw new DbProException(e);
+					}
+					break;
 				}
-				break;
-			}
-			case INSERT: {
-				if (first.getResultSetHandler() == null)
-					throw new DbProException("insertBatch need a ResultSetHandler.");
-				try {
-					if (first.getConnection() != null)
-						result = insertBatch(first.getConnection(), first.getSql(), first.getResultSetHandler(),
-								allParams);
-					else
-						result = insertBatch(first.getSql(), first.getResultSetHandler(), allParams);
-				} catch (SQLException e) {
-					throw new DbProException(e);
+				case INSERT: {
+					if (first.getResultSetHandler() == null)
+						throw new DbProException("insertBatch need a ResultSetHandler.");
+					try {
+						if (first.getConnection() != null)
+							result = insertBatch(first.getConnection(), first.getSql(), first.getResultSetHandler(),
+									allParams);
+						else
+							result = insertBatch(first.getSql(), first.getResultSetHandler(), allParams);
+					} catch (SQLException e) {
+						throw new DbProException(e);
+					}
+					break;
 				}
-				break;
-			}
-			default:
-				throw new DbProException("Unknow batch sql operation type:" + first.getOperationType());
+				default:
+					throw new DbProException("Unknow batch sql operation type:" + first.getOperationType());
+				}
+			} finally {
+				trackWrite(first.getSql());
 			}
 		}
 		sqlBatchCache.get().clear();
@@ -479,6 +487,8 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 			ps.setParams(rendered.getParams());
 			ps.setTemplateEngine(null);
 		}
+		if (SqlOption.QUERY.equals(ps.getOperationType()))
+			TableChangeTracker.onRead(ps.getSql()); // record tables if a cache is recording
 
 		while (ps.getSqlHandlers() != null && !ps.getSqlHandlers().isEmpty()) {
 			SqlHandler handler = ps.getSqlHandlers().get(0);
@@ -514,6 +524,21 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 			}
 		}
 
+		long start = System.nanoTime();
+		Object result = null;
+		boolean success = false;
+		try {
+			result = runByMasterSlaveOption(ps);
+			success = true;
+			return result;
+		} finally {
+			SqlMetrics.record(ps.getSql(), ps.getParams(), System.nanoTime() - start,
+					success ? SqlMetrics.countRows(result, SqlOption.QUERY.equals(ps.getOperationType())) : -1, !success);
+		}
+	}
+
+	/** Run SQL on master and/or slaves according PreparedSql's masterSlaveOption */
+	private Object runByMasterSlaveOption(PreparedSQL ps) {
 		switch (ps.getOperationType()) {
 		case EXECUTE:
 		case UPDATE:
@@ -543,11 +568,11 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 			else if (SqlOption.USE_SLAVE.equals(ps.getMasterSlaveOption())) {
 				DbPro db = chooseOneSlave();
 				if (db == null)
-					throw new DbProException("Try to query on slave but slave list not found");
-				return db.runQuery(ps);
+					throw new DbProException("Try to query on slave but no healthy slave found");
+				return runSlaveQuery(db, ps, false);
 			} else if (SqlOption.USE_AUTO.equals(ps.getMasterSlaveOption())) {
 				DbPro db = autoChooseMasterOrSlaveQuery(ps);
-				return db.runQuery(ps);
+				return runSlaveQuery(db, ps, true);
 			} else
 				throw new DbProException("Should never run to here");
 		}
@@ -562,23 +587,39 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 		else if (SqlOption.USE_SLAVE.equals(ps.getMasterSlaveOption())) {
 			DbPro db = chooseOneSlave();
 			if (db == null)
-				throw new DbProException("Try to run a slave DbPro but slave list is null or empty");
-			return db.runQuery(ps);
+				throw new DbProException("Try to run a slave DbPro but no healthy slave found");
+			return runSlaveQuery(db, ps, false);
 		} else if (SqlOption.USE_AUTO.equals(ps.getMasterSlaveOption())) {
 			DbPro db = autoChooseMasterOrSlaveQuery(ps);
-			return db.runQuery(ps);
+			return runSlaveQuery(db, ps, true);
 		} else
 			throw new DbProException("masterSlaveSelect property not set.");
 	}
 
+	/**
+	 * Let TableChangeTracker know tables changed, if in a thread transaction,
+	 * versions increased again after the transaction ended. Code writing by direct
+	 * JDBC on a connection of this runner should call it with its SQL
+	 */
+	public void trackWrite(String sql) {
+		TxInfo tx = null;
+		if (connectionManager instanceof ThreadConnectionManager && connectionManager.isInTransaction())
+			tx = ((ThreadConnectionManager) connectionManager).getThreadTxInfo();
+		TableChangeTracker.onWrite(sql, tx);
+	}
+
 	private Object runWriteOperations(ImprovedQueryRunner dbPro, PreparedSQL ps) {
-		switch (ps.getOperationType()) {
-		case INSERT:
-			return dbPro.runInsert(ps);
-		case EXECUTE:
-			return dbPro.runExecute(ps);
-		case UPDATE:
-			return dbPro.runUpdate(ps);
+		try {
+			switch (ps.getOperationType()) {
+			case INSERT:
+				return dbPro.runInsert(ps);
+			case EXECUTE:
+				return dbPro.runExecute(ps);
+			case UPDATE:
+				return dbPro.runUpdate(ps);
+			}
+		} finally {
+			dbPro.trackWrite(ps.getSql()); // let caches know tables changed
 		}
 		throw new DbProException("Should never run to here");
 	}
@@ -616,11 +657,38 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 				|| (this.getConnectionManager() != null && this.getConnectionManager().isInTransaction()))
 			return (DbPro) this;
 		DbPro slave = chooseOneSlave();
-		if (slave == null)
-			throw new DbProException("Try to run a slave DbPro but slave list is null or empty");
+		if (slave == null) // all slaves be ejected, use master
+			return (DbPro) this;
 		return slave;
 	}
 
+	/**
+	 * Run query on chosen slave and report result to slaveSelector, for USE_AUTO
+	 * mode if slave query failed by a connection error or timeout, retry it on
+	 * master, other errors are thrown
+	 */
+	private Object runSlaveQuery(DbPro slave, PreparedSQL ps, boolean fallbackToMaster) {
+		if (slave == this)
+			return this.runQuery(ps);
+		long start = System.nanoTime();
+		Throwable error = null;
+		try {
+			return slave.runQuery(ps);
+		} catch (RuntimeException e) {
+			error = e;
+			if (!fallbackToMaster || !HealthAwareSlaveSelector.isReplicaFailure(e))
+				throw e;
+		} catch (Error e) {
+			error = e;
+			throw e;
+		} finally { // always report, otherwise the slave's outstanding count leaks
+			if (slaveSelector != null)
+				slaveSelector.onComplete(slave, System.nanoTime() - start, error);
+		}
+		logger.warn("Slave query failed, retry on master: " + error.getMessage());
+		return this.runQuery(ps);
+	}
+
 	private <T> T runMasterQuery(PreparedSQL ps) throws SQLException {
 		if (ps.getParams() != null)
 			return (T) query(ps.getSql(), ps.getResultSetHandler(), ps.getParams());
@@ -629,14 +697,17 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 	}
 
 	/**
-	 * Choose a slave DbPro instance, default rule is random choose, subClass can
-	 * override this method to customize choosing strategy
+	 * Choose a slave DbPro instance by slaveSelector, if slaveSelector is null use
+	 * random choose, subClass can override this method to customize choosing
+	 * strategy
 	 * 
 	 * @return A slave instance, if no found, return null;
 	 */
-	private DbPro chooseOneSlave() {
+	protected DbPro chooseOneSlave() {
 		if (this.slaves == null || this.slaves.length == 0)
 			return null;
+		if (slaveSelector != null)
+			return slaveSelector.choose(slaves);
 		return slaves[(new Random().nextInt(slaves.length))];
 	}
 
@@ -757,6 +828,8 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 			return batch(sql, objectsListToArray2D(params));
 		} catch (SQLException e) {
 			throw new DbProException(e);
+		} finally {
+			trackWrite(sql);
 		}
 	}
 
@@ -777,6 +850,8 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 			return batch(conn, sql, objectsListToArray2D(params));
 		} catch (SQLException e) {
 			throw new DbProException(e);
+		} finally {
+			trackWrite(sql);
 		}
 	}
 
@@ -1058,6 +1133,14 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
         ImprovedQueryRunner.globalNextSqlItemHandler = globalNextSqlItemHandler;
     }
 
+	public static SlaveSelector getGlobalNextSlaveSelector() {
+		return globalNextSlaveSelector;
+	}
+
+	public static void setGlobalNextSlaveSelector(SlaveSelector globalNextSlaveSelector) {
+		ImprovedQueryRunner.globalNextSlaveSelector = globalNextSlaveSelector;
+	}
+
 	private void normalGetterSetters_____________________() {// NOSONAR
 	}
 
@@ -1118,6 +1201,15 @@ public class ImprovedQueryRunner extends QueryRunner implements DataSourceHolder
 				dbPro.setConnectionManager(null); // Slave should not open transaction
 	}
 
+	public SlaveSelector getSlaveSelector() {
+		return slaveSelector;
+	}
+
+	/** This method is not thread safe, suggest only use at program starting */
+	public void setSlaveSelector(SlaveSelector slaveSelector) {// NOSONAR
+		this.slaveSelector = slaveSelector;
+	}
+
 	public DbPro[] getMasters() {
 		return masters;
 	}
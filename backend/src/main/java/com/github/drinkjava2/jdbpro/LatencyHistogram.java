@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jdbpro;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in microseconds, buckets are log-linear like
+ * HdrHistogram: each power of 2 is split into 16 sub buckets, so a percentile
+ * value has at most 1/16 (6.25%) relative error. Values from 0 to 2^40
+ * microseconds (about 12 days) are recorded, larger values go to the last
+ * bucket. Recording is only a few atomic adds, memory is about 5KB.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int MAX_BITS = 40;
+	private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/** Record a latency in nanoseconds */
+	public void recordNanos(long nanos) {
+		record(nanos / 1000);
+	}
+
+	/** Record a latency in microseconds */
+	public void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		buckets.incrementAndGet(bucketIndex(micros));
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros))
+			max = maxMicros.get();
+	}
+
+	private static int bucketIndex(long v) {
+		if (v < SUB_COUNT)
+			return (int) v;
+		int bits = 63 - Long.numberOfLeadingZeros(v); // >= SUB_BITS
+		if (bits >= MAX_BITS)
+			return BUCKETS - 1;
+		int shift = bits - SUB_BITS;
+		return (shift + 1) * SUB_COUNT + (int) ((v >> shift) & (SUB_COUNT - 1));
+	}
+
+	/** The largest value belongs to the bucket */
+	private static long bucketMaxValue(int index) {
+		if (index < SUB_COUNT)
+			return index;
+		int shift = index / SUB_COUNT - 1;
+		long lowest = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalMicros() {
+		return totalMicros.get();
+	}
+
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	public long getMeanMicros() {
+		long c = count.get();
+		return c == 0 ? 0 : totalMicros.get() / c;
+	}
+
+	/**
+	 * Return the value in microseconds that percent (0~100) of recorded values
+	 * are not larger than it. Values recorded during the scan may or may not be
+	 * counted.
+	 */
+	public long getPercentile(double percent) {
+		long c = count.get();
+		if (c == 0)
+			return 0;
+		long rank = (long) Math.ceil(c * percent / 100);
+		if (rank < 1)
+			rank = 1;
+		long sum = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			sum += buckets.get(i);
+			if (sum >= rank)
+				return Math.min(bucketMaxValue(i), maxMicros.get());
+		}
+		return maxMicros.get();
+	}
+
+	/** Clear all recorded values */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets.set(i, 0);
+		count.set(0);
+		totalMicros.set(0);
+		maxMicros.set(0);
+	}
+
+	/** Return count, mean, p50, p90, p99 and max, all in microseconds */
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("count", getCount());
+		map.put("mean", getMeanMicros());
+		map.put("p50", getPercentile(50));
+		map.put("p90", getPercentile(90));
+		map.put("p99", getPercentile(99));
+		map.put("max", getMaxMicros());
+		return map;
+	}
+}
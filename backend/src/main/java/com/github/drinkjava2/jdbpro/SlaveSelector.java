@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jdbpro;
+
+/**
+ * SlaveSelector decide which slave be used for a read query, ImprovedQueryRunner
+ * call choose() before query and call onComplete() after query finished
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public interface SlaveSelector {
+
+	/**
+	 * Choose a slave from given slaves
+	 *
+	 * @return A slave, or null if no healthy slave found
+	 */
+	public DbPro choose(DbPro[] slaves);
+
+	/**
+	 * Called after a query run on the chosen slave
+	 *
+	 * @param slave
+	 *            The chosen slave
+	 * @param nanos
+	 *            Query time in nano seconds
+	 * @param error
+	 *            The exception if query failed, otherwise null, it can be
+	 *            a SQL error not caused by the slave
+	 */
+	public void onComplete(DbPro slave, long nanos, Throwable error);
+}
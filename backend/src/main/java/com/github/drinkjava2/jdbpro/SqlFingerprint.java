@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jdbpro;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SqlFingerprint normalizes a SQL so same statements with different literal
+ * values have same fingerprint, for example:
+ *
+ * <pre>
+ * select * from  item where code='A01' and qty>10 and id in (1,2,3) -- comment
+ * select * from item where code=? and qty>? and id in (?+)
+ * </pre>
+ *
+ * String literals, numbers (not part of a name) become "?", a list of "?" in
+ * brackets becomes "(?+)", comments are removed, blanks are merged into one
+ * space. Quoted names ("x", `x`, [x]) and letter cases are kept. Fingerprints
+ * of recent SQL texts are cached.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public abstract class SqlFingerprint {// NOSONAR
+	private static final int MAX_CACHED = 5000;
+	private static final ConcurrentHashMap<String, String> cache = new ConcurrentHashMap<String, String>();
+
+	/** Return fingerprint of a SQL, cached if possible */
+	public static String of(String sql) {
+		if (sql == null)
+			return null;
+		String fp = cache.get(sql);
+		if (fp == null) {
+			fp = normalize(sql);
+			if (cache.size() >= MAX_CACHED)
+				cache.clear(); // SQLs with literals keep coming, start over
+			cache.put(sql, fp);
+		}
+		return fp;
+	}
+
+	/** Normalize a SQL without cache */
+	public static String normalize(String sql) {
+		int n = sql.length();
+		StringBuilder sb = new StringBuilder(n);
+		int i = 0;
+		while (i < n) {
+			char c = sql.charAt(i);
+			if (c == '\'') { // string literal, '' is an escaped quote
+				i++;
+				while (i < n) {
+					if (sql.charAt(i) == '\'') {
+						if (i + 1 < n && sql.charAt(i + 1) == '\'')
+							i += 2;
+						else
+							break;
+					} else if (sql.charAt(i) == '\\' && i + 1 < n)
+						i += 2; // MySQL escape
+					else
+						i++;
+				}
+				i++;
+				append(sb, '?');
+			} else if (c == '"' || c == '`' || c == '[') { // quoted name, keep it
+				char end = c == '[' ? ']' : c;
+				int start = i++;
+				while (i < n && sql.charAt(i) != end)
+					i++;
+				i++;
+				sb.append(sql, start, Math.min(i, n));
+			} else if (c == '-' && i + 1 < n && sql.charAt(i + 1) == '-') {
+				while (i < n && sql.charAt(i) != '\n')
+					i++;
+				space(sb);
+			} else if (c == '/' && i + 1 < n && sql.charAt(i + 1) == '*') {
+				int end = sql.indexOf("*/", i + 2);
+				i = end < 0 ? n : end + 2;
+				space(sb);
+			} else if (Character.isWhitespace(c)) {
+				i++;
+				space(sb);
+			} else if (Character.isDigit(c) || (c == '.' && i + 1 < n && Character.isDigit(sql.charAt(i + 1)))) {
+				while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.'))
+					i++; // also 1.5e3, 0x1F
+				append(sb, '?');
+			} else if (Character.isLetter(c) || c == '_' || c == '$' || c == '@' || c == '#') {
+				int start = i;
+				while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_'
+						|| sql.charAt(i) == '$' || sql.charAt(i) == '@' || sql.charAt(i) == '#'))
+					i++;
+				sb.append(sql, start, i);
+			} else {
+				i++;
+				append(sb, c);
+			}
+		}
+		int len = sb.length();
+		while (len > 0 && sb.charAt(len - 1) == ' ')
+			len--;
+		sb.setLength(len);
+		return len > 0 && sb.charAt(0) == ' ' ? sb.substring(1) : sb.toString();
+	}
+
+	private static void space(StringBuilder sb) {
+		if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+			sb.append(' ');
+	}
+
+	/** Append a char, merge "(?, ?, ?" into "(?+" */
+	private static void append(StringBuilder sb, char c) {
+		if (c == '?') {
+			int k = sb.length() - 1;
+			if (k >= 0 && sb.charAt(k) == ' ')
+				k--;
+			if (k >= 2 && sb.charAt(k) == ',' && endsWithList(sb, k - 1)) {
+				int j = k - 1; // drop the comma and blanks, list already ends with ?+ or ?
+				while (sb.charAt(j) == ' ')
+					j--;
+				sb.setLength(j + 1);
+				if (sb.charAt(j) == '?')
+					sb.append('+');
+				return;
+			}
+		}
+		sb.append(c);
+	}
+
+	/** true if sb[0..k] ends with "(?" or "(?+", blanks allowed */
+	private static boolean endsWithList(StringBuilder sb, int k) {
+		while (k >= 0 && sb.charAt(k) == ' ')
+			k--;
+		if (k >= 0 && sb.charAt(k) == '+')
+			k--;
+		if (k < 0 || sb.charAt(k) != '?')
+			return false;
+		k--;
+		while (k >= 0 && sb.charAt(k) == ' ')
+			k--;
+		return k >= 0 && sb.charAt(k) == '(';
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jdbpro;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+
+/**
+ * SqlMetrics records execute time, rows and errors of SQLs executed by
+ * ImprovedQueryRunner.runRealSqlMethod, grouped by SqlFingerprint (literals
+ * stripped), in a LatencyHistogram per fingerprint. At most MAX_SQLS
+ * fingerprints are recorded, others are recorded together as "(others)".
+ *
+ * An execution not faster than slowMillis is a slow execution, the last
+ * MAX_SAMPLES slow executions of each fingerprint are kept with their SQL and
+ * parameters, and a warning is logged if logSlow is true. Unlike allowShowSQL
+ * or PrintSqlHandler, fast SQLs are never printed, so it can be used in
+ * product. Call getStatistics or dump to get top N offenders.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public abstract class SqlMetrics {// NOSONAR
+	public static final int MAX_SQLS = 1000;
+	public static final int MAX_SAMPLES = 5;
+	public static final int MAX_PARAMS_LENGTH = 500;
+	public static final String OTHERS = "(others)";
+
+	protected static final Log logger = LogFactory.getLog(SqlMetrics.class);
+	private static final ConcurrentHashMap<String, Stat> stats = new ConcurrentHashMap<String, Stat>();
+	private static volatile boolean enabled = true;
+	private static volatile long slowNanos = 1000L * 1000000;
+	private static volatile boolean logSlow = true;
+
+	/**
+	 * Record a SQL execution
+	 *
+	 * @param sql
+	 *            The SQL
+	 * @param params
+	 *            The parameters, only used for slow execution
+	 * @param nanos
+	 *            Execute time in nanoseconds
+	 * @param rows
+	 *            Rows returned or affected, -1 if unknown
+	 * @param error
+	 *            true if an exception thrown
+	 */
+	public static void record(String sql, Object[] params, long nanos, long rows, boolean error) {
+		if (!enabled || sql == null)
+			return;
+		String fingerprint = SqlFingerprint.of(sql);
+		Stat stat = stats.get(fingerprint);
+		if (stat == null) {
+			Stat newStat = new Stat();
+			stat = stats.putIfAbsent(stats.size() < MAX_SQLS ? fingerprint : OTHERS, newStat);
+			if (stat == null)
+				stat = newStat;
+		}
+		stat.histogram.recordNanos(nanos);
+		if (error)
+			stat.errors.incrementAndGet();
+		if (rows >= 0) {
+			stat.rows.addAndGet(rows);
+			long max = stat.maxRows.get();
+			while (rows > max && !stat.maxRows.compareAndSet(max, rows))
+				max = stat.maxRows.get();
+		}
+		if (nanos >= slowNanos)
+			recordSlow(stat, sql, params, nanos, rows, error);
+	}
+
+	private static void recordSlow(Stat stat, String sql, Object[] params, long nanos, long rows, boolean error) {
+		stat.slowCount.incrementAndGet();
+		String paramStr = Arrays.deepToString(params);
+		if (paramStr.length() > MAX_PARAMS_LENGTH)
+			paramStr = paramStr.substring(0, MAX_PARAMS_LENGTH) + "...";
+		Map<String, Object> sample = new LinkedHashMap<String, Object>();
+		sample.put("time", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+		sample.put("millis", nanos / 1000000);
+		sample.put("rows", rows);
+		sample.put("error", error);
+		sample.put("sql", sql);
+		sample.put("params", paramStr);
+		synchronized (stat) {
+			if (stat.samples.size() >= MAX_SAMPLES)
+				stat.samples.remove(0);
+			stat.samples.add(sample);
+		}
+		if (logSlow)
+			logger.warn("Slow SQL " + nanos / 1000000 + "ms, rows " + rows + (error ? ", failed" : "") + ": " + sql
+					+ " Params: " + paramStr);
+	}
+
+	/** Return rows of a result, for query it's size of list or 1, for write it's the update count */
+	public static long countRows(Object result, boolean query) {
+		if (result == null)
+			return query ? 0 : -1;
+		if (result instanceof Collection)
+			return ((Collection<?>) result).size();
+		if (result instanceof int[]) {
+			long sum = 0;
+			for (int i : (int[]) result)
+				sum += i;
+			return sum;
+		}
+		if (query)
+			return 1;
+		return result instanceof Number ? ((Number) result).longValue() : -1;
+	}
+
+	/** Return top N SQL fingerprints sorted by total execute time */
+	public static List<Map<String, Object>> getStatistics(int topN) {
+		return getStatistics(topN, "total");
+	}
+
+	/**
+	 * Return top N SQL fingerprints, times are in microseconds
+	 *
+	 * @param topN
+	 *            how many fingerprints to return
+	 * @param orderBy
+	 *            can be total/count/mean/max/p99/rows/slow/errors, default is
+	 *            total
+	 */
+	public static List<Map<String, Object>> getStatistics(int topN, String orderBy) {
+		List<Map<String, Object>> all = new ArrayList<Map<String, Object>>();
+		for (Map.Entry<String, Stat> e : stats.entrySet())
+			all.add(e.getValue().toMap(e.getKey()));
+		final String key = orderBy == null || orderBy.length() == 0 ? "total" : orderBy;
+		Collections.sort(all, new Comparator<Map<String, Object>>() {
+			public int compare(Map<String, Object> a, Map<String, Object> b) {
+				Object x = a.get(key);
+				Object y = b.get(key);
+				long lx = x instanceof Number ? ((Number) x).longValue() : 0;
+				long ly = y instanceof Number ? ((Number) y).longValue() : 0;
+				return lx > ly ? -1 : (lx == ly ? 0 : 1);
+			}
+		});
+		return all.size() > topN ? new ArrayList<Map<String, Object>>(all.subList(0, topN)) : all;
+	}
+
+	/** Return a text table of top N SQL fingerprints, for log output */
+	public static String dump(int topN, String orderBy) {
+		StringBuilder sb = new StringBuilder("Top SQLs order by ").append(orderBy).append(
+				" (times in ms): total | count | mean | p99 | max | rows | slow | errors | SQL\n");
+		for (Map<String, Object> m : getStatistics(topN, orderBy))
+			sb.append(ms(m.get("total"))).append(" | ").append(m.get("count")).append(" | ").append(ms(m.get("mean")))
+					.append(" | ").append(ms(m.get("p99"))).append(" | ").append(ms(m.get("max"))).append(" | ")
+					.append(m.get("rows")).append(" | ").append(m.get("slow")).append(" | ").append(m.get("errors"))
+					.append(" | ").append(m.get("sql")).append('\n');
+		return sb.toString();
+	}
+
+	private static String ms(Object micros) {
+		return String.format("%.1f", ((Number) micros).longValue() / 1000.0);
+	}
+
+	public static void reset() {
+		stats.clear();
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		SqlMetrics.enabled = enabled;
+	}
+
+	public static long getSlowMillis() {
+		return slowNanos / 1000000;
+	}
+
+	/** Executions not faster than slowMillis are slow, default is 1000 */
+	public static void setSlowMillis(long slowMillis) {
+		SqlMetrics.slowNanos = slowMillis * 1000000;
+	}
+
+	public static boolean isLogSlow() {
+		return logSlow;
+	}
+
+	/** If log a warning for each slow execution, default is true */
+	public static void setLogSlow(boolean logSlow) {
+		SqlMetrics.logSlow = logSlow;
+	}
+
+	private static class Stat {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong maxRows = new AtomicLong();
+		final AtomicLong slowCount = new AtomicLong();
+		final List<Map<String, Object>> samples = new ArrayList<Map<String, Object>>(); // synchronized by Stat
+
+		Map<String, Object> toMap(String fingerprint) {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("sql", fingerprint);
+			map.put("total", histogram.getTotalMicros());
+			map.putAll(histogram.toMap());
+			map.put("rows", rows.get());
+			map.put("maxRows", maxRows.get());
+			map.put("slow", slowCount.get());
+			map.put("errors", errors.get());
+			synchronized (this) {
+				map.put("samples", new ArrayList<Map<String, Object>>(samples));
+			}
+			return map;
+		}
+	}
+}
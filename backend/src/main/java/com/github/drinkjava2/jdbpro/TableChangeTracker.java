@@ -0,0 +1,258 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jdbpro;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.drinkjava2.jtransactions.TxInfo;
+
+/**
+ * TableChangeTracker keeps a version number for each table, ImprovedQueryRunner
+ * calls onWrite for every insert/update/execute SQL to increase the versions of
+ * tables it writes, caches can compare versions to know if the tables their
+ * results come from were changed. A write SQL whose table can not be found
+ * (like DDL or a stored procedure call) increases the global version, which
+ * means all tables changed.
+ *
+ * Tables read by queries can be recorded in current thread between
+ * startRecording and stopRecording. Table names are found by a simple SQL
+ * scan (words after from/join/into/update), lower case, without schema and
+ * quotes. Writes done by direct JDBC are not seen, so caches should also have a
+ * time limit.
+ * 
+ * A write in a transaction increases versions when executed and again after the
+ * transaction committed or rolled back, otherwise a query run in another
+ * thread before the commit could cache old data under the new versions.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public abstract class TableChangeTracker {// NOSONAR
+	private static final AtomicLong globalVersion = new AtomicLong();
+	private static final AtomicLong writeCount = new AtomicLong();
+	private static final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+	private static final ThreadLocal<Set<String>> recording = new ThreadLocal<Set<String>>();
+
+	/** Called after a write SQL executed, increase versions of its tables */
+	public static void onWrite(String sql) {
+		writeCount.incrementAndGet();
+		Set<String> tables = writeTables(sql);
+		if (tables.isEmpty()) {
+			globalVersion.incrementAndGet();
+			return;
+		}
+		for (String table : tables)
+			version(table).incrementAndGet();
+	}
+
+	/**
+	 * Same as onWrite(sql), if tx is not null, increase versions of the tables
+	 * again after the transaction ended
+	 */
+	public static void onWrite(String sql, TxInfo tx) {
+		onWrite(sql);
+		if (tx == null)
+			return;
+		for (Runnable task : tx.getAfterCompletion())
+			if (task instanceof PendingWrites) {
+				((PendingWrites) task).add(sql);
+				return;
+			}
+		PendingWrites pending = new PendingWrites();
+		pending.add(sql);
+		tx.addAfterCompletion(pending);
+	}
+
+	/** Called before a query SQL executed, record its tables if recording */
+	public static void onRead(String sql) {
+		Set<String> tables = recording.get();
+		if (tables != null)
+			tables.addAll(readTables(sql));
+	}
+
+	/** Start to record tables read in current thread */
+	public static void startRecording() {
+		recording.set(new LinkedHashSet<String>());
+	}
+
+	/** Stop recording and return tables read in current thread since startRecording */
+	public static Set<String> stopRecording() {
+		Set<String> tables = recording.get();
+		recording.remove();
+		return tables == null ? new LinkedHashSet<String>() : tables;
+	}
+
+	/** Return global version followed by version of each table */
+	public static long[] getVersions(String... tables) {
+		long[] result = new long[tables.length + 1];
+		result[0] = globalVersion.get();
+		for (int i = 0; i < tables.length; i++)
+			result[i + 1] = version(tables[i]).get();
+		return result;
+	}
+
+	/** Return true if versions got by getVersions(tables) are still current */
+	public static boolean isUnchanged(String[] tables, long[] oldVersions) {
+		if (globalVersion.get() != oldVersions[0])
+			return false;
+		for (int i = 0; i < tables.length; i++)
+			if (version(tables[i]).get() != oldVersions[i + 1])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Return how many write SQL executed, if it's not changed during a query, the
+	 * versions got after the query match the query result
+	 */
+	public static long getWriteCount() {
+		return writeCount.get();
+	}
+
+	/** Mark all tables changed */
+	public static void changeAll() {
+		globalVersion.incrementAndGet();
+	}
+
+	private static AtomicLong version(String table) {
+		AtomicLong v = versions.get(table);
+		if (v == null) {
+			AtomicLong newVersion = new AtomicLong();
+			v = versions.putIfAbsent(table, newVersion);
+			if (v == null)
+				v = newVersion;
+		}
+		return v;
+	}
+
+	/** Tables written in a transaction, their versions increased again when it ended */
+	private static class PendingWrites implements Runnable {
+		private final Set<String> tables = new LinkedHashSet<String>();
+		private boolean all;
+
+		void add(String sql) {
+			Set<String> written = writeTables(sql);
+			if (written.isEmpty())
+				all = true;
+			else
+				tables.addAll(written);
+		}
+
+		@Override
+		public void run() {
+			writeCount.incrementAndGet();
+			if (all)
+				globalVersion.incrementAndGet();
+			for (String table : tables)
+				version(table).incrementAndGet();
+		}
+	}
+
+	/** Tables written by insert into/replace into/merge into/update/delete from/truncate table/alter table/drop table */
+	public static Set<String> writeTables(String sql) {
+		Set<String> result = new LinkedHashSet<String>();
+		if (sql == null)
+			return result;
+		String[] words = sql.trim().toLowerCase().split("\\s+", 4);
+		if (words.length < 2)
+			return result;
+		String first = words[0];
+		if ("update".equals(first))
+			addTable(result, words[1]);
+		else if (words.length >= 3 && ("into".equals(words[1]) || "from".equals(words[1]) || "table".equals(words[1]))
+				&& ("insert".equals(first) || "replace".equals(first) || "merge".equals(first) || "delete".equals(first)
+						|| "truncate".equals(first) || "alter".equals(first) || "drop".equals(first)))
+			addTable(result, words[2]);
+		return result;
+	}
+
+	/** Tables after from and join keywords, include comma separated table list after from */
+	public static Set<String> readTables(String sql) {
+		Set<String> result = new LinkedHashSet<String>();
+		if (sql == null)
+			return result;
+		String s = sql.toLowerCase();
+		int n = s.length();
+		int i = 0;
+		while (i < n) {
+			if (!Character.isLetter(s.charAt(i))) {
+				i++;
+				continue;
+			}
+			int start = i;
+			while (i < n && isWordChar(s.charAt(i)))
+				i++;
+			String word = s.substring(start, i);
+			if (!"from".equals(word) && !"join".equals(word))
+				continue;
+			boolean list = "from".equals(word);
+			while (true) {
+				i = skipSpace(s, i);
+				start = i;
+				while (i < n && (isWordChar(s.charAt(i)) || s.charAt(i) == '.' || s.charAt(i) == '`' || s.charAt(i) == '"'
+						|| s.charAt(i) == '[' || s.charAt(i) == ']'))
+					i++;
+				if (i == start)
+					break; // like "from (select ..."
+				addTable(result, s.substring(start, i));
+				if (!list)
+					break;
+				i = skipSpace(s, i);
+				if (i < n && s.charAt(i) != ',') { // skip alias like "from a t1, b t2"
+					int aliasStart = i;
+					while (i < n && isWordChar(s.charAt(i)))
+						i++;
+					String alias = s.substring(aliasStart, i);
+					if ("where".equals(alias) || "join".equals(alias) || "left".equals(alias) || "inner".equals(alias)
+							|| "right".equals(alias) || "group".equals(alias) || "order".equals(alias)) {
+						i = aliasStart;
+						break;
+					}
+					i = skipSpace(s, i);
+				}
+				if (i < n && s.charAt(i) == ',')
+					i++;
+				else
+					break;
+			}
+		}
+		return result;
+	}
+
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+	}
+
+	private static int skipSpace(String s, int i) {
+		while (i < s.length() && Character.isWhitespace(s.charAt(i)))
+			i++;
+		return i;
+	}
+
+	private static void addTable(Set<String> result, String name) {
+		int pos = name.indexOf('(');
+		if (pos >= 0)
+			name = name.substring(0, pos);
+		pos = name.lastIndexOf('.');
+		if (pos >= 0)
+			name = name.substring(pos + 1);
+		StringBuilder sb = new StringBuilder();
+		for (char c : name.toCharArray())
+			if (c != '`' && c != '"' && c != '[' && c != ']')
+				sb.append(c);
+		if (sb.length() > 0)
+			result.add(sb.toString());
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.jdbpro.handler;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+import org.apache.commons.dbutils.handlers.ArrayHandler;
+import org.apache.commons.dbutils.handlers.ArrayListHandler;
+import org.apache.commons.dbutils.handlers.MapHandler;
+import org.apache.commons.dbutils.handlers.MapListHandler;
+
+import com.github.drinkjava2.jdbpro.DbProException;
+import com.github.drinkjava2.jdbpro.DefaultOrderSqlHandler;
+import com.github.drinkjava2.jdbpro.ImprovedQueryRunner;
+import com.github.drinkjava2.jdbpro.PreparedSQL;
+import com.github.drinkjava2.jdbpro.SingleTonHandlers;
+import com.github.drinkjava2.jdbpro.SqlHandler;
+import com.github.drinkjava2.jdbpro.SqlOption;
+
+/**
+ * SingleFlightHandler coalesces identical concurrent read queries: when a query
+ * is running and other threads send the same query (same runner, SQL,
+ * parameters, ResultSetHandler, master/slave option and following
+ * SqlHandlers), the followers do not run it but wait for and share the first
+ * thread's result (or its exception). Usage:
+ *
+ * <pre>
+ * ctx.setSqlHandlers(new SingleFlightHandler());
+ * </pre>
+ *
+ * Only plain QUERY operations are coalesced, below are always executed
+ * directly:
+ *
+ * <pre>
+ * 1. Runner is in a transaction, or PreparedSQL has its own connection, so
+ * uncommitted data never be shared to other transactions
+ * 2. Entity queries (PreparedSQL has models, aliases, gives or entityNet), so
+ * entity instances are never shared between threads
+ * </pre>
+ *
+ * ResultSetHandlers of stateless types (MapListHandler, MapHandler,
+ * ArrayListHandler, ArrayHandler, TitleArrayListHandler) and singletons in
+ * SingleTonHandlers are compared by type, other handlers are compared by
+ * instance. Following SqlHandlers are always compared by instance, because
+ * some of them (like PaginHandler) change the SQL later in the chain. Followers
+ * wait at most maxWaitMillis, then run the query themselves. The leader returns
+ * its own result, if any follower joined, a deep snapshot of Lists, Maps, arrays
+ * and Dates in it is taken before followers are released, and each follower
+ * gets a deep copy of the snapshot (Maps are copied into same class if it has a
+ * no-argument constructor, to keep case insensitive keys), so callers can change
+ * their results freely.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public class SingleFlightHandler extends DefaultOrderSqlHandler {
+	private static final Set<Class<?>> STATELESS_HANDLERS = new HashSet<Class<?>>(Arrays.<Class<?>> asList(
+			MapListHandler.class, MapHandler.class, ArrayListHandler.class, ArrayHandler.class,
+			TitleArrayListHandler.class));
+
+	private final ConcurrentHashMap<Key, Flight> flights = new ConcurrentHashMap<Key, Flight>();
+	private long maxWaitMillis = 10000;
+
+	private final AtomicLong leaderCount = new AtomicLong();
+	private final AtomicLong followerCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	public SingleFlightHandler() {
+		// default constructor
+	}
+
+	public SingleFlightHandler(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	@Override
+	public Object handle(ImprovedQueryRunner runner, PreparedSQL ps) {
+		if (!canCoalesce(runner, ps))
+			return runner.runPreparedSQL(ps);
+		Key key = new Key(runner, ps);
+		Flight running;
+		while (true) {
+			Flight flight = new Flight();
+			running = flights.putIfAbsent(key, flight);
+			if (running == null)
+				return lead(runner, ps, key, flight);
+			if (running.join())
+				break; // else the leader just finished, try again
+		}
+
+		followerCount.incrementAndGet();
+		try {
+			if (running.latch.await(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				if (running.error != null)
+					throw running.error;
+				return copy(running.result);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbProException(e);
+		}
+		timeoutCount.incrementAndGet(); // leader is too slow, run it by self
+		return runner.runPreparedSQL(ps);
+	}
+
+	private Object lead(ImprovedQueryRunner runner, PreparedSQL ps, Key key, Flight flight) {
+		leaderCount.incrementAndGet();
+		Object result = null;
+		boolean done = false;
+		try {
+			result = runner.runPreparedSQL(ps);
+			done = true;
+			return result;
+		} catch (RuntimeException e) {
+			flight.error = e;
+			done = true;
+			throw e;
+		} finally {
+			if (!done) // an Error thrown
+				flight.error = new DbProException("Query failed in another thread: " + ps.getSql());
+			flights.remove(key, flight); // remove before release followers, late comers start a new flight
+			if (flight.close() > 0 && flight.error == null)
+				flight.result = copy(result); // snapshot before leader's caller can change the result
+			flight.latch.countDown();
+		}
+	}
+
+	/** Deep copy Lists, Maps, arrays and Dates, other objects are immutable values */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object copy(Object obj) {
+		if (obj instanceof List) {
+			List<Object> list = new ArrayList<Object>(((List) obj).size());
+			for (Object item : (List) obj)
+				list.add(copy(item));
+			return list;
+		}
+		if (obj instanceof Map) {
+			Map<Object, Object> map = newMap((Map) obj);
+			for (Map.Entry<Object, Object> e : ((Map<Object, Object>) obj).entrySet())
+				map.put(e.getKey(), copy(e.getValue()));
+			return map;
+		}
+		if (obj instanceof Object[]) {
+			Object[] array = ((Object[]) obj).clone();
+			for (int i = 0; i < array.length; i++)
+				array[i] = copy(array[i]);
+			return array;
+		}
+		if (obj instanceof Date)
+			return ((Date) obj).clone();
+		if (obj != null && obj.getClass().isArray()) // primitive array like byte[]
+			return cloneArray(obj);
+		return obj;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<Object, Object> newMap(Map<?, ?> map) {
+		try {
+			Constructor<?> c = map.getClass().getDeclaredConstructor();
+			c.setAccessible(true);
+			return (Map<Object, Object>) c.newInstance();
+		} catch (Exception e) {
+			return new LinkedHashMap<Object, Object>(); // like unmodifiable or singleton map
+		}
+	}
+
+	private static Object cloneArray(Object array) {
+		int length = Array.getLength(array);
+		Object result = Array.newInstance(array.getClass().getComponentType(), length);
+		System.arraycopy(array, 0, result, 0, length);
+		return result;
+	}
+
+	private static boolean canCoalesce(ImprovedQueryRunner runner, PreparedSQL ps) {
+		if (!SqlOption.QUERY.equals(ps.getOperationType()) || ps.getConnection() != null
+				|| ps.getResultSetHandler() == null)
+			return false;
+		if (runner.getConnectionManager() != null && runner.getConnectionManager().isInTransaction())
+			return false;
+		return ps.getModels() == null && ps.getAliases() == null && ps.getGivesList() == null
+				&& ps.getEntityNet() == null;
+	}
+
+	/** Clear statistics numbers */
+	public void resetStatistics() {
+		leaderCount.set(0);
+		followerCount.set(0);
+		timeoutCount.set(0);
+	}
+
+	/** @return How many queries really executed by this handler */
+	public long getLeaderCount() {
+		return leaderCount.get();
+	}
+
+	/** @return How many queries shared other thread's result or waited */
+	public long getFollowerCount() {
+		return followerCount.get();
+	}
+
+	/** @return How many followers waited longer than maxWaitMillis */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/** @return How many queries are running now */
+	public int getRunningCount() {
+		return flights.size();
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	private static class Flight {
+		final CountDownLatch latch = new CountDownLatch(1);
+		volatile Object result;
+		volatile RuntimeException error;
+		private int followers;
+		private boolean closed;
+
+		/** Join as a follower, return false if the leader already finished */
+		synchronized boolean join() {
+			if (closed)
+				return false;
+			followers++;
+			return true;
+		}
+
+		/** Called by leader when finished, return how many followers joined */
+		synchronized int close() {
+			closed = true;
+			return followers;
+		}
+	}
+
+	private static class Key {
+		final ImprovedQueryRunner runner;
+		final String sql;
+		final Object[] params;
+		final Object handler;
+		final SqlOption masterSlaveOption;
+		final SqlHandler[] nextHandlers;
+		final int hash;
+
+		Key(ImprovedQueryRunner runner, PreparedSQL ps) {
+			this.runner = runner;
+			this.sql = ps.getSql();
+			this.params = ps.getParams() == null ? null : ps.getParams().clone();
+			this.handler = handlerKey(ps.getResultSetHandler());
+			this.masterSlaveOption = ps.getMasterSlaveOption();
+			List<SqlHandler> next = ps.getSqlHandlers();
+			this.nextHandlers = next == null ? new SqlHandler[0] : next.toArray(new SqlHandler[next.size()]);
+			int h = System.identityHashCode(runner);
+			h = 31 * h + (sql == null ? 0 : sql.hashCode());
+			h = 31 * h + Arrays.deepHashCode(params);
+			h = 31 * h + handler.hashCode();
+			h = 31 * h + (masterSlaveOption == null ? 0 : masterSlaveOption.hashCode());
+			for (SqlHandler nextHandler : nextHandlers)
+				h = 31 * h + System.identityHashCode(nextHandler);
+			this.hash = h;
+		}
+
+		private static Object handlerKey(ResultSetHandler<?> handler) {
+			if (STATELESS_HANDLERS.contains(handler.getClass()) || handler == SingleTonHandlers.scalarHandler
+					|| handler == SingleTonHandlers.columnListHandler || handler == SingleTonHandlers.keyedHandler)
+				return handler.getClass();
+			return handler; // compare by instance
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key k = (Key) obj;
+			return hash == k.hash && runner == k.runner && handler.equals(k.handler)
+					&& masterSlaveOption == k.masterSlaveOption && (sql == null ? k.sql == null : sql.equals(k.sql))
+					&& Arrays.deepEquals(params, k.params) && sameInstances(nextHandlers, k.nextHandlers);
+		}
+
+		private static boolean sameInstances(SqlHandler[] a, SqlHandler[] b) {
+			if (a.length != b.length)
+				return false;
+			for (int i = 0; i < a.length; i++)
+				if (a[i] != b[i])
+					return false;
+			return true;
+		}
+	}
+}
@@ -16,8 +16,18 @@ import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
 
 import com.github.drinkjava2.jdialects.model.ColumnModel;
 import com.github.drinkjava2.jdialects.model.FKeyModel;
@@ -39,125 +49,299 @@ public abstract class TableModelUtilsOfDb {// NOSONAR
      * will improve later.
      */
     public static TableModel[] db2Models(Connection con, Dialect dialect) {// NOSONAR
-        List<TableModel> tableModels = new ArrayList<TableModel>();
-        SQLException sqlException = null;
-        ResultSet rs = null;
-        PreparedStatement pst = null;
+        List<TableModel> tableModels;
+        try{
+            DatabaseMetaData meta = con.getMetaData();
+            String catalog = con.getCatalog();
+            tableModels = readTables(meta, catalog, dialect);
+            for (TableModel model : tableModels)
+                fillTable(meta, catalog, dialect, model);
+        }catch (SQLException e){
+            e.printStackTrace();
+            throw new DialectException(e);
+        }
+        return tableModels.toArray(new TableModel[tableModels.size()]);
+    }
 
+    /**
+     * Convert database structure to TableModels, quicker than db2Models(con,
+     * dialect) for database has many tables: <br/>
+     * 1)For MySQL family, read all tables, columns, primary keys and foreign keys
+     * by 3 bulk information_schema queries <br/>
+     * 2)Otherwise (or if bulk query failed), get table list by JDBC meta data, then
+     * load columns and keys of tables in parallel, each thread use its own
+     * connection borrowed from the dataSource, so threads should not bigger than
+     * pool size
+     */
+    public static TableModel[] db2Models(DataSource ds, Dialect dialect, int threads) {// NOSONAR
+        Connection con = null;
         try{
+            con = ds.getConnection();
+            if(dialect.isMySqlFamily())
+                try{
+                    return mysqlInfoSchema2Models(con, dialect);
+                }catch (SQLException e){
+                    // some MySQL compatible databases do not support it, use JDBC meta data
+                }
             DatabaseMetaData meta = con.getMetaData();
             String catalog = con.getCatalog();
-            // get Tables
-            rs = meta.getTables(catalog, dialect.isOracleFamily() ? meta.getUserName() : null, null, new String[]{"TABLE"});
+            final List<TableModel> tableModels = readTables(meta, catalog, dialect);
+            int n = Math.max(1, Math.min(threads, tableModels.size() / 20)); // small database not worth threads
+            if(n == 1){
+                for (TableModel model : tableModels)
+                    fillTable(meta, catalog, dialect, model);
+            }else
+                fillTablesInParallel(ds, dialect, catalog, tableModels, n);
+            return tableModels.toArray(new TableModel[tableModels.size()]);
+        }catch (SQLException e){
+            throw new DialectException(e);
+        }finally{
+            if(con != null)
+                try{
+                    con.close();
+                }catch (SQLException e){
+                    // ignore
+                }
+        }
+    }
+
+    private static void fillTablesInParallel(final DataSource ds, final Dialect dialect, final String catalog,
+            final List<TableModel> tableModels, int threads) throws SQLException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try{
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < threads; i++){
+                final int index = i;
+                final int step = threads;
+                futures.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws SQLException {
+                        Connection c = ds.getConnection();
+                        try{
+                            DatabaseMetaData meta = c.getMetaData();
+                            for (int t = index; t < tableModels.size(); t += step)
+                                fillTable(meta, catalog, dialect, tableModels.get(t));
+                        }finally{
+                            c.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> f : futures)
+                f.get();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new DialectException(e);
+        }catch (ExecutionException e){
+            if(e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw new DialectException(e.getCause());
+        }finally{
+            pool.shutdown();
+        }
+    }
+
+    private static String quoteIfReserved(Dialect dialect, String name) {
+        if(ReservedDBWords.isReservedWord(dialect, name))
+            return dialect.ddlFeatures.openQuote + name + dialect.ddlFeatures.openQuote;
+        return name;
+    }
+
+    private static List<TableModel> readTables(DatabaseMetaData meta, String catalog, Dialect dialect) throws SQLException {
+        List<TableModel> tableModels = new ArrayList<TableModel>();
+        ResultSet rs = meta.getTables(catalog, dialect.isOracleFamily() ? meta.getUserName() : null, null, new String[]{"TABLE"});
+        try{
             while (rs.next()){
                 String tableName = rs.getString(TABLE_NAME);
                 if(!StrUtils.isEmpty(tableName)){
-                    if(ReservedDBWords.isReservedWord(dialect, tableName))
-                        tableName = dialect.ddlFeatures.openQuote + tableName + dialect.ddlFeatures.openQuote;
-                    TableModel model = new TableModel(tableName);
+                    TableModel model = new TableModel(quoteIfReserved(dialect, tableName));
                     tableModels.add(model);
                     String comment = rs.getString("REMARKS");
                     if(!StrUtils.isEmpty(comment))
                         model.setComment(comment);
                 }
             }
+        }finally{
             rs.close();
+        }
+        return tableModels;
+    }
 
-            // Build Columns
-            for (TableModel model : tableModels){
-                String tableName = model.getTableName();
-                rs = meta.getColumns(catalog, null, tableName, null); // detail see meta.getC alt + /
-                while (rs.next()){// NOSONAR
-                    String colName = rs.getString("COLUMN_NAME");
-                    if(ReservedDBWords.isReservedWord(dialect, colName))
-                        colName = dialect.ddlFeatures.openQuote + colName + dialect.ddlFeatures.openQuote;
-                    ColumnModel col = new ColumnModel(colName);
-                    model.addColumn(col);
+    /** Load columns, primary keys and foreign keys of one table */
+    private static void fillTable(DatabaseMetaData meta, String catalog, Dialect dialect, TableModel model) throws SQLException {// NOSONAR
+        String tableName = model.getTableName();
+        ResultSet rs = meta.getColumns(catalog, null, tableName, null); // detail see meta.getC alt + /
+        try{
+            while (rs.next()){// NOSONAR
+                ColumnModel col = new ColumnModel(quoteIfReserved(dialect, rs.getString("COLUMN_NAME")));
+                model.addColumn(col);
 
-                    int javaSqlType = rs.getInt("DATA_TYPE");
-                    try{
-                        col.setColumnType(TypeUtils.javaSqlTypeToDialectType(javaSqlType));
-                    }catch (Exception e1){
-                        throw new DialectException("jDialect does not supported java.sql.types value " + javaSqlType, e1);
-                    }
+                int javaSqlType = rs.getInt("DATA_TYPE");
+                try{
+                    col.setColumnType(TypeUtils.javaSqlTypeToDialectType(javaSqlType));
+                }catch (Exception e1){
+                    throw new DialectException("jDialect does not supported java.sql.types value " + javaSqlType, e1);
+                }
 
-                    col.setLength(rs.getInt("CHAR_OCTET_LENGTH"));
-                    col.setPrecision(rs.getInt("COLUMN_SIZE"));
-                    col.setScale(rs.getInt("DECIMAL_DIGITS"));
-                    col.setNullable(rs.getInt("NULLABLE") > 0);
-                    col.setDefaultValue(rs.getString("COLUMN_DEF"));
-                    col.setComment(rs.getString("REMARKS"));
+                col.setLength(rs.getInt("CHAR_OCTET_LENGTH"));
+                col.setPrecision(rs.getInt("COLUMN_SIZE"));
+                col.setScale(rs.getInt("DECIMAL_DIGITS"));
+                col.setNullable(rs.getInt("NULLABLE") > 0);
+                col.setDefaultValue(rs.getString("COLUMN_DEF"));
+                col.setComment(rs.getString("REMARKS"));
 
-                    try{
-                        if(((Boolean) (true)).equals(rs.getBoolean("IS_AUTOINCREMENT")))
-                            col.identityId();
-                    }catch (Exception e){
-                    }
+                try{
+                    if(((Boolean) (true)).equals(rs.getBoolean("IS_AUTOINCREMENT")))
+                        col.identityId();
+                }catch (Exception e){
+                }
 
-                    try{
-                        if("YES".equalsIgnoreCase(rs.getString("IS_AUTOINCREMENT")))
-                            col.identityId();
-                    }catch (Exception e){
-                    }
+                try{
+                    if("YES".equalsIgnoreCase(rs.getString("IS_AUTOINCREMENT")))
+                        col.identityId();
+                }catch (Exception e){
                 }
-                rs.close();
             }
+        }finally{
+            rs.close();
+        }
 
-            // Get Primary Keys for each model
-            for (TableModel model : tableModels){
-                rs = meta.getPrimaryKeys(catalog, null, model.getTableName());
-                while (rs.next()){
-                    model.getColumnByColName(rs.getString("COLUMN_NAME")).setPkey(true);
-                }
-                rs.close();
+        // Get Primary Keys
+        rs = meta.getPrimaryKeys(catalog, null, tableName);
+        try{
+            while (rs.next()){
+                ColumnModel col = model.getColumnByColName(rs.getString("COLUMN_NAME"));
+                if(col != null)
+                    col.setPkey(true);
             }
-            // Get Foreign Keys for each model
-            for (TableModel model : tableModels){
-                ResultSet foreignKeyResultSet = meta.getImportedKeys(catalog, null, model.getTableName());
-                while (foreignKeyResultSet.next()){
-                    String fkname = foreignKeyResultSet.getString("FK_NAME");
-                    int keyseq = foreignKeyResultSet.getInt("KEY_SEQ");
-                    String fkColumnName = foreignKeyResultSet.getString("FKCOLUMN_NAME");
-                    String pkTablenName = foreignKeyResultSet.getString("PKTABLE_NAME");
-                    String pkColumnName = foreignKeyResultSet.getString("PKCOLUMN_NAME");
-                    FKeyModel fkeyModel = model.getFkey(fkname);
+        }finally{
+            rs.close();
+        }
 
-                    if(keyseq == 1){
-                        model.fkey(fkname).columns(fkColumnName).refs(pkTablenName, pkColumnName);
-                    }else{
-                        fkeyModel.getColumnNames().add(fkColumnName);
-                        String[] newRefs = ArrayUtils.appendStrArray(fkeyModel.getRefTableAndColumns(), pkColumnName);
-                        fkeyModel.setRefTableAndColumns(newRefs);
-                    }
-                }
+        // Get Foreign Keys
+        rs = meta.getImportedKeys(catalog, null, tableName);
+        try{
+            while (rs.next())
+                addFkeyColumn(model, rs.getString("FK_NAME"), rs.getInt("KEY_SEQ"), rs.getString("FKCOLUMN_NAME"),
+                        rs.getString("PKTABLE_NAME"), rs.getString("PKCOLUMN_NAME"));
+        }finally{
+            rs.close();
+        }
+    }
+
+    private static void addFkeyColumn(TableModel model, String fkname, int keyseq, String fkColumnName, String pkTablenName, String pkColumnName) {
+        FKeyModel fkeyModel = model.getFkey(fkname);
+        if(keyseq == 1 || fkeyModel == null){
+            model.fkey(fkname).columns(fkColumnName).refs(pkTablenName, pkColumnName);
+        }else{
+            fkeyModel.getColumnNames().add(fkColumnName);
+            String[] newRefs = ArrayUtils.appendStrArray(fkeyModel.getRefTableAndColumns(), pkColumnName);
+            fkeyModel.setRefTableAndColumns(newRefs);
+        }
+    }
+
+    /** Read MySQL structure by 3 bulk information_schema queries instead of 3 queries per table */
+    private static TableModel[] mysqlInfoSchema2Models(Connection con, Dialect dialect) throws SQLException {// NOSONAR
+        Map<String, TableModel> models = new LinkedHashMap<String, TableModel>();
+        PreparedStatement pst = con.prepareStatement("select TABLE_NAME, TABLE_COMMENT from information_schema.TABLES"
+                + " where TABLE_SCHEMA=database() and TABLE_TYPE='BASE TABLE' order by TABLE_NAME");
+        try{
+            ResultSet rs = pst.executeQuery();
+            while (rs.next()){
+                TableModel model = new TableModel(quoteIfReserved(dialect, rs.getString(1)));
+                if(!StrUtils.isEmpty(rs.getString(2)))
+                    model.setComment(rs.getString(2));
+                models.put(rs.getString(1), model);
             }
+            rs.close();
+        }finally{
+            pst.close();
+        }
 
-        }catch (SQLException e){
-            e.printStackTrace();
-            sqlException = e;
+        pst = con.prepareStatement("select TABLE_NAME, COLUMN_NAME, DATA_TYPE, COLUMN_TYPE, CHARACTER_OCTET_LENGTH,"
+                + " coalesce(CHARACTER_MAXIMUM_LENGTH, NUMERIC_PRECISION, 0), NUMERIC_SCALE, IS_NULLABLE, COLUMN_DEFAULT,"
+                + " COLUMN_COMMENT, EXTRA, COLUMN_KEY from information_schema.COLUMNS where TABLE_SCHEMA=database()"
+                + " order by TABLE_NAME, ORDINAL_POSITION");
+        try{
+            ResultSet rs = pst.executeQuery();
+            while (rs.next()){
+                TableModel model = models.get(rs.getString(1));
+                if(model == null)
+                    continue; // a view
+                ColumnModel col = new ColumnModel(quoteIfReserved(dialect, rs.getString(2)));
+                model.addColumn(col);
+                col.setColumnType(TypeUtils.javaSqlTypeToDialectType(mysqlTypeToJavaSqlType(rs.getString(3), rs.getString(4))));
+                col.setLength(rs.getInt(5));
+                col.setPrecision(rs.getInt(6));
+                col.setScale(rs.getInt(7));
+                col.setNullable("YES".equalsIgnoreCase(rs.getString(8)));
+                col.setDefaultValue(rs.getString(9));
+                col.setComment(rs.getString(10));
+                if(rs.getString(11) != null && rs.getString(11).toLowerCase().contains("auto_increment"))
+                    col.identityId();
+                if("PRI".equalsIgnoreCase(rs.getString(12)))
+                    col.setPkey(true);
+            }
+            rs.close();
         }finally{
-            if(pst != null)
-                try{
-                    pst.close();
-                }catch (SQLException e1){
-                    if(sqlException != null)
-                        sqlException.setNextException(e1);
-                    else
-                        sqlException = e1;
-                }
-            try{
-                if(rs != null)
-                    rs.close();
-            }catch (SQLException e2){
-                if(sqlException != null)
-                    sqlException.setNextException(e2);
-                else
-                    sqlException = e2;
+            pst.close();
+        }
+
+        pst = con.prepareStatement("select TABLE_NAME, CONSTRAINT_NAME, ORDINAL_POSITION, COLUMN_NAME, REFERENCED_TABLE_NAME,"
+                + " REFERENCED_COLUMN_NAME from information_schema.KEY_COLUMN_USAGE where TABLE_SCHEMA=database()"
+                + " and REFERENCED_TABLE_NAME is not null order by TABLE_NAME, CONSTRAINT_NAME, ORDINAL_POSITION");
+        try{
+            ResultSet rs = pst.executeQuery();
+            while (rs.next()){
+                TableModel model = models.get(rs.getString(1));
+                if(model != null)
+                    addFkeyColumn(model, rs.getString(2), rs.getInt(3), rs.getString(4), rs.getString(5), rs.getString(6));
             }
+            rs.close();
+        }finally{
+            pst.close();
         }
-        if(sqlException != null)
-            throw new DialectException(sqlException);
-        return tableModels.toArray(new TableModel[tableModels.size()]);
+        return models.values().toArray(new TableModel[models.size()]);
+    }
+
+    /** Map MySQL DATA_TYPE to the java.sql.Types value MySQL JDBC driver reports */
+    private static int mysqlTypeToJavaSqlType(String dataType, String columnType) {// NOSONAR
+        String t = dataType.toLowerCase();
+        if("tinyint".equals(t))
+            return columnType != null && columnType.toLowerCase().startsWith("tinyint(1)") ? Types.BIT : Types.TINYINT;
+        if("bit".equals(t))
+            return Types.BIT;
+        if("smallint".equals(t))
+            return Types.SMALLINT;
+        if("int".equals(t) || "integer".equals(t) || "mediumint".equals(t))
+            return Types.INTEGER;
+        if("bigint".equals(t))
+            return Types.BIGINT;
+        if("decimal".equals(t) || "numeric".equals(t))
+            return Types.DECIMAL;
+        if("float".equals(t))
+            return Types.REAL;
+        if("double".equals(t) || "real".equals(t))
+            return Types.DOUBLE;
+        if("date".equals(t) || "year".equals(t))
+            return Types.DATE;
+        if("time".equals(t))
+            return Types.TIME;
+        if("datetime".equals(t) || "timestamp".equals(t))
+            return Types.TIMESTAMP;
+        if("char".equals(t) || "enum".equals(t) || "set".equals(t))
+            return Types.CHAR;
+        if("varchar".equals(t))
+            return Types.VARCHAR;
+        if(t.endsWith("text") || "json".equals(t))
+            return Types.LONGVARCHAR;
+        if("binary".equals(t))
+            return Types.BINARY;
+        if("varbinary".equals(t))
+            return Types.VARBINARY;
+        if(t.endsWith("blob"))
+            return Types.LONGVARBINARY;
+        return Types.OTHER;
     }
 
     public static void compareDB(Connection con1, Connection con2) {//compare 2 database
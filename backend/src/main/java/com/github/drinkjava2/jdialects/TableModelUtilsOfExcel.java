@@ -36,9 +36,9 @@ public abstract class TableModelUtilsOfExcel {// NOSONAR
 
     /**  Export entity to excel csv format file   */
     public static void entityPackage2Excel(String pkgName, String fileName) {
-        List<Class> classes = ClassScanner.scanPackages(pkgName);
-        Collections.sort(classes, new Comparator<Class>() {
-            public int compare(Class a, Class b) {
+        List<Class<?>> classes = ClassScanner.scanPackages(pkgName);
+        Collections.sort(classes, new Comparator<Class<?>>() {
+            public int compare(Class<?> a, Class<?> b) {
                 if (a.getName().compareToIgnoreCase(b.getName()) > 0)
                     return 1;
                 else
@@ -46,7 +46,7 @@ public abstract class TableModelUtilsOfExcel {// NOSONAR
             }
         });
         StringBuilder sb = new StringBuilder();
-        for (Class claz : classes) {
+        for (Class<?> claz : classes) {
             sb.append(model2CSVString(TableModelUtils.entity2Model(claz)));
             sb.append("\r\n");
         }
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jlogs;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AsyncFileLog puts log events into a lock-free bounded ring buffer, a single
+ * background thread formats them (time, level, thread, class, stack trace) and
+ * writes them to a rolling file, so a logging thread only claims a slot by CAS
+ * and sets a few fields, no formatting, lock or IO. To use it, put below lines
+ * in jlogs.properties:
+ *
+ * <pre>
+ * log=com.github.drinkjava2.jlogs.AsyncFileLog
+ * async.file=logs/jlogs.log
+ * async.level=INFO
+ * async.bufferSize=8192
+ * async.policy=drop
+ * async.maxFileSize=10485760
+ * async.maxFiles=5
+ * </pre>
+ *
+ * Values above are defaults. level can be DEBUG/INFO/WARN/ERROR/OFF,
+ * bufferSize is rounded up to power of 2, file is rolled to xxx.log.1 ~
+ * xxx.log.maxFiles when it's larger than maxFileSize bytes.
+ *
+ * "drop" policy never blocks a logging thread, dropped events are counted and
+ * reported in log file, "block" policy waits until the writer frees a slot. All
+ * AsyncFileLog instances share one ring buffer and writer thread, events left
+ * in ring buffer are written by a shutdown hook.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public class AsyncFileLog implements Log {
+	public static final int DEBUG = 1;
+	public static final int INFO = 2;
+	public static final int WARN = 3;
+	public static final int ERROR = 4;
+	public static final int OFF = 5;
+	private static final String[] LEVEL_NAMES = new String[] { "", "DEBUG", "INFO ", "WARN ", "ERROR" };
+
+	private static final int level = parseLevel(LogFactory.getProperty("async.level", "INFO"));
+	private static final boolean block = "block".equalsIgnoreCase(LogFactory.getProperty("async.policy", "drop"));
+	private static final RingBuffer ring = new RingBuffer(
+			Integer.parseInt(LogFactory.getProperty("async.bufferSize", "8192")));
+	private static final Writer writer = new Writer(LogFactory.getProperty("async.file", "logs/jlogs.log"),
+			Long.parseLong(LogFactory.getProperty("async.maxFileSize", "10485760")),
+			Integer.parseInt(LogFactory.getProperty("async.maxFiles", "5")));
+
+	static {
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("jlogs-async-shutdown") {
+			@Override
+			public void run() {
+				writer.shutdown();
+			}
+		});
+	}
+
+	private final Class<?> clazz;
+
+	public AsyncFileLog(Class<?> clazz) {
+		this.clazz = clazz;
+	}
+
+	private static int parseLevel(String name) {
+		String s = name.toUpperCase();
+		if (s.startsWith("DEBUG"))
+			return DEBUG;
+		if (s.startsWith("WARN"))
+			return WARN;
+		if (s.startsWith("ERROR"))
+			return ERROR;
+		if (s.startsWith("OFF"))
+			return OFF;
+		return INFO;
+	}
+
+	private void log(int eventLevel, String msg, Throwable t) {
+		if (eventLevel < level)
+			return;
+		if (ring.offer(eventLevel, clazz, msg, t))
+			return;
+		if (!block) {
+			ring.dropped.incrementAndGet();
+			return;
+		}
+		while (!ring.offer(eventLevel, clazz, msg, t))
+			LockSupport.parkNanos(100000L);
+	}
+
+	@Override
+	public void info(String msg) {
+		log(INFO, msg, null);
+	}
+
+	@Override
+	public void warn(String msg) {
+		log(WARN, msg, null);
+	}
+
+	@Override
+	public void warn(String msg, Throwable t) {
+		log(WARN, msg, t);
+	}
+
+	@Override
+	public void error(String msg) {
+		log(ERROR, msg, null);
+	}
+
+	@Override
+	public void error(String msg, Throwable t) {
+		log(ERROR, msg, t);
+	}
+
+	@Override
+	public void debug(String msg) {
+		log(DEBUG, msg, null);
+	}
+
+	/** @return How many events dropped because ring buffer is full */
+	public static long getDroppedCount() {
+		return ring.dropped.get();
+	}
+
+	/** @return How many events written to file */
+	public static long getWrittenCount() {
+		return writer.written;
+	}
+
+	/** Wait until all events logged before this call are written and flushed, for test */
+	public static void flush() {
+		long target = ring.tail.get();
+		while (writer.flushed < target && writer.isAlive())
+			LockSupport.parkNanos(1000000L);
+	}
+
+	/** A slot of ring buffer, fields are written by one producer then read by the writer */
+	private static class Event {
+		volatile long sequence;
+		long time;
+		int level;
+		Class<?> clazz;
+		String thread;
+		String msg;
+		Throwable throwable;
+	}
+
+	/**
+	 * Bounded multi-producer single-consumer ring buffer, each slot has a
+	 * sequence number: producer claims slot of position p when its sequence is p
+	 * and publishes it by setting sequence to p+1, consumer frees it by setting
+	 * sequence to p+capacity
+	 */
+	private static class RingBuffer {
+		final Event[] events;
+		final int mask;
+		final AtomicLong tail = new AtomicLong(); // next position to claim
+		volatile long head; // next position to consume, only changed by writer
+		final AtomicLong dropped = new AtomicLong();
+
+		RingBuffer(int size) {
+			int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+			events = new Event[capacity];
+			for (int i = 0; i < capacity; i++) {
+				events[i] = new Event();
+				events[i].sequence = i;
+			}
+			mask = capacity - 1;
+		}
+
+		boolean offer(int level, Class<?> clazz, String msg, Throwable t) {
+			long pos = tail.get();
+			Event e;
+			while (true) {
+				e = events[(int) (pos & mask)];
+				long diff = e.sequence - pos;
+				if (diff == 0) {
+					if (tail.compareAndSet(pos, pos + 1))
+						break;
+					pos = tail.get();
+				} else if (diff < 0)
+					return false; // full
+				else
+					pos = tail.get();
+			}
+			e.time = System.currentTimeMillis();
+			e.level = level;
+			e.clazz = clazz;
+			e.thread = Thread.currentThread().getName();
+			e.msg = msg;
+			e.throwable = t;
+			e.sequence = pos + 1; // publish
+			return true;
+		}
+
+		/** Return next published event or null, call release after used it */
+		Event peek() {
+			Event e = events[(int) (head & mask)];
+			return e.sequence == head + 1 ? e : null;
+		}
+
+		void release(Event e) {
+			e.clazz = null;
+			e.msg = null;
+			e.throwable = null;
+			e.sequence = head + events.length;
+			head = head + 1;
+		}
+	}
+
+	/** The only thread formats events and writes them to a rolling file */
+	private static class Writer extends Thread {
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+		private final File file;
+		private final long maxFileSize;
+		private final int maxFiles;
+		private final StringBuilder sb = new StringBuilder(256);
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		private final Date date = new Date();
+		private OutputStream out;
+		private long fileSize;
+		private long reportedDropped;
+		private volatile boolean stopping;
+		volatile long written;
+		volatile long flushed; // events before this position are flushed to file
+
+		Writer(String fileName, long maxFileSize, int maxFiles) {
+			super("jlogs-async-writer");
+			setDaemon(true);
+			this.file = new File(fileName);
+			this.maxFileSize = maxFileSize;
+			this.maxFiles = maxFiles;
+		}
+
+		@Override
+		public void run() {
+			int idle = 0;
+			while (true) {
+				Event e = ring.peek();
+				if (e != null) {
+					idle = 0;
+					write(e);
+					ring.release(e);
+					continue;
+				}
+				if (ring.tail.get() != ring.head) { // a slot claimed but not published yet
+					Thread.yield();
+					continue;
+				}
+				flushFile();
+				flushed = ring.head;
+				if (stopping)
+					break;
+				if (idle < 100)
+					idle++;
+				LockSupport.parkNanos(idle * 100000L); // back off up to 10ms when idle
+			}
+			closeFile();
+		}
+
+		void shutdown() {
+			stopping = true;
+			LockSupport.unpark(this);
+			try {
+				join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void write(Event e) {
+			long dropped = ring.dropped.get();
+			if (dropped != reportedDropped) {
+				sb.setLength(0);
+				date.setTime(e.time);
+				sb.append(dateFormat.format(date)).append(" WARN  [jlogs-async-writer] AsyncFileLog - ")
+						.append(dropped - reportedDropped).append(" log events dropped because ring buffer is full\n");
+				reportedDropped = dropped;
+				writeLine();
+			}
+			sb.setLength(0);
+			date.setTime(e.time);
+			sb.append(dateFormat.format(date)).append(' ').append(LEVEL_NAMES[e.level]).append(" [").append(e.thread)
+					.append("] ").append(e.clazz == null ? "" : e.clazz.getSimpleName()).append(" - ").append(e.msg)
+					.append('\n');
+			if (e.throwable != null) {
+				StringWriter sw = new StringWriter();
+				e.throwable.printStackTrace(new PrintWriter(sw));
+				sb.append(sw);
+			}
+			writeLine();
+			written++;
+		}
+
+		private void writeLine() {
+			try {
+				if (out == null)
+					openFile();
+				byte[] bytes = sb.toString().getBytes(UTF8);
+				out.write(bytes);
+				fileSize += bytes.length;
+				if (fileSize >= maxFileSize)
+					roll();
+			} catch (IOException ex) {
+				System.err.println("AsyncFileLog can not write " + file + ": " + ex.getMessage()); // NOSONAR
+				System.err.print(sb); // NOSONAR
+				closeFile();
+			}
+		}
+
+		private void openFile() throws IOException {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.exists())
+				dir.mkdirs();
+			out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+			fileSize = file.length();
+		}
+
+		/** xxx.log to xxx.log.1, xxx.log.1 to xxx.log.2 ..., delete xxx.log.maxFiles */
+		private void roll() {
+			closeFile();
+			File oldest = new File(file.getPath() + "." + maxFiles);
+			if (oldest.exists())
+				oldest.delete();
+			for (int i = maxFiles - 1; i >= 1; i--) {
+				File f = new File(file.getPath() + "." + i);
+				if (f.exists())
+					f.renameTo(new File(file.getPath() + "." + (i + 1)));
+			}
+			if (maxFiles > 0)
+				file.renameTo(new File(file.getPath() + ".1"));
+			else
+				file.delete();
+		}
+
+		private void flushFile() {
+			if (out != null)
+				try {
+					out.flush();
+				} catch (IOException e) {
+					closeFile();
+				}
+		}
+
+		private void closeFile() {
+			if (out != null)
+				try {
+					out.close();
+				} catch (IOException e) {
+					// do nothing
+				}
+			out = null;
+		}
+	}
+}
@@ -33,6 +33,9 @@ import java.util.Properties;
  * An example of "jlogs.properties": <br/>
  * log=com.github.drinkjava2.jlogs.SimpleSLF4JLog
  * 
+ * Other lines in jlogs.properties are settings of the log implementation, can
+ * be read by getProperty, see AsyncFileLog.
+ * 
  * @author Yong Zhu
  * @since 1.7.0
  */
@@ -40,6 +43,8 @@ public abstract class LogFactory {// NOSONAR
 
 	private static boolean printed = false;
 	private static Class<?> dbProLogClass = null;
+	private static Constructor<?> logConstructor = null; // cached, not look up for each getLog call
+	private static final Properties properties = new Properties();
 
 	/**
 	 * Find jlogs.properties configuration, if not found or jlogs.properties is
@@ -51,8 +56,9 @@ public abstract class LogFactory {// NOSONAR
 
 		if (dbProLogClass != null)
 			try {
-				Constructor<?> constr = dbProLogClass.getConstructor(Class.class);
-				return (Log) constr.newInstance(clazz);
+				if (logConstructor == null)
+					logConstructor = dbProLogClass.getConstructor(Class.class);
+				return (Log) logConstructor.newInstance(clazz);
 			} catch (Exception e) {
 				if (!printed())
 					System.err.println("Can not load log class: " + dbProLogClass // NOSONAR
@@ -69,11 +75,10 @@ public abstract class LogFactory {// NOSONAR
 			return new ConsoleLog(clazz);
 		}
 
-		Properties prop = new Properties();
 		String className = "";
 		try {
-			prop.load(is);
-			className = prop.getProperty("log");
+			properties.load(is);
+			className = properties.getProperty("log");
 			dbProLogClass = Class.forName(className);
 			if (!printed())
 				System.out.print("jlog.properties found, will use " + className + " as JLog logger."); // NOSONAR
@@ -93,6 +98,12 @@ public abstract class LogFactory {// NOSONAR
 		}
 	}
 
+	/** Return a setting in jlogs.properties, or defaultValue if not found */
+	public static String getProperty(String key, String defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+	}
+
 	private static boolean printed() {
 		boolean old = printed;
 		printed = true;
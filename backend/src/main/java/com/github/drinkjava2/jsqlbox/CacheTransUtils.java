@@ -34,6 +34,9 @@ public abstract class CacheTransUtils {
 	 * 		"groupName", "groupName");
 	 * </pre>
 	 * 
+	 * For entity classes marked with &#64;EntityCache, the map can be got from
+	 * SecondLevelCache.translateMap(ctx, entityClass)
+	 * 
 	 * @param list
 	 * @param option
 	 */
@@ -12,17 +12,17 @@
 package com.github.drinkjava2.jsqlbox;
 
 import java.lang.reflect.Method;
-import java.sql.Connection;
-import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.dbutils.StatementConfiguration;
 
 import com.github.drinkjava2.jdbpro.DbPro;
+import com.github.drinkjava2.jdbpro.HealthAwareSlaveSelector;
 import com.github.drinkjava2.jdbpro.DbProException;
 import com.github.drinkjava2.jdbpro.PreparedSQL;
 import com.github.drinkjava2.jdbpro.SqlHandler;
@@ -44,6 +44,8 @@ import com.github.drinkjava2.jsqlbox.gtx.GtxInfo;
 import com.github.drinkjava2.jsqlbox.gtx.GtxUtils;
 import com.github.drinkjava2.jsqlbox.handler.EntityListHandler;
 import com.github.drinkjava2.jsqlbox.handler.EntityNetHandler;
+import com.github.drinkjava2.jsqlbox.sharding.ShardingHashTool;
+import com.github.drinkjava2.jsqlbox.sharding.ShardingLookupTool;
 import com.github.drinkjava2.jsqlbox.sharding.ShardingModTool;
 import com.github.drinkjava2.jsqlbox.sharding.ShardingRangeTool;
 import com.github.drinkjava2.jsqlbox.sharding.ShardingTool;
@@ -63,12 +65,14 @@ import com.github.drinkjava2.jtransactions.tinytx.TinyTxConnectionManager;
 public class DbContext extends DbPro {// NOSONAR
 
 	protected static ShardingTool[] globalNextShardingTools = new ShardingTool[] { new ShardingModTool(),
-			new ShardingRangeTool() };
+			new ShardingRangeTool(), new ShardingHashTool(), new ShardingLookupTool() };
 	protected static SnowflakeCreator globalNextSnowflakeCreator = null;
 	protected static Object[] globalNextSsModels = null;
 	protected static boolean globalNextIgnoreNull = false;
 	protected static boolean globalNextIgnoreEmpty = false;
 	protected static Object globalNextAuditorGetter = null;
+	protected static boolean globalNextIdentityMap = false;
+	protected static int globalNextMetaLoadThreads = 3;
 
 	public static final String NO_GLOBAL_SQLBOXCONTEXT_FOUND = "No default global DbContext found, need use method DbContext.setGlobalDbContext() to set a global default DbContext instance at the beginning of appication.";
 
@@ -81,6 +85,15 @@ public class DbContext extends DbPro {// NOSONAR
 	protected boolean ignoreEmpty = globalNextIgnoreEmpty;
 	// auditorGetter should have a public Object getCurrentAuditor() method
 	protected Object auditorGetter = globalNextAuditorGetter;
+	// if true, entities loaded by id in transaction be cached in TxInfo
+	protected boolean identityMap = globalNextIdentityMap;
+	// threads used to load database structure, each thread use one pooled connection
+	protected int metaLoadThreads = globalNextMetaLoadThreads;
+	// cached database structure, cleared when DDL executed through this DbContext
+	protected volatile TableModel[] metaTableModels;
+	// increased by each clear, loaded models only stored if it not changed
+	private final AtomicLong metaVersion = new AtomicLong();
+	private final Object metaLock = new Object(); // guard store and clear
 
 	public DbContext() {
 		super();
@@ -131,10 +144,14 @@ public class DbContext extends DbPro {// NOSONAR
 		setGlobalNextSqlHandlers((SqlHandler[]) null);
 		setGlobalNextBatchSize(300);
 		setGlobalNextDialect(null);
-		setGlobalNextShardingTools(new ShardingTool[] { new ShardingModTool(), new ShardingRangeTool() });
+		setGlobalNextShardingTools(new ShardingTool[] { new ShardingModTool(), new ShardingRangeTool(),
+				new ShardingHashTool(), new ShardingLookupTool() });
 		setGlobalNextIgnoreNull(false);
 		setGlobalNextIgnoreEmpty(false);
+		setGlobalNextIdentityMap(false);
+		setGlobalNextMetaLoadThreads(3);
 		setGlobalNextAuditorGetter(null);
+		setGlobalNextSlaveSelector(new HealthAwareSlaveSelector());
 		globalDbContext = new DbContext();
 		Dialect.setGlobalJdbcTypeConverter(new BasicJavaConverter());
 	}
@@ -308,11 +325,11 @@ public class DbContext extends DbPro {// NOSONAR
 	}
 
 	/** If dbModels not loaded, loaded from database */
-	public void ensureTailModelLoaded() {
-		if (tailModels != null) {
-			return;
-		}
-		reloadTailModels();
+	public TableModel[] ensureTailModelLoaded() {
+		TableModel[] models = tailModels;
+		if (models != null)
+			return models;
+		return loadTailModels();
 	}
 
 	/** Start a transaction on a given locker server */
@@ -325,25 +342,101 @@ public class DbContext extends DbPro {// NOSONAR
 
 	/**
 	 * Manually call this method to reload tail TableModels when database structure
-	 * be changed by DDL command
+	 * be changed by DDL command, DDL executed through this DbContext will clear
+	 * them automatically
+	 */
+	public void reloadTailModels() {
+		clearMetaTableModels();
+		loadTailModels();
+	}
+
+	/** Load tail models, ignored if cleared by DDL during loading */
+	private TableModel[] loadTailModels() {
+		long loadVersion = metaVersion.get();
+		TableModel[] models = getMetaTableModels();
+		synchronized (metaLock) {
+			if (metaVersion.get() == loadVersion)
+				tailModels = models;
+		}
+		return models;
+	}
+
+	/**
+	 * Return TableModels of current database structure, loaded by
+	 * TableModelUtilsOfDb.db2Models(ds, dialect, metaLoadThreads) and cached until
+	 * a DDL is executed through this DbContext. Each call return new copies, so
+	 * caller can change them.
 	 */
-	public synchronized void reloadTailModels() {
-		DataSource ds = getDataSource();
-		DbException.assureNotNull(ds, "Can not load tail TableModels when datasource is null");
-		Connection conn = null;
+	public TableModel[] getMetaTableModels() {
+		TableModel[] models = metaTableModels;
+		if (models == null)
+			synchronized (this) {
+				models = metaTableModels;
+				if (models == null) {
+					DataSource ds = getDataSource();
+					DbException.assureNotNull(ds, "Can not load database TableModels when datasource is null");
+					long loadVersion = metaVersion.get();
+					models = TableModelUtilsOfDb.db2Models(ds, dialect, metaLoadThreads);
+					synchronized (metaLock) {
+						if (metaVersion.get() == loadVersion) // not cleared by DDL during loading
+							metaTableModels = models;
+					}
+				}
+			}
+		TableModel[] copies = new TableModel[models.length];
+		for (int i = 0; i < models.length; i++)
+			copies[i] = models[i].newCopy();
+		return copies;
+	}
+
+	/** Clear cached database structure and tail models, next time will reload */
+	public void clearMetaTableModels() {
+		synchronized (metaLock) {
+			metaVersion.incrementAndGet();
+			metaTableModels = null;
+			tailModels = null;
+		}
+	}
+
+	/** If a SQL is a DDL which may change database structure */
+	protected static boolean isDDL(String sql) {
+		if (sql == null)
+			return false;
+		String s = sql.trim();
+		int i = 0;
+		while (i < s.length() && Character.isLetter(s.charAt(i)))
+			i++;
+		String word = s.substring(0, i);
+		return "create".equalsIgnoreCase(word) || "alter".equalsIgnoreCase(word) || "drop".equalsIgnoreCase(word)
+				|| "rename".equalsIgnoreCase(word) || "comment".equalsIgnoreCase(word);
+	}
+
+	@Override
+	public Object runRealSqlMethod(PreparedSQL ps) {
 		try {
-			conn = getDataSource().getConnection();
-			tailModels = TableModelUtilsOfDb.db2Models(conn, dialect);
-		} catch (SQLException e) {
-			throw new DbException(e);
+			return super.runRealSqlMethod(ps);
 		} finally {
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-					DbException.eatException(e);
+			if (!SqlOption.QUERY.equals(ps.getOperationType()) && isDDL(ps.getSql()))
+				clearMetaTableModels();
+		}
+	}
+
+	@Override
+	public void trackWrite(String sql) {
+		super.trackWrite(sql);
+		EntityIdentityMap.onWrite(this, sql);
+	}
+
+	@Override
+	public int quiteExecute(String... sqls) {
+		try {
+			return super.quiteExecute(sqls);
+		} finally {
+			for (String sql : sqls)
+				if (isDDL(sql)) {
+					clearMetaTableModels();
+					break;
 				}
-			}
 		}
 	}
 
@@ -600,6 +693,18 @@ public class DbContext extends DbPro {// NOSONAR
 		DbContext.globalNextIgnoreEmpty = globalNextIgnoreEmpty;
 	}
 
+	public static void setGlobalNextIdentityMap(boolean globalNextIdentityMap) {
+		DbContext.globalNextIdentityMap = globalNextIdentityMap;
+	}
+
+	public static int getGlobalNextMetaLoadThreads() {
+		return globalNextMetaLoadThreads;
+	}
+
+	public static void setGlobalNextMetaLoadThreads(int globalNextMetaLoadThreads) {
+		DbContext.globalNextMetaLoadThreads = globalNextMetaLoadThreads;
+	}
+
 	public static ShardingTool[] getGlobalNextShardingTools() {
 		return globalNextShardingTools;
 	}
@@ -657,6 +762,15 @@ public class DbContext extends DbPro {// NOSONAR
 		this.tailModels = tailModels;
 	}
 
+	public int getMetaLoadThreads() {
+		return metaLoadThreads;
+	}
+
+	/** This method is not thread safe, suggest only use at program starting */
+	public void setMetaLoadThreads(int metaLoadThreads) {// NOSONAR
+		this.metaLoadThreads = metaLoadThreads;
+	}
+
 	public boolean isIgnoreNull() {
 		return ignoreNull;
 	}
@@ -673,6 +787,15 @@ public class DbContext extends DbPro {// NOSONAR
 		this.ignoreEmpty = ignoreEmpty;
 	}
 
+	public boolean isIdentityMap() {
+		return identityMap;
+	}
+
+	/** This method is not thread safe, suggest only use at program starting */
+	public void setIdentityMap(boolean identityMap) {// NOSONAR
+		this.identityMap = identityMap;
+	}
+
 	public Object getAuditorGetter() {
 		return auditorGetter;
 	}
@@ -68,9 +68,12 @@ import com.github.drinkjava2.jsqlbox.sqlitem.SampleItem;
  */
 public abstract class DbContextUtils {// NOSONAR
 	/**
-	 * Read database Meta info into SqlBox[]
+	 * Read database Meta info into TableModel[], if dialect is same as ctx's
+	 * dialect, return ctx's cached meta TableModels
 	 */
 	public static TableModel[] loadMetaTableModels(DbContext ctx, Dialect dialect) {
+		if (dialect == null || dialect == ctx.getDialect())
+			return ctx.getMetaTableModels(); // cached, cleared by DDL
 		Connection con = null;
 		SQLException sqlException = null;
 		try {
@@ -233,14 +236,29 @@ public abstract class DbContextUtils {// NOSONAR
 			return null;
 		if ("".equals(tailTable))//
 			tailTable = entityModel.getTableName();
-		ctx.ensureTailModelLoaded();
-		for (TableModel model : ctx.getTailModels()) {
+		for (TableModel model : ctx.ensureTailModelLoaded()) {
 			if (tailTable.equalsIgnoreCase(model.getTableName()))
 				return model;
 		}
 		throw new DbException("Not found table '" + tailTable + "' in database");
 	}
 
+	/**
+	 * Return the table name an entity SQL runs against: tail table if entity is
+	 * TailType and has a tail option, else option model's or entity's table name
+	 */
+	public static String findActualTableName(Object entityOrId, TableModel model, Object... optionItems) {// NOSONAR
+		if (entityOrId instanceof TailType)
+			for (Object item : optionItems)
+				if (item instanceof SqlItem && (SqlOption.TAIL.equals(((SqlItem) item).getType()))) {
+					Object[] params = ((SqlItem) item).getParameters();
+					if (params.length > 0 && !StrUtils.isEmpty((String) params[0]))
+						return (String) params[0];
+					break;
+				}
+		return model.getTableName();
+	}
+
 	/**
 	 * Extract models from sqlItems
 	 */
@@ -640,7 +658,7 @@ public abstract class DbContextUtils {// NOSONAR
 		}
 
 		int result;
-		 
+		boolean writing = EntityIdentityMap.beginEntityWrite();
 		try { //In doEntityInsertTry need use same connection to get right identity
 		    Connection con = ctx.threadLocalConnection.get();
 		    if(con==null) {
@@ -649,12 +667,14 @@ public abstract class DbContextUtils {// NOSONAR
 		    }
             result = doEntityInsertTry(ctx, entityBean, optionItems);
         } finally {
+            EntityIdentityMap.endEntityWrite(writing);
             Connection con=ctx.threadLocalConnection.get();
             ctx.threadLocalConnection.set(null);
             if (con != null)
                 ctx.releaseConnectionQuiet(con);
             
         }
+        SecondLevelCache.evict(entityBean.getClass(), entityBean);
         if (result == 1 && ctx.isGtxOpen() && !(entityBean instanceof GtxTag)) // if in GTX transaction?
 			GtxUtils.reg(ctx, entityBean, GtxUtils.INSERT);
 		return result;
@@ -812,7 +832,22 @@ public abstract class DbContextUtils {// NOSONAR
 		Object oldEntity = null;
 		if (ctx.isGtxOpen() && !(entityBean instanceof GtxTag))// if in GTX transaction?
 			oldEntity = doEntityLoadByIdTry(ctx, entityBean.getClass(), entityBean, optionItems);
-		int result = doEntityUpdateTry(ctx, entityBean, optionItems);
+		int result;
+		boolean writing = EntityIdentityMap.beginEntityWrite();
+		try {
+			result = doEntityUpdateTry(ctx, entityBean, optionItems);
+		} finally {
+			EntityIdentityMap.endEntityWrite(writing);
+		}
+		SecondLevelCache.evict(entityBean.getClass(), entityBean);
+		TableModel model = findFirstModel(optionItems);
+		if (model == null)
+			model = findEntityOrClassTableModel(entityBean);
+		String tableName = findActualTableName(entityBean, model, optionItems);
+		if (result == 1 && optionItems.length == 0 && !ctx.isIgnoreNull() && !ctx.isIgnoreEmpty())
+			EntityIdentityMap.put(ctx, tableName, model, entityBean);
+		else
+			EntityIdentityMap.evict(ctx, tableName, model, entityBean);
 		if (result == 1 && ctx.isGtxOpen() && !(entityBean instanceof GtxTag)) {
 			GtxUtils.reg(ctx, oldEntity, GtxUtils.BEFORE);
 			GtxUtils.reg(ctx, entityBean, GtxUtils.AFTER);
@@ -931,7 +966,21 @@ public abstract class DbContextUtils {// NOSONAR
 		Object oldEntity = null;
 		if (ctx.isGtxOpen() && !(id instanceof GtxTag))// if in GTX transaction?
 			oldEntity = doEntityLoadByIdTry(ctx, entityClass, id, optionItems);
-		int result = doEntityDeleteByIdTry(ctx, entityClass, id, optionItems);
+		int result;
+		boolean writing = EntityIdentityMap.beginEntityWrite();
+		try {
+			result = doEntityDeleteByIdTry(ctx, entityClass, id, optionItems);
+		} finally {
+			EntityIdentityMap.endEntityWrite(writing);
+		}
+		if (EntityIdentityMap.currentCache(ctx) != null || SecondLevelCache.getRegion(entityClass) != null) {
+			Object idBean = buildBeanById(ctx, entityClass, id);
+			TableModel model = findFirstModel(optionItems);
+			if (model == null)
+				model = findEntityOrClassTableModel(entityClass);
+			EntityIdentityMap.evict(ctx, findActualTableName(id, model, optionItems), model, idBean);
+			SecondLevelCache.evict(entityClass, idBean);
+		}
 		if (result == 1 && ctx.isGtxOpen() && !(id instanceof GtxTag))
 			GtxUtils.reg(ctx, oldEntity, GtxUtils.DELETE);
 		return result;
@@ -1110,7 +1159,34 @@ public abstract class DbContextUtils {// NOSONAR
 			Object[] newParams = cleanUpParam(optionItems);
 			return entityLoadByIdTry(paramCtx, entityClass, id, newParams);
 		}
-		T result = doEntityLoadByIdTry(ctx, entityClass, id, optionItems);
+		Map<Object, Object> identityMap = optionItems.length == 0 ? EntityIdentityMap.currentCache(ctx) : null;
+		SecondLevelCache.Region region = optionItems.length == 0 && !ctx.isGtxOpen()
+				? SecondLevelCache.getRegion(entityClass)
+				: null;
+		TableModel model = null;
+		Object key = null;
+		if (identityMap != null || region != null) {
+			model = findEntityOrClassTableModel(entityClass);
+			key = EntityIdentityMap.buildKey(model, buildBeanById(ctx, entityClass, id));
+		}
+		if (key != null && identityMap != null) {
+			Object cached = EntityIdentityMap.get(identityMap, key);
+			if (cached != null && entityClass.isInstance(cached))
+				return (T) cached;
+		}
+		T result = null;
+		long cacheVersion = 0;
+		if (key != null && region != null) {
+			cacheVersion = region.getVersion();
+			result = SecondLevelCache.get(region, model, key);
+		}
+		if (result == null) {
+			result = doEntityLoadByIdTry(ctx, entityClass, id, optionItems);
+			if (result != null && key != null && region != null && SecondLevelCache.canFill(ctx))
+				SecondLevelCache.put(region, model, key, result, cacheVersion);
+		}
+		if (result != null && key != null && identityMap != null)
+			identityMap.put(key, result);
 		if (result != null && ctx.isGtxOpen() && !(id instanceof GtxTag))
 			GtxUtils.reg(ctx, result, GtxUtils.EXISTSTRICT);
 		return result;
@@ -1306,7 +1382,23 @@ public abstract class DbContextUtils {// NOSONAR
 			Object[] newParams = cleanUpParam(optionItems);
 			return entityFind(paramCtx, entityClass, newParams);
 		}
+		SecondLevelCache.Region region = optionItems.length == 0 && !ctx.isGtxOpen()
+				? SecondLevelCache.getRegion(entityClass)
+				: null;
+		if (region == null)
+			return doEntityFind(ctx, entityClass, optionItems);
+		TableModel model = findEntityOrClassTableModel(entityClass);
+		List<T> result = SecondLevelCache.getAll(region, model);
+		if (result != null)
+			return result;
+		long cacheVersion = region.getVersion();
+		result = doEntityFind(ctx, entityClass);
+		if (SecondLevelCache.canFill(ctx))
+			SecondLevelCache.putAll(region, model, result, cacheVersion);
+		return result;
+	}
 
+	private static <T> List<T> doEntityFind(DbContext ctx, Class<T> entityClass, Object... optionItems) {// NOSONAR
 		TableModel optionModel = DbContextUtils.findFirstModel(optionItems);
 		TableModel model = optionModel;
 		if (model == null)
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jsqlbox;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Mark an entity class be cached in SecondLevelCache, usually used for
+ * reference tables which are read often but seldom changed
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+@Target(TYPE)
+@Retention(RUNTIME)
+public @interface EntityCache {
+
+	/** Max entities cached by id */
+	int size() default 1000;
+
+	/** Seconds an entity or the whole table list can live in cache */
+	int ttlSeconds() default 600;
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jsqlbox;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.drinkjava2.jdbpro.TableChangeTracker;
+import com.github.drinkjava2.jdialects.model.ColumnModel;
+import com.github.drinkjava2.jdialects.model.TableModel;
+import com.github.drinkjava2.jtransactions.ConnectionManager;
+import com.github.drinkjava2.jtransactions.ThreadConnectionManager;
+import com.github.drinkjava2.jtransactions.TxInfo;
+
+/**
+ * EntityIdentityMap is a transaction scoped first level entity cache, entities
+ * loaded by id are stored in current thread's TxInfo, so repeated loading of
+ * same id in one transaction return the cached instance. Entity update
+ * replace the cached instance, delete evict it, the whole cache is discarded
+ * together with TxInfo when transaction committed or rolled back.
+ *
+ * It is off by default, only works when DbContext's identityMap property is
+ * true, GTX is not open, the ConnectionManager is a ThreadConnectionManager
+ * (e.g. TinyTx) and a transaction is started. Loading with option items (e.g.
+ * TableModel, tail or sharding parameters) bypass the cache. Cache keys use the
+ * table name the SQL actually ran against (e.g. tail table). Other SQL writes
+ * in the transaction (e.g. DB.exe/upd) evict all cached entities of the written
+ * tables, or clear the whole cache if table names can not be found in the SQL.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public abstract class EntityIdentityMap {// NOSONAR
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final ThreadLocal<Boolean> entityWriting = new ThreadLocal<Boolean>();
+
+	/** Return current transaction's entity cache, or null if not available */
+	public static Map<Object, Object> currentCache(DbContext ctx) {
+		if (!ctx.isIdentityMap() || ctx.isGtxOpen())
+			return null;// NOSONAR
+		ConnectionManager cm = ctx.getConnectionManager();
+		if (!(cm instanceof ThreadConnectionManager))
+			return null;// NOSONAR
+		TxInfo txInfo = ((ThreadConnectionManager) cm).getThreadTxInfo();
+		if (txInfo == null)
+			return null;// NOSONAR
+		return txInfo.getEntityCache();
+	}
+
+	/** Build cache key by model's table name and primary key values of entity bean */
+	static Object buildKey(TableModel model, Object entityBean) {
+		return buildKey(model.getTableName(), model, entityBean);
+	}
+
+	/** Build cache key by given table name and primary key values of entity bean */
+	static Object buildKey(String tableName, TableModel model, Object entityBean) {
+		List<ColumnModel> pkeys = model.getPKeyColumns();
+		if (pkeys.isEmpty())
+			return null;
+		List<Object> key = new ArrayList<Object>(pkeys.size() + 1);
+		key.add(tableName);
+		for (ColumnModel col : pkeys) {
+			Object value = DbContextUtils.readValueFromBeanFieldOrTail(col, entityBean, false, false);
+			if (value == null)
+				return null;
+			key.add(value);
+		}
+		return key;
+	}
+
+	/** Get cached entity, count hit or miss */
+	static Object get(Map<Object, Object> cache, Object key) {
+		Object result = cache.get(key);
+		if (result == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return result;
+	}
+
+	/** Put an entity into current transaction's cache if available */
+	static void put(DbContext ctx, String tableName, TableModel model, Object entityBean) {
+		Map<Object, Object> cache = currentCache(ctx);
+		if (cache == null)
+			return;
+		Object key = buildKey(tableName, model, entityBean);
+		if (key != null)
+			cache.put(key, entityBean);
+	}
+
+	/** Evict an entity from current transaction's cache if available */
+	static void evict(DbContext ctx, String tableName, TableModel model, Object entityBean) {
+		Map<Object, Object> cache = currentCache(ctx);
+		if (cache == null)
+			return;
+		Object key = buildKey(tableName, model, entityBean);
+		if (key != null)
+			cache.remove(key);
+	}
+
+	/**
+	 * Mark current thread is in an entity insert/update/delete, its SQL writes
+	 * evict only the written entity, return old mark for endEntityWrite
+	 */
+	static boolean beginEntityWrite() {
+		boolean old = entityWriting.get() != null;
+		entityWriting.set(Boolean.TRUE);
+		return old;
+	}
+
+	static void endEntityWrite(boolean old) {
+		if (!old)
+			entityWriting.remove();
+	}
+
+	/** Called on every SQL write, evict cached entities of written tables */
+	public static void onWrite(DbContext ctx, String sql) {
+		if (entityWriting.get() != null)
+			return;
+		Map<Object, Object> cache = currentCache(ctx);
+		if (cache == null || cache.isEmpty())
+			return;
+		Set<String> tables = TableChangeTracker.writeTables(sql);
+		if (tables.isEmpty()) {
+			cache.clear();
+			return;
+		}
+		for (Iterator<Object> it = cache.keySet().iterator(); it.hasNext();) {
+			Object key = it.next();
+			if (!(key instanceof List) || tables.contains(simpleTableName(((List<?>) key).get(0))))
+				it.remove();
+		}
+	}
+
+	private static String simpleTableName(Object tableName) {
+		String name = String.valueOf(tableName).toLowerCase();
+		return name.substring(name.lastIndexOf('.') + 1);
+	}
+
+	/** Clear current transaction's entity cache */
+	public static void clear(DbContext ctx) {
+		Map<Object, Object> cache = currentCache(ctx);
+		if (cache != null)
+			cache.clear();
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/** Return hit rate between 0 and 1 */
+	public static double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	public static void resetStats() {
+		hits.set(0);
+		misses.set(0);
+	}
+
+	public static String getStatsSummary() {
+		return "EntityIdentityMap hits=" + hits.get() + ", misses=" + misses.get() + ", hitRate="
+				+ String.format("%.2f%%", getHitRate() * 100);
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jsqlbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.drinkjava2.jdialects.Dialect;
+import com.github.drinkjava2.jdialects.TableModelUtils;
+import com.github.drinkjava2.jdialects.model.ColumnModel;
+import com.github.drinkjava2.jdialects.model.FKeyModel;
+import com.github.drinkjava2.jdialects.model.TableModel;
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+
+/**
+ * SchemaSync compare entity TableModels with the live database schema and
+ * only create the missing tables, add the missing columns and add the missing
+ * foreign keys, existing data is never touched. Usage:
+ *
+ * <pre>
+ * SchemaSync.sync(ctx, 3, entityClasses); // zero DDL if schema is up to date
+ * SchemaSync.Plan plan = SchemaSync.plan(ctx, entityClasses); // only preview
+ * </pre>
+ *
+ * Live schema is read once by ctx.getMetaTableModels(). New tables and
+ * new columns of different tables are independent, they are executed in
+ * parallel, foreign keys are added last when all tables exist. Column type or
+ * length differences and extra database columns are only reported as warnings,
+ * because change them may lose data. Indexes and unique constraints are only
+ * created together with new tables.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public abstract class SchemaSync {// NOSONAR
+	private static final Log logger = LogFactory.getLog(SchemaSync.class);
+
+	private static final Pattern CREATE_TABLE = Pattern
+			.compile("(?i)^\\s*create\\s+(?:\\w+\\s+)*?table\\s+(?:if\\s+not\\s+exists\\s+)?([^\\s(]+)");
+	private static final Pattern ALTER_TABLE = Pattern.compile("(?i)^\\s*alter\\s+table\\s+([^\\s(]+)");
+	private static final Pattern FOREIGN_KEY = Pattern
+			.compile("(?i)foreign\\s+key\\s*(?:[^\\s(]+\\s*)?\\(([^)]*)\\)\\s*references\\s+([^\\s(]+)");
+
+	/** DDL plan, each table's DDL list can run in parallel, fkeyDDLs run last */
+	public static class Plan {
+		private final Map<String, List<String>> tableDDLs = new LinkedHashMap<String, List<String>>();
+		private final List<String> fkeyDDLs = new ArrayList<String>();
+		private final List<String> warnings = new ArrayList<String>();
+
+		void addTableDDL(String table, String ddl) {
+			List<String> list = tableDDLs.get(table);
+			if (list == null) {
+				list = new ArrayList<String>();
+				tableDDLs.put(table, list);
+			}
+			list.add(ddl);
+		}
+
+		public boolean isEmpty() {
+			return tableDDLs.isEmpty() && fkeyDDLs.isEmpty();
+		}
+
+		/** Return all DDL in execute order */
+		public List<String> getAllDDLs() {
+			List<String> result = new ArrayList<String>();
+			for (List<String> ddls : tableDDLs.values())
+				result.addAll(ddls);
+			result.addAll(fkeyDDLs);
+			return result;
+		}
+
+		public Map<String, List<String>> getTableDDLs() {
+			return tableDDLs;
+		}
+
+		public List<String> getFkeyDDLs() {
+			return fkeyDDLs;
+		}
+
+		public List<String> getWarnings() {
+			return warnings;
+		}
+	}
+
+	/** Compare entities with database and return the DDL plan, nothing executed */
+	public static Plan plan(DbContext ctx, Class<?>... entityClasses) {
+		Dialect dialect = ctx.getDialect();
+		Map<String, TableModel> dbTables = readDbTables(ctx);
+		Plan plan = new Plan();
+		Set<String> done = new HashSet<String>();
+		Set<String> plannedTables = new HashSet<String>();
+		Set<String> plannedFkeys = new HashSet<String>();
+		for (Class<?> entityClass : entityClasses) {
+			TableModel model = TableModelUtils.entity2ReadOnlyModel(entityClass);
+			String table = clean(model.getTableName());
+			if (!done.add(table))
+				continue;
+			TableModel dbModel = dbTables.get(table);
+			Set<String> dbFkeys = dbModel == null ? Collections.<String> emptySet() : fkeysOf(dbModel);
+			for (String ddl : dialect.toCreateDDL(model)) {
+				Matcher fk = FOREIGN_KEY.matcher(ddl);
+				if (fk.find()) {
+					Matcher alter = ALTER_TABLE.matcher(ddl);
+					String fkTable = alter.find() ? clean(alter.group(1)) : table;
+					String key = fkeyKey(fkTable, fk.group(1), fk.group(2));
+					if (!dbFkeys.contains(key) && plannedFkeys.add(key))
+						plan.fkeyDDLs.add(ddl);
+					continue;
+				}
+				if (dbModel != null)
+					continue; // table exist, only check columns below
+				Matcher create = CREATE_TABLE.matcher(ddl);
+				if (create.find()) { // also id generator tables like jpa_table_generator
+					String created = clean(create.group(1));
+					if (dbTables.containsKey(created) || !plannedTables.add(created))
+						continue;
+				}
+				plan.addTableDDL(table, ddl);
+			}
+			if (dbModel != null)
+				compareColumns(dialect, model, dbModel, plan);
+		}
+		return plan;
+	}
+
+	private static void compareColumns(Dialect dialect, TableModel model, TableModel dbModel, Plan plan) {
+		Map<String, ColumnModel> dbCols = new HashMap<String, ColumnModel>();
+		for (ColumnModel col : dbModel.getColumns())
+			dbCols.put(clean(col.getColumnName()), col);
+		Set<String> entityCols = new HashSet<String>();
+		for (ColumnModel col : model.getColumns()) {
+			if (col.getTransientable())
+				continue;
+			String name = clean(col.getColumnName());
+			entityCols.add(name);
+			ColumnModel dbCol = dbCols.get(name);
+			if (dbCol == null) {
+				for (String ddl : dialect.toAddColumnDDL(col))
+					plan.addTableDDL(clean(model.getTableName()), ddl);
+			} else if (col.getColumnType() != null && dbCol.getColumnType() != null
+					&& !sameTypeFamily(col.getColumnType().name(), dbCol.getColumnType().name()))
+				plan.warnings.add("Column " + model.getTableName() + "." + col.getColumnName() + " type is "
+						+ dbCol.getColumnType() + " in database but " + col.getColumnType() + " in entity");
+		}
+		for (String name : dbCols.keySet())
+			if (!entityCols.contains(name))
+				plan.warnings.add("Column " + dbModel.getTableName() + "." + dbCols.get(name).getColumnName()
+						+ " exists in database but not in entity");
+	}
+
+	/** JDBC metadata often report a synonym type, like INT for INTEGER or VARCHAR for NVARCHAR */
+	private static boolean sameTypeFamily(String t1, String t2) {
+		return typeFamily(t1).equals(typeFamily(t2));
+	}
+
+	private static String typeFamily(String type) {
+		String t = type.toUpperCase();
+		if (t.contains("INT") || "BIT".equals(t) || "BOOLEAN".equals(t))
+			return "INT";
+		if (t.contains("CHAR") || t.contains("TEXT") || t.contains("CLOB"))
+			return "CHAR";
+		if ("DECIMAL".equals(t) || "NUMERIC".equals(t) || "DOUBLE".equals(t) || "FLOAT".equals(t) || "REAL".equals(t))
+			return "NUMBER";
+		if (t.contains("DATE") || t.contains("TIME"))
+			return "DATE";
+		if (t.contains("BLOB") || t.contains("BINARY"))
+			return "BINARY";
+		return t;
+	}
+
+	/**
+	 * Plan and execute the DDL, each table's DDL run in one of the threads, then
+	 * foreign keys run one by one. Failure of create table or add column throw
+	 * DbException, failure of foreign key only log a warning.
+	 *
+	 * @return The executed DDL, empty if schema is up to date
+	 */
+	public static List<String> sync(final DbContext ctx, int threads, Class<?>... entityClasses) {
+		long start = System.currentTimeMillis();
+		Plan plan = plan(ctx, entityClasses);
+		for (String warning : plan.getWarnings())
+			logger.warn(warning);
+		if (plan.isEmpty()) {
+			logger.info("Schema is up to date, checked " + entityClasses.length + " entities in "
+					+ (System.currentTimeMillis() - start) + "ms");
+			return Collections.emptyList();
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, plan.tableDDLs.size())));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (final List<String> ddls : plan.tableDDLs.values())
+				futures.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (String ddl : ddls)
+							ctx.exe(ddl);
+					}
+				}));
+			for (Future<?> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException(e);
+		} catch (Exception e) {
+			throw new DbException("Schema sync failed", e.getCause() == null ? e : e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		for (String ddl : plan.fkeyDDLs)
+			try {
+				ctx.exe(ddl);
+			} catch (Exception e) {
+				logger.warn("Add foreign key failed: " + ddl + ", " + e.getMessage());
+			}
+		logger.info("Schema synchronized, " + plan.tableDDLs.size() + " tables changed, " + plan.fkeyDDLs.size()
+				+ " foreign keys added in " + (System.currentTimeMillis() - start) + "ms");
+		return plan.getAllDDLs();
+	}
+
+	private static Map<String, TableModel> readDbTables(DbContext ctx) {
+		Map<String, TableModel> result = new HashMap<String, TableModel>();
+		for (TableModel model : ctx.getMetaTableModels())
+			result.put(clean(model.getTableName()), model);
+		return result;
+	}
+
+	private static Set<String> fkeysOf(TableModel dbModel) {
+		Set<String> result = new HashSet<String>();
+		for (FKeyModel fk : dbModel.getFkeyConstraints()) {
+			String[] refs = fk.getRefTableAndColumns();
+			if (refs == null || refs.length == 0)
+				continue;
+			StringBuilder cols = new StringBuilder();
+			for (String col : fk.getColumnNames())
+				cols.append(cols.length() == 0 ? "" : ",").append(col);
+			result.add(fkeyKey(dbModel.getTableName(), cols.toString(), refs[0]));
+		}
+		return result;
+	}
+
+	private static String fkeyKey(String table, String columns, String refTable) {
+		StringBuilder sb = new StringBuilder(clean(table)).append(':');
+		for (String col : columns.split(","))
+			sb.append(clean(col)).append(',');
+		return sb.append("->").append(clean(refTable)).toString();
+	}
+
+	/** Remove quotes and spaces, to lower case, for compare names */
+	private static String clean(String name) {
+		return name == null ? "" : name.replaceAll("[\\s`\"\\[\\]]", "").toLowerCase();
+	}
+}
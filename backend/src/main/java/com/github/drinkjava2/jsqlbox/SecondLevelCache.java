@@ -0,0 +1,352 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jsqlbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.drinkjava2.jdbpro.TableChangeTracker;
+import com.github.drinkjava2.jdialects.model.ColumnModel;
+import com.github.drinkjava2.jdialects.model.TableModel;
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+
+/**
+ * SecondLevelCache is a JVM level entity cache shared by all threads, only
+ * entity classes marked with &#64;EntityCache annotation are cached, usage
+ * example:
+ *
+ * <pre>
+ * &#64;EntityCache(size = 5000, ttlSeconds = 300)
+ * public class Vender implements ActiveEntity&lt;Vender&gt; {...}
+ *
+ * SecondLevelCache.preload(ctx, Vender.class, Customer.class); // at program starting
+ * Vender v = ctx.entityLoadById(Vender.class, "V001"); // no SQL if cached
+ * CacheTransUtils.translate(rows, SecondLevelCache.translateMap(ctx, Vender.class), "venderID", "venderName", "venderName");
+ * </pre>
+ *
+ * entityLoadById and entityFind (without option items) read from cache,
+ * entityInsert/Update/Delete evict the changed id and the cached whole table
+ * list. A region is also cleared when TableChangeTracker finds its table
+ * written by any SQL executed through jSqlBox, tracker increases versions again
+ * after a transaction ended, so data read before a commit is dropped after it.
+ * Inside a transaction the cache is only read, never filled, to avoid other
+ * threads see uncommitted data. Cached beans are copied when put and get, so
+ * callers can change them safely. Sharded entities are not cached, and SQL
+ * executed by direct JDBC is not tracked, call clear() after it if needed. The
+ * whole table list is not cached if the table has more rows than size, so only
+ * put small reference tables in cache, never tables have fast changing columns
+ * like stock quantities.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public abstract class SecondLevelCache {// NOSONAR
+	private static final Log logger = LogFactory.getLog(SecondLevelCache.class);
+
+	private static final Region NO_CACHE = new Region(0, 0, null);
+
+	/** Regions of each entity class, NO_CACHE means no &#64;EntityCache */
+	private static final Map<Class<?>, Region> regions = new ConcurrentHashMap<Class<?>, Region>();
+
+	/** Return the cache region of entity class, null if not cached */
+	public static Region getRegion(Class<?> entityClass) {
+		if (entityClass == null)
+			return null;
+		Region region = regions.get(entityClass);
+		if (region == null) {
+			EntityCache ann = entityClass.getAnnotation(EntityCache.class);
+			if (ann == null)
+				region = NO_CACHE;
+			else {
+				TableModel model = DbContextUtils.findEntityOrClassTableModel(entityClass);
+				if (model.getShardTableColumn() != null || model.getShardDatabaseColumn() != null) {
+					logger.warn("Sharded entity " + entityClass.getName() + " can not be cached in SecondLevelCache");
+					region = NO_CACHE;
+				} else
+					region = new Region(ann.size(), ann.ttlSeconds() * 1000L, model.getTableName());
+			}
+			regions.put(entityClass, region);
+		}
+		return region == NO_CACHE ? null : region;
+	}
+
+	static boolean canFill(DbContext ctx) {
+		return ctx.getConnectionManager() == null || !ctx.getConnectionManager().isInTransaction();
+	}
+
+	/** Get a copy of cached entity, return null if not found or expired */
+	@SuppressWarnings("unchecked")
+	static <T> T get(Region region, TableModel model, Object key) {
+		Object[] item;
+		synchronized (region) {
+			region.checkTable();
+			item = region.byId.get(key);
+		}
+		if (item == null || (Long) item[0] < System.currentTimeMillis()) {
+			region.misses.incrementAndGet();
+			return null;
+		}
+		region.hits.incrementAndGet();
+		return (T) copy(model, item[1]);
+	}
+
+	/** Put a copy of entity, ignored if region version changed after loading */
+	static void put(Region region, TableModel model, Object key, Object bean, long loadVersion) {
+		Object[] item = new Object[] { System.currentTimeMillis() + region.ttlMillis, copy(model, bean) };
+		synchronized (region) {
+			region.checkTable();
+			if (region.version.get() != loadVersion)
+				return;
+			region.byId.put(key, item);
+		}
+		region.puts.incrementAndGet();
+	}
+
+	/** Get copies of cached whole table list, return null if not found or expired */
+	@SuppressWarnings("unchecked")
+	static <T> List<T> getAll(Region region, TableModel model) {
+		Object[] all;
+		synchronized (region) {
+			region.checkTable();
+			all = region.all;
+		}
+		if (all == null || (Long) all[0] < System.currentTimeMillis()) {
+			region.misses.incrementAndGet();
+			return null;// NOSONAR
+		}
+		region.hits.incrementAndGet();
+		List<Object> beans = (List<Object>) all[1];
+		List<T> result = new ArrayList<T>(beans.size());
+		for (Object bean : beans)
+			result.add((T) copy(model, bean));
+		return result;
+	}
+
+	/** Put copies of whole table list, also fill the id cache, ignored if more rows than size */
+	static void putAll(Region region, TableModel model, List<?> beans, long loadVersion) {
+		if (beans.size() > region.size)
+			return;
+		List<Object> copies = new ArrayList<Object>(beans.size());
+		for (Object bean : beans)
+			copies.add(copy(model, bean));
+		long expireAt = System.currentTimeMillis() + region.ttlMillis;
+		synchronized (region) {
+			region.checkTable();
+			if (region.version.get() != loadVersion)
+				return;
+			region.all = new Object[] { expireAt, Collections.unmodifiableList(copies) };
+			region.translateMap = null;
+			for (Object bean : copies) {
+				Object key = EntityIdentityMap.buildKey(model, bean);
+				if (key != null)
+					region.byId.put(key, new Object[] { expireAt, bean });
+			}
+		}
+		region.puts.incrementAndGet();
+	}
+
+	/** Evict one entity and the whole table list, called by entity write methods */
+	static void evict(Class<?> entityClass, Object entityBean) {
+		Region region = getRegion(entityClass);
+		if (region == null)
+			return;
+		TableModel model = DbContextUtils.findEntityOrClassTableModel(entityClass);
+		Object key = entityBean == null ? null : EntityIdentityMap.buildKey(model, entityBean);
+		synchronized (region) {
+			region.checkTable();
+			region.version.incrementAndGet();
+			if (key != null && region.byId.remove(key) != null)
+				region.evictions.incrementAndGet();
+			region.all = null;
+			region.translateMap = null;
+		}
+	}
+
+	/** Clear cache of given entity class */
+	public static void clear(Class<?> entityClass) {
+		Region region = getRegion(entityClass);
+		if (region != null)
+			region.clear();
+	}
+
+	/** Clear all entity caches */
+	public static void clearAll() {
+		for (Region region : regions.values())
+			if (region != NO_CACHE)
+				region.clear();
+	}
+
+	/** Load all rows of given cached entity classes into cache */
+	public static void preload(DbContext ctx, Class<?>... entityClasses) {
+		for (Class<?> entityClass : entityClasses) {
+			if (getRegion(entityClass) == null)
+				continue;
+			long start = System.currentTimeMillis();
+			int size = ctx.entityFind(entityClass).size();
+			logger.info("SecondLevelCache preloaded " + size + " " + entityClass.getSimpleName() + " in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		}
+	}
+
+	/**
+	 * Return a map can be used by CacheTransUtils.translate, key is primary key
+	 * value, value is a map of column name and value. Entity class should have
+	 * only one primary key column
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<Object, Map<String, Object>> translateMap(DbContext ctx, Class<?> entityClass) {
+		Region region = getRegion(entityClass);
+		if (region != null)
+			region.checkTable();
+		Map<Object, Map<String, Object>> result = region == null ? null
+				: (Map<Object, Map<String, Object>>) region.translateMap;
+		if (result != null)
+			return result;
+		TableModel model = DbContextUtils.findEntityOrClassTableModel(entityClass);
+		if (model.getPKeyColumns().size() != 1)
+			throw new DbException("translateMap need entity has one primary key column");
+		ColumnModel pkey = model.getPKeyColumns().get(0);
+		long version = region == null ? 0 : region.getVersion();
+		result = new HashMap<Object, Map<String, Object>>();
+		for (Object bean : ctx.entityFind(entityClass)) {
+			Map<String, Object> row = new HashMap<String, Object>();
+			for (ColumnModel col : model.getColumns())
+				if (!col.getTransientable())
+					row.put(col.getColumnName(), DbContextUtils.readValueFromBeanFieldOrTail(col, bean, false, false));
+			result.put(row.get(pkey.getColumnName()), row);
+		}
+		result = Collections.unmodifiableMap(result);
+		if (region != null)
+			synchronized (region) {
+				if (region.version.get() == version && region.all != null)
+					region.translateMap = result;
+			}
+		return result;
+	}
+
+	private static Object copy(TableModel model, Object bean) {
+		Object result = DbContextUtils.entityOrClassToBean(bean.getClass());
+		for (ColumnModel col : model.getColumns())
+			if (!col.getTransientable())
+				DbContextUtils.writeValueToBeanFieldOrTail(col, result,
+						DbContextUtils.readValueFromBeanFieldOrTail(col, bean, false, false));
+		return result;
+	}
+
+	/** Return a readable summary of all cached entity classes' statistics */
+	public static String getStatsSummary() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Class<?>, Region> e : regions.entrySet())
+			if (e.getValue() != NO_CACHE)
+				sb.append(e.getKey().getSimpleName()).append(": ").append(e.getValue()).append("\n");
+		return sb.toString();
+	}
+
+	/** Cache region of one entity class */
+	public static class Region {
+		private final int size;
+		private final long ttlMillis;
+		private final String[] table; // lower case table name for TableChangeTracker
+		private long[] tableVersions; // tracker versions when region last checked
+		private final Map<Object, Object[]> byId; // value is {expireAt, bean}
+		private volatile Object[] all; // {expireAt, List of beans}
+		private volatile Object translateMap;
+		private final AtomicLong version = new AtomicLong();
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		private final AtomicLong puts = new AtomicLong();
+		private final AtomicLong evictions = new AtomicLong();
+
+		@SuppressWarnings("serial")
+		Region(final int size, long ttlMillis, String tableName) {
+			this.size = size;
+			this.ttlMillis = ttlMillis;
+			this.table = tableName == null ? null : new String[] { tableName.toLowerCase() };
+			this.byId = new LinkedHashMap<Object, Object[]>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Object, Object[]> eldest) {
+					if (size() > size) {
+						evictions.incrementAndGet();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		public synchronized void clear() {
+			version.incrementAndGet();
+			byId.clear();
+			all = null;
+			translateMap = null;
+		}
+
+		/** Clear this region if its table written since last check */
+		synchronized void checkTable() {
+			if (table == null)
+				return;
+			if (tableVersions != null && TableChangeTracker.isUnchanged(table, tableVersions))
+				return;
+			if (tableVersions != null)
+				clear();
+			tableVersions = TableChangeTracker.getVersions(table);
+		}
+
+		long getVersion() {
+			checkTable();
+			return version.get();
+		}
+
+		public synchronized int getSize() {
+			return byId.size();
+		}
+
+		public long getHits() {
+			return hits.get();
+		}
+
+		public long getMisses() {
+			return misses.get();
+		}
+
+		public long getPuts() {
+			return puts.get();
+		}
+
+		public long getEvictions() {
+			return evictions.get();
+		}
+
+		public double getHitRate() {
+			long h = hits.get();
+			long total = h + misses.get();
+			return total == 0 ? 0 : (double) h / total;
+		}
+
+		@Override
+		public String toString() {
+			return "size=" + getSize() + ", hits=" + hits.get() + ", misses=" + misses.get() + ", puts=" + puts.get()
+					+ ", evictions=" + evictions.get() + ", hitRate=" + String.format("%.2f%%", getHitRate() * 100);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jsqlbox.sharding;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.drinkjava2.jdialects.model.ColumnModel;
+import com.github.drinkjava2.jdialects.model.TableModel;
+import com.github.drinkjava2.jsqlbox.DbException;
+
+/**
+ * An implementation of ShardingTool to deal "HASH" type (consistent hashing)
+ * sharding strategy, usage example:
+ *
+ * <pre>
+ * &#64;ShardTable({ "HASH", "4" }) // 4 tables, default 160 virtual nodes each
+ * &#64;ShardDatabase({ "HASH", "3", "200" }) // 3 databases, 200 virtual nodes each
+ * </pre>
+ *
+ * Compare to "MOD" strategy, when add a new node only about 1/n rows need be
+ * moved to the new node. The hash ring of each setting is built only once and
+ * cached by the setting values (not by TableModel, which is often a new copy
+ * for each call), routing a key is a binary search on a primitive long array.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public class ShardingHashTool implements ShardingTool {
+	public static final String HASH = "HASH";
+	public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	/** Cached hash rings, key is setting values like [HASH, 4, 160] */
+	private final Map<List<String>, Ring> rings = new ConcurrentHashMap<List<String>, Ring>();
+
+	@Override
+	public Integer[] handleShardTable(TableModel model, Object... shardkey) {
+		ColumnModel col = model.getShardTableColumn();
+		if (col == null)
+			return null;// NOSONAR
+		if (col.getShardTable() == null || col.getShardTable().length == 0)
+			throw new DbException("Not found ShardTable setting for table '" + model.getTableName() + "'");
+		if (!HASH.equalsIgnoreCase(col.getShardTable()[0]))
+			return null;// NOSONAR
+		return doRoute(getRing(col.getShardTable()), "ShardTable", shardkey);
+	}
+
+	@Override
+	public Integer[] handleShardDatabase(TableModel model, Object... shardkey) {
+		ColumnModel col = model.getShardDatabaseColumn();
+		if (col == null)
+			return null;// NOSONAR
+		if (col.getShardDatabase() == null || col.getShardDatabase().length == 0)
+			throw new DbException("Not found ShardDatabase setting for table '" + model.getTableName() + "'");
+		if (!HASH.equalsIgnoreCase(col.getShardDatabase()[0]))
+			return null;// NOSONAR
+		return doRoute(getRing(col.getShardDatabase()), "ShardDatabase", shardkey);
+	}
+
+	/** Remove cached rings, call it if TableModel's sharding setting be changed */
+	public void clearCache() {
+		rings.clear();
+	}
+
+	private Ring getRing(String[] setting) {
+		Ring result = rings.get(Arrays.asList(setting));
+		if (result == null) {
+			result = Ring.build(setting);
+			rings.put(Arrays.asList(setting.clone()), result);
+		}
+		return result;
+	}
+
+	private static Integer[] doRoute(Ring ring, String type, Object... shardkey) {
+		if (shardkey == null || shardkey.length == 0)
+			throw new DbException(type + " key parameter needed");
+		if (shardkey.length > 1 && shardkey[1] != null)
+			throw new DbException("ShardingHashTool does not support shardBetween type method");
+		Object key = shardkey[0];
+		if (key == null)
+			throw new DbException(type + " key value can not be null");
+		if (key instanceof Collection<?>) {
+			Set<Integer> set = new LinkedHashSet<Integer>();
+			for (Object k : (Collection<?>) key)
+				set.add(ring.locate(k));
+			return set.toArray(new Integer[set.size()]);
+		} else if (key.getClass().isArray()) {
+			Set<Integer> set = new LinkedHashSet<Integer>();
+			for (Object k : (Object[]) key)
+				set.add(ring.locate(k));
+			return set.toArray(new Integer[set.size()]);
+		} else
+			return new Integer[] { ring.locate(key) };
+	}
+
+	/**
+	 * 64 bits FNV-1a hash of the key's String form, then mixed by MurmurHash3's
+	 * fmix64 to spread values evenly on the ring
+	 */
+	public static long hash(Object key) {
+		byte[] bytes = String.valueOf(key).getBytes(StandardCharsets.UTF_8);
+		long h = 0xcbf29ce484222325L;
+		for (byte b : bytes) {
+			h ^= b;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/** A precompiled consistent hash ring, points sorted for binary search */
+	public static class Ring {
+		private final long[] points;
+		private final int[] nodes;
+
+		Ring(long[] points, int[] nodes) {
+			this.points = points;
+			this.nodes = nodes;
+		}
+
+		/** Build a ring from annotation setting like {"HASH", "4", "160"} */
+		static Ring build(String[] setting) {
+			if (setting == null || setting.length < 2 || !HASH.equalsIgnoreCase(setting[0]))
+				return null;
+			int nodeCount = Integer.parseInt(setting[1].trim());
+			int virtualNodes = setting.length > 2 ? Integer.parseInt(setting[2].trim()) : DEFAULT_VIRTUAL_NODES;
+			return build(nodeCount, virtualNodes);
+		}
+
+		/** Build a ring with nodeCount nodes, each node has virtualNodes points */
+		public static Ring build(int nodeCount, int virtualNodes) {
+			if (nodeCount <= 0 || virtualNodes <= 0)
+				throw new DbException("HASH sharding node count and virtual node count should > 0");
+			int size = nodeCount * virtualNodes;
+			long[][] pairs = new long[size][];
+			int i = 0;
+			for (int node = 0; node < nodeCount; node++)
+				for (int v = 0; v < virtualNodes; v++)
+					pairs[i++] = new long[] { hash("NODE-" + node + "-VN-" + v), node };
+			Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+			long[] points = new long[size];
+			int[] nodes = new int[size];
+			for (i = 0; i < size; i++) {
+				points[i] = pairs[i][0];
+				nodes[i] = (int) pairs[i][1];
+			}
+			return new Ring(points, nodes);
+		}
+
+		/** Return the node code of given key, walk clockwise on the ring */
+		public int locate(Object key) {
+			long h = hash(key);
+			int pos = Arrays.binarySearch(points, h);
+			if (pos < 0)
+				pos = -pos - 1;
+			if (pos >= points.length)
+				pos = 0;
+			return nodes[pos];
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jsqlbox.sharding;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.drinkjava2.jdialects.model.ColumnModel;
+import com.github.drinkjava2.jdialects.model.TableModel;
+import com.github.drinkjava2.jsqlbox.DbException;
+
+/**
+ * An implementation of ShardingTool to deal "LOOKUP" type (directory based)
+ * sharding strategy, the shard code of each key is looked up from a named
+ * in-memory directory, usage example:
+ *
+ * <pre>
+ * &#64;ShardDatabase({ "LOOKUP", "partSite" }) // directory name is partSite
+ * &#64;ShardTable({ "LOOKUP", "partSite", "0" }) // if key not found, use 0
+ *
+ * ShardingLookupTool.putAll("partSite", mapLoadedFromDirectoryTable);
+ * ShardingLookupTool.put("partSite", "P-1001", 2);
+ * </pre>
+ *
+ * Directories are global and thread safe, they can be loaded at program
+ * starting from a directory table and updated when rows be moved.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public class ShardingLookupTool implements ShardingTool {
+	public static final String LOOKUP = "LOOKUP";
+
+	/** Directories, key is directory name, value is shardKey -> shard code */
+	private static final Map<String, Map<String, Integer>> directories = new ConcurrentHashMap<String, Map<String, Integer>>();
+
+	/** Precompiled routes, key is setting values like [LOOKUP, partSite, 0], not TableModel which is often a copy */
+	private final Map<List<String>, Route> routes = new ConcurrentHashMap<List<String>, Route>();
+
+	@Override
+	public Integer[] handleShardTable(TableModel model, Object... shardkey) {
+		ColumnModel col = model.getShardTableColumn();
+		if (col == null)
+			return null;// NOSONAR
+		if (col.getShardTable() == null || col.getShardTable().length == 0)
+			throw new DbException("Not found ShardTable setting for table '" + model.getTableName() + "'");
+		if (!LOOKUP.equalsIgnoreCase(col.getShardTable()[0]))
+			return null;// NOSONAR
+		return doRoute(getRoute(col.getShardTable()), "ShardTable", shardkey);
+	}
+
+	@Override
+	public Integer[] handleShardDatabase(TableModel model, Object... shardkey) {
+		ColumnModel col = model.getShardDatabaseColumn();
+		if (col == null)
+			return null;// NOSONAR
+		if (col.getShardDatabase() == null || col.getShardDatabase().length == 0)
+			throw new DbException("Not found ShardDatabase setting for table '" + model.getTableName() + "'");
+		if (!LOOKUP.equalsIgnoreCase(col.getShardDatabase()[0]))
+			return null;// NOSONAR
+		return doRoute(getRoute(col.getShardDatabase()), "ShardDatabase", shardkey);
+	}
+
+	private Route getRoute(String[] setting) {
+		Route result = routes.get(Arrays.asList(setting));
+		if (result == null) {
+			result = Route.build(setting);
+			routes.put(Arrays.asList(setting.clone()), result);
+		}
+		return result;
+	}
+
+	private static Integer[] doRoute(Route route, String type, Object... shardkey) {
+		if (shardkey == null || shardkey.length == 0)
+			throw new DbException(type + " key parameter needed");
+		if (shardkey.length > 1 && shardkey[1] != null)
+			throw new DbException("ShardingLookupTool does not support shardBetween type method");
+		Object key = shardkey[0];
+		if (key == null)
+			throw new DbException(type + " key value can not be null");
+		if (key instanceof Collection<?>) {
+			Set<Integer> set = new LinkedHashSet<Integer>();
+			for (Object k : (Collection<?>) key)
+				set.add(route.lookup(k));
+			return set.toArray(new Integer[set.size()]);
+		} else if (key.getClass().isArray()) {
+			Set<Integer> set = new LinkedHashSet<Integer>();
+			for (Object k : (Object[]) key)
+				set.add(route.lookup(k));
+			return set.toArray(new Integer[set.size()]);
+		} else
+			return new Integer[] { route.lookup(key) };
+	}
+
+	protected void directoryMethods______________________________() {// NOSONAR
+	}
+
+	/** Get or create a directory by name */
+	public static Map<String, Integer> getDirectory(String directoryName) {
+		Map<String, Integer> dir = directories.get(directoryName);
+		if (dir == null) {
+			directories.putIfAbsent(directoryName, new ConcurrentHashMap<String, Integer>());
+			dir = directories.get(directoryName);
+		}
+		return dir;
+	}
+
+	/** Put or change one key's shard code in directory */
+	public static void put(String directoryName, Object shardKey, int shardCode) {
+		getDirectory(directoryName).put(String.valueOf(shardKey), shardCode);
+	}
+
+	/** Put all key-code pairs into directory, usually loaded from a directory table */
+	public static void putAll(String directoryName, Map<?, ? extends Number> keyCodes) {
+		Map<String, Integer> dir = getDirectory(directoryName);
+		for (Map.Entry<?, ? extends Number> e : keyCodes.entrySet())
+			dir.put(String.valueOf(e.getKey()), e.getValue().intValue());
+	}
+
+	/** Remove one key from directory */
+	public static void remove(String directoryName, Object shardKey) {
+		getDirectory(directoryName).remove(String.valueOf(shardKey));
+	}
+
+	/** Clear a directory */
+	public static void clear(String directoryName) {
+		getDirectory(directoryName).clear();
+	}
+
+	/** Precompiled route of one annotation setting like {"LOOKUP", "dirName", "0"} */
+	static class Route {
+		final String directoryName;
+		final Map<String, Integer> directory;
+		final Integer defaultCode;
+
+		Route(String directoryName, Integer defaultCode) {
+			this.directoryName = directoryName;
+			this.directory = getDirectory(directoryName);
+			this.defaultCode = defaultCode;
+		}
+
+		static Route build(String[] setting) {
+			if (setting == null || setting.length < 2 || !LOOKUP.equalsIgnoreCase(setting[0]))
+				return null;
+			Integer defaultCode = setting.length > 2 ? Integer.valueOf(setting[2].trim()) : null;
+			return new Route(setting[1].trim(), defaultCode);
+		}
+
+		int lookup(Object key) {
+			Integer code = directory.get(String.valueOf(key));
+			if (code == null)
+				code = defaultCode;
+			if (code == null)
+				throw new DbException("Shard key '" + key + "' not found in LOOKUP directory '" + directoryName + "'");
+			return code;
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jsqlbox.sharding;
+
+import static com.github.drinkjava2.jsqlbox.DB.par;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.github.drinkjava2.jdialects.model.ColumnModel;
+import com.github.drinkjava2.jdialects.model.TableModel;
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+import com.github.drinkjava2.jsqlbox.DbContext;
+import com.github.drinkjava2.jsqlbox.DbContextUtils;
+import com.github.drinkjava2.jsqlbox.DbException;
+
+/**
+ * ShardingRebalancer is an online rebalancing utility, it scans existing shard
+ * tables or shard databases in primary key order, batch by batch, and moves
+ * rows whose shard code changed (according current ShardingTools and the given
+ * new TableModel setting) to their new shard.
+ *
+ * Each batch is inserted into target first then deleted from source, target
+ * rows with same ids are removed before insert, so an interrupted rebalancing
+ * can be safely run again. Only support entity with one primary key column.
+ *
+ * Source rows are deleted only if all their columns still equal the values
+ * read, a row updated by others after it was read is not deleted, its target
+ * copy is removed and it is read and moved again, so concurrent updates are
+ * not lost. Column compare use "=", so do not use on tables whose columns can
+ * not be compared by "=" (for example Oracle LOB). Note rows already moved
+ * are only visible to application after it routes by the new setting, so
+ * stop writes of the table or let application try both shards during
+ * rebalancing.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public abstract class ShardingRebalancer {// NOSONAR
+	private static final Log logger = LogFactory.getLog(ShardingRebalancer.class);
+	private static final int MAX_RETRY = 10; // max times to move again rows changed by others
+
+	/**
+	 * Rebalance sharded tables in one database
+	 *
+	 * @param ctx
+	 *            The DbContext which tables located
+	 * @param newModel
+	 *            The TableModel with new ShardTable setting
+	 * @param sourceTableCodes
+	 *            The table codes currently exist, for example 0,1,2 means
+	 *            table_0, table_1, table_2
+	 * @param batchSize
+	 *            How many rows read and moved in one batch
+	 * @return How many rows be moved
+	 */
+	public static int rebalanceTables(DbContext ctx, TableModel newModel, int[] sourceTableCodes, int batchSize) {
+		DbException.assureNotNull(newModel.getShardTableColumn(), "ShardTable column not found in new TableModel");
+		int moved = 0;
+		for (int code : sourceTableCodes)
+			moved += moveOneShard(ctx, newModel, code, newModel.getTableName() + "_" + code, batchSize, true);
+		return moved;
+	}
+
+	/**
+	 * Rebalance rows of one table across all master databases of ctx
+	 *
+	 * @param ctx
+	 *            The DbContext which has masters setting
+	 * @param newModel
+	 *            The TableModel with new ShardDatabase setting
+	 * @param batchSize
+	 *            How many rows read and moved in one batch
+	 * @return How many rows be moved
+	 */
+	public static int rebalanceDatabases(DbContext ctx, TableModel newModel, int batchSize) {
+		DbException.assureNotNull(newModel.getShardDatabaseColumn(), "ShardDatabase column not found in new TableModel");
+		if (ctx.getMasters() == null || ctx.getMasters().length == 0)
+			throw new DbException("rebalanceDatabases need masters setting in DbContext");
+		int moved = 0;
+		for (int code = 0; code < ctx.getMasters().length; code++)
+			moved += moveOneShard(ctx, newModel, code, newModel.getTableName(), batchSize, false);
+		return moved;
+	}
+
+	private static int moveOneShard(DbContext ctx, TableModel model, int sourceCode, String sourceTable,
+			int batchSize, boolean tableMode) {// NOSONAR
+		List<ColumnModel> pkeys = model.getPKeyColumns();
+		if (pkeys.size() != 1)
+			throw new DbException("ShardingRebalancer only support entity with 1 primary key column");
+		String pkey = pkeys.get(0).getColumnName();
+		ColumnModel shardCol = tableMode ? model.getShardTableColumn() : model.getShardDatabaseColumn();
+		DbContext sourceCtx = tableMode ? ctx : (DbContext) ctx.getMasters()[sourceCode];
+		long start = System.currentTimeMillis();
+		int scanned = 0;
+		int moved = 0;
+		Object lastKey = null;
+		while (true) {
+			String sql = "select * from " + sourceTable + (lastKey == null ? "" : " where " + pkey + ">?")
+					+ " order by " + pkey;
+			sql = sourceCtx.pagin(1, batchSize, sql);
+			List<Map<String, Object>> rows = lastKey == null ? sourceCtx.qryMapList(sql)
+					: sourceCtx.qryMapList(sql, par(lastKey));
+			if (rows.isEmpty())
+				break;
+			scanned += rows.size();
+			lastKey = rows.get(rows.size() - 1).get(pkey);
+
+			for (int retry = 0; !rows.isEmpty(); retry++) {
+				if (retry > MAX_RETRY)
+					throw new DbException("Rows of " + sourceTable + " keep being changed during rebalancing, "
+							+ rows.size() + " rows not moved");
+				Map<Integer, List<Map<String, Object>>> moves = new LinkedHashMap<Integer, List<Map<String, Object>>>();
+				for (Map<String, Object> row : rows) {
+					Object shardValue = row.get(shardCol.getColumnName());
+					Integer newCode = tableMode ? DbContextUtils.getShardedTBCode(ctx, model, shardValue)
+							: DbContextUtils.getShardedDBCode(ctx, model, shardValue);
+					DbException.assureNotNull(newCode, "No ShardingTool can handle value '" + shardValue + "'");
+					if (newCode != sourceCode) {
+						List<Map<String, Object>> list = moves.get(newCode);
+						if (list == null) {
+							list = new ArrayList<Map<String, Object>>();
+							moves.put(newCode, list);
+						}
+						list.add(row);
+					}
+				}
+				List<Object> changed = new ArrayList<Object>();
+				for (Entry<Integer, List<Map<String, Object>>> entry : moves.entrySet()) {
+					DbContext targetCtx = tableMode ? ctx : (DbContext) ctx.getMasters()[entry.getKey()];
+					String targetTable = tableMode ? model.getTableName() + "_" + entry.getKey() : model.getTableName();
+					List<Object> notMoved = moveRows(sourceCtx, sourceTable, targetCtx, targetTable, pkey,
+							entry.getValue());
+					moved += entry.getValue().size() - notMoved.size();
+					changed.addAll(notMoved);
+				}
+				rows = new ArrayList<Map<String, Object>>(); // read changed rows again, deleted rows are gone
+				for (Object id : changed)
+					rows.addAll(sourceCtx.qryMapList("select * from " + sourceTable + " where " + pkey + "=?", par(id)));
+			}
+		}
+		logger.info("Rebalance " + sourceTable + " of shard " + sourceCode + ": scanned " + scanned + " rows, moved "
+				+ moved + " rows in " + (System.currentTimeMillis() - start) + "ms");
+		return moved;
+	}
+
+	/**
+	 * Move rows to target, return ids of rows not deleted from source because
+	 * they are changed by others after read, their target copies are removed
+	 */
+	private static List<Object> moveRows(final DbContext sourceCtx, final String sourceTable, final DbContext targetCtx,
+			final String targetTable, String pkey, final List<Map<String, Object>> rows) {
+		StringBuilder insertSql = new StringBuilder("insert into ").append(targetTable).append(" (");
+		StringBuilder questions = new StringBuilder();
+		List<String> columns = new ArrayList<String>(rows.get(0).keySet());
+		for (int i = 0; i < columns.size(); i++) {
+			insertSql.append(i == 0 ? "" : ", ").append(columns.get(i));
+			questions.append(i == 0 ? "?" : ", ?");
+		}
+		insertSql.append(") values (").append(questions).append(")");
+
+		final List<Object[]> insertParams = new ArrayList<Object[]>();
+		final List<Object[]> deleteParams = new ArrayList<Object[]>();
+		for (Map<String, Object> row : rows) {
+			Object[] values = new Object[columns.size()];
+			for (int i = 0; i < columns.size(); i++)
+				values[i] = row.get(columns.get(i));
+			insertParams.add(values);
+			deleteParams.add(new Object[] { row.get(pkey) });
+		}
+		final String insert = insertSql.toString();
+		final String deleteTarget = "delete from " + targetTable + " where " + pkey + "=?";
+		final List<Object> changed = new ArrayList<Object>();
+		if (sourceCtx == targetCtx) {
+			sourceCtx.tx(() -> {
+				sourceCtx.nBatch(deleteTarget, deleteParams);
+				sourceCtx.nBatch(insert, insertParams);
+				changed.addAll(deleteUnchanged(sourceCtx, sourceTable, pkey, rows));
+				for (Object id : changed)
+					sourceCtx.exe(deleteTarget, par(id));
+			});
+		} else {
+			targetCtx.tx(() -> {
+				targetCtx.nBatch(deleteTarget, deleteParams);
+				targetCtx.nBatch(insert, insertParams);
+			});
+			sourceCtx.tx(() -> changed.addAll(deleteUnchanged(sourceCtx, sourceTable, pkey, rows)));
+			if (!changed.isEmpty())
+				targetCtx.tx(() -> {
+					for (Object id : changed)
+						targetCtx.exe(deleteTarget, par(id));
+				});
+		}
+		return changed;
+	}
+
+	/** Delete source rows whose columns all equal the values read, return ids of others */
+	private static List<Object> deleteUnchanged(DbContext ctx, String table, String pkey,
+			List<Map<String, Object>> rows) {
+		List<Object> changed = new ArrayList<Object>();
+		for (Map<String, Object> row : rows) {
+			StringBuilder sql = new StringBuilder("delete from ").append(table);
+			List<Object> params = new ArrayList<Object>();
+			for (Entry<String, Object> col : row.entrySet()) {
+				sql.append(sql.indexOf(" where ") < 0 ? " where " : " and ").append(col.getKey());
+				if (col.getValue() == null)
+					sql.append(" is null");
+				else {
+					sql.append("=?");
+					params.add(col.getValue());
+				}
+			}
+			if (ctx.upd(sql.toString(), par(params.toArray())) == 0)
+				changed.add(row.get(pkey));
+		}
+		return changed;
+	}
+
+}
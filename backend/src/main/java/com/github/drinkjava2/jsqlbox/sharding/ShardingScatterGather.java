@@ -0,0 +1,306 @@
+/**
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jsqlbox.sharding;
+
+import static com.github.drinkjava2.jsqlbox.DB.par;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.github.drinkjava2.jdialects.model.TableModel;
+import com.github.drinkjava2.jsqlbox.DbContext;
+import com.github.drinkjava2.jsqlbox.DbContextUtils;
+import com.github.drinkjava2.jsqlbox.DbException;
+
+/**
+ * ShardingScatterGather fans out a query to all (or a computed subset of)
+ * master DbContexts in parallel and merges the results, used when a query on
+ * sharded entity does not include the shard key. Usage example:
+ *
+ * <pre>
+ * // page 3 (20 rows each page) of all shards, ordered by partID
+ * List&lt;Map&lt;String, Object&gt;&gt; rows = ShardingScatterGather.qryMapList(ctx, null, "partID, qty desc", 40, 20,
+ * 		"select * from inventory where qty>?", 0);
+ * // global count
+ * long count = ((Number) ShardingScatterGather.qryAggregate(ctx, null, "count", "select count(*) from inventory"))
+ * 		.longValue();
+ * </pre>
+ *
+ * Note: shard queries run on pool threads in auto-commit mode, they do not
+ * join current thread's transaction.
+ *
+ * Note: shard results are merged in Java, by default values are compared by
+ * their Java compareTo method, text by Java String order, and null is less than
+ * any value (same as MySQL, SQL Server and SQLite, but PostgreSQL and Oracle
+ * put nulls last in ascending order). If ORDER BY columns are text whose
+ * database collation is not binary (for example case insensitive or Chinese
+ * collation), pass a Comparator same as database order, otherwise the merged
+ * order and pages are wrong. For nulls, write "nulls first" or "nulls last" in
+ * orderBy if database support it. min/max of qryAggregate also compare text by
+ * Java String order.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public abstract class ShardingScatterGather {// NOSONAR
+
+	private static final ExecutorService executor = Executors
+			.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2), r -> {
+				Thread t = new Thread(r, "jsqlbox-scatter-gather");
+				t.setDaemon(true);
+				return t;
+			});
+
+	/**
+	 * Return all DB codes the shard keys (single value, Collection or array) can
+	 * map to, used to compute the subset of shards need be queried
+	 */
+	public static Integer[] shardDbCodes(DbContext ctx, Object entityOrClass, Object... shardKey) {
+		TableModel model = DbContextUtils.findEntityOrClassTableModel(entityOrClass);
+		if (ctx.getShardingTools() != null)
+			for (ShardingTool sh : ctx.getShardingTools()) {
+				Integer[] result = sh.handleShardDatabase(model, shardKey);
+				if (result != null)
+					return result;
+			}
+		return null;// NOSONAR
+	}
+
+	/**
+	 * Query all or given shards in parallel and merge result
+	 *
+	 * @param ctx
+	 *            The DbContext which has masters setting
+	 * @param dbCodes
+	 *            The shard codes to query, if null query all masters
+	 * @param orderBy
+	 *            Optional, like "partID, qty desc", will be appended to SQL as
+	 *            "order by" and used to k-way merge shard results
+	 * @param offset
+	 *            Global offset, start from 0
+	 * @param limit
+	 *            Global max rows, if &lt;=0 means no limit
+	 * @param sql
+	 *            The SQL without "order by" and pagination
+	 * @param params
+	 *            SQL parameters
+	 * @return merged rows
+	 */
+	public static List<Map<String, Object>> qryMapList(DbContext ctx, Integer[] dbCodes, String orderBy, int offset,
+			int limit, String sql, Object... params) {
+		return qryMapList(ctx, dbCodes, orderBy, null, offset, limit, sql, params);
+	}
+
+	/**
+	 * Same as above, but use given comparator to merge shard results, it should
+	 * sort rows same as the "order by" in database, see class comment
+	 *
+	 * @param comparator
+	 *            Optional, if null build one from orderBy by Java compareTo
+	 */
+	public static List<Map<String, Object>> qryMapList(DbContext ctx, Integer[] dbCodes, String orderBy,
+			Comparator<Map<String, Object>> comparator, int offset, int limit, String sql, Object... params) {
+		String shardSql = sql;
+		if (orderBy != null && orderBy.trim().length() > 0)
+			shardSql = sql + " order by " + orderBy;
+		if (limit > 0)
+			shardSql = ctx.pagin(1, offset + limit, shardSql); // each shard at most return offset+limit rows
+		List<List<Map<String, Object>>> shardResults = scatter(ctx, dbCodes, shardSql, params);
+
+		int max = limit > 0 ? offset + limit : Integer.MAX_VALUE;
+		List<Map<String, Object>> merged = new ArrayList<Map<String, Object>>();
+		if (orderBy == null || orderBy.trim().length() == 0) {
+			for (List<Map<String, Object>> rows : shardResults)
+				for (Map<String, Object> row : rows) {
+					if (merged.size() >= max)
+						break;
+					merged.add(row);
+				}
+		} else
+			kWayMerge(shardResults, comparator == null ? buildComparator(orderBy) : comparator, max, merged);
+		if (offset <= 0)
+			return merged;
+		if (offset >= merged.size())
+			return new ArrayList<Map<String, Object>>();
+		return new ArrayList<Map<String, Object>>(merged.subList(offset, merged.size()));
+	}
+
+	/**
+	 * Query a scalar aggregate value on all or given shards in parallel, then
+	 * merge them
+	 *
+	 * @param function
+	 *            can be count, sum, min, max. avg is not supported, use sum and
+	 *            count to calculate it
+	 * @param sql
+	 *            SQL return only 1 row 1 column, like "select max(qty) from xxx"
+	 */
+	public static Object qryAggregate(DbContext ctx, Integer[] dbCodes, String function, String sql,
+			Object... params) {
+		List<List<Map<String, Object>>> shardResults = scatter(ctx, dbCodes, sql, params);
+		Object result = null;
+		for (List<Map<String, Object>> rows : shardResults) {
+			if (rows.isEmpty())
+				continue;
+			Object value = rows.get(0).values().iterator().next();
+			if (value == null)
+				continue;
+			result = mergeAggregate(function, result, value);
+		}
+		if (result == null && ("count".equalsIgnoreCase(function)))
+			return 0L;
+		return result;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object mergeAggregate(String function, Object old, Object value) {
+		if ("count".equalsIgnoreCase(function) || "sum".equalsIgnoreCase(function)) {
+			BigDecimal v = new BigDecimal(value.toString());
+			if (old == null)
+				return "count".equalsIgnoreCase(function) ? (Object) v.longValue() : v;
+			if (old instanceof Long)
+				return (Long) old + v.longValue();
+			return ((BigDecimal) old).add(v);
+		} else if ("min".equalsIgnoreCase(function)) {
+			return old == null || compareValue(value, old) < 0 ? value : old;
+		} else if ("max".equalsIgnoreCase(function)) {
+			return old == null || compareValue(value, old) > 0 ? value : old;
+		}
+		throw new DbException("Aggregate function '" + function + "' is not supported, only count/sum/min/max allowed");
+	}
+
+	/** Run SQL on shards in parallel, return results in shard order */
+	private static List<List<Map<String, Object>>> scatter(DbContext ctx, Integer[] dbCodes, final String sql,
+			final Object... params) {
+		if (ctx.getMasters() == null || ctx.getMasters().length == 0)
+			throw new DbException("Scatter-gather query need masters setting in DbContext");
+		Set<Integer> codes = new LinkedHashSet<Integer>();
+		if (dbCodes == null)
+			for (int i = 0; i < ctx.getMasters().length; i++)
+				codes.add(i);
+		else
+			Collections.addAll(codes, dbCodes);
+
+		List<Future<List<Map<String, Object>>>> futures = new ArrayList<Future<List<Map<String, Object>>>>();
+		for (Integer code : codes) {
+			final DbContext shard = (DbContext) ctx.getMasters()[code];
+			futures.add(executor.submit(new Callable<List<Map<String, Object>>>() {
+				@Override
+				public List<Map<String, Object>> call() {
+					if (params == null || params.length == 0)
+						return shard.qryMapList(sql);
+					return shard.qryMapList(sql, par(params));
+				}
+			}));
+		}
+		List<List<Map<String, Object>>> results = new ArrayList<List<Map<String, Object>>>();
+		try {
+			for (Future<List<Map<String, Object>>> f : futures)
+				results.add(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DbException(e);
+		} catch (ExecutionException e) {
+			for (Future<List<Map<String, Object>>> f : futures)
+				f.cancel(true);
+			throw new DbException("Scatter-gather query failed on one shard", e.getCause());
+		}
+		return results;
+	}
+
+	/** Streaming k-way merge of sorted shard results, stop when got max rows */
+	private static void kWayMerge(final List<List<Map<String, Object>>> shardResults,
+			final Comparator<Map<String, Object>> comparator, int max, List<Map<String, Object>> out) {
+		// cursor is int[]{shardIndex, rowIndex}
+		PriorityQueue<int[]> queue = new PriorityQueue<int[]>(Math.max(1, shardResults.size()),
+				(a, b) -> comparator.compare(shardResults.get(a[0]).get(a[1]), shardResults.get(b[0]).get(b[1])));
+		for (int i = 0; i < shardResults.size(); i++)
+			if (!shardResults.get(i).isEmpty())
+				queue.add(new int[] { i, 0 });
+		while (!queue.isEmpty() && out.size() < max) {
+			int[] cursor = queue.poll();
+			List<Map<String, Object>> rows = shardResults.get(cursor[0]);
+			out.add(rows.get(cursor[1]));
+			if (++cursor[1] < rows.size())
+				queue.add(cursor);
+		}
+	}
+
+	/**
+	 * Build comparator from "col1, col2 desc, col3 nulls last", without "nulls
+	 * first/last" null is less than any value as MySQL, see class comment
+	 */
+	private static Comparator<Map<String, Object>> buildComparator(String orderBy) {
+		String[] items = orderBy.split(",");
+		final String[] columns = new String[items.length];
+		final boolean[] desc = new boolean[items.length];
+		final Boolean[] nullsFirst = new Boolean[items.length]; // null means not given
+		for (int i = 0; i < items.length; i++) {
+			String[] words = items[i].trim().split("\\s+");
+			String col = words[0];
+			if (col.contains("."))
+				col = col.substring(col.lastIndexOf('.') + 1);
+			columns[i] = col;
+			desc[i] = words.length > 1 && "desc".equalsIgnoreCase(words[1]);
+			for (int w = 1; w < words.length - 1; w++)
+				if ("nulls".equalsIgnoreCase(words[w]))
+					nullsFirst[i] = "first".equalsIgnoreCase(words[w + 1]);
+		}
+		return new Comparator<Map<String, Object>>() {
+			@Override
+			public int compare(Map<String, Object> r1, Map<String, Object> r2) {
+				for (int i = 0; i < columns.length; i++) {
+					Object v1 = r1.get(columns[i]);
+					Object v2 = r2.get(columns[i]);
+					if (nullsFirst[i] != null && (v1 == null) != (v2 == null))
+						return (v1 == null) == nullsFirst[i] ? -1 : 1;
+					int c = compareValue(v1, v2);
+					if (c != 0)
+						return desc[i] ? -c : c;
+				}
+				return 0;
+			}
+		};
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compareValue(Object a, Object b) {
+		if (a == b)
+			return 0;
+		if (a == null)
+			return -1;
+		if (b == null)
+			return 1;
+		if (a instanceof Number && b instanceof Number && a.getClass() != b.getClass())
+			return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+		if (a instanceof Comparable)
+			return ((Comparable) a).compareTo(b);
+		return a.toString().compareTo(b.toString());
+	}
+
+}
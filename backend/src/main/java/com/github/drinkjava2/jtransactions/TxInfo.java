@@ -12,7 +12,10 @@
 package com.github.drinkjava2.jtransactions;
 
 import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -29,6 +32,12 @@ public class TxInfo {
 	// This is designed for just store connection in TxInfo
 	protected Connection connection = null;
 
+	// This is designed for store transaction scoped entity identity map
+	protected Map<Object, Object> entityCache;
+
+	// Run after the transaction committed or rolled back, like cache invalidation
+	protected List<Runnable> afterCompletion;
+
 	public TxInfo() {
 	}
 
@@ -55,6 +64,37 @@ public class TxInfo {
 		this.connectionCache = connectionCache;
 	}
 
+	public Map<Object, Object> getEntityCache() {
+		if (entityCache == null)
+			entityCache = new HashMap<Object, Object>();
+		return entityCache;
+	}
+
+	public void setEntityCache(Map<Object, Object> entityCache) {
+		this.entityCache = entityCache;
+	}
+
+	public List<Runnable> getAfterCompletion() {
+		if (afterCompletion == null)
+			afterCompletion = new ArrayList<Runnable>();
+		return afterCompletion;
+	}
+
+	/** Add a task to run after this transaction committed or rolled back */
+	public void addAfterCompletion(Runnable task) {
+		getAfterCompletion().add(task);
+	}
+
+	/** Run after completion tasks, called by ConnectionManager when transaction ended */
+	public void runAfterCompletion() {
+		if (afterCompletion == null)
+			return;
+		List<Runnable> tasks = afterCompletion;
+		afterCompletion = null;
+		for (Runnable task : tasks)
+			task.run();
+	}
+
 	public Connection getConnection() {
 		return connection;
 	}
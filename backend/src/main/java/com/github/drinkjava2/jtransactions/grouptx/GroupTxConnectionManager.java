@@ -104,8 +104,10 @@ public class GroupTxConnectionManager extends ThreadConnectionManager {
 	private void endTransaction(SQLException lastExp) {// NOSONAR
 		if (!isInTransaction())
 			return;
-		Collection<Connection> conns = getThreadTxInfo().getConnectionCache().values();
+		TxInfo tx = getThreadTxInfo();
+		Collection<Connection> conns = tx.getConnectionCache().values();
 		setThreadTxInfo(null);
+		tx.runAfterCompletion();
 		if (conns.isEmpty())
 			return; // no actual transaction open
 		for (Connection con : conns) {
@@ -115,6 +115,7 @@ public class TinyTxConnectionManager extends ThreadConnectionManager {
 	private void endTransaction() {
 		if (!isInTransaction())
 			return;
+		TxInfo tx = getThreadTxInfo();
 		Connection con = null;
 		try {
 			Collection<Connection> conns = getThreadTxInfo().getConnectionCache().values();
@@ -131,12 +132,16 @@ public class TinyTxConnectionManager extends ThreadConnectionManager {
 		} finally {
 			getThreadTxInfo().getConnectionCache().clear();
 			setThreadTxInfo(null);
-			if (con != null)
-				try {
-					con.close();
-				} catch (SQLException e) {
-					throw new TransactionsException("Fail to close connection", e);// NOSONAR
-				}
+			try {
+				if (con != null)
+					try {
+						con.close();
+					} catch (SQLException e) {
+						throw new TransactionsException("Fail to close connection", e);// NOSONAR
+					}
+			} finally {
+				tx.runAfterCompletion();
+			}
 		}
 
 	}
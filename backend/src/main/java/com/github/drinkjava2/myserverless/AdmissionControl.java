@@ -0,0 +1,352 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.myserverless;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AdmissionControl decides if a call can start before it takes a connection from the pool, so one user running heavy
+ * reports can not starve others. A call is rejected at once (MyServerlessServlet returns http status 429 with a
+ * Retry-After header) if any of below limits is exceeded:
+ *
+ * <pre>
+ * admission_user_rate, admission_user_burst: token bucket of each user, calls per second and max burst calls
+ * admission_user_concurrency: max running calls of each user
+ * admission_piece_concurrency: max running calls of each piece, can be changed by @AdmissionLimit(concurrency=n)
+ * admission_report_concurrency: max running calls of all report pieces, marked by @AdmissionLimit(report=true)
+ * </pre>
+ *
+ * 0 means no limit. User is the owner of myToken given by TokenSecurity.getOwner, or the remote address if myToken is
+ * empty or invalid, so a client can not get new buckets by sending fake tokens. Interactive pieces only have user and
+ * piece limits, so when report pieces are limited to fewer calls than the pool size, interactive pieces always get
+ * connections. All states are atomic counters, no lock; the token bucket is stored as one "theoretical arrival time"
+ * (GCRA), a call takes 1/rate second from it by CAS.
+ *
+ * Call tryAcquire and release the returned Ticket in finally block. Methods with a nowNanos parameter are used to test
+ * limits without waiting. A batch request takes one token by tryTakeToken, then each of its calls takes its own user,
+ * piece and report slots by tryAcquireSlot, so a batch can not run more calls at once than a user is allowed.
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class AdmissionControl {
+    public static final int MAX_USERS = 10000; //idle users are removed when more users are tracked, others share "(others)"
+    public static final String OTHERS = "(others)";
+    public static final String RATE = "rate";
+    public static final String USER = "user";
+    public static final String PIECE = "piece";
+    public static final String REPORT = "report";
+
+    public static final AdmissionControl instance = new AdmissionControl(MyServerlessEnv.admission_user_rate, MyServerlessEnv.admission_user_burst,
+            MyServerlessEnv.admission_user_concurrency, MyServerlessEnv.admission_piece_concurrency, MyServerlessEnv.admission_report_concurrency);
+
+    private static final ConcurrentHashMap<Class<?>, AdmissionLimit> limits = new ConcurrentHashMap<Class<?>, AdmissionLimit>();
+    private static final AdmissionLimit NO_LIMIT = Default.class.getAnnotation(AdmissionLimit.class);
+
+    private final long intervalNanos; //one call takes this time from the token bucket
+    private final long burstNanos;
+    private final int userConcurrency;
+    private final int pieceConcurrency;
+    private final int reportConcurrency;
+
+    private final ConcurrentHashMap<String, UserState> users = new ConcurrentHashMap<String, UserState>();
+    private final ConcurrentHashMap<String, AtomicInteger> pieces = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger runningReports = new AtomicInteger();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejectedByRate = new AtomicLong();
+    private final AtomicLong rejectedByUser = new AtomicLong();
+    private final AtomicLong rejectedByPiece = new AtomicLong();
+    private final AtomicLong rejectedByReport = new AtomicLong();
+
+    /**
+     * @param userRate calls per second of each user, 0 means no rate limit
+     * @param userBurst max calls of a user at once when his bucket is full, at least 1
+     * @param userConcurrency max running calls of each user, 0 means no limit
+     * @param pieceConcurrency default max running calls of each piece, 0 means no limit
+     * @param reportConcurrency max running calls of all report pieces, 0 means no limit
+     */
+    public AdmissionControl(int userRate, int userBurst, int userConcurrency, int pieceConcurrency, int reportConcurrency) {
+        this.intervalNanos = userRate > 0 ? 1000000000L / userRate : 0;
+        this.burstNanos = intervalNanos * Math.max(userBurst, 1);
+        this.userConcurrency = userConcurrency;
+        this.pieceConcurrency = pieceConcurrency;
+        this.reportConcurrency = reportConcurrency;
+    }
+
+    /** Return @AdmissionLimit of a piece class, or a default one with no limit, null class is a hot compiled piece */
+    public static AdmissionLimit limitOf(Class<?> pieceClass) {
+        if (pieceClass == null)
+            return NO_LIMIT;
+        AdmissionLimit limit = limits.get(pieceClass);
+        if (limit == null) {
+            limit = pieceClass.getAnnotation(AdmissionLimit.class);
+            if (limit == null)
+                limit = NO_LIMIT;
+            limits.put(pieceClass, limit);
+        }
+        return limit;
+    }
+
+    public Ticket tryAcquire(String user, String piece, AdmissionLimit limit) {
+        return tryAcquire(user, piece, limit, System.nanoTime());
+    }
+
+    /** Try to admit a call, return a Ticket, if ticket.isAdmitted() is false the call should be rejected */
+    public Ticket tryAcquire(String user, String piece, AdmissionLimit limit, long nowNanos) {
+        while (true) {
+            UserState u = userState(user == null ? "" : user, nowNanos);
+            long wait = u.takeToken(nowNanos, intervalNanos, burstNanos);
+            if (wait > 0) {
+                rejectedByRate.incrementAndGet();
+                return new Ticket(RATE, wait);
+            }
+            Ticket ticket = acquireSlots(u, piece, limit);
+            if (ticket != null)
+                return ticket; //null means u was removed by sweep, take token again from the new state
+        }
+    }
+
+    /** Only take a token from user's bucket, the returned ticket holds no slot, used for a batch request */
+    public Ticket tryTakeToken(String user) {
+        long nowNanos = System.nanoTime();
+        while (true) {
+            UserState u = userState(user == null ? "" : user, nowNanos);
+            long wait = u.takeToken(nowNanos, intervalNanos, burstNanos);
+            if (wait > 0) {
+                rejectedByRate.incrementAndGet();
+                return new Ticket(RATE, wait);
+            }
+            if (!u.isRemoved())
+                return new Ticket(null, 0);
+        }
+    }
+
+    /** Same as tryAcquire but no token taken, used for each call of a batch request which already took a token */
+    public Ticket tryAcquireSlot(String user, String piece, AdmissionLimit limit) {
+        while (true) {
+            Ticket ticket = acquireSlots(userState(user == null ? "" : user, System.nanoTime()), piece, limit);
+            if (ticket != null)
+                return ticket;
+        }
+    }
+
+    /** Take user, piece and report slots, return null if the user state was removed by sweep */
+    private Ticket acquireSlots(UserState u, String piece, AdmissionLimit limit) {
+        int r = u.tryEnter(userConcurrency);
+        if (r < 0)
+            return null;
+        if (r == 0) {
+            rejectedByUser.incrementAndGet();
+            return new Ticket(USER, 0);
+        }
+        AtomicInteger p = pieceCounter(piece);
+        if (!tryIncrement(p, limit.concurrency() > 0 ? limit.concurrency() : pieceConcurrency)) {
+            u.running.decrementAndGet();
+            rejectedByPiece.incrementAndGet();
+            return new Ticket(PIECE, 0);
+        }
+        if (limit.report() && !tryIncrement(runningReports, reportConcurrency)) {
+            p.decrementAndGet();
+            u.running.decrementAndGet();
+            rejectedByReport.incrementAndGet();
+            return new Ticket(REPORT, 0);
+        }
+        admitted.incrementAndGet();
+        return new Ticket(this, u, p, limit.report());
+    }
+
+    /** Increment the counter if it's less than max, max 0 means no limit */
+    private static boolean tryIncrement(AtomicInteger counter, int max) {
+        if (counter.incrementAndGet() <= max || max <= 0)
+            return true;
+        counter.decrementAndGet();
+        return false;
+    }
+
+    private UserState userState(String user, long nowNanos) {
+        UserState u = users.get(user);
+        if (u == null) {
+            if (users.size() >= MAX_USERS)
+                sweep(nowNanos);
+            UserState newState = new UserState(nowNanos);
+            u = users.putIfAbsent(users.size() < MAX_USERS ? user : OTHERS, newState);
+            if (u == null)
+                u = newState;
+        }
+        return u;
+    }
+
+    /**
+     * Remove users have no running call and a full token bucket, only one thread sweeps at a time. A state is marked
+     * removed before taken out of the map, so a thread still holding it can not take a slot from it and will look up
+     * the user again
+     */
+    private void sweep(long nowNanos) {
+        if (!sweeping.compareAndSet(false, true))
+            return;
+        try {
+            for (Map.Entry<String, UserState> e : users.entrySet()) {
+                UserState u = e.getValue();
+                if (u.tat.get() - nowNanos > 0 || !u.running.compareAndSet(0, UserState.REMOVED))
+                    continue;
+                if (u.tat.get() - nowNanos > 0) //a token taken just now, keep it
+                    u.running.set(0);
+                else
+                    users.remove(e.getKey(), u);
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    private AtomicInteger pieceCounter(String piece) {
+        AtomicInteger p = pieces.get(piece);
+        if (p == null) {
+            AtomicInteger newCounter = new AtomicInteger();
+            p = pieces.putIfAbsent(pieces.size() < PieceMetrics.MAX_PIECES ? piece : OTHERS, newCounter);
+            if (p == null)
+                p = newCounter;
+        }
+        return p;
+    }
+
+    /** Return admitted and rejected counts and running report calls */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("admitted", admitted.get());
+        map.put("rejectedByRate", rejectedByRate.get());
+        map.put("rejectedByUser", rejectedByUser.get());
+        map.put("rejectedByPiece", rejectedByPiece.get());
+        map.put("rejectedByReport", rejectedByReport.get());
+        map.put("runningReports", runningReports.get());
+        map.put("users", users.size());
+        return map;
+    }
+
+    /** Clear admitted and rejected counts, running calls are not changed */
+    public void resetStatistics() {
+        admitted.set(0);
+        rejectedByRate.set(0);
+        rejectedByUser.set(0);
+        rejectedByPiece.set(0);
+        rejectedByReport.set(0);
+    }
+
+    /** Running calls and token bucket of a user */
+    private static class UserState {
+        static final int REMOVED = Integer.MIN_VALUE; //running is set to it when removed by sweep
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicLong tat; //theoretical arrival time, the bucket is full when it's not after now
+
+        UserState(long nowNanos) {
+            tat = new AtomicLong(nowNanos);
+        }
+
+        boolean isRemoved() {
+            return running.get() < 0;
+        }
+
+        /** Take a running slot, return 1 if taken, 0 if max reached (0 means no limit), -1 if removed by sweep */
+        int tryEnter(int max) {
+            while (true) {
+                int r = running.get();
+                if (r < 0)
+                    return -1;
+                if (max > 0 && r >= max)
+                    return 0;
+                if (running.compareAndSet(r, r + 1))
+                    return 1;
+            }
+        }
+
+        /** Take a token, return 0 if taken, or nanoseconds to wait for a token */
+        long takeToken(long nowNanos, long intervalNanos, long burstNanos) {
+            if (intervalNanos <= 0)
+                return 0;
+            while (true) {
+                long t = tat.get();
+                long next = (t - nowNanos > 0 ? t : nowNanos) + intervalNanos;
+                if (next - nowNanos > burstNanos)
+                    return next - nowNanos - burstNanos;
+                if (tat.compareAndSet(t, next))
+                    return 0;
+            }
+        }
+    }
+
+    /** Result of tryAcquire, release an admitted ticket when the call finished, release twice is ignored */
+    public static class Ticket {
+        private final AdmissionControl owner;
+        private final UserState user;
+        private final AtomicInteger piece;
+        private final boolean report;
+        private final String rejectedBy;
+        private final long waitNanos;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Ticket(AdmissionControl owner, UserState user, AtomicInteger piece, boolean report) {
+            this.owner = owner;
+            this.user = user;
+            this.piece = piece;
+            this.report = report;
+            this.rejectedBy = null;
+            this.waitNanos = 0;
+        }
+
+        Ticket(String rejectedBy, long waitNanos) {
+            this.owner = null;
+            this.user = null;
+            this.piece = null;
+            this.report = false;
+            this.rejectedBy = rejectedBy;
+            this.waitNanos = waitNanos;
+        }
+
+        public boolean isAdmitted() {
+            return rejectedBy == null;
+        }
+
+        /** Return which limit rejected the call: rate/user/piece/report, or null if admitted */
+        public String getRejectedBy() {
+            return rejectedBy;
+        }
+
+        /** Seconds client should wait before retry, at least 1 */
+        public int getRetryAfterSeconds() {
+            return (int) Math.max(1, (waitNanos + 999999999L) / 1000000000L);
+        }
+
+        /** Return a 429 JsonResult for a rejected ticket */
+        public JsonResult toJsonResult() {
+            return new JsonResult(429, "Error: too many requests (" + rejectedBy + " limit), please retry later.").setStatus(429);
+        }
+
+        public void release() {
+            if (owner == null || !released.compareAndSet(false, true))
+                return;
+            if (report)
+                owner.runningReports.decrementAndGet();
+            piece.decrementAndGet();
+            user.running.decrementAndGet();
+        }
+    }
+
+    @AdmissionLimit
+    private static class Default {
+    }
+}
@@ -0,0 +1,34 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.myserverless;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Set admission limits of a Java piece class in deploy package, see AdmissionControl. Pieces without this annotation
+ * are interactive pieces limited by admission_piece_concurrency in myserverless.properties.
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface AdmissionLimit {
+
+    /** true for heavy report pieces, they share admission_report_concurrency slots */
+    boolean report() default false;
+
+    /** Max concurrent calls of this piece, 0 means use admission_piece_concurrency in myserverless.properties */
+    int concurrency() default 0;
+}
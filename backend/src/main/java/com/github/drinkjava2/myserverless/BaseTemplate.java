@@ -14,7 +14,6 @@ import static com.github.drinkjava2.myserverless.util.JsonUtil.getAsText;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -39,7 +38,7 @@ public abstract class BaseTemplate {
 
     protected String myToken; // current myToken 
     
-    protected  Map<String, Object> params; //root node of json input
+    protected MyServerlessRequest myRequest; //parsed json input
 
     protected String $0; //shortcut of params, only give first 10
     protected Object $1;
@@ -53,32 +52,27 @@ public abstract class BaseTemplate {
     protected Object $9;
     protected Object $10;
 
-    public void initParams(HttpServletRequest request, HttpServletResponse response, Map<String, Object> params, String myToken) {
+    public void initParams(HttpServletRequest request, HttpServletResponse response, MyServerlessRequest myRequest, String myToken) {
         this.request = request;
         this.response = response;
         this.myToken = myToken;
-        this.params =params; 
-        $0 = (String) params.get("$0");
-        $1 =  params.get("$1");  
-        $2 =  params.get("$2"); 
-        $3 =  params.get("$3"); 
-        $4 =  params.get("$4"); 
-        $5 =  params.get("$5"); 
-        $6 =  params.get("$6"); 
-        $7 =  params.get("$7"); 
-        $8 =  params.get("$8"); 
-        $9 =  params.get("$9"); 
-        $10 =  params.get("$10");  
+        this.myRequest = myRequest; 
+        $0 = myRequest.getPiece();
+        $1 = myRequest.getArg(1);  
+        $2 = myRequest.getArg(2); 
+        $3 = myRequest.getArg(3); 
+        $4 = myRequest.getArg(4); 
+        $5 = myRequest.getArg(5); 
+        $6 = myRequest.getArg(6); 
+        $7 = myRequest.getArg(7); 
+        $8 = myRequest.getArg(8); 
+        $9 = myRequest.getArg(9); 
+        $10 = myRequest.getArg(10);  
     }
 
     /** Pack all $1 , $2,... parameters into a Object[], usually used for SQL parameters */
     public Object[] getParamArray() { 
-        if(params.size()<=3) //$0, token, remoteMethod is always existing
-            return new Object[] {};
-        Object[] objs=new Object[params.size()-3];
-        for (int i = 1; i <= params.size()-3; i++)  
-            objs[i-1]=params.get("$"+i);  
-        return objs;
+        return myRequest.getArgs();
     }
 
     /**
@@ -0,0 +1,245 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.myserverless;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import com.github.drinkjava2.myserverless.util.MyFileUtils;
+import com.github.drinkjava2.myserverless.util.MyStrUtils;
+
+/**
+ * DeployManifest remember the size, last modified time, content hash and
+ * server piece ids of each front web file scanned by DeployTool, so next deploy
+ * only need re-parse changed files and can find deleted files.
+ *
+ * Manifest is saved in backend target folder, delete it (or "mvn clean") to
+ * force a full scan.
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class DeployManifest {
+    private static final String HEADER = "#MyServerless deploy manifest v1, path|size|lastModified|sha256|extractedPieces|referencedPieces";
+
+    private final String manifestFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public static class Entry {
+        long size;
+        long lastModified;
+        String hash;
+        Set<String> pieces = new LinkedHashSet<>(); // piece ids extracted to server side by goServer
+        Set<String> refs = new LinkedHashSet<>(); // all piece ids this file calls, like $myServerless(`PublicBackend$Logout`
+
+        public Set<String> getPieces() {
+            return pieces;
+        }
+
+        public Set<String> getRefs() {
+            return refs;
+        }
+    }
+
+    public DeployManifest(String manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    public static String getDefaultManifestFile() {
+        return MyServerlessEnv.backend_folder + "/target/myserverless-deploy.manifest";
+    }
+
+    /** Load manifest from default location, if not found return an empty manifest */
+    public static DeployManifest load() {
+        return load(getDefaultManifestFile());
+    }
+
+    public static DeployManifest load(String manifestFile) {
+        DeployManifest manifest = new DeployManifest(manifestFile);
+        String text = MyFileUtils.readFile(manifestFile, "UTF-8");
+        if (MyStrUtils.isEmpty(text))
+            return manifest;
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] items = line.split("\\|", -1);
+            if (items.length < 6)
+                continue;
+            Entry e = new Entry();
+            try {
+                e.size = Long.parseLong(items[1]);
+                e.lastModified = Long.parseLong(items[2]);
+            } catch (NumberFormatException ex) {
+                continue; // broken line, the file will be treated as changed
+            }
+            e.hash = items[3];
+            e.pieces.addAll(splitIds(items[4]));
+            e.refs.addAll(splitIds(items[5]));
+            manifest.entries.put(items[0], e);
+        }
+        return manifest;
+    }
+
+    private static List<String> splitIds(String s) {
+        List<String> result = new ArrayList<>();
+        for (String id : s.split(","))
+            if (!id.trim().isEmpty())
+                result.add(id.trim());
+        return result;
+    }
+
+    public void save() {
+        StringBuilder sb = new StringBuilder(HEADER).append("\n");
+        for (Map.Entry<String, Entry> item : new TreeMap<>(entries).entrySet()) {
+            Entry e = item.getValue();
+            sb.append(item.getKey()).append('|').append(e.size).append('|').append(e.lastModified).append('|').append(e.hash)
+                    .append('|').append(String.join(",", e.pieces)).append('|').append(String.join(",", e.refs)).append("\n");
+        }
+        MyFileUtils.writeFile(manifestFile, sb.toString(), "UTF-8");
+    }
+
+    public Entry get(File file) {
+        return entries.get(file.getAbsolutePath());
+    }
+
+    public Entry remove(String path) {
+        return entries.remove(path);
+    }
+
+    /**
+     * Return files new or changed since last deploy, check in parallel. Size and
+     * last modified time are compared first, only when they differ the content
+     * hash is calculated, so a touched but not modified file is still treated as
+     * unchanged.
+     */
+    public List<File> findChanged(List<File> files) {
+        List<File> changed = files.parallelStream().filter(file -> {
+            Entry e = get(file);
+            if (e == null)
+                return true;
+            if (e.size == file.length() && e.lastModified == file.lastModified())
+                return false;
+            if (e.size != file.length() || !hash(readBytes(file)).equals(e.hash))
+                return true;
+            e.lastModified = file.lastModified();
+            return false;
+        }).collect(Collectors.toList());
+        return changed;
+    }
+
+    /** Return paths in manifest but not exist in given file list */
+    public List<String> findDeleted(List<File> files) {
+        Set<String> exist = new HashSet<>();
+        for (File file : files)
+            exist.add(file.getAbsolutePath());
+        List<String> deleted = new ArrayList<>();
+        for (String path : entries.keySet())
+            if (!exist.contains(path))
+                deleted.add(path);
+        Collections.sort(deleted);
+        return deleted;
+    }
+
+    /**
+     * Record current state of a file after it be processed, extractedPieces are
+     * piece ids this deploy extracted to server side, old extracted pieces still
+     * referenced by the file are kept
+     *
+     * @return Old extracted piece ids no longer referenced by this file
+     */
+    public Set<String> update(File file, Set<String> extractedPieces) {
+        byte[] bytes = readBytes(file);
+        Entry e = new Entry();
+        e.size = file.length();
+        e.lastModified = file.lastModified();
+        e.hash = hash(bytes);
+        e.refs.addAll(findRefs(new String(bytes, StandardCharsets.UTF_8)));
+        Entry old = entries.put(file.getAbsolutePath(), e);
+        Set<String> removed = new LinkedHashSet<>();
+        if (old != null)
+            for (String id : old.pieces)
+                if (e.refs.contains(id))
+                    e.pieces.add(id);
+                else
+                    removed.add(id);
+        for (String id : extractedPieces)
+            if (e.refs.contains(id))
+                e.pieces.add(id);
+        return removed;
+    }
+
+    /** Return all extracted piece ids still recorded in manifest */
+    public Set<String> allPieces() {
+        Set<String> result = new HashSet<>();
+        for (Entry e : entries.values())
+            result.addAll(e.pieces);
+        return result;
+    }
+
+    /** Find all server piece ids called in text, inline sql/java source is not a piece id */
+    public static Set<String> findRefs(String text) {
+        Set<String> refs = new LinkedHashSet<>();
+        String start = "$" + MyServerlessEnv.call_server_method + "(`";
+        int pos = text.indexOf(start);
+        while (pos >= 0) {
+            int begin = pos + start.length();
+            int end = text.indexOf('`', begin);
+            if (end < 0)
+                break;
+            String id = text.substring(begin, end).trim();
+            if (id.matches("[A-Za-z0-9_$]+"))
+                refs.add(id);
+            pos = text.indexOf(start, end + 1);
+        }
+        return refs;
+    }
+
+    /** Return SHA-256 of file content */
+    public static String hash(File file) {
+        return hash(readBytes(file));
+    }
+
+    private static byte[] readBytes(File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest)
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -13,14 +13,19 @@ package com.github.drinkjava2.myserverless;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.github.drinkjava2.myserverless.util.MyFileUtils;
 import com.github.drinkjava2.myserverless.util.MyStrUtils;
 
 /**
  * DeployTool extract all SQL and Java in html or .js files to server side, and
- * reverse.
+ * reverse. A DeployManifest is used to only parse files changed since last
+ * deploy, files are parsed in parallel.
  * 
  * @author Yong Zhu
  * @since 1.0.0
@@ -58,10 +63,30 @@ public class DeployTool {
         System.out.println("Current srcWebapp folders are: " + Arrays.deepToString(MyServerlessEnv.getSrcWebappFolders()));
         System.out.println("Current projectRootFolder folder is: " + MyServerlessEnv.backend_folder);
         List<File> htmlJspfiles = searchSupportedWebFilesInMultiplePaths(MyServerlessEnv.getSrcWebappFolders());
-        System.out.println("Found " + htmlJspfiles.size() + " files, start transfer...");
-        List<String> toDeleteJavas = new ArrayList<String>();
-        for (File file : htmlJspfiles)
-            DeployToolUtils.oneFileToFront(file, false, toDeleteJavas, true);
+        DeployManifest manifest = DeployManifest.load();
+        Set<File> changed = new HashSet<>(manifest.findChanged(htmlJspfiles));
+        for (String path : manifest.findDeleted(htmlJspfiles))
+            manifest.remove(path);
+        List<File> toProcess = new ArrayList<>();
+        for (File file : htmlJspfiles) { //未修改且不调用后端片段的文件不需要处理
+            DeployManifest.Entry entry = manifest.get(file);
+            if (changed.contains(file) || entry == null || !entry.getRefs().isEmpty())
+                toProcess.add(file);
+        }
+        System.out.println("Found " + htmlJspfiles.size() + " files, " + toProcess.size() + " need check, start transfer...");
+        List<String> toDeleteJavas = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            toProcess.parallelStream().forEach(file -> {
+                String oldHash = DeployManifest.hash(file);
+                DeployToolUtils.oneFileToFront(file, false, toDeleteJavas, true);
+                if (oldHash.equals(DeployManifest.hash(file)))
+                    manifest.update(file, Collections.<String> emptySet());
+                else //源码已还原到前端文件，删除记录让下次goServer重新抽取
+                    manifest.remove(file.getAbsolutePath());
+            });
+        } finally {
+            manifest.save();
+        }
         for (String javaFile : toDeleteJavas) {
             System.out.println("Delete file:" + javaFile);
             new File(javaFile).delete();
@@ -78,18 +103,67 @@ public class DeployTool {
         System.out.println("Current srcWebapp folders are: " + Arrays.deepToString(MyServerlessEnv.getSrcWebappFolders()));
         System.out.println("Current projectRootFolder folder is: " + MyServerlessEnv.backend_folder);
         List<File> frontWebFiles = searchSupportedWebFilesInMultiplePaths(MyServerlessEnv.getSrcWebappFolders());
-        System.out.println("Found " + frontWebFiles.size() + " files, start transfer...");
-        List<SqlJavaPiece> sqlJavaPieces = new ArrayList<>();
-        for (File file : frontWebFiles) {
-            System.out.println(file.getAbsolutePath());
-            DeployToolUtils.oneFileToServ(sqlJavaPieces, file, true);
+        DeployManifest manifest = DeployManifest.load();
+        List<File> changed = manifest.findChanged(frontWebFiles);
+        List<String> deleted = manifest.findDeleted(frontWebFiles);
+        System.out.println("Found " + frontWebFiles.size() + " files, " + changed.size() + " changed, " + deleted.size()
+                + " deleted, start transfer...");
+        List<SqlJavaPiece> sqlJavaPieces = Collections.synchronizedList(new ArrayList<SqlJavaPiece>());
+        Set<String> orphans = Collections.synchronizedSet(new LinkedHashSet<String>());
+        try {
+            changed.parallelStream().forEach(file -> { //只解析有变化的文件，多个文件并行解析
+                System.out.println(file.getAbsolutePath());
+                List<SqlJavaPiece> pieces = new ArrayList<>();
+                DeployToolUtils.oneFileToServ(pieces, file, true);
+                Set<String> extracted = new HashSet<>();
+                for (SqlJavaPiece piece : pieces)
+                    extracted.add(piece.getClassName());
+                orphans.addAll(manifest.update(file, extracted));
+                sqlJavaPieces.addAll(pieces);
+            });
+            for (String path : deleted)
+                orphans.addAll(manifest.remove(path).getPieces());
+            orphans.removeAll(manifest.allPieces()); //还被其它文件调用的不算
+            for (String id : orphans) {
+                File javaFile = new File(MyServerlessEnv.getSrcDeployFolder() + "/" + id + ".java");
+                if (javaFile.exists()) {
+                    System.out.println("Delete orphan file:" + javaFile.getAbsolutePath());
+                    javaFile.delete();
+                }
+            }
+        } finally {
+            manifest.save();
         }
-        // for (SqlJavaPiece sqlJavaPiece : sqlJavaPieces) 
-        // System.out.println(sqlJavaPiece.getDebugInfo()); 
-        exportApiDoc(sqlJavaPieces);
+        exportApiDoc(collectApiPieces(manifest, frontWebFiles, sqlJavaPieces));
         System.out.println("Done!");
     }
 
+    /** API doc includes pieces extracted this time and pieces extracted before from unchanged files */
+    private static List<SqlJavaPiece> collectApiPieces(DeployManifest manifest, List<File> files, List<SqlJavaPiece> newPieces) {
+        if (MyStrUtils.isEmpty(MyServerlessEnv.api_export_file))
+            return newPieces;
+        Set<String> done = new HashSet<>();
+        List<SqlJavaPiece> result = new ArrayList<>(newPieces);
+        for (SqlJavaPiece piece : newPieces)
+            done.add(piece.getClassName());
+        for (File file : files) {
+            DeployManifest.Entry entry = manifest.get(file);
+            if (entry == null)
+                continue;
+            for (String id : entry.getPieces()) {
+                String javaFile = MyServerlessEnv.getSrcDeployFolder() + "/" + id + ".java";
+                if (!done.add(id) || !new File(javaFile).exists())
+                    continue;
+                SqlJavaPiece piece = SqlJavaPiece.parseFromJavaSrcFile(javaFile);
+                piece.setClassName(id);
+                piece.setLocation(file.getAbsolutePath());
+                result.add(piece);
+            }
+        }
+        result.sort((a, b) -> a.getLocation().compareTo(b.getLocation()));
+        return result;
+    }
+
     private static void exportApiDoc(List<SqlJavaPiece> pieces) { 
         if (MyStrUtils.isEmpty(MyServerlessEnv.api_export_file))
             return;
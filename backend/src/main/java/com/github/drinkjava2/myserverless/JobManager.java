@@ -0,0 +1,334 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.myserverless;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+import com.github.drinkjava2.myserverless.util.JsonUtil;
+
+/**
+ * JobManager runs long pieces (like a full MRP run or a year long report) as background jobs in a bounded thread pool,
+ * so they do not time out inside a http request. Front end sends a normal call with "job":"submit" to get a job id,
+ * then "status" (long-poll), "result", "cancel" or "list", see MyServerlessServlet.doJob.
+ *
+ * <pre>
+ * job_threads: jobs run at same time, others wait in a queue of job_queue_size, submit is rejected when it's full
+ * job_store: JobStore implementation, job state is saved to it so finished jobs survive restarts
+ * job_inline_size: result JSON not larger than it is saved in job, larger result is saved in a gzip file of job_folder
+ * job_keep_hours: jobs and their result files older than it are deleted
+ * </pre>
+ *
+ * A piece running as a job can call JobManager.progress to report progress, and check JobManager.isCancelled to stop
+ * early when cancelled, cancel also interrupts the job thread. Pieces run as jobs have no request and response.
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class JobManager {// NOSONAR
+    public static final int MAX_LIST = 50; //max jobs returned by list
+    private static final long SAVE_PROGRESS_MILLIS = 1000; //progress is saved to JobStore at most once per second
+    private static final long CLEAN_MILLIS = 3600 * 1000L;
+
+    private static final Log log = LogFactory.getLog(JobManager.class);
+    private static final JobStore store = MyServerlessEnv.jobStore;
+    private static final ConcurrentHashMap<String, MyServerlessJob> jobs = new ConcurrentHashMap<String, MyServerlessJob>(); //unfinished jobs, and finished jobs if no JobStore
+    private static final ThreadLocal<MyServerlessJob> current = new ThreadLocal<MyServerlessJob>();
+    private static final AtomicLong cleanedAt = new AtomicLong(System.currentTimeMillis());
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(MyServerlessEnv.job_threads, MyServerlessEnv.job_threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(1, MyServerlessEnv.job_queue_size)), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "myserverless-job-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static {
+        if (store != null)
+            try {
+                for (MyServerlessJob job : store.listUnfinished())
+                    store.save(job.setStatus(MyServerlessJob.FAILED).setMessage("Interrupted by server restart.").setEndTime(new Date()));
+            } catch (Exception e) {
+                log.error("Can not load unfinished jobs from JobStore", e);
+            }
+    }
+
+    /**
+     * Submit a task as a job, return the QUEUED job
+     *
+     * @throws RejectedExecutionException if job queue is full
+     */
+    public static MyServerlessJob submit(String owner, String piece, final Callable<JsonResult> task) {
+        cleanIfDue();
+        final MyServerlessJob job = new MyServerlessJob().setId(UUID.randomUUID().toString().replace("-", "")).setOwner(owner).setPiece(piece)
+                .setStatus(MyServerlessJob.QUEUED).setProgress(0).setCreateTime(new Date());
+        FutureTask<Object> future = new FutureTask<Object>(new Runnable() {
+            public void run() {
+                runJob(job, task);
+            }
+        }, null);
+        job.future = future; //set before the job can be found by find or cancel
+        jobs.put(job.getId(), job);
+        save(job);
+        try {
+            pool.execute(future); //started after QUEUED state saved, so the saved QUEUED state never overwrites RUNNING
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            if (store != null)
+                store.delete(job.getId());
+            throw e;
+        }
+        return job;
+    }
+
+    private static void runJob(MyServerlessJob job, Callable<JsonResult> task) {
+        synchronized (job) {
+            if (job.cancelRequested)
+                return; //cancelled when queued
+            job.setStatus(MyServerlessJob.RUNNING).setStartTime(new Date());
+            changed(job);
+        }
+        save(job);
+        current.set(job);
+        JsonResult result = null;
+        Throwable error = null; //catch Errors too, otherwise the job stays RUNNING and waitFor never returns
+        try {
+            result = task.call();
+            if (result == null)
+                error = new IllegalStateException("Job returned no result.");
+        } catch (Throwable e) {
+            error = e;
+        } finally {
+            current.remove();
+            Thread.interrupted(); //clear interrupted flag set by cancel, the thread is reused
+        }
+        try {
+            if (!job.cancelRequested && error == null)
+                saveResult(job, result);
+        } catch (Throwable e) {
+            error = e;
+        }
+        synchronized (job) {
+            if (job.cancelRequested)
+                job.setStatus(MyServerlessJob.CANCELLED).setMessage("Cancelled.");
+            else if (error != null)
+                job.setStatus(MyServerlessJob.FAILED).setMessage("Error: " + (error.getMessage() == null ? error.toString() : error.getMessage()));
+            else
+                job.setStatus(MyServerlessJob.DONE).setProgress(100).setResultCode(result.getCode())
+                        .setMessage(result.getCode() == JsonResult.CODE200 ? job.getMessage() : result.getMsg());
+            job.setEndTime(new Date());
+            changed(job);
+        }
+        if (error != null)
+            log.error("Job " + job.getId() + " of " + job.getPiece() + " failed", error);
+        save(job);
+        if (store != null)
+            jobs.remove(job.getId());
+    }
+
+    /** Save result JSON in job if it's small, or in a gzip file */
+    private static void saveResult(MyServerlessJob job, JsonResult result) throws IOException {
+        result.setStatus(null);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        JsonUtil.writeJSON(result, bytes);
+        job.setResultSize((long) bytes.size());
+        if (bytes.size() <= MyServerlessEnv.job_inline_size) {
+            job.setResult(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+            return;
+        }
+        File folder = new File(MyServerlessEnv.job_folder);
+        if (!folder.exists())
+            folder.mkdirs();
+        File file = new File(folder, job.getId() + ".json.gz");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(file), 64 * 1024) {
+            {
+                def.setLevel(Math.max(1, MyServerlessEnv.gzip_level));
+            }
+        };
+        try {
+            bytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+        job.setResultFile(file.getPath());
+    }
+
+    private static void changed(MyServerlessJob job) {
+        job.version++;
+        job.notifyAll();
+    }
+
+    private static void save(MyServerlessJob job) {
+        if (store == null)
+            return;
+        job.savedAt = System.currentTimeMillis();
+        try {
+            store.save(job);
+        } catch (Exception e) {
+            log.error("Can not save job " + job.getId() + " to JobStore", e);
+        }
+    }
+
+    /** Report progress of current job, do nothing if current thread is not running a job */
+    public static void progress(int percent, String message) {
+        MyServerlessJob job = current.get();
+        if (job == null)
+            return;
+        synchronized (job) {
+            job.setProgress(Math.max(0, Math.min(100, percent))).setMessage(message);
+            changed(job);
+        }
+        if (System.currentTimeMillis() - job.savedAt >= SAVE_PROGRESS_MILLIS)
+            save(job);
+    }
+
+    /** Return true if current thread is running a job and it's cancelled */
+    public static boolean isCancelled() {
+        MyServerlessJob job = current.get();
+        return job != null && job.cancelRequested;
+    }
+
+    /** Return a job by id, or null if not found */
+    public static MyServerlessJob find(String id) {
+        MyServerlessJob job = jobs.get(id);
+        if (job == null && store != null)
+            job = store.load(id);
+        return job;
+    }
+
+    /** Return latest jobs of the owner, newest first */
+    public static List<MyServerlessJob> list(String owner) {
+        if (store != null)
+            return store.listByOwner(owner, MAX_LIST);
+        List<MyServerlessJob> list = new ArrayList<MyServerlessJob>();
+        for (MyServerlessJob job : jobs.values())
+            if (owner.equals(job.getOwner()))
+                list.add(job);
+        Collections.sort(list, new Comparator<MyServerlessJob>() {
+            public int compare(MyServerlessJob a, MyServerlessJob b) {
+                return b.getCreateTime().compareTo(a.getCreateTime());
+            }
+        });
+        return list.size() > MAX_LIST ? new ArrayList<MyServerlessJob>(list.subList(0, MAX_LIST)) : list;
+    }
+
+    /** Wait until the job changed (status, progress or message) or finished, at most millis milliseconds */
+    public static void waitFor(MyServerlessJob job, long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (job) {
+            int version = job.version;
+            long left = millis;
+            while (!job.isFinished() && job.version == version && left > 0) {
+                try {
+                    job.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                left = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    /** Cancel a queued or running job, return false if it's finished already */
+    public static boolean cancel(MyServerlessJob job) {
+        boolean queued;
+        synchronized (job) {
+            if (job.isFinished() || job.future == null)
+                return false;
+            job.cancelRequested = true;
+            queued = MyServerlessJob.QUEUED.equals(job.getStatus());
+            if (queued) {
+                job.setStatus(MyServerlessJob.CANCELLED).setMessage("Cancelled.").setEndTime(new Date());
+                changed(job);
+            }
+        }
+        job.future.cancel(!queued); //interrupt if running, a running job becomes CANCELLED when the piece returns
+        if (queued) {
+            pool.remove((Runnable) job.future);
+            save(job);
+            if (store != null)
+                jobs.remove(job.getId());
+        }
+        return true;
+    }
+
+    /** Write result JSON of a DONE job to response */
+    public static void writeResult(HttpServletRequest req, HttpServletResponse resp, MyServerlessJob job) throws IOException {
+        if (job.getResultFile() != null) {
+            ResponseWriter.writeGzipFile(req, resp, new File(job.getResultFile()), job.getResultSize());
+            return;
+        }
+        byte[] data = job.getResult().getBytes(StandardCharsets.UTF_8);
+        if (ResponseWriter.shouldGzip(req, data.length)) {
+            byte[] gzipped = ResponseWriter.gzip(data);
+            ResponseWriter.write(resp, gzipped, gzipped.length, data.length, true);
+        } else
+            ResponseWriter.write(resp, data, data.length, data.length, false);
+    }
+
+    /** Delete finished jobs and result files older than job_keep_hours, at most once per hour */
+    private static void cleanIfDue() {
+        long now = System.currentTimeMillis();
+        long last = cleanedAt.get();
+        if (now - last < CLEAN_MILLIS || !cleanedAt.compareAndSet(last, now))
+            return;
+        Date before = new Date(now - MyServerlessEnv.job_keep_hours * 3600 * 1000L);
+        List<MyServerlessJob> old = new ArrayList<MyServerlessJob>();
+        for (MyServerlessJob job : jobs.values())
+            if (job.isFinished() && job.getCreateTime().before(before))
+                old.add(job);
+        try {
+            if (store != null)
+                old.addAll(store.listCreatedBefore(before));
+            for (MyServerlessJob job : old) {
+                if (!job.isFinished())
+                    continue;
+                jobs.remove(job.getId());
+                if (job.getResultFile() != null)
+                    new File(job.getResultFile()).delete();
+                if (store != null)
+                    store.delete(job.getId());
+            }
+        } catch (Exception e) {
+            log.error("Can not delete old jobs", e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.myserverless;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * JobStore saves state of background jobs so they survive restarts, should implemented by user and set as job_store in
+ * myserverless.properties. If job_store is empty, jobs are only kept in memory.
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public interface JobStore {
+
+    /** Insert the job, or update it if already exist */
+    public void save(MyServerlessJob job);
+
+    /** Return the job, or null if not found */
+    public MyServerlessJob load(String id);
+
+    /** Return latest max jobs of the owner, newest first */
+    public List<MyServerlessJob> listByOwner(String owner, int max);
+
+    /** Return QUEUED and RUNNING jobs, called once at start to mark jobs interrupted by restart as FAILED */
+    public List<MyServerlessJob> listUnfinished();
+
+    /** Return jobs created before the time, to delete old jobs and their result files */
+    public List<MyServerlessJob> listCreatedBefore(Date time);
+
+    public void delete(String id);
+
+}
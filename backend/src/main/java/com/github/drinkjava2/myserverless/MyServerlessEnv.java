@@ -75,12 +75,48 @@ public class MyServerlessEnv {// NOSONAR
 
     public static final String api_export_file = prop.getProperty("api_export_file"); //API export file name, default is empty
 
+    // max calls in one batch request, and max threads to run calls of "parallel" mode batches
+    public static final int batch_max_calls = intProp("batch_max_calls", 100);
+    public static final int batch_threads = intProp("batch_threads", Runtime.getRuntime().availableProcessors() * 2);
+
+    // seconds and max entries of ResponseCache, set seconds to 0 to disable response cache
+    public static final int response_cache_seconds = intProp("response_cache_seconds", 0);
+    public static final int response_cache_capacity = intProp("response_cache_capacity", 1000);
+    // if true, deployed query template pieces are cached like pieces marked with @ResponseCacheable
+    public static final boolean response_cache_qry_templates = "true".equalsIgnoreCase(prop.getProperty("response_cache_qry_templates"));
+
+    // responses not smaller than gzip_min_size bytes are gzip compressed if client accepts, gzip_level is 1~9, 0 means disable
+    public static final int gzip_min_size = intProp("gzip_min_size", 1024);
+    public static final int gzip_level = intProp("gzip_level", 3);
+
+    // log metrics of pieces and SQLs every metrics_log_seconds, 0 means do not log
+    public static final int metrics_log_seconds = intProp("metrics_log_seconds", 0);
+
+    // AdmissionControl limits, calls per second and burst of each user, max running calls of each user, each piece and all report pieces, 0 means no limit
+    public static final int admission_user_rate = intProp("admission_user_rate", 0);
+    public static final int admission_user_burst = intProp("admission_user_burst", 1);
+    public static final int admission_user_concurrency = intProp("admission_user_concurrency", 0);
+    public static final int admission_piece_concurrency = intProp("admission_piece_concurrency", 0);
+    public static final int admission_report_concurrency = intProp("admission_report_concurrency", 0);
+
+    // JobManager settings, threads and queue size of background jobs, max seconds of a status long-poll, hours to keep finished jobs
+    public static final JobStore jobStore; //JobStore class name, empty means jobs are only kept in memory
+    public static final int job_threads = intProp("job_threads", 1);
+    public static final int job_queue_size = intProp("job_queue_size", 20);
+    public static final int job_max_wait_seconds = intProp("job_max_wait_seconds", 30);
+    public static final int job_keep_hours = intProp("job_keep_hours", 72);
+    public static final int job_inline_size = intProp("job_inline_size", 4000); //larger job result is saved in a gzip file in job_folder
+    public static final String job_folder = MyStrUtils.isEmpty(prop.getProperty("job_folder")) ? System.getProperty("java.io.tmpdir") + "/myserverless-jobs"
+            : prop.getProperty("job_folder").trim();
+
     //http header setting
     public static final String Access_Control_Allow_Origin = prop.getProperty("Access_Control_Allow_Origin");
     public static final String Access_Control_Allow_Methods = prop.getProperty("Access_Control_Allow_Methods");
     public static final String Access_Control_Max_Age = prop.getProperty("Access_Control_Max_Age");
     public static final String Access_Control_Allow_Headers = prop.getProperty("Access_Control_Allow_Headers");
     public static final String Access_Control_Allow_Credentials = prop.getProperty("Access_Control_Allow_Credentials");
+    public static final String Access_Control_Expose_Headers = MyStrUtils.isEmpty(prop.getProperty("Access_Control_Expose_Headers")) ? "ETag, Retry-After"
+            : prop.getProperty("Access_Control_Expose_Headers");
 
     static {
         if (!("product".equalsIgnoreCase(stage) || "develop".equalsIgnoreCase(stage)))
@@ -94,6 +130,17 @@ public class MyServerlessEnv {// NOSONAR
             throw new RuntimeException(e);
         }
 
+        String job_store = prop.getProperty("job_store");
+        if (MyStrUtils.isEmpty(job_store))
+            jobStore = null;
+        else
+            try {
+                jobStore = (JobStore) Class.forName(job_store.trim()).newInstance();
+            } catch (Exception e) {
+                System.err.println("Error: job_store setting in myserverless.properties not right, should be a class name, like com.xx.Xxxx");
+                throw new RuntimeException(e);
+            }
+
         String web_files_str = prop.getProperty("web_files");
         if (MyStrUtils.isEmpty(web_files_str)) {
             throw new IllegalArgumentException("web_files configration missing, an example: web_files=html,htm,js");
@@ -113,6 +160,11 @@ public class MyServerlessEnv {// NOSONAR
         backend_folder = MyStrUtils.substringBefore(newFilePath, "/target");
     }
 
+    private static int intProp(String key, int defaultValue) {
+        String value = prop.getProperty(key);
+        return MyStrUtils.isEmpty(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
     /**
      * Register customized MyServerless template class
      * 
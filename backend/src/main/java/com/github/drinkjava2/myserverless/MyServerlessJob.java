@@ -0,0 +1,188 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.myserverless;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * State of a background job run by JobManager, saved by JobStore. Result of a finished job is the JSON of the piece's
+ * JsonResult, small result is kept in result field, large result is saved in a gzip file whose name is resultFile.
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class MyServerlessJob {
+    public static final String QUEUED = "QUEUED";
+    public static final String RUNNING = "RUNNING";
+    public static final String DONE = "DONE"; // piece returned a JsonResult, resultCode can still be an error code
+    public static final String FAILED = "FAILED"; // exception thrown or server restarted
+    public static final String CANCELLED = "CANCELLED";
+
+    private String id;
+    private String owner; // TokenSecurity.getOwner(myToken)
+    private String piece; // piece name, same as PieceMetrics
+    private String status;
+    private Integer progress; // 0~100
+    private String message; // progress message or error message
+    private Integer resultCode;
+    private String result;
+    private String resultFile;
+    private Long resultSize; // bytes of result JSON before compress
+    private Date createTime;
+    private Date startTime;
+    private Date endTime;
+
+    volatile boolean cancelRequested;
+    Future<?> future;
+    long savedAt; // last time progress saved to JobStore
+    int version; // increased by each change, guarded by this
+
+    public boolean isFinished() {
+        return DONE.equals(status) || FAILED.equals(status) || CANCELLED.equals(status);
+    }
+
+    /** Return state of this job for front end, result is not included */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("id", id);
+        map.put("piece", piece);
+        map.put("status", status);
+        map.put("progress", progress);
+        map.put("message", message);
+        map.put("resultCode", resultCode);
+        map.put("resultSize", resultSize);
+        map.put("createTime", createTime);
+        map.put("startTime", startTime);
+        map.put("endTime", endTime);
+        return map;
+    }
+
+    // getter & setters ==========
+    public String getId() {
+        return id;
+    }
+
+    public MyServerlessJob setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public MyServerlessJob setOwner(String owner) {
+        this.owner = owner;
+        return this;
+    }
+
+    public String getPiece() {
+        return piece;
+    }
+
+    public MyServerlessJob setPiece(String piece) {
+        this.piece = piece;
+        return this;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public MyServerlessJob setStatus(String status) {
+        this.status = status;
+        return this;
+    }
+
+    public Integer getProgress() {
+        return progress;
+    }
+
+    public MyServerlessJob setProgress(Integer progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public MyServerlessJob setMessage(String message) {
+        this.message = message;
+        return this;
+    }
+
+    public Integer getResultCode() {
+        return resultCode;
+    }
+
+    public MyServerlessJob setResultCode(Integer resultCode) {
+        this.resultCode = resultCode;
+        return this;
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    public MyServerlessJob setResult(String result) {
+        this.result = result;
+        return this;
+    }
+
+    public String getResultFile() {
+        return resultFile;
+    }
+
+    public MyServerlessJob setResultFile(String resultFile) {
+        this.resultFile = resultFile;
+        return this;
+    }
+
+    public Long getResultSize() {
+        return resultSize;
+    }
+
+    public MyServerlessJob setResultSize(Long resultSize) {
+        this.resultSize = resultSize;
+        return this;
+    }
+
+    public Date getCreateTime() {
+        return createTime;
+    }
+
+    public MyServerlessJob setCreateTime(Date createTime) {
+        this.createTime = createTime;
+        return this;
+    }
+
+    public Date getStartTime() {
+        return startTime;
+    }
+
+    public MyServerlessJob setStartTime(Date startTime) {
+        this.startTime = startTime;
+        return this;
+    }
+
+    public Date getEndTime() {
+        return endTime;
+    }
+
+    public MyServerlessJob setEndTime(Date endTime) {
+        this.endTime = endTime;
+        return this;
+    }
+}
@@ -0,0 +1,239 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.myserverless;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.github.drinkjava2.myserverless.util.JsonUtil;
+
+/**
+ * A remote call sent from front end, like {"remoteMethod":"qryString", "$0":"select ...", "$1":..., "myToken":"..."}, or
+ * a batch of calls like {"batch":[{...},{...}], "mode":"parallel", "myToken":"..."}. A call with "job" field is a
+ * background job action, see MyServerlessServlet.doJob.
+ *
+ * It's parsed by a streaming JsonParser directly from the request InputStream, only $1, $2... values are bound (by a
+ * shared ObjectReader) to Map/List/basic types, no intermediate String or Map of the whole body is created. Unknown
+ * fields are skipped. $0, remoteMethod, myToken, mode and job must be strings (or null/numbers/booleans), an object or
+ * array value is rejected. A batch can not be nested, so a deeply nested payload is rejected before it can overflow the
+ * stack (nesting of $N values is limited by Jackson's UntypedObjectDeserializer).
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class MyServerlessRequest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectReader VALUE_READER = MAPPER.readerFor(Object.class); //shared and thread safe
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+    private static final Object[] EMPTY_ARGS = new Object[] {};
+
+    private String remoteMethod = ""; // like java/javaTx/qryMapList...
+    private String piece; // $0, a SQL/Java piece or a class name in deploy package
+    private Object[] args = EMPTY_ARGS; // $1, $2 ...
+    private int argCount; // largest N of received $N, null values are counted
+    private String myToken;
+    private List<MyServerlessRequest> batch; // not null if it's a batch request
+    private String mode; // batch mode
+    private String job; // job action: submit/status/result/cancel/list, see MyServerlessServlet.doJob
+
+    /** Parse from a stream, return null if the stream is empty */
+    public static MyServerlessRequest parse(InputStream in) throws IOException {
+        JsonParser p = FACTORY.createParser(in);
+        try {
+            return p.nextToken() == null ? null : read(p, false);
+        } finally {
+            p.close();
+        }
+    }
+
+    /** Parse from a String, return null if the String is empty */
+    public static MyServerlessRequest parse(String json) throws IOException {
+        JsonParser p = FACTORY.createParser(json);
+        try {
+            return p.nextToken() == null ? null : read(p, false);
+        } finally {
+            p.close();
+        }
+    }
+
+    private static MyServerlessRequest read(JsonParser p, boolean inBatch) throws IOException {
+        if (p.currentToken() != JsonToken.START_OBJECT)
+            throw new JsonParseException(p, "Request should be a JSON object");
+        MyServerlessRequest r = new MyServerlessRequest();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken token = p.nextToken();
+            if ("$0".equals(name))
+                r.piece = scalar(p, name);
+            else if ("remoteMethod".equals(name))
+                r.remoteMethod = token == JsonToken.VALUE_NULL ? "" : scalar(p, name);
+            else if ("myToken".equals(name))
+                r.myToken = scalar(p, name);
+            else if ("mode".equals(name))
+                r.mode = scalar(p, name);
+            else if ("job".equals(name))
+                r.job = scalar(p, name);
+            else if (MyServerlessServlet.BATCH.equals(name) && token == JsonToken.START_ARRAY) {
+                if (inBatch)
+                    throw new JsonParseException(p, "Batch can not be nested");
+                r.batch = new ArrayList<MyServerlessRequest>();
+                while (p.nextToken() != JsonToken.END_ARRAY)
+                    r.batch.add(p.currentToken() == JsonToken.START_OBJECT ? read(p, true) : skip(p));
+            } else {
+                int index = argIndex(name);
+                if (index > 0)
+                    r.setArg(index, VALUE_READER.readValue(p));
+                else
+                    p.skipChildren();
+            }
+        }
+        return r;
+    }
+
+    /** Return a string field value, reject an object or array value */
+    private static String scalar(JsonParser p, String name) throws IOException {
+        if (p.currentToken().isStructStart())
+            throw new JsonParseException(p, "Field \"" + name + "\" should be a string");
+        return p.getValueAsString();
+    }
+
+    /** Skip a non-object item in batch array, it will be reported as an empty call */
+    private static MyServerlessRequest skip(JsonParser p) throws IOException {
+        p.skipChildren();
+        return new MyServerlessRequest();
+    }
+
+    /** Return N of "$N", or -1 if not a "$N" name */
+    private static int argIndex(String name) {
+        if (name.length() < 2 || name.length() > 4 || name.charAt(0) != '$')
+            return -1;
+        int n = 0;
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            n = n * 10 + c - '0';
+        }
+        return n;
+    }
+
+    private void setArg(int index, Object value) {
+        if (index > args.length)
+            args = Arrays.copyOf(args, Math.max(index, args.length * 2));
+        args[index - 1] = value;
+        argCount = Math.max(argCount, index);
+    }
+
+    /** Return arg $index (start from 1), or null if not exist */
+    public Object getArg(int index) {
+        return index >= 1 && index <= argCount ? args[index - 1] : null;
+    }
+
+    /** Return $1, $2... as an array, length is the largest N of received $N */
+    public Object[] getArgs() {
+        return Arrays.copyOf(args, argCount);
+    }
+
+    /** Used for debug info only */
+    @Override
+    public String toString() {
+        return JsonUtil.toJSON(toMap());
+    }
+
+    private Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        if (batch != null) {
+            List<Object> calls = new ArrayList<Object>();
+            for (MyServerlessRequest call : batch)
+                calls.add(call.toMap());
+            map.put("batch", calls);
+            map.put("mode", mode);
+        } else {
+            map.put("remoteMethod", remoteMethod);
+            map.put("$0", piece);
+            for (int i = 1; i <= argCount; i++)
+                map.put("$" + i, args[i - 1]);
+        }
+        return map;
+    }
+
+    // getter & setters ==========
+    public String getRemoteMethod() {
+        return remoteMethod;
+    }
+
+    public MyServerlessRequest setRemoteMethod(String remoteMethod) {
+        this.remoteMethod = remoteMethod;
+        return this;
+    }
+
+    public String getPiece() {
+        return piece;
+    }
+
+    public MyServerlessRequest setPiece(String piece) {
+        this.piece = piece;
+        return this;
+    }
+
+    public MyServerlessRequest setArgs(Object... args) {
+        this.args = args == null ? EMPTY_ARGS : args;
+        this.argCount = this.args.length;
+        return this;
+    }
+
+    public String getMyToken() {
+        return myToken;
+    }
+
+    public MyServerlessRequest setMyToken(String myToken) {
+        this.myToken = myToken;
+        return this;
+    }
+
+    public List<MyServerlessRequest> getBatch() {
+        return batch;
+    }
+
+    public MyServerlessRequest setBatch(List<MyServerlessRequest> batch) {
+        this.batch = batch;
+        return this;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public MyServerlessRequest setMode(String mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public String getJob() {
+        return job;
+    }
+
+    public MyServerlessRequest setJob(String job) {
+        this.job = job;
+        return this;
+    }
+}
@@ -10,11 +10,21 @@
  */
 package com.github.drinkjava2.myserverless;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -22,7 +32,10 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.drinkjava2.jdbpro.TableChangeTracker;
+import com.github.drinkjava2.jsqlbox.DB;
+import com.github.drinkjava2.jtransactions.ConnectionManager;
 import com.github.drinkjava2.myserverless.compile.DynamicCompileEngine;
 import com.github.drinkjava2.myserverless.util.JsonUtil;
 import com.github.drinkjava2.myserverless.util.MyStrUtils;
@@ -35,6 +48,16 @@ import com.github.drinkjava2.myserverless.util.MyStrUtils;
  */
 @SuppressWarnings("all")
 public class MyServerlessServlet extends HttpServlet {
+    /** 上传模式下，json参数经encodeURIComponent编码后放在这个请求头里，请求体是上传的文件流，由后端方法用request.getInputStream()读取 */
+    public static final String UPLOAD_PARAMS_HEADER = "MyServerless-Params";
+
+    /** 批量模式下，请求json里这个key是调用数组，每个调用和单个请求的格式一样，见doBatch方法 */
+    public static final String BATCH = "batch";
+
+    /** 请求json里"job"的值为submit时，把调用作为后台任务提交，其它值用来查询、取结果、取消任务，见doJob方法 */
+    public static final String JOB_SUBMIT = "submit";
+
+    private static volatile ExecutorService batchExecutor; //parallel模式批量请求的线程池，第一次用到时创建
 
     private static void setResponseXhrHeaders(HttpServletResponse resp) {
         resp.addHeader("Access-Control-Allow-Origin", MyServerlessEnv.Access_Control_Allow_Origin);
@@ -42,6 +65,7 @@ public class MyServerlessServlet extends HttpServlet {
         resp.addHeader("Access-Control-Max-Age", MyServerlessEnv.Access_Control_Max_Age);
         resp.addHeader("Access-Control-Allow-Headers", MyServerlessEnv.Access_Control_Allow_Headers);
         resp.addHeader("Access-Control-Allow-Credentials", MyServerlessEnv.Access_Control_Allow_Credentials);
+        resp.addHeader("Access-Control-Expose-Headers", MyServerlessEnv.Access_Control_Expose_Headers);
     };
 
     @Override
@@ -66,6 +90,7 @@ public class MyServerlessServlet extends HttpServlet {
         resp.setCharacterEncoding("utf-8");
 
         JsonResult jsonResult = doActionBody(req, resp);
+        PieceMetrics metrics = PieceMetrics.takeCurrent();
         Integer status = jsonResult.getStatus();
         if (status != null)
             resp.setStatus(status);
@@ -76,52 +101,202 @@ public class MyServerlessServlet extends HttpServlet {
         if (BaseTemplate.NONE.equals(jsonResult.getData())) // if return NONE, do nothing, user can write to req themself
             return;
 
-        resp.setHeader("Content-Type", "application/json;charset:utf-8");
-        String jsonStr = JsonUtil.toJSON(jsonResult);
-        PrintWriter out = null;
+        long start = System.nanoTime();
         try {
-            out = resp.getWriter();
-            out.println(jsonStr);
-            out.flush();
+            ResponseWriter.writeJson(req, resp, jsonResult); //按Accept-Encoding决定是否gzip压缩
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            if (out != null)
-                out.close();
         }
+        if (metrics != null)
+            metrics.record(PieceMetrics.SERIALIZE, System.nanoTime() - start);
     }
 
     /** Dispatch remote call to related classes, and return a json */
     public static JsonResult doActionBody(HttpServletRequest req, HttpServletResponse resp) {
-        String jsonString = null;
         try {
             req.setCharacterEncoding("utf-8");
         } catch (UnsupportedEncodingException e1) {
             return JsonResult.json206("Error: unsupported utf-8 encoding on server side.", req, null);
         }
 
+        MyServerlessRequest r = null;
+        String uploadParams = req.getHeader(UPLOAD_PARAMS_HEADER);
         try {
-            BufferedReader reader = req.getReader();
-            jsonString = reader.readLine();
-        } catch (IOException e1) {
+            if (uploadParams != null) //upload mode, do not touch the body stream
+                r = MyServerlessRequest.parse(URLDecoder.decode(uploadParams, "UTF-8"));
+            else
+                r = MyServerlessRequest.parse(req.getInputStream()); //直接从流中解析，不生成整个请求体的字符串
+        } catch (JsonProcessingException e) {
+            e.printStackTrace();
+        } catch (Exception e1) {
             return JsonResult.json206("Error: can not read json on server side.", req, null);
         }
+        if (r == null)
+            return JsonResult.json206("Error: unsupport json format on server side.", req, null);
 
-        Map<String, Object> params = null;
+        String myToken = findMyToken(req, r);
+        if (r.getJob() != null && !JOB_SUBMIT.equals(r.getJob()))
+            return doJob(req, resp, r, myToken);
+        if (r.getBatch() != null)
+            return doBatch(req, resp, r, myToken);
+
+        if (MyStrUtils.isEmpty(r.getPiece()))
+            return JsonResult.json206("Error: request body is empty.", req, r.toString());
+
+        Call call = new Call(r);
+        JsonResult error = prepare(req, call, myToken);
+        if (error != null)
+            return error;
+        long start = System.nanoTime();
+        error = checkError(MyServerlessEnv.tokenSecurity.check(myToken, call.methodId, call.hotCompile));//重要，在这里调用系统配置的TokenSecurity进行权限检查
+        call.metrics.record(PieceMetrics.AUTH, System.nanoTime() - start);
+        if (error != null)
+            return call.metrics.finish(error);
+        if (JOB_SUBMIT.equals(r.getJob()))
+            return submitJob(req, resp, call, myToken);
+        AdmissionControl.Ticket ticket = AdmissionControl.instance.tryAcquire(admissionUser(req, myToken), call.name, AdmissionControl.limitOf(call.childClass));
+        if (!ticket.isAdmitted())
+            return call.metrics.finish(reject(resp, ticket));
         try {
-            params = (Map<String, Object>) new ObjectMapper().readValue(jsonString, Object.class);
+            int cacheSeconds = call.hotCompile ? 0 : ResponseCache.cacheSeconds(call.childClass);
+            if (cacheSeconds > 0)
+                return call.metrics.finish(executeCached(req, resp, call, myToken, cacheSeconds));
+            return call.metrics.finish(execute(req, resp, call, myToken));
+        } finally {
+            ticket.release();
+        }
+    }
+
+    /**
+     * Submit a call as a background job to JobManager, return the job state. Only per user limits of AdmissionControl
+     * are applied to submit, a running job is limited by job_threads.
+     */
+    private static JsonResult submitJob(HttpServletRequest req, HttpServletResponse resp, final Call call, final String myToken) {
+        String owner = MyStrUtils.isEmpty(myToken) ? null : MyServerlessEnv.tokenSecurity.getOwner(myToken);
+        if (MyStrUtils.isEmpty(owner))
+            return JsonResult.json206("Error: login is required to submit a job.");
+        AdmissionControl.Ticket ticket = AdmissionControl.instance.tryAcquire(admissionUser(req, myToken), call.name, AdmissionControl.limitOf(null));
+        if (!ticket.isAdmitted())
+            return reject(resp, ticket);
+        try {
+            MyServerlessJob job = JobManager.submit(owner, call.name, new Callable<JsonResult>() {
+                public JsonResult call() {
+                    JsonResult result = call.metrics.finish(execute(null, null, call, myToken)); //no request and response in job thread
+                    PieceMetrics.takeCurrent();
+                    return result;
+                }
+            });
+            return new JsonResult(JsonResult.CODE200, "", job.toMap());
+        } catch (RejectedExecutionException e) {
+            resp.setHeader("Retry-After", "10");
+            return new JsonResult(429, "Error: too many jobs in queue, please retry later.").setStatus(429);
+        } finally {
+            ticket.release();
+        }
+    }
+
+    /**
+     * Execute a job action on a job of current user, body like {"job":"status", "$1":"jobId", "$2":waitSeconds}, "job"
+     * can be:
+     * 
+     * <pre>
+     * status: return job state, if $2 is set, wait at most $2 (and job_max_wait_seconds) seconds until the job changed
+     * result: return the JsonResult of a DONE job, large result is streamed from its gzip file
+     * cancel: cancel a queued or running job, return job state
+     * list: return latest jobs of current user
+     * </pre>
+     */
+    private static JsonResult doJob(HttpServletRequest req, HttpServletResponse resp, MyServerlessRequest r, String myToken) {
+        String owner = MyStrUtils.isEmpty(myToken) ? null : MyServerlessEnv.tokenSecurity.getOwner(myToken);
+        if (MyStrUtils.isEmpty(owner))
+            return JsonResult.json206("Error: myToken not found or invalid.");
+        AdmissionControl.Ticket ticket = AdmissionControl.instance.tryAcquire(admissionUser(req, myToken), "(job)", AdmissionControl.limitOf(null));
+        if (!ticket.isAdmitted())
+            return reject(resp, ticket);
+        try {
+            String action = r.getJob();
+            if ("list".equals(action)) {
+                List<Object> list = new ArrayList<Object>();
+                for (MyServerlessJob job : JobManager.list(owner))
+                    list.add(job.toMap());
+                return new JsonResult(JsonResult.CODE200, "", list);
+            }
+            Object id = r.getArg(1);
+            MyServerlessJob job = id == null ? null : JobManager.find(id.toString());
+            if (job == null || !owner.equals(job.getOwner()))
+                return JsonResult.json206("Error: job not found.");
+            if ("status".equals(action)) {
+                Object wait = r.getArg(2);
+                ticket.release(); //long poll only waits, do not hold user and piece slots
+                if (wait != null && !wait.toString().trim().isEmpty())
+                    JobManager.waitFor(job, Math.min(Long.parseLong(wait.toString().trim()), MyServerlessEnv.job_max_wait_seconds) * 1000);
+                return new JsonResult(JsonResult.CODE200, "", job.toMap());
+            } else if ("result".equals(action)) {
+                if (!MyServerlessJob.DONE.equals(job.getStatus()))
+                    return JsonResult.json206("Error: job is " + job.getStatus() + ", no result.");
+                JobManager.writeResult(req, resp, job);
+                return new JsonResult().setData(BaseTemplate.NONE);
+            } else if ("cancel".equals(action)) {
+                JobManager.cancel(job);
+                return new JsonResult(JsonResult.CODE200, "", job.toMap());
+            }
+            return JsonResult.json206("Error: unknown job action '" + action + "'.");
         } catch (Exception e) {
-            e.printStackTrace();
+            return internalError(req, r, e);
+        } finally {
+            ticket.release();
         }
-        if (params == null)
-            return JsonResult.json206("Error: unsupport json format on server side.", req, null);
+    }
+
+    /** User of AdmissionControl is the owner of myToken, or remote address if not logged in or myToken is invalid */
+    private static String admissionUser(HttpServletRequest req, String myToken) {
+        String owner = MyStrUtils.isEmpty(myToken) ? null : MyServerlessEnv.tokenSecurity.getOwner(myToken);
+        return MyStrUtils.isEmpty(owner) ? "ip:" + req.getRemoteAddr() : "user:" + owner;
+    }
 
-        String sqlOrJavaPiece = (String) params.get("$0");
-        String remoteMethod = (String) params.get("remoteMethod"); // like java/javaTx/qryMapList...
-        if (remoteMethod == null)
-            remoteMethod = "";
-        String myToken = (String) params.get("myToken");
+    private static JsonResult reject(HttpServletResponse resp, AdmissionControl.Ticket ticket) {
+        resp.setHeader("Retry-After", String.valueOf(ticket.getRetryAfterSeconds()));
+        return ticket.toJsonResult();
+    }
+
+    /** Execute a read-only piece by ResponseCache, write cached JSON bytes or 304 to response and return NONE */
+    private static JsonResult executeCached(HttpServletRequest req, HttpServletResponse resp, Call call, String myToken, int cacheSeconds) {
+        String key = ResponseCache.createKey(call.childClass, myToken, call.request.getArgs());
+        ResponseCache.Entry entry = ResponseCache.get(key);
+        if (entry == null) {
+            long writeCount = TableChangeTracker.getWriteCount();
+            TableChangeTracker.startRecording(); //记录执行中读了哪些表，这些表被写入时缓存失效
+            JsonResult result;
+            Set<String> tables;
+            try {
+                result = execute(req, resp, call, myToken);
+            } finally {
+                tables = TableChangeTracker.stopRecording();
+            }
+            if (result.getCode() != JsonResult.CODE200 || BaseTemplate.NONE.equals(result.getData()))
+                return result;
+            entry = ResponseCache.put(key, result, tables, cacheSeconds, writeCount);
+        }
+        resp.setHeader("ETag", entry.getEtag());
+        resp.setHeader("Cache-Control", "no-cache"); //cached by client but always revalidate by If-None-Match
+        if (entry.matches(req.getHeader("If-None-Match")))
+            return new JsonResult().setStatus(304).setData(BaseTemplate.NONE);
+        long start = System.nanoTime();
+        try {
+            int length = entry.getJson().length;
+            if (ResponseWriter.shouldGzip(req, length))
+                ResponseWriter.write(resp, entry.getGzipJson(), entry.getGzipJson().length, length, true);
+            else
+                ResponseWriter.write(resp, entry.getJson(), length, length, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        call.metrics.record(PieceMetrics.SERIALIZE, System.nanoTime() - start);
+        return new JsonResult().setData(BaseTemplate.NONE);
+    }
 
+    private static String findMyToken(HttpServletRequest req, MyServerlessRequest r) {
+        String myToken = r.getMyToken();
         if (MyStrUtils.isEmpty(myToken) || myToken.length() < 10) {//if myToken is empty or wrong, get from cookie
             Cookie[] cookies = req.getCookies();
             if (cookies != null && cookies.length > 0)
@@ -130,62 +305,313 @@ public class MyServerlessServlet extends HttpServlet {
                         myToken = cookie.getValue();
                 }
         }
+        return myToken;
+    }
+
+    private static JsonResult checkError(String error) {
+        return MyStrUtils.isEmpty(error) ? null : JsonResult.json206(error);
+    }
+
+    /** Find the class of a call or parse the piece for hot compile, set its methodId and metrics, return null if no error */
+    private static JsonResult prepare(HttpServletRequest req, Call call, String myToken) {
+        long start = System.nanoTime();
+        String sqlOrJavaPiece = call.request.getPiece();
+        String remoteMethod = call.request.getRemoteMethod(); // like java/javaTx/qryMapList...
+        try {
+            call.childClass = MyServerlessEnv.findCachedClass(sqlOrJavaPiece); //先试着看是不是sqlOrJavaPiece只是一个类名，且这个类已在后端deploy目录下存在
+            if (call.childClass != null) {
+                String methodId = MyStrUtils.substringBefore(call.childClass.getName(), "_"); //com.xx.deploy.xxPublicx$xxx 
+                call.methodId = MyStrUtils.substringAfterLast(methodId, "."); // xxPublicx$xxx
+                call.name = call.methodId;
+                call.metrics = PieceMetrics.of(call.name);
+                call.metrics.record(PieceMetrics.LOOKUP, System.nanoTime() - start);
+                return null;
+            }
+            if (MyServerlessEnv.is_product_stage)
+                return JsonResult.json206("Error: hot compile is not allowed in product stage.");
+
+            if (MyStrUtils.isEmpty(myToken) || myToken.length() < 10) //如果myToken没有，直接报错，不允许动态编译
+                return JsonResult.json206("Error: myToken not found.");
+
+            Class<?> templateClass = MyServerlessEnv.methodTemplates.get(remoteMethod);
+            if (templateClass == null)
+                return JsonResult.json206("Error: server template '" + remoteMethod + "' not found.", req, call.request.toString());
 
-        if (MyStrUtils.isEmpty(sqlOrJavaPiece))
-            return JsonResult.json206("Error: request body is empty.", req, jsonString);
+            call.pieceType = PieceType.byRemoteMethodName(remoteMethod);
+            call.templateClass = templateClass;
+            call.piece = SqlJavaPiece.parseFromFrontText(remoteMethod, sqlOrJavaPiece);
+            call.methodId = MyStrUtils.substringBefore(call.piece.getClassName(), "_"); //admin_rxumbbmwww3r6k3fyp8i -> admin
+            call.hotCompile = true;
+            call.name = call.piece.getClassName();
+            call.metrics = PieceMetrics.of(call.name);
+            call.metrics.record(PieceMetrics.LOOKUP, System.nanoTime() - start);
+            return null;
+        } catch (Exception e) {
+            return internalError(req, call.request, e);
+        }
+    }
 
-        Class<?> childClass = null;
-        boolean hotCompile=false;
+    /** Hot compile if need, then create template instance and execute it */
+    private static JsonResult execute(HttpServletRequest req, HttpServletResponse resp, Call call, String myToken) {
+        long start = System.nanoTime();
         try {
-            childClass = MyServerlessEnv.findCachedClass(sqlOrJavaPiece); //先试着看是不是sqlOrJavaPiece只是一个类名，且这个类已在后端deploy目录下存在
-            if (childClass != null) {
-                String methodId = MyStrUtils.substringBefore(childClass.getName(), "_"); //com.xx.deploy.xxPublicx$xxx 
-                methodId = MyStrUtils.substringAfterLast(methodId, "."); // xxPublicx$xxx
-                String error=MyServerlessEnv.tokenSecurity.check(myToken, methodId, hotCompile);//重要，在这里调用系统配置的TokenSecurity进行权限检查
-                if(!MyStrUtils.isEmpty(error))
-                    return JsonResult.json206(error);
-            } else {
-                if (MyServerlessEnv.is_product_stage)
-                    return JsonResult.json206("Error: hot compile is not allowed in product stage.");
-
-                if (MyStrUtils.isEmpty(myToken) || myToken.length() < 10) //如果myToken没有，直接报错，不允许动态编译
-                    return JsonResult.json206("Error: myToken not found.");
-
-                PieceType pieceType = PieceType.byRemoteMethodName(remoteMethod);
-                Class<?> templateClass = MyServerlessEnv.methodTemplates.get(remoteMethod);
-                if (templateClass == null)
-                    return JsonResult.json206("Error: server template '" + remoteMethod + "' not found.", req, jsonString);
-
-                SqlJavaPiece piece = SqlJavaPiece.parseFromFrontText(remoteMethod, sqlOrJavaPiece);
-                String methodId = piece.getClassName(); //admin_rxumbbmwww3r6k3fyp8i
-                methodId = MyStrUtils.substringBefore(methodId, "_");//admin
-                hotCompile=true;
-                String error=MyServerlessEnv.tokenSecurity.check(myToken, methodId, hotCompile);//重要，在这里调用系统配置的TokenSecurity进行权限检查
-                if(!MyStrUtils.isEmpty(error))
-                    return JsonResult.json206(error); 
-
-                String classSrc = SrcBuilder.createSourceCode(templateClass, pieceType, piece);
+            if (call.hotCompile) { //只有通过了权限检查才编译
+                String classSrc = SrcBuilder.createSourceCode(call.templateClass, call.pieceType, call.piece);
                 //注意下面这个方法动态编译Java源码，但是它自带缓存，如果相同的内容则直接返回缓存中上次编译后获得的类
-                childClass = DynamicCompileEngine.instance.javaCodeToClass(MyServerlessEnv.deploy_package + "." + piece.getClassName(), classSrc);
-                if (childClass == null) //still is null
-                    return JsonResult.json206("Error: hot compile failed.", req, jsonString);
+                call.childClass = DynamicCompileEngine.instance.javaCodeToClass(MyServerlessEnv.deploy_package + "." + call.piece.getClassName(), classSrc);
+                if (call.childClass == null) //still is null
+                    return JsonResult.json206("Error: hot compile failed.", req, call.request.toString());
+                long compiled = System.nanoTime();
+                call.metrics.record(PieceMetrics.LOOKUP, compiled - start);
+                start = compiled;
             }
 
             BaseTemplate instance = null;
-            if (BaseTemplate.class.isAssignableFrom(childClass)) {
-                instance = (BaseTemplate) childClass.newInstance(); //这里只能用newInstance生成多例，如果要采用单例模式虽然可以节省一点内存，但是req、rep、json只能放在线程变量里传递太麻烦
+            if (BaseTemplate.class.isAssignableFrom(call.childClass)) {
+                instance = (BaseTemplate) call.childClass.newInstance(); //这里只能用newInstance生成多例，如果要采用单例模式虽然可以节省一点内存，但是req、rep、json只能放在线程变量里传递太麻烦
             } else
-                return JsonResult.json206("Error: incorrect base template.", req, jsonString);
+                return JsonResult.json206("Error: incorrect base template.", req, call.request.toString());
 
-            instance.initParams(req, resp, params, myToken);
+            instance.initParams(req, resp, call.request, myToken);
 
             return instance.execute();
         } catch (Exception e) {
-            e.printStackTrace();
-            if (MyServerlessEnv.allow_debug_info) //if debugInfo is true, will put exception message and debug info in JSON
-                return JsonResult.json206("Error: server internal error.").setDebugInfo(JsonResult.getDebugInfo(req, jsonString) + "\n" + e.getMessage());
-            else
-                return JsonResult.json206("Error: server internal error.");
+            return internalError(req, call.request, e);
+        } finally {
+            call.metrics.record(PieceMetrics.EXECUTE, System.nanoTime() - start);
+        }
+    }
+
+    private static JsonResult internalError(HttpServletRequest req, Object json, Exception e) {
+        e.printStackTrace();
+        if (MyServerlessEnv.allow_debug_info) //if debugInfo is true, will put exception message and debug info in JSON
+            return JsonResult.json206("Error: server internal error.").setDebugInfo(JsonResult.getDebugInfo(req, String.valueOf(json)) + "\n" + e.getMessage());
+        else
+            return JsonResult.json206("Error: server internal error.");
+    }
+
+    /**
+     * Execute a batch request, body like: {"batch":[{"remoteMethod":"qryString","$0":"...","$1":..}, ...], "mode":"parallel",
+     * "myToken":"..."}. myToken is checked only once for all calls by TokenSecurity.checkBatch. mode can be:
+     * 
+     * <pre>
+     * sequential (default): execute calls one by one, each call has its own result
+     * parallel: execute query (qryXxx) calls in a thread pool, then execute other calls one by one
+     * tx: execute calls one by one in one transaction, first failed call roll back the whole batch and skip the rest
+     * </pre>
+     * 
+     * Return a JsonResult, its data is an array of JsonResult in same order of the calls. Calls in a batch share the
+     * request and response, pieces write response themselves (return NONE) or read upload stream can not be batched.
+     * Query calls run in the thread pool get null request and response, because servlet objects can not be used out of
+     * the request thread.
+     */
+    private static JsonResult doBatch(HttpServletRequest req, HttpServletResponse resp, MyServerlessRequest r, String myToken) {
+        List<MyServerlessRequest> batch = r.getBatch();
+        if (batch.size() > MyServerlessEnv.batch_max_calls)
+            return JsonResult.json206("Error: too many calls in one batch, max is " + MyServerlessEnv.batch_max_calls + ".", req, null);
+        String mode = r.getMode() == null ? "sequential" : r.getMode();
+        if (!("sequential".equals(mode) || "parallel".equals(mode) || "tx".equals(mode)))
+            return JsonResult.json206("Error: unknown batch mode '" + mode + "'.", req, null);
+
+        int n = batch.size();
+        Call[] calls = new Call[n];
+        JsonResult[] results = new JsonResult[n];
+        List<Integer> checking = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            if (MyStrUtils.isEmpty(batch.get(i).getPiece())) {
+                results[i] = JsonResult.json206("Error: call " + i + " of batch is empty.");
+                continue;
+            }
+            calls[i] = new Call(batch.get(i).setMyToken(myToken));
+            results[i] = prepare(req, calls[i], myToken);
+            if (results[i] == null)
+                checking.add(i);
+        }
+
+        String[] methodIds = new String[checking.size()];
+        boolean[] hotCompiles = new boolean[checking.size()];
+        for (int k = 0; k < methodIds.length; k++) {
+            methodIds[k] = calls[checking.get(k)].methodId;
+            hotCompiles[k] = calls[checking.get(k)].hotCompile;
         }
-    } 
+        PieceMetrics batchMetrics = PieceMetrics.of(PieceMetrics.BATCH);
+        long start = System.nanoTime();
+        String[] errors = MyServerlessEnv.tokenSecurity.checkBatch(myToken, methodIds, hotCompiles);
+        batchMetrics.record(PieceMetrics.AUTH, System.nanoTime() - start);
+        for (int k = 0; k < errors.length; k++)
+            results[checking.get(k)] = checkError(errors[k]);
+
+        String user = admissionUser(req, myToken);
+        AdmissionControl.Ticket ticket = AdmissionControl.instance.tryTakeToken(user); //a batch takes one token, each call takes its own slots
+        if (!ticket.isAdmitted())
+            return batchMetrics.finish(reject(resp, ticket));
+        if ("parallel".equals(mode)) {
+            executeParallel(req, calls, results, myToken, user);
+            for (int i = 0; i < n; i++) //write pieces are not run in pool
+                if (results[i] == null)
+                    results[i] = executeAdmitted(req, resp, calls[i], myToken, user);
+        } else if ("tx".equals(mode)) {
+            JsonResult error = executeInTx(req, resp, calls, results, myToken, user);
+            if (error != null) {
+                countCalls(calls, results);
+                return batchMetrics.finish(error.setData(stripStatus(results)));
+            }
+        } else
+            for (int i = 0; i < n; i++)
+                if (results[i] == null)
+                    results[i] = executeAdmitted(req, resp, calls[i], myToken, user);
+        countCalls(calls, results);
+        return batchMetrics.finish(new JsonResult(JsonResult.CODE200, "", stripStatus(results)));
+    }
+
+    private static void countCalls(Call[] calls, JsonResult[] results) {
+        for (int i = 0; i < calls.length; i++)
+            if (calls[i] != null && calls[i].metrics != null)
+                calls[i].metrics.finish(results[i]);
+    }
+
+    /** Execute a call of a batch with its own admission slots, return a 429 result if rejected */
+    private static JsonResult executeAdmitted(HttpServletRequest req, HttpServletResponse resp, Call call, String myToken, String user) {
+        AdmissionControl.Ticket ticket = AdmissionControl.instance.tryAcquireSlot(user, call.name, AdmissionControl.limitOf(call.childClass));
+        if (!ticket.isAdmitted())
+            return ticket.toJsonResult();
+        try {
+            return execute(req, resp, call, myToken);
+        } finally {
+            ticket.release();
+        }
+    }
+
+    /**
+     * Execute query calls in the pool, other calls are left for the caller. Each call takes its admission slots before
+     * submitted to the pool, if rejected, wait for an earlier call of this batch to finish and try again, so a batch runs
+     * at most admission_user_concurrency calls at once
+     */
+    private static void executeParallel(HttpServletRequest req, final Call[] calls, final JsonResult[] results, final String myToken, String user) {
+        List<Future<JsonResult>> futures = new ArrayList<Future<JsonResult>>();
+        List<Integer> indexes = new ArrayList<Integer>();
+        int waited = 0; //futures before this are finished
+        for (int i = 0; i < calls.length; i++) {
+            if (results[i] != null || !isQuery(calls[i]))
+                continue;
+            final Call call = calls[i];
+            AdmissionControl.Ticket ticket = AdmissionControl.instance.tryAcquireSlot(user, call.name, AdmissionControl.limitOf(call.childClass));
+            while (!ticket.isAdmitted() && waited < futures.size()) {
+                try {
+                    futures.get(waited++).get();
+                } catch (Exception e) {
+                    // result is collected below
+                }
+                ticket = AdmissionControl.instance.tryAcquireSlot(user, call.name, AdmissionControl.limitOf(call.childClass));
+            }
+            if (!ticket.isAdmitted()) {
+                results[i] = ticket.toJsonResult();
+                continue;
+            }
+            final AdmissionControl.Ticket admitted = ticket;
+            indexes.add(i);
+            try {
+                futures.add(batchExecutor().submit(new Callable<JsonResult>() {
+                    public JsonResult call() {
+                        try {
+                            return execute(null, null, call, myToken); //servlet request and response are not thread safe
+                        } finally {
+                            admitted.release();
+                        }
+                    }
+                }));
+            } catch (RuntimeException e) {
+                admitted.release();
+                throw e;
+            }
+        }
+        for (int k = 0; k < futures.size(); k++) {
+            try {
+                results[indexes.get(k)] = futures.get(k).get();
+            } catch (Exception e) {
+                results[indexes.get(k)] = internalError(req, calls[indexes.get(k)].request, e);
+            }
+        }
+    }
+
+    /** Return true if the call is a query piece, hot compiled by a qryXxx method or deployed from a qryXxx template */
+    private static boolean isQuery(Call call) {
+        if (call.hotCompile)
+            return PieceType.QRY.equals(call.pieceType);
+        for (Map.Entry<String, Class<?>> e : MyServerlessEnv.methodTemplates.entrySet())
+            if (PieceType.QRY.equals(PieceType.byRemoteMethodName(e.getKey())) && e.getValue().isAssignableFrom(call.childClass))
+                return true;
+        return false;
+    }
+
+    /** Execute calls in one transaction, return null if committed, or return the error if rolled back */
+    private static JsonResult executeInTx(HttpServletRequest req, HttpServletResponse resp, Call[] calls, JsonResult[] results, String myToken,
+            String user) {
+        for (JsonResult result : results) //有调用不能执行时不开始事务
+            if (result != null)
+                return JsonResult.json206("Error: batch transaction not started, some calls can not be executed.");
+        ConnectionManager tx = DB.gctx().getConnectionManager();
+        if (tx.isInTransaction())
+            return JsonResult.json206("Error: batch transaction can not be nested.");
+        tx.startTransaction(Connection.TRANSACTION_READ_COMMITTED);
+        int failed = -1;
+        for (int i = 0; i < calls.length; i++) {
+            results[i] = executeAdmitted(req, resp, calls[i], myToken, user);
+            if (results[i].getCode() != JsonResult.CODE200) {
+                failed = i;
+                break;
+            }
+        }
+        if (failed < 0)
+            try {
+                tx.commitTransaction();
+                return null;
+            } catch (Exception e) {
+                return internalError(req, null, e);
+            }
+        tx.rollbackTransaction();
+        for (int i = failed + 1; i < calls.length; i++)
+            results[i] = JsonResult.json206("Error: skipped, batch transaction rolled back.");
+        return JsonResult.json206("Error: call " + failed + " failed, batch transaction rolled back.");
+    }
+
+    private static JsonResult[] stripStatus(JsonResult[] results) {
+        for (JsonResult result : results)
+            result.setStatus(null); //status only used for http status of whole batch
+        return results;
+    }
+
+    private static ExecutorService batchExecutor() {
+        if (batchExecutor == null)
+            synchronized (MyServerlessServlet.class) {
+                if (batchExecutor == null)
+                    batchExecutor = Executors.newFixedThreadPool(MyServerlessEnv.batch_threads, new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "myserverless-batch-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            }
+        return batchExecutor;
+    }
+
+    /** A call resolved from request, childClass is null until compiled if hotCompile is true */
+    private static class Call {
+        final MyServerlessRequest request;
+        Class<?> childClass;
+        String methodId;
+        String name; //piece name used by PieceMetrics and AdmissionControl
+        boolean hotCompile;
+        Class<?> templateClass;
+        PieceType pieceType;
+        SqlJavaPiece piece;
+        PieceMetrics metrics; //set by prepare
+
+        Call(MyServerlessRequest request) {
+            this.request = request;
+        }
+    }
 }
@@ -0,0 +1,159 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.myserverless;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.drinkjava2.jdbpro.LatencyHistogram;
+import com.github.drinkjava2.jdbpro.SqlMetrics;
+import com.github.drinkjava2.jlogs.Log;
+import com.github.drinkjava2.jlogs.LogFactory;
+import com.github.drinkjava2.myserverless.util.JsonUtil;
+
+/**
+ * PieceMetrics records call count, error count (result code is not 200) and latency histograms of each piece, piece
+ * name is the methodId of a deployed class like "AdminMrp$CheckKitting", or class name of a hot compiled piece. Latency
+ * is split into 4 phases:
+ *
+ * <pre>
+ * auth: TokenSecurity check
+ * lookup: find deployed class, or parse and hot compile the piece
+ * execute: create template instance and execute it, SQL time is also recorded by SqlMetrics
+ * serialize: serialize (and compress) the JSON result and write it to response
+ * </pre>
+ *
+ * A batch request is also recorded as piece "(batch)". Call getStatistics() to get all metrics, it's exposed by piece
+ * AdminMetrics$GetMetrics, and logged every metrics_log_seconds if it's set in myserverless.properties.
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class PieceMetrics {
+    public static final int AUTH = 0;
+    public static final int LOOKUP = 1;
+    public static final int EXECUTE = 2;
+    public static final int SERIALIZE = 3;
+    private static final String[] PHASES = new String[] { "auth", "lookup", "execute", "serialize" };
+
+    public static final int MAX_PIECES = 1000; //too many hot compiled pieces are recorded together as "(others)"
+    public static final String BATCH = "(batch)";
+    public static final String OTHERS = "(others)";
+
+    private static final Log log = LogFactory.getLog(PieceMetrics.class);
+    private static final ConcurrentHashMap<String, PieceMetrics> all = new ConcurrentHashMap<String, PieceMetrics>();
+    private static final ThreadLocal<PieceMetrics> current = new ThreadLocal<PieceMetrics>(); //serialize phase is recorded in doAction
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+
+    static {
+        if (MyServerlessEnv.metrics_log_seconds > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "myserverless-metrics");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            dumper.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    if (!all.isEmpty())
+                        log.info("MyServerless metrics: " + JsonUtil.toJSON(getStatistics().get("pieces")) + "\n" + SqlMetrics.dump(20, "total"));
+                }
+            }, MyServerlessEnv.metrics_log_seconds, MyServerlessEnv.metrics_log_seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private PieceMetrics() {
+        for (int i = 0; i < phases.length; i++)
+            phases[i] = new LatencyHistogram();
+    }
+
+    /** Return metrics of a piece, create it if not exist */
+    public static PieceMetrics of(String piece) {
+        PieceMetrics m = all.get(piece);
+        if (m == null) {
+            PieceMetrics newMetrics = new PieceMetrics();
+            m = all.putIfAbsent(all.size() < MAX_PIECES ? piece : OTHERS, newMetrics);
+            if (m == null)
+                m = newMetrics;
+        }
+        return m;
+    }
+
+    /** Record latency of a phase */
+    public void record(int phase, long nanos) {
+        phases[phase].recordNanos(nanos);
+    }
+
+    /** Count a finished call, and mark this piece as current piece of this thread, return the result */
+    public JsonResult finish(JsonResult result) {
+        calls.incrementAndGet();
+        if (result.getCode() != JsonResult.CODE200)
+            errors.incrementAndGet();
+        current.set(this);
+        return result;
+    }
+
+    /** Return and clear the piece finished last in current thread, or null */
+    public static PieceMetrics takeCurrent() {
+        PieceMetrics m = current.get();
+        if (m != null)
+            current.remove();
+        return m;
+    }
+
+    private Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("calls", calls.get());
+        map.put("errors", errors.get());
+        for (int i = 0; i < PHASES.length; i++)
+            if (phases[i].getCount() > 0)
+                map.put(PHASES[i], phases[i].toMap());
+        return map;
+    }
+
+    /** Return metrics of pieces, top 20 SQLs, gzip, response cache and admission control, latencies are in microseconds */
+    public static Map<String, Object> getStatistics() {
+        Map<String, Object> pieces = new TreeMap<String, Object>();
+        for (Map.Entry<String, PieceMetrics> e : all.entrySet())
+            pieces.put(e.getKey(), e.getValue().toMap());
+        Map<String, Object> cache = new LinkedHashMap<String, Object>();
+        cache.put("size", ResponseCache.size());
+        cache.put("hits", ResponseCache.getHits());
+        cache.put("misses", ResponseCache.getMisses());
+
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("pieces", pieces);
+        map.put("sqls", SqlMetrics.getStatistics(20));
+        map.put("gzip", ResponseWriter.getStatistics());
+        map.put("responseCache", cache);
+        map.put("admission", AdmissionControl.instance.getStatistics());
+        return map;
+    }
+
+    /** Clear all piece and SQL metrics */
+    public static void reset() {
+        all.clear();
+        SqlMetrics.reset();
+        ResponseWriter.resetStatistics();
+        AdmissionControl.instance.resetStatistics();
+    }
+}
@@ -0,0 +1,186 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.myserverless;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.drinkjava2.jdbpro.TableChangeTracker;
+import com.github.drinkjava2.myserverless.util.JsonUtil;
+
+/**
+ * ResponseCache stores serialized JSON bytes of read-only pieces, key is (piece class, auth scope, $1..$n arguments),
+ * auth scope is the myToken, or empty for not logged in users. Cached pieces are classes marked with @ResponseCacheable,
+ * and deployed query template pieces (registered with a "qry" method name) if response_cache_qry_templates is true.
+ * Hot compiled pieces are never cached, a piece can be excluded by @ResponseCacheable(seconds = -1).
+ *
+ * An entry expires after its seconds, or when any table read by the piece is written through jSqlBox (see
+ * TableChangeTracker). Each entry has a strong ETag (MD5 of the bytes), MyServerlessServlet returns 304 if request's
+ * If-None-Match header matches it.
+ *
+ * Set response_cache_seconds=0 in myserverless.properties to disable it.
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class ResponseCache {// NOSONAR
+    private static final Map<String, Entry> cache = Collections.synchronizedMap(new LRUMap(MyServerlessEnv.response_cache_capacity));
+
+    private static final ConcurrentHashMap<Class<?>, Integer> cacheSeconds = new ConcurrentHashMap<Class<?>, Integer>();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /** Return cache seconds of a piece class, 0 if not cacheable */
+    public static int cacheSeconds(Class<?> pieceClass) {
+        if (MyServerlessEnv.response_cache_seconds <= 0 || MyServerlessEnv.response_cache_capacity <= 0)
+            return 0;
+        Integer seconds = cacheSeconds.get(pieceClass);
+        if (seconds == null) {
+            seconds = 0;
+            ResponseCacheable anno = pieceClass.getAnnotation(ResponseCacheable.class);
+            if (anno != null)
+                seconds = anno.seconds() > 0 ? anno.seconds() : anno.seconds() < 0 ? 0 : MyServerlessEnv.response_cache_seconds;
+            else if (MyServerlessEnv.response_cache_qry_templates)
+                for (Map.Entry<String, Class<?>> e : MyServerlessEnv.methodTemplates.entrySet())
+                    if (PieceType.QRY.equals(PieceType.byRemoteMethodName(e.getKey())) && e.getValue().isAssignableFrom(pieceClass))
+                        seconds = MyServerlessEnv.response_cache_seconds;
+            cacheSeconds.put(pieceClass, seconds);
+        }
+        return seconds;
+    }
+
+    public static String createKey(Class<?> pieceClass, String myToken, Object[] args) {
+        return new StringBuilder(pieceClass.getName()).append('|').append(myToken == null ? "" : myToken).append('|')
+                .append(JsonUtil.toJSON(args)).toString();
+    }
+
+    /** Return a not expired entry whose tables not changed, or null */
+    public static Entry get(String key) {
+        Entry entry = cache.get(key);
+        if (entry != null && (System.currentTimeMillis() > entry.expireAt || !TableChangeTracker.isUnchanged(entry.tables, entry.versions))) {
+            cache.remove(key);
+            entry = null;
+        }
+        if (entry == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Serialize a JsonResult and store it, tables are read by the piece. If writeCount changed since the piece start
+     * execute, result is not stored because it may be older than current table versions
+     */
+    public static Entry put(String key, JsonResult result, Set<String> tables, int seconds, long writeCountBefore) {
+        result.setStatus(null); //no need put status in json
+        Entry entry = new Entry(JsonUtil.toJSON(result).getBytes(StandardCharsets.UTF_8), tables, seconds);
+        if (TableChangeTracker.getWriteCount() == writeCountBefore)
+            cache.put(key, entry);
+        return entry;
+    }
+
+    public static void clear() {
+        cache.clear();
+    }
+
+    public static int size() {
+        return cache.size();
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static class Entry {
+        private final byte[] json;
+        private final String etag;
+        private final String[] tables;
+        private final long[] versions;
+        private final long expireAt;
+        private volatile byte[] gzipJson; // compressed when first requested by a client accepts gzip
+
+        Entry(byte[] json, Set<String> tables, int seconds) {
+            this.json = json;
+            this.etag = etag(json);
+            this.tables = tables.toArray(new String[tables.size()]);
+            this.versions = TableChangeTracker.getVersions(this.tables);
+            this.expireAt = System.currentTimeMillis() + seconds * 1000L;
+        }
+
+        private static String etag(byte[] json) {
+            try {
+                byte[] md5 = MessageDigest.getInstance("MD5").digest(json);
+                StringBuilder sb = new StringBuilder("\"");
+                for (byte b : md5)
+                    sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                return sb.append('"').toString();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /** If-None-Match header can be "*" or a comma separated ETag list */
+        public boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null)
+                return false;
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if ("*".equals(tag) || etag.equals(tag))
+                    return true;
+            }
+            return false;
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+
+        public byte[] getGzipJson() {
+            byte[] result = gzipJson;
+            if (result == null) {
+                result = ResponseWriter.gzip(json);
+                gzipJson = result;
+            }
+            return result;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class LRUMap extends LinkedHashMap<String, Entry> {
+        private final int capacity;
+
+        LRUMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+}
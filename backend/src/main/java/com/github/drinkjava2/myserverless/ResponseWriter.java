@@ -0,0 +1,259 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.myserverless;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.github.drinkjava2.myserverless.util.JsonUtil;
+
+/**
+ * ResponseWriter writes JSON responses as UTF-8 bytes. If the client sends "Accept-Encoding: gzip" and the JSON is not
+ * smaller than gzip_min_size, it's gzip compressed.
+ *
+ * To avoid allocation for each request, JSON is serialized into a per thread buffer (servlet threads are pooled), and
+ * compressed by Deflaters taken from a pool. Buffers larger than MAX_KEEP_BUFFER are not kept after use.
+ *
+ * Set gzip_level=0 in myserverless.properties to disable compression.
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class ResponseWriter {// NOSONAR
+    public static final String CONTENT_TYPE = "application/json;charset:utf-8";
+
+    private static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int INIT_BUFFER = 8 * 1024;
+    private static final int MAX_KEEP_BUFFER = 1024 * 1024;
+
+    private static final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(
+            Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final ThreadLocal<Buffer> jsonBuffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private static final ThreadLocal<Buffer> gzipBuffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private static final AtomicLong responses = new AtomicLong(); // JSON responses written
+    private static final AtomicLong gzipResponses = new AtomicLong(); // responses sent with gzip encoding
+    private static final AtomicLong rawBytes = new AtomicLong(); // bytes before compress of gzip responses
+    private static final AtomicLong gzipBytes = new AtomicLong(); // bytes after compress of gzip responses
+    private static final AtomicLong compressCount = new AtomicLong(); // how many times compressed
+    private static final AtomicLong compressNanos = new AtomicLong(); // time used to compress
+
+    /** Serialize a JSON result into a reused buffer and write it to response */
+    public static void writeJson(HttpServletRequest req, HttpServletResponse resp, Object json) throws IOException {
+        Buffer buf = jsonBuffers.get();
+        try {
+            JsonUtil.writeJSON(json, buf);
+            if (shouldGzip(req, buf.size())) {
+                Buffer zipped = gzipBuffers.get();
+                try {
+                    gzip(buf.buf(), 0, buf.size(), zipped);
+                    write(resp, zipped.buf(), zipped.size(), buf.size(), true);
+                } finally {
+                    zipped.recycle();
+                }
+            } else
+                write(resp, buf.buf(), buf.size(), buf.size(), false);
+        } finally {
+            buf.recycle();
+        }
+    }
+
+    /** Return true if client accepts gzip and length is not less than gzip_min_size */
+    public static boolean shouldGzip(HttpServletRequest req, int length) {
+        return MyServerlessEnv.gzip_level > 0 && length >= MyServerlessEnv.gzip_min_size
+                && acceptGzip(req.getHeader("Accept-Encoding"));
+    }
+
+    /** Write bytes to response, if gzipped is true, data is gzip compressed from rawLength bytes */
+    public static void write(HttpServletResponse resp, byte[] data, int length, int rawLength, boolean gzipped) throws IOException {
+        resp.setHeader("Content-Type", CONTENT_TYPE);
+        if (MyServerlessEnv.gzip_level > 0)
+            resp.setHeader("Vary", "Accept-Encoding");
+        if (gzipped) {
+            resp.setHeader("Content-Encoding", "gzip");
+            gzipResponses.incrementAndGet();
+            rawBytes.addAndGet(rawLength);
+            gzipBytes.addAndGet(length);
+        }
+        resp.setContentLength(length);
+        responses.incrementAndGet();
+        OutputStream out = resp.getOutputStream();
+        out.write(data, 0, length);
+        out.flush();
+    }
+
+    /**
+     * Stream a gzip compressed JSON file to response, used for large job results. It's sent as is if client accepts gzip,
+     * otherwise it's decompressed on the fly, rawLength is the length before compress
+     */
+    public static void writeGzipFile(HttpServletRequest req, HttpServletResponse resp, File file, long rawLength) throws IOException {
+        boolean gzipped = acceptGzip(req.getHeader("Accept-Encoding"));
+        resp.setHeader("Content-Type", CONTENT_TYPE);
+        resp.setHeader("Vary", "Accept-Encoding");
+        InputStream in = new FileInputStream(file);
+        try {
+            if (gzipped) {
+                resp.setHeader("Content-Encoding", "gzip");
+                resp.setContentLengthLong(file.length());
+                gzipResponses.incrementAndGet();
+                rawBytes.addAndGet(rawLength);
+                gzipBytes.addAndGet(file.length());
+            } else {
+                in = new GZIPInputStream(in, 64 * 1024);
+                resp.setContentLengthLong(rawLength);
+            }
+            responses.incrementAndGet();
+            OutputStream out = resp.getOutputStream();
+            byte[] buf = new byte[64 * 1024];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf))
+                out.write(buf, 0, n);
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Return gzip compressed bytes, used by ResponseCache to compress an entry only once */
+    public static byte[] gzip(byte[] data) {
+        Buffer zipped = gzipBuffers.get();
+        try {
+            gzip(data, 0, data.length, zipped);
+            return zipped.toByteArray();
+        } finally {
+            zipped.recycle();
+        }
+    }
+
+    private static void gzip(byte[] data, int offset, int length, Buffer out) {
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+            deflater = new Deflater(MyServerlessEnv.gzip_level, true); //raw deflate, gzip header and trailer written here
+        try {
+            out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            out.ensureFree(length / 4 + 64); //JSON usually compress to less than 1/4
+            while (!deflater.finished()) {
+                out.ensureFree(INIT_BUFFER);
+                out.grow(deflater.deflate(out.buf(), out.size(), out.buf().length - out.size()));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, offset, length);
+            out.writeIntLE((int) crc.getValue());
+            out.writeIntLE(length);
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater))
+                deflater.end();
+        }
+        compressCount.incrementAndGet();
+        compressNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /** Accept-Encoding like "gzip, deflate, br" or "gzip;q=1.0, *;q=0" */
+    static boolean acceptGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        for (String item : acceptEncoding.split(",")) {
+            int pos = item.indexOf(';');
+            String coding = (pos >= 0 ? item.substring(0, pos) : item).trim();
+            if ("gzip".equalsIgnoreCase(coding) || "*".equals(coding))
+                return pos < 0 || !item.substring(pos + 1).replace(" ", "").matches("q=0(\\.0*)?");
+        }
+        return false;
+    }
+
+    /** Return compression statistics, ratio is gzipped bytes / raw bytes */
+    public static Map<String, Object> getStatistics() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        long raw = rawBytes.get();
+        long count = compressCount.get();
+        map.put("responses", responses.get());
+        map.put("gzipResponses", gzipResponses.get());
+        map.put("rawBytes", raw);
+        map.put("gzipBytes", gzipBytes.get());
+        map.put("ratio", raw == 0 ? 0 : (double) gzipBytes.get() / raw);
+        map.put("compressCount", count);
+        map.put("compressMillis", compressNanos.get() / 1000000);
+        map.put("avgCompressMicros", count == 0 ? 0 : compressNanos.get() / count / 1000);
+        return map;
+    }
+
+    public static void resetStatistics() {
+        responses.set(0);
+        gzipResponses.set(0);
+        rawBytes.set(0);
+        gzipBytes.set(0);
+        compressCount.set(0);
+        compressNanos.set(0);
+    }
+
+    /** A ByteArrayOutputStream exposes its array, so it can be written to response or deflated into directly */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(INIT_BUFFER);
+        }
+
+        byte[] buf() {
+            return buf;
+        }
+
+        void ensureFree(int n) {
+            if (buf.length - count < n)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+        }
+
+        void grow(int n) {
+            count += n;
+        }
+
+        void writeIntLE(int i) {
+            write(i);
+            write(i >> 8);
+            write(i >> 16);
+            write(i >> 24);
+        }
+
+        void recycle() {
+            reset();
+            if (buf.length > MAX_KEEP_BUFFER)
+                buf = new byte[INIT_BUFFER];
+        }
+    }
+}
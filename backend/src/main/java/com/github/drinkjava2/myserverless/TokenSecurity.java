@@ -35,4 +35,33 @@ public interface TokenSecurity {
      */
     public String check(String myToken, String methodId, boolean hotCompile);
 
+    /**
+     * Check all calls of a batch request, default implementation call check method for each call, implementation can
+     * override it to look up the myToken only once for the whole batch
+     * 
+     * @param myToken current user's myToken
+     * @param methodIds method id of each call
+     * @param hotCompile if each call require hot compile
+     * @return check result of each call, null item means check passed
+     */
+    public default String[] checkBatch(String myToken, String[] methodIds, boolean[] hotCompile) {
+        String[] result = new String[methodIds.length];
+        for (int i = 0; i < methodIds.length; i++)
+            result[i] = check(myToken, methodIds[i], hotCompile[i]);
+        return result;
+    }
+
+    /**
+     * Return owner of background jobs submitted with the myToken, a user can only see his own jobs. It's also the user
+     * of AdmissionControl limits, so implementation should return null for an invalid myToken, otherwise a client can
+     * get new limits by sending fake tokens. Default implementation returns the myToken, so jobs can not be seen after
+     * login again, implementation can return the user id instead
+     * 
+     * @param myToken current user's myToken
+     * @return owner, or null if the myToken is invalid
+     */
+    public default String getOwner(String myToken) {
+        return myToken;
+    }
+
 }
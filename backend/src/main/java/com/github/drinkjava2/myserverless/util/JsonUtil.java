@@ -12,6 +12,7 @@
 package com.github.drinkjava2.myserverless.util;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.Map;
@@ -101,6 +102,11 @@ public class JsonUtil {
         return toJSON(object, objectWriter);
     }
 
+    /** 把object以UTF-8字节写入输出流, 不生成中间字符串  */
+    public static void writeJSON(Object object, OutputStream out) throws IOException {
+        singleTonObjectMapper_NON_NULL.writeValue(out, object);
+    }
+
     /** 把object转为格式化json, 如失败返回null  */
     public static String toJSONFormatted(Object object) {
         ObjectWriter objectWriter = singleTonObjectMapper_NON_NULL.writer().withDefaultPrettyPrinter();
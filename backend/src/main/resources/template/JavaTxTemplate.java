@@ -27,6 +27,12 @@ public class JavaTxTemplate extends BaseTemplate {
         // open transaction
         Exception ex = null;
         TinyTxConnectionManager tx = (TinyTxConnectionManager) gctx().getConnectionManager();
+        if (tx.isInTransaction()) { // already in a transaction (like a "tx" mode batch request), join it
+            data = executeBody();
+            if (data instanceof JsonResult)
+                return (JsonResult) data;
+            return new JsonResult(code, message, data);
+        }
         try {
             tx.startTransaction(Connection.TRANSACTION_READ_COMMITTED);
             data = executeBody();
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.github.drinkjava2.jsqlbox.sharding;
+
+import com.github.drinkjava2.jdialects.model.TableModel;
+
+/**
+ * Routing cost per call of ShardingModTool, ShardingHashTool and
+ * ShardingLookupTool, routed with the same TableModel and with a different copy
+ * of it on each call (like ActiveRecord.model() gives). Not a unit test, run its
+ * main method with the test classpath.
+ *
+ * @author Yong Zhu
+ * @since 5.0.15
+ */
+public class ShardingRoutingBenchmark {
+	private static final int KEYS = 4096;
+	private static final int COPIES = 1000;
+	private static final int SECONDS = 2;
+
+	public static void main(String[] args) {
+		Object[] keys = new Object[KEYS];
+		for (int i = 0; i < KEYS; i++)
+			keys[i] = (long) i * 7919;
+		for (int i = 0; i < 1000; i++)
+			ShardingLookupTool.put("benchDir", keys[i], i % 4);
+
+		run("MOD", new ShardingModTool(), model("MOD", "4"), keys);
+		run("HASH", new ShardingHashTool(), model("HASH", "4"), keys);
+		run("LOOKUP", new ShardingLookupTool(), model("LOOKUP", "benchDir", "0"), keys);
+	}
+
+	private static TableModel model(String... shardTable) {
+		TableModel model = new TableModel("bench_order");
+		model.setEntityClass(ShardingRoutingBenchmark.class); // ShardingModTool needs an entity class
+		model.column("id").LONG().pkey().shardTable(shardTable);
+		return model;
+	}
+
+	private static void run(String name, ShardingTool tool, TableModel model, Object[] keys) {
+		TableModel[] copies = new TableModel[COPIES];
+		for (int i = 0; i < COPIES; i++)
+			copies[i] = model.newCopy();
+		TableModel[] same = new TableModel[] { model };
+		route(tool, same, keys, 1); // warm up
+		route(tool, copies, keys, 1);
+		System.out.println(String.format("%-8s same model %8.1f ns/call, model copies %8.1f ns/call", name,
+				route(tool, same, keys, SECONDS), route(tool, copies, keys, SECONDS)));
+	}
+
+	/** Route keys for given seconds, return nanoseconds per call */
+	private static double route(ShardingTool tool, TableModel[] models, Object[] keys, int seconds) {
+		long count = 0;
+		int sum = 0;
+		long start = System.nanoTime();
+		long end = start + seconds * 1000000000L;
+		while (System.nanoTime() < end)
+			for (int i = 0; i < KEYS; i++, count++)
+				sum += tool.handleShardTable(models[i % models.length], keys[i])[0];
+		if (sum == -1)
+			System.out.println(sum); // keep JIT from removing the loop
+		return (System.nanoTime() - start) / (double) count;
+	}
+}
@@ -0,0 +1,72 @@
+/* Copyright 2018-2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ */
+package com.github.drinkjava2.myserverless;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Throughput of request parsing on the dispatch path, MyServerlessRequest.parse from an InputStream compared with the
+ * old way (new ObjectMapper per request, readLine into a String, parse into a Map). Not a unit test, run its main
+ * method with the test classpath.
+ *
+ * @author Yong Zhu
+ * @since 1.0.0
+ */
+public class MyServerlessRequestBenchmark {
+    private static final int SECONDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        String single = "{\"remoteMethod\":\"qryMapList\",\"$0\":\"PUBLIC_abcdefghijklmnopqrst\",\"$1\":\"A001\",\"$2\":20,\"myToken\":\"0123456789abcdef\"}";
+        StringBuilder batch = new StringBuilder("{\"mode\":\"parallel\",\"myToken\":\"0123456789abcdef\",\"batch\":[");
+        for (int i = 0; i < 10; i++)
+            batch.append(i == 0 ? "" : ",").append("{\"remoteMethod\":\"qryMapList\",\"$0\":\"PUBLIC_q").append(i).append("\",\"$1\":").append(i).append('}');
+        batch.append("]}");
+        StringBuilder bulk = new StringBuilder("{\"remoteMethod\":\"java\",\"$0\":\"AdminImport$ImportRows\",\"$1\":[");
+        for (int i = 0; i < 10000; i++)
+            bulk.append(i == 0 ? "" : ",").append("{\"sn\":\"SN").append(i).append("\",\"qty\":").append(i).append(",\"note\":\"line ").append(i).append("\"}");
+        bulk.append("],\"myToken\":\"0123456789abcdef\"}");
+
+        for (String[] c : new String[][] { { "single call", single }, { "batch of 10", batch.toString() }, { "bulk 10000 rows", bulk.toString() } }) {
+            byte[] body = c[1].getBytes(StandardCharsets.UTF_8);
+            run(c[0] + ", old ObjectMapper+readLine+Map", body, true);
+            run(c[0] + ", MyServerlessRequest.parse", body, false);
+        }
+    }
+
+    private static void run(String name, byte[] body, boolean old) throws Exception {
+        for (long end = System.nanoTime() + 1000000000L; System.nanoTime() < end;) // warm up
+            parse(body, old);
+        long count = 0;
+        long start = System.nanoTime();
+        long end = start + SECONDS * 1000000000L;
+        while (System.nanoTime() < end) {
+            parse(body, old);
+            count++;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%-50s %10.0f requests/s, %8.1f MB/s", name, count / seconds, count * body.length / seconds / 1048576));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object parse(byte[] body, boolean old) throws Exception {
+        if (!old)
+            return MyServerlessRequest.parse(new ByteArrayInputStream(body));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+        String line = reader.readLine();
+        return new ObjectMapper().readValue(line, Map.class);
+    }
+}
@@ -1,19 +1,32 @@
 const host="http://localhost:8001";
 
 // Return example: {"code":200, "msg":"sucess", data:"foo", debugInfo:"bar"}
+const etagCache=new Map(); //只读片段的ETag缓存, key是请求体, 浏览器不缓存POST, 所以在这里用If-None-Match条件请求
+const ETAG_CACHE_SIZE=200;
+
 async function fetchJSon(methodName, text, args){//异步ajax
 	let bodyJsonStr=getBodyJsonStr(methodName, text, args);
 	  try{ 
+		  let headers={"Accept":"application/json", "Content-Type": "application/json;charset=utf-8"};
+		  let cached=etagCache.get(bodyJsonStr);
+		  if(cached)headers["If-None-Match"]=cached.etag;
 		  //m参数只是给开发者用来区分API用的，后端不需要，布署时可以去掉这个参数
 		  let response= await fetch(host+"/my.do?m="+methodInfo(methodName, text), {
 			    method : "POST",
 			    mode: "cors",
-				headers: {"Accept":"application/json", "Content-Type": "application/json;charset=utf-8"},
+				headers: headers,
 				//credentials: 'include',
 				body : bodyJsonStr
 		      });
+          if(response.status===304 && cached)return cached.obj;
           let obj= await response.json();
           if(obj.debugInfo)console.error(obj.debugInfo);
+          let etag=response.headers.get("ETag");
+          if(etag){
+              etagCache.delete(bodyJsonStr);
+              if(etagCache.size>=ETAG_CACHE_SIZE)etagCache.delete(etagCache.keys().next().value);
+              etagCache.set(bodyJsonStr, {"etag":etag, "obj":obj});
+          }
           return obj;
 	  }catch(e){
 		  console.log("Request failed ", e);
@@ -70,6 +83,92 @@ function methodInfo(methodName, text){ //methodInfo参数加在url中，这个
 	  return rs;
 };
 	 
+//上传文件，文件内容作为请求体，其余参数放在MyServerless-Params请求头中，例: $upload(`AdminImport$ImportExcel`, file, "ExcelInventory", "", true)
+async function uploadJSon(text, file, args){
+	let params=[text];
+	for (let i = 2; i < args.length; i++)
+		params.push(args[i]);
+	let bodyJsonStr=getBodyJsonStr("", text, params);
+	try{
+		let response= await fetch(host+"/my.do?m="+methodInfo("", text), {
+			method : "POST",
+			mode: "cors",
+			headers: {"Accept":"application/json", "Content-Type": "application/octet-stream", "MyServerless-Params": encodeURIComponent(bodyJsonStr)},
+			body : file
+		});
+		let obj= await response.json();
+		if(obj.debugInfo)console.error(obj.debugInfo);
+		return obj;
+	}catch(e){
+		console.log("Upload failed ", e);
+		return {"code":403, "msg":"Upload failed", "data":null};
+	}
+}
+
+//批量调用，一次请求执行多个远程方法，返回每个调用的结果数组，顺序与calls一致
+//calls的每一项是[方法名, 文本, 参数1, 参数2...]，方法名同$java/$qryMapList等去掉$，调用后端已存在的类时方法名为""
+//mode: "sequential"(缺省，顺序执行)、"parallel"(qryXxx查询片段并行执行，其余片段随后顺序执行)、"tx"(在同一个事务中顺序执行，任一失败全部回滚)
+//例: $batch([["", "AdminMrp$PegUp", "P001"], ["qryString", "select count(*) from wo"]], "parallel")
+async function fetchBatch(calls, mode){
+	let batch=[];
+	for (let i = 0; i < calls.length; i++) 
+		batch.push(JSON.parse(getBodyJsonStr(calls[i][0], calls[i][1], calls[i].slice(1))));
+	let myToken="";
+	if (window.localStorage && localStorage.getItem("myToken"))  
+		myToken=localStorage.getItem("myToken"); 
+	try{
+		let response= await fetch(host+"/my.do?m=batch+"+calls.length, {
+			method : "POST",
+			mode: "cors",
+			headers: {"Accept":"application/json", "Content-Type": "application/json;charset=utf-8"},
+			body : JSON.stringify({"batch":batch, "mode":mode?mode:"sequential", "myToken":myToken})
+		});
+		let obj= await response.json();
+		if(obj.debugInfo)console.error(obj.debugInfo);
+		if(!Array.isArray(obj.data))
+			return calls.map(() => obj);
+		for (let i = 0; i < obj.data.length; i++) 
+			if(obj.data[i].debugInfo)console.error(obj.data[i].debugInfo);
+		return obj.data;
+	}catch(e){
+		console.log("Batch request failed ", e);
+		return calls.map(() => ({"code":403, "msg":"Request failed", "data":null}));
+	}
+}
+
+//后台任务，action为submit/status/result/cancel/list，submit时text和args同$myServerless，其它action的args[1]是任务id
+//例: let job=await $job("AdminMrp$RunMrp", 52); let result=await $waitJob(job.data.id, job => console.log(job.progress, job.message));
+async function fetchJob(action, text, args){
+	let bodyJson=JSON.parse(getBodyJsonStr("", text, args));
+	bodyJson["job"]=action;
+	try{
+		let response= await fetch(host+"/my.do?m=job+"+action+"+"+methodInfo("", text), {
+			method : "POST",
+			mode: "cors",
+			headers: {"Accept":"application/json", "Content-Type": "application/json;charset=utf-8"},
+			body : JSON.stringify(bodyJson)
+		});
+		let obj= await response.json();
+		if(obj.debugInfo)console.error(obj.debugInfo);
+		return obj;
+	}catch(e){
+		console.log("Job request failed ", e);
+		return {"code":403, "msg":"Request failed", "data":null};
+	}
+}
+
+//长轮询任务状态直到任务结束，每次状态变化时调用onProgress(任务状态)，任务完成时返回片段的结果json，失败或取消时返回错误json
+async function waitJob(jobId, onProgress){
+	while(true){
+		let json=await fetchJob("status", "", ["", jobId, 30]);
+		if(json.code!==200)return json;
+		if(onProgress)onProgress(json.data);
+		let status=json.data.status;
+		if(status==="DONE")return await fetchJob("result", "", ["", jobId]);
+		if(status==="FAILED" || status==="CANCELLED")return {"code":500, "msg":json.data.message, "data":json.data};
+	}
+}
+
 export function getMyToken(){
     return window.localStorage?localStorage.getItem("myToken"):null;  
 }		
@@ -77,6 +176,15 @@ export function getMyToken(){
 //异步方法
 export async function $myServerless(text){return await fetchJSon("", text, arguments); }
 export async function data$myServerless(text){let json= await fetchJSon("", text, arguments); return json.data; }
+export async function $upload(text, file){return await uploadJSon(text, file, arguments); }
+export async function $batch(calls, mode){return await fetchBatch(calls, mode); }
+export async function $job(text){return await fetchJob("submit", text, arguments); }
+export async function $jobStatus(jobId, waitSeconds){return await fetchJob("status", "", ["", jobId, waitSeconds]); }
+export async function $jobResult(jobId){return await fetchJob("result", "", ["", jobId]); }
+export async function $cancelJob(jobId){return await fetchJob("cancel", "", ["", jobId]); }
+export async function $jobList(){return await fetchJob("list", "", [""]); }
+export async function $waitJob(jobId, onProgress){return await waitJob(jobId, onProgress); }
+export async function data$batch(calls, mode){let jsons= await fetchBatch(calls, mode); return jsons.map(json => json.data); }
 
 export async function $java(text) { 				return await fetchJSon("java", text, arguments); } 
 export async function $javaTx(text) {				return await fetchJSon("javaTx", text, arguments);} 